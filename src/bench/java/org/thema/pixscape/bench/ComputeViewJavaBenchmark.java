@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.bench;
+
+import java.awt.Point;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thema.common.RasterImage;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.Project;
+import org.thema.pixscape.ScaleData;
+import org.thema.pixscape.view.ComputeViewJava;
+import org.thema.pixscape.view.ComputeViewSweepJava;
+import org.thema.pixscape.view.ViewShedResult;
+import org.thema.pixscape.view.ViewTanResult;
+
+/**
+ * JMH benchmarks of the ray kernels of {@link ComputeViewJava}.
+ * 
+ * The grid parameter is either the size in pixel of a synthetic square DTM (1000, 4000, 10000),
+ * or the path of an existing project file (.xml) for benchmarking on real data, eg. :
+ * mvn -Pbenchmark verify -Djmh.args="-p grid=/data/prj/project.xml ComputeViewJavaBenchmark"
+ * Results are written in JSON in target/jmh-result.json.
+ * 
+ * @author Gilles Vuidel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ComputeViewJavaBenchmark {
+
+    /** Eye height in meter */
+    private static final double START_Z = 1.7;
+    
+    /** Synthetic DTM size in pixel or project file path */
+    @Param({"1000", "4000", "10000"})
+    public String grid;
+    
+    /** Limits the distance to a quarter of the grid width */
+    @Param({"false", "true"})
+    public boolean bounded;
+    
+    @Param({"false", "true"})
+    public boolean earthCurv;
+    
+    /** Adds a DSM for synthetic grid, ignored for real project */
+    @Param({"false", "true"})
+    public boolean dsm;
+    
+    private ComputeViewJava compute;
+    private ComputeViewSweepJava computeSweep;
+    private DirectPosition2D centre;
+    private GridCoordinates2D gridCentre, gridCorner;
+    private Bounds bounds;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ScaleData data;
+        if(grid.endsWith(".xml")) {
+            data = Project.load(new File(grid)).getDefaultScaleData();
+        } else {
+            data = createSyntheticData(Integer.parseInt(grid), dsm);
+        }
+        compute = new ComputeViewJava(data, 0.1, earthCurv, 0.13);
+        computeSweep = new ComputeViewSweepJava(data, 0.1, earthCurv, 0.13);
+        
+        Envelope2D env = data.getGridGeometry().getEnvelope2D();
+        centre = new DirectPosition2D(env.getCenterX(), env.getCenterY());
+        gridCentre = data.getWorld2Grid(centre);
+        gridCorner = new GridCoordinates2D(0, 0);
+        bounds = bounded ? new Bounds(0, env.getWidth()/4, 0, 360, -90, 90) : new Bounds();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        compute.dispose();
+        computeSweep.dispose();
+    }
+    
+    @Benchmark
+    public ViewShedResult viewShed() {
+        return compute.calcViewShed(centre, START_Z, -1, false, bounds);
+    }
+    
+    @Benchmark
+    public ViewShedResult viewShedSweep() {
+        return computeSweep.calcViewShed(centre, START_Z, -1, false, bounds);
+    }
+    
+    @Benchmark
+    public ViewShedResult viewShedInverse() {
+        return compute.calcViewShed(centre, START_Z, -1, true, bounds);
+    }
+    
+    @Benchmark
+    public ViewShedResult viewShedDeg() {
+        return compute.calcViewShedDeg(centre, START_Z, -1, false, bounds, false);
+    }
+    
+    @Benchmark
+    public ViewTanResult viewTan() {
+        return compute.calcViewTan(centre, START_Z, bounds);
+    }
+    
+    @Benchmark
+    public double ray() {
+        return compute.calcRay(gridCentre, START_Z, gridCorner, -1, bounds, false);
+    }
+    
+    /**
+     * Creates a reproducible synthetic landscape : a few hills and valleys with random roughness, 
+     * 5 land use codes and optionnaly a DSM with random patches of buildings/forest.
+     * @param size the width and height in pixel
+     * @param withDsm adds a DSM ?
+     * @return the new scale data with a resolution of 1 meter
+     */
+    static ScaleData createSyntheticData(int size, boolean withDsm) {
+        Random rnd = new Random(size);
+        float[] dtm = new float[size*size];
+        byte[] land = new byte[size*size];
+        float[] dsm = new float[size*size];
+        final double f = 2*Math.PI / size;
+        for(int y = 0; y < size; y++) {
+            for(int x = 0; x < size; x++) {
+                final int i = y*size+x;
+                dtm[i] = (float) (200 + 80*Math.sin(3*f*x) * Math.cos(2*f*y) + 30*Math.sin(11*f*(x+y)) + rnd.nextFloat()*2);
+                land[i] = (byte) (1 + (x/50 + y/50) % 5);
+                if(withDsm && land[i] >= 4) {
+                    dsm[i] = 5 + rnd.nextFloat()*15;
+                }
+            }
+        }
+        
+        WritableRaster dtmRaster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1), 
+                new DataBufferFloat(dtm, dtm.length), new Point(0, 0));
+        WritableRaster landRaster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_BYTE, size, size, 1), 
+                new DataBufferByte(land, land.length), new Point(0, 0));
+        WritableRaster dsmRaster = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1), 
+                new DataBufferFloat(dsm, dsm.length), new Point(0, 0));
+        GridCoverage2D dtmCov = new GridCoverageFactory().create("", dtmRaster, new Envelope2D(null, 0, 0, size, size));
+        return new ScaleData(dtmCov, new RasterImage(landRaster), withDsm ? new RasterImage(dsmRaster) : null, 1);
+    }
+}
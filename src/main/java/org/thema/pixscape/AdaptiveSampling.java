@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.image.WritableRaster;
+import java.util.List;
+
+/**
+ * Coarse to fine sampling of a metric grid.
+ *
+ * The cells are first calculated on a coarse grid of step pixels.
+ * A rectangle of the coarse grid is filled by bilinear interpolation if, for each result,
+ * the values calculated at its 4 corners differ by less than the relative tolerance.
+ * Otherwise, the rectangle is split in 4 and the new corners are calculated, until the rectangle size is 1 pixel.
+ * So, each interpolated value lies between the values calculated at the corners of its rectangle.
+ * With a tolerance of 0, only the rectangles having the same values at their corners are interpolated.
+ *
+ * The cells which are not calculated (see {@link Cell#isCalculated(int, int) }) are never interpolated.
+ *
+ * @author Gilles Vuidel
+ */
+final class AdaptiveSampling {
+
+    /**
+     * Calculation of one cell of the grid.
+     */
+    interface Cell {
+        /**
+         * @param x the x grid coordinate
+         * @param y the y grid coordinate
+         * @return false if the cell must not be calculated (no data)
+         */
+        boolean isCalculated(int x, int y);
+
+        /**
+         * Calculates the cell and stores the results in the rasters.
+         * @param x the x grid coordinate
+         * @param y the y grid coordinate
+         */
+        void calc(int x, int y);
+    }
+
+    private static final byte NONE = 0;
+    private static final byte INTERPOLATED = 1;
+    private static final byte DONE = 2;
+
+    private final int width;
+    private final int step;
+    private final double tolerance;
+    private final List<WritableRaster> rasters;
+    private final Cell cell;
+
+    private int x0, y0, stateWidth;
+    private byte[] state;
+    private int nbCalc, nbInterp;
+
+    /**
+     * Creates a new adaptive sampling
+     * @param width the width of the grid
+     * @param step the step of the coarse grid, must be &gt; 1
+     * @param tolerance the relative tolerance between the calculated values for interpolating, must be &gt;= 0
+     * @param rasters the results rasters, filled by {@link Cell#calc(int, int) } and by interpolation
+     * @param cell the cell calculation
+     * @throws IllegalArgumentException if step or tolerance are out of range
+     */
+    AdaptiveSampling(int width, int step, double tolerance, List<WritableRaster> rasters, Cell cell) {
+        if(step < 2) {
+            throw new IllegalArgumentException("Adaptive sampling step must be greater than 1");
+        }
+        if(!(tolerance >= 0)) {
+            throw new IllegalArgumentException("Adaptive sampling tolerance must be positive");
+        }
+        this.width = width;
+        this.step = step;
+        this.tolerance = tolerance;
+        this.rasters = rasters;
+        this.cell = cell;
+    }
+
+    /**
+     * Samples the rows [y0-y1[ of the grid.
+     * The rasters must contain the rows and the cells not calculated must be initialized to NaN.
+     * @param y0 the first row inclusive
+     * @param y1 the last row exclusive
+     */
+    void process(int y0, int y1) {
+        process(0, y0, width, y1);
+    }
+
+    /**
+     * Samples the rectangle [x0-x1[ x [y0-y1[ of the grid.
+     * The rasters must contain the rectangle and the cells not calculated must be initialized to NaN.
+     * @param x0 the first column inclusive
+     * @param y0 the first row inclusive
+     * @param x1 the last column exclusive
+     * @param y1 the last row exclusive
+     */
+    void process(int x0, int y0, int x1, int y1) {
+        this.x0 = x0;
+        this.y0 = y0;
+        stateWidth = x1-x0;
+        state = new byte[stateWidth * (y1-y0)];
+        int [] xs = getNodes(x0, x1);
+        int [] ys = getNodes(y0, y1);
+        for(int j = 0; j < ys.length-1; j++) {
+            for(int i = 0; i < xs.length-1; i++) {
+                refine(xs[i], ys[j], xs[i+1], ys[j+1]);
+            }
+        }
+        state = null;
+    }
+
+    /**
+     * @return the number of cells calculated
+     */
+    int getNbCalc() {
+        return nbCalc;
+    }
+
+    /**
+     * @return the number of cells interpolated
+     */
+    int getNbInterp() {
+        return nbInterp;
+    }
+
+    private int[] getNodes(int min, int max) {
+        final int n = (max-1-min) / step + 1;
+        final boolean last = (max-1-min) % step != 0;
+        final int [] nodes = new int[Math.max(2, n + (last ? 1 : 0))];
+        for(int i = 0; i < n; i++) {
+            nodes[i] = min + i*step;
+        }
+        nodes[nodes.length-1] = max-1;
+        return nodes;
+    }
+
+    private void refine(int xa, int ya, int xb, int yb) {
+        boolean valid = calc(xa, ya) & calc(xb, ya) & calc(xa, yb) & calc(xb, yb);
+        if(xb-xa <= 1 && yb-ya <= 1) {
+            return;
+        }
+        if(valid && isSimilar(xa, ya, xb, yb)) {
+            interpolate(xa, ya, xb, yb);
+            return;
+        }
+        final int xm = (xa+xb) / 2;
+        final int ym = (ya+yb) / 2;
+        if(xb-xa > 1 && yb-ya > 1) {
+            refine(xa, ya, xm, ym);
+            refine(xm, ya, xb, ym);
+            refine(xa, ym, xm, yb);
+            refine(xm, ym, xb, yb);
+        } else if(xb-xa > 1) {
+            refine(xa, ya, xm, yb);
+            refine(xm, ya, xb, yb);
+        } else {
+            refine(xa, ya, xb, ym);
+            refine(xa, ym, xb, yb);
+        }
+    }
+
+    /**
+     * Calculates the cell if it has not already been calculated.
+     * @return true if the cell has a calculated value
+     */
+    private boolean calc(int x, int y) {
+        final int ind = (y-y0)*stateWidth + x-x0;
+        if(state[ind] != DONE) {
+            if(state[ind] == INTERPOLATED) {
+                nbInterp--;
+            }
+            state[ind] = DONE;
+            if(cell.isCalculated(x, y)) {
+                cell.calc(x, y);
+                nbCalc++;
+                return true;
+            } else {
+                for(WritableRaster r : rasters) {
+                    r.setSample(x, y, 0, Float.NaN);
+                }
+                return false;
+            }
+        }
+        return cell.isCalculated(x, y);
+    }
+
+    private boolean isSimilar(int xa, int ya, int xb, int yb) {
+        for(WritableRaster r : rasters) {
+            final double v1 = r.getSampleDouble(xa, ya, 0);
+            final double v2 = r.getSampleDouble(xb, ya, 0);
+            final double v3 = r.getSampleDouble(xa, yb, 0);
+            final double v4 = r.getSampleDouble(xb, yb, 0);
+            final double min = Math.min(Math.min(v1, v2), Math.min(v3, v4));
+            final double max = Math.max(Math.max(v1, v2), Math.max(v3, v4));
+            if(!(max - min <= tolerance * Math.max(Math.abs(min), Math.abs(max)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void interpolate(int xa, int ya, int xb, int yb) {
+        for(int y = ya; y <= yb; y++) {
+            final double fy = yb == ya ? 0 : (y-ya) / (double)(yb-ya);
+            for(int x = xa; x <= xb; x++) {
+                final int ind = (y-y0)*stateWidth + x-x0;
+                if(state[ind] != NONE) {
+                    continue;
+                }
+                if(!cell.isCalculated(x, y)) {
+                    state[ind] = DONE;
+                    continue;
+                }
+                state[ind] = INTERPOLATED;
+                nbInterp++;
+                final double fx = xb == xa ? 0 : (x-xa) / (double)(xb-xa);
+                for(WritableRaster r : rasters) {
+                    final double v = (1-fx)*(1-fy) * r.getSampleDouble(xa, ya, 0) + fx*(1-fy) * r.getSampleDouble(xb, ya, 0)
+                            + (1-fx)*fy * r.getSampleDouble(xa, yb, 0) + fx*fy * r.getSampleDouble(xb, yb, 0);
+                    r.setSample(x, y, 0, v);
+                }
+            }
+        }
+    }
+}
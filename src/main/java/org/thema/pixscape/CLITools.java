@@ -61,6 +61,7 @@ import org.thema.pixscape.metric.Metric;
 import org.thema.pixscape.metric.ViewShedMetric;
 import org.thema.pixscape.metric.ViewTanMetric;
 import org.thema.pixscape.view.MultiViewTanResult;
+import org.thema.pixscape.view.TotalViewShed;
 import org.thema.pixscape.view.ViewTanResult;
 
 /**
@@ -76,8 +77,43 @@ public class CLITools {
     private Bounds bounds = new Bounds();
     private int sample = 1;
     private SortedSet<Integer> from = null;
+    private int adaptiveStep = 1;
+    private double adaptiveTol = 0;
+    private int tileSize = GridMetricTask.DEFAULT_TILE_SIZE;
+    private boolean checkpoint = false;
+    private boolean resume = false;
+    private boolean overviews = false;
     private File pointFile = null;
     private String idField = null;
+    private File baselineDir = null;
+    private ImpactZone impactZone = null;
+    private final boolean mpi;
+    
+    /**
+     * Creates a new CLITools for threaded execution
+     */
+    public CLITools() {
+        this(false);
+    }
+    
+    /**
+     * Creates a new CLITools
+     * @param mpi is executed in MPI mode ?
+     */
+    CLITools(boolean mpi) {
+        this.mpi = mpi;
+    }
+    
+    /**
+     * Calculates the grid metrics only for the cells affected by a land modification, 
+     * the other cells are copied from the results of the same commands on the initial project.
+     * @param dir the directory containing the results of the same commands on the initial project
+     * @param zone the pixels modified in the project
+     */
+    void setBaseline(File dir, ImpactZone zone) {
+        this.baselineDir = dir;
+        this.impactZone = zone;
+    }
     
     /**
      * Executes the commands from the command line
@@ -88,22 +124,26 @@ public class CLITools {
     public void execute(String [] argarr) throws IOException, SchemaException {
         if(argarr[0].equals("--help")) {
             System.out.println("Usage :\njava -jar pixscape.jar --metrics\n" +
-                    "java -jar pixscape.jar --create prj_name dtm_raster_file [dsm=raster_file] [landuse=raster_file] [dir=path]\n" +
+                    "java -jar pixscape.jar --create prj_name dtm_raster_file [dsm=raster_file] [landuse=raster_file] [dir=path] [zprec=val]\n" +
                     "java -jar pixscape.jar [-mpi | -proc n | -cuda n] --project project_file.xml\n" +
-                    "[--landmod zone=filezones.gpkg id=fieldname code=fieldname [height=fieldname | dsm=file.tif] [selid=id1,...,idn]]\n" +
+                    "[--landmod zone=filezones.gpkg id=fieldname code=fieldname [height=fieldname | dsm=file.tif] [selid=id1,...,idn] [baseline=path]]\n" +
                     "[-zeye val] [-zdest val] [-resdir path]\n" +
                     "[-bounds [dmin=val] [dmax=val] [orien=val] [amp=val] [zmin=val] [zmax=val]]\n" +
                     "[-sampling n=val | land=code1,..,coden | points=pointfile.gpkg id=fieldname]\n" +
+                    "[-adaptive [step=val] [tol=val]] [-tile size] [-checkpoint | -resume] [-overviews]\n" +
                     "[-multi dmin=val | -mono]\n" +
                     "[-earth flat|curved [refrac=val]]\n" +
+                    "[-parview] [-sweep]\n" +
                     " commands\n\n" +
                     "Commands list :\n" +
                     "--viewshed [inverse] [point=coord_x,coord_y] [resname=name]\n" +
                     "--viewtan [prec=deg] [point=coord_x,coord_y] [resname=name]\n" +
                     "--multiviewshed format=vector|raster [inverse] [degree=height|area] [resname=name]\n" +
+                    "--totalviewshed [inverse] [sector=n] [resname=name]\n" +
                     "--planmetric [inverse] metric1[[code1,...,coden]][_d1,...,dm] ... metricn[[code1,...,coden]][_d1,...,dm]\n" +
                     "--tanmetric [prec=deg] metric1[[code1,...,coden]][_d1,...,dm] ... metricn[[code1,...,coden]][_d1,...,dm]\n" +
-                    "--toobject [degree=height|area] [agreg=eye|object] objects=pointfile.gpkg id=fieldname [resname=name]\n" +
+                    "--toobject [degree=height|area] [agreg=eye|object] [mode=auto|ray|viewshed] objects=pointfile.gpkg id=fieldname [resname=name]\n" +
+                    "--saturation objects=pointfile.gpkg group=fieldname dmax=val [resname=name]\n" +
                     "--addscale dtm_raster_file [dsm=raster_file] [landuse=raster_file]\n");
             return;
         }
@@ -143,8 +183,6 @@ public class CLITools {
             project = Project.load(new File(args.remove(0)));
         }
         project.setUseCUDA(useCUDA);
-        resDir = project.getDirectory();
-        zEye = project.getStartZ();
         
         // land mod special command
         if(!args.isEmpty() && args.get(0).equals("--landmod")) {
@@ -153,6 +191,22 @@ public class CLITools {
             return;
         }
         
+        execute(project, args);
+    }
+    
+    /**
+     * Executes the global options and the commands on a project.
+     * The project is disposed after the commands.
+     * @param project the project
+     * @param args the global options followed by the commands, the list is emptied
+     * @throws IOException
+     * @throws SchemaException
+     */
+    void execute(Project project, List<String> args) throws IOException, SchemaException {
+        this.project = project;
+        resDir = project.getDirectory();
+        zEye = project.getStartZ();
+        
         // global options
         while(!args.isEmpty() && !args.get(0).startsWith("--")) {
             String p = args.remove(0);
@@ -194,6 +248,33 @@ public class CLITools {
                         throw new IllegalArgumentException("Unknown param for sampling option " + p);
                     }
                     break;
+                case "-adaptive":
+                    adaptiveStep = 8;
+                    while(!args.isEmpty() && !args.get(0).startsWith("-")) {
+                        p = args.remove(0);
+                        if(p.startsWith("step=")) {
+                            adaptiveStep = Integer.parseInt(p.split("=")[1]);
+                        } else if(p.startsWith("tol=")) {
+                            adaptiveTol = Double.parseDouble(p.split("=")[1]);
+                        } else {
+                            throw new IllegalArgumentException("Unknown param for adaptive option " + p);
+                        }
+                    }
+                    break;
+                case "-tile":
+                    p = args.remove(0);
+                    tileSize = Integer.parseInt(p);
+                    break;
+                case "-checkpoint":
+                    checkpoint = true;
+                    break;
+                case "-resume":
+                    checkpoint = true;
+                    resume = true;
+                    break;
+                case "-overviews":
+                    overviews = true;
+                    break;
                 case "-zeye":
                     p = args.remove(0);
                     zEye = Double.parseDouble(p);
@@ -226,6 +307,12 @@ public class CLITools {
                         project.setEarthCurv(false);
                     }
                     break;
+                case "-parview":
+                    project.setParallelView(true);
+                    break;
+                case "-sweep":
+                    project.setRadialSweep(true);
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown option " + p);
             }
@@ -250,6 +337,9 @@ public class CLITools {
                     case "--multiviewshed":
                         multiViewShed(args);
                         break;
+                    case "--totalviewshed":
+                        totalViewShed(args);
+                        break;
                     case "--planmetric":
                         viewMetric(args);
                         break;
@@ -259,6 +349,9 @@ public class CLITools {
                     case "--toobject":
                         toObject(args);
                         break;   
+                    case "--saturation":
+                        saturation(args);
+                        break;   
                     case "--addscale":
                         addScale(args);
                         break;   
@@ -405,6 +498,24 @@ public class CLITools {
 
     }
     
+    private void totalViewShed(List<String> args) throws IOException {   
+        Map<String, String> params = extractAndCheckParams(args, Collections.EMPTY_LIST, Arrays.asList("inverse", "sector", "resname"));
+        
+        boolean inverse = params.containsKey("inverse");
+        int nbSector = TotalViewShed.DEFAULT_NB_SECTOR;
+        if(params.containsKey("sector")) {
+            nbSector = Integer.parseInt(params.get("sector"));
+        }
+        String name = "totalviewshed" + (inverse ? "-inverse" : "");
+        if(params.containsKey("resname")) {
+            name = params.get("resname");
+        }
+        
+        WritableRaster total = project.getSimpleComputeView().calcTotalViewShed(zEye, zDest, inverse, bounds, nbSector);
+        IOImage.saveTiffCoverage(new File(resDir, name + ".tif"),
+                new GridCoverageFactory().create("view", total, project.getDtmCov().getEnvelope2D()));
+    }
+    
     private void viewMetric(List<String> args) throws IOException {
         boolean inverse = false;
         if(!args.isEmpty() && args.get(0).equals("inverse")) {
@@ -422,9 +533,23 @@ public class CLITools {
         }
         ParallelTask task;
         if(pointFile == null) {
-            task = new GridMetricTask(project, zEye, zDest, inverse, bounds, from, metrics, sample, resDir, Config.getProgressBar("Metric"));
+            GridMetricTask gridTask = new GridMetricTask(project, zEye, zDest, inverse, bounds, from, metrics, sample, resDir, Config.getProgressBar("Metric"));
+            gridTask.setAdaptiveSampling(adaptiveStep, adaptiveTol);
+            gridTask.setTileSize(tileSize);
+            gridTask.setOverviews(overviews);
+            if(impactZone != null) {
+                gridTask.setBaseline(baselineDir, impactZone.getAffected(zEye, zDest, inverse, bounds));
+            }
+            if(checkpoint) {
+                gridTask.setCheckpoint(resume);
+            }
+            task = gridTask;
         } else {
-            task = new PointMetricTask(project, zEye, zDest, inverse, bounds, metrics, pointFile, idField, resDir, Config.getProgressBar("Metric"));
+            PointMetricTask pointTask = new PointMetricTask(project, zEye, zDest, inverse, bounds, metrics, pointFile, idField, resDir, Config.getProgressBar("Metric"));
+            if(checkpoint) {
+                pointTask.setCheckpoint(resume);
+            }
+            task = pointTask;
         }
         
         ExecutorService.execute(task);
@@ -447,9 +572,23 @@ public class CLITools {
         }
         ParallelTask task;
         if(pointFile == null) {
-            task = new GridMetricTask(project, zEye, bounds, from, metrics, sample, resDir, Config.getProgressBar("Metric"));
+            GridMetricTask gridTask = new GridMetricTask(project, zEye, bounds, from, metrics, sample, resDir, Config.getProgressBar("Metric"));
+            gridTask.setAdaptiveSampling(adaptiveStep, adaptiveTol);
+            gridTask.setTileSize(tileSize);
+            gridTask.setOverviews(overviews);
+            if(impactZone != null) {
+                gridTask.setBaseline(baselineDir, impactZone.getAffected(zEye, -1, false, bounds));
+            }
+            if(checkpoint) {
+                gridTask.setCheckpoint(resume);
+            }
+            task = gridTask;
         } else {
-            task = new PointMetricTask(project, zEye, bounds, metrics, pointFile, idField, resDir, Config.getProgressBar("Metric"));
+            PointMetricTask pointTask = new PointMetricTask(project, zEye, bounds, metrics, pointFile, idField, resDir, Config.getProgressBar("Metric"));
+            if(checkpoint) {
+                pointTask.setCheckpoint(resume);
+            }
+            task = pointTask;
         }
         
         ExecutorService.execute(task);
@@ -461,7 +600,7 @@ public class CLITools {
             throw new IllegalArgumentException("-sampling points option is mandatory for --toobject command");
         }
         
-        Map<String, String> params = extractAndCheckParams(args, Arrays.asList("objects", "id"), Arrays.asList("degree", "agreg", "resname"));
+        Map<String, String> params = extractAndCheckParams(args, Arrays.asList("objects", "id"), Arrays.asList("degree", "agreg", "mode", "resname"));
         
         RasterValue outValue = RasterValue.COUNT;
         if(params.containsKey("degree")) {
@@ -484,6 +623,9 @@ public class CLITools {
 
         Point2PointViewTask task = new Point2PointViewTask(pointFile, idField, zEye, objFile, objId, zDest, 
                 outValue, agreg, Point2PointViewTask.AgregOp.SUM, bounds, project, Config.getProgressBar("ToObject"));
+        if(params.containsKey("mode")) {
+            task.setMode(Point2PointViewTask.Mode.valueOf(params.get("mode").toUpperCase()));
+        }
         ExecutorService.execute(task);
         
         Map result = task.getResult();
@@ -522,6 +664,24 @@ public class CLITools {
         }
     }
     
+    private void saturation(List<String> args) throws IOException {   
+        
+        if(pointFile == null) {
+            throw new IllegalArgumentException("-sampling points option is mandatory for --saturation command");
+        }
+        
+        Map<String, String> params = extractAndCheckParams(args, Arrays.asList("objects", "group", "dmax"), Arrays.asList("resname"));
+        String resname = "saturation";
+        if(params.containsKey("resname")) {
+            resname = params.get("resname");
+        }
+        
+        SaturationTask task = new SaturationTask(pointFile, idField, new File(params.get("objects")), params.get("group"), 
+                Double.parseDouble(params.get("dmax")), project, Config.getProgressBar("Saturation"));
+        ExecutorService.execute(task);
+        task.saveResult(new File(resDir, resname + ".gpkg"));
+    }
+    
     private void landmod(final List<String> args) throws IOException, SchemaException {
         File fileZone = new File(args.remove(0).split("=")[1]);
         String idZoneField = args.remove(0).split("=")[1];
@@ -535,12 +695,21 @@ public class CLITools {
             dsmFile = new File(arg.split("=")[1]);
         }
         List<String> selIds = null;
-        if(!args.isEmpty() && args.get(0).startsWith("selid=")) {
-            selIds = Arrays.asList(args.remove(0).split("=")[1].split(","));
+        File baseline = null;
+        while(!args.isEmpty() && (args.get(0).startsWith("selid=") || args.get(0).startsWith("baseline="))) {
+            arg = args.remove(0);
+            if(arg.startsWith("selid=")) {
+                selIds = Arrays.asList(arg.split("=")[1].split(","));
+            } else {
+                baseline = new File(arg.split("=")[1]);
+            }
         }
         
         LandModTask task = heightField != null ? new LandModTask(project, fileZone, idZoneField, codeField, heightField, selIds, args)
                 : new LandModTask(project, fileZone, idZoneField, codeField, dsmFile, selIds, args);
+        task.setBaseline(baseline);
+        // in MPI mode, the tasks of the commands need the projects on disk
+        task.setInMemory(!mpi);
         ExecutorService.executeSequential(task);
 
         args.clear();
@@ -550,11 +719,12 @@ public class CLITools {
     private Project createProject(List<String> args) throws IOException {
         String name = args.remove(0);
         File dtm = new File(args.remove(0));
-        Map<String, String> params = extractAndCheckParams(args, Collections.EMPTY_LIST, Arrays.asList("landuse", "dsm", "dir"));
+        Map<String, String> params = extractAndCheckParams(args, Collections.EMPTY_LIST, Arrays.asList("landuse", "dsm", "dir", "zprec"));
         File dir = new File(params.containsKey("dir") ? params.get("dir") : name);
+        double zPrec = params.containsKey("zprec") ? Double.parseDouble(params.get("zprec")) : 0;
         
         GridCoverage2D dtmCov = IOImage.loadCoverage(dtm);
-        Project prj = new Project(name, dir, dtmCov, 1);
+        Project prj = new Project(name, dir, dtmCov, 1, zPrec);
         if(params.containsKey("dsm")) {
             prj.setDSM(IOImage.loadCoverage(new File(params.get("dsm"))));
         }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the work units completed by a long task, with their results.
+ *
+ * The file starts with a signature describing the task, a resumed task must have the same signature.
+ * Each record contains a key identifying the work unit (a tile, a point...) and the results encoded by the task.
+ * The records are passed to the system as soon as they are written, so they survive the end of the process,
+ * but they are synchronized to the disk at most every {@link #SYNC_INTERVAL} ms, so the cost of the synchronization
+ * does not depend on the number of records. A failure of the node may lose the last records only.
+ * A record partially written is detected by its checksum and removed when the checkpoint is resumed.
+ *
+ * @author Gilles Vuidel
+ */
+final class Checkpoint implements Closeable {
+
+    /**
+     * Receives the records read from a checkpoint file.
+     */
+    interface Handler {
+        /**
+         * @param key the key of the work unit
+         * @param data the results of the work unit
+         * @throws IOException
+         */
+        void record(String key, byte[] data) throws IOException;
+    }
+
+    private static final int MAGIC = 0x50584350;
+    private static final int VERSION = 1;
+
+    /** Minimum delay in ms between two synchronizations of the file to the disk */
+    static final long SYNC_INTERVAL = 10000;
+
+    private final File file;
+    private final FileOutputStream fos;
+    private final DataOutputStream out;
+    private long lastSync;
+
+    /**
+     * Opens a checkpoint file for writing.
+     * If resume is true and the file exists, the records already written are read and sent to the handler,
+     * the new records are appended after them.
+     * Otherwise, the file is created or overwritten.
+     * @param file the checkpoint file
+     * @param signature the description of the task
+     * @param resume true for continuing an existing checkpoint
+     * @param handler receives the records already written, may be null
+     * @throws IOException
+     * @throws IllegalArgumentException if the existing file does not correspond to the signature
+     */
+    Checkpoint(File file, String signature, boolean resume, Handler handler) throws IOException {
+        this.file = file;
+        final long length = resume ? read(file, signature, handler) : -1;
+        if(length == -1) {
+            fos = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(signature);
+            flush(true);
+        } else {
+            fos = new FileOutputStream(file, true);
+            // removes the last record if it is incomplete
+            fos.getChannel().truncate(length);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+        }
+    }
+
+    /**
+     * @return the checkpoint file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the record of a completed work unit and passes it to the system, 
+     * the file is synchronized to the disk if the last synchronization is older than {@link #SYNC_INTERVAL}.
+     * This method can be called by several threads.
+     * @param key the key of the work unit
+     * @param data the results of the work unit
+     * @throws IOException
+     */
+    synchronized void write(String key, byte[] data) throws IOException {
+        final byte[] bKey = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bKey.length);
+        out.write(bKey);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeLong(checksum(bKey, data));
+        flush(System.currentTimeMillis() - lastSync >= SYNC_INTERVAL);
+    }
+
+    /**
+     * Synchronizes the records to the disk and closes the file.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush(true);
+        out.close();
+    }
+
+    private void flush(boolean sync) throws IOException {
+        out.flush();
+        if(sync) {
+            fos.getChannel().force(false);
+            lastSync = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Reads the records of a checkpoint file.
+     * The reading stops at the first incomplete or corrupted record.
+     * @param file the checkpoint file
+     * @param signature the description of the task
+     * @param handler receives the records, may be null
+     * @return the length of the valid part of the file in bytes, -1 if the file does not exist
+     * @throws IOException
+     * @throws IllegalArgumentException if the file does not correspond to the signature
+     */
+    static long read(File file, String signature, Handler handler) throws IOException {
+        if(!file.exists()) {
+            return -1;
+        }
+        try (CountingInputStream cin = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+                DataInputStream in = new DataInputStream(cin)) {
+            try {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(signature)) {
+                    throw new IllegalArgumentException("The checkpoint " + file + " does not correspond to this task");
+                }
+            } catch(EOFException ex) {
+                // the header has not been written entirely
+                return -1;
+            }
+            long length = cin.count;
+            try {
+                while(true) {
+                    final int keySize = in.readInt();
+                    if(keySize < 0 || keySize > file.length()) {
+                        break;
+                    }
+                    final byte[] key = new byte[keySize];
+                    in.readFully(key);
+                    final int size = in.readInt();
+                    if(size < 0 || size > file.length()) {
+                        break;
+                    }
+                    final byte[] data = new byte[size];
+                    in.readFully(data);
+                    if(in.readLong() != checksum(key, data)) {
+                        break;
+                    }
+                    if(handler != null) {
+                        handler.record(new String(key, StandardCharsets.UTF_8), data);
+                    }
+                    length = cin.count;
+                }
+            } catch(EOFException ex) {
+                // end of the valid records
+            }
+            return length;
+        }
+    }
+
+    private static long checksum(byte[] key, byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Input stream counting the bytes read.
+     */
+    private static final class CountingInputStream extends InputStream {
+        private final InputStream in;
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if(b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if(n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
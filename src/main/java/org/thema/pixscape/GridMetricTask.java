@@ -19,32 +19,37 @@
 
 package org.thema.pixscape;
 
-import com.sun.media.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.color.ColorSpace;
 import java.awt.image.BandedSampleModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferFloat;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.FileImageOutputStream;
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.remote.SerializableState;
@@ -66,9 +71,32 @@ import org.thema.pixscape.view.ComputeView;
  * Parallel task for calculating metrics on a grid sampling.
  * The task works in threaded and MPI mode.
  * 
+ * The grid is split in square tiles which are the units of the parallel range.
+ * The cost of each tile is estimated from its number of cells to calculate weighted by their elevation,
+ * the highest points seeing farther.
+ * In threaded mode, the tiles are taken dynamically from a shared queue, the most expensive first,
+ * until the queue is empty : a thread never waits while tiles remain.
+ * In MPI mode, each node processes a range of a shuffled order of the tiles, 
+ * so the expensive tiles are spread between the nodes.
+ * The time of each tile is logged at fine level.
+ * 
+ * For long runs, the checkpoint (see {@link #setCheckpoint(boolean) }) logs the results of each tile,
+ * so an interrupted task can be resumed without calculating again the tiles already done.
+ * 
+ * After a local modification of the data, the baseline (see {@link #setBaseline(File, BitSet) }) allows to calculate 
+ * only the cells affected by the modification, the values of the other cells are copied from the results of the same task 
+ * before the modification.
+ * 
  * @author Gilles Vuidel
  */
-public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRaster>, Map<String, SerializableState>> implements Serializable {
+public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRaster>, List<Map<String, SerializableState>>> implements Serializable {
+    
+    /** Default size of the tiles in cells */
+    public static final int DEFAULT_TILE_SIZE = 64;
+    
+    /** Seed of the shuffled order of the tiles for MPI mode, must be the same on all nodes */
+    private static final long TILE_SEED = 2015;
+    
     
     /** project file for loading project for MPI mode */
     private File prjFile;
@@ -91,17 +119,48 @@ public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRas
     
     private final File resDir;
     
+    // adaptive sampling
+    private int adaptiveStep = 1;
+    private double adaptiveTolerance = 0;
+    
+    private int tileSize = DEFAULT_TILE_SIZE;
+    
+    private boolean overviews = false;
+    
+    // checkpoint
+    private boolean checkpointed = false;
+    private boolean resume = false;
+    /** keys of the tiles already done in the checkpoint when resuming */
+    private Set<String> doneTiles;
+    
+    // incremental calculation
+    private File baselineDir;
+    /** pixels of the grid whose values may differ from the baseline, indexed by x + y*width */
+    private BitSet affected;
+    
+    /** true if this instance has been created locally, false if it has been sent to a MPI node */
+    private transient boolean local;
+    /** tiles sorted by decreasing estimated cost */
+    private transient List<Rectangle> tiles;
+    /** shuffled order of the tiles for MPI mode */
+    private transient int[] order;
+    /** next tile of the queue for threaded mode */
+    private transient AtomicInteger nextTile;
+    private transient Checkpoint checkpoint;
+    
     private transient Project project;
     private transient GridGeometry2D grid;
     private transient ComputeView compute;
     private transient RenderedImage dtm, land;
     private transient Map<String, WritableRaster> result;
-    private transient Map<String, ImageWriter> writers;
+    private transient Map<String, TiledTiffWriter> writers;
+    private transient Map<String, RenderedImage> baseline;
 
     /**
      * Creates a new GridMetricTask for viewshed metric.
      * If resDir == null, the results are kept in memory and can be retrieved by {@link #getResult()}, 
-     * else the results are not kept in memory and directly saved in tiff files progressively.
+     * else the results are not kept in memory and directly saved in tiled compressed tiff files progressively
+     * by a background thread (see {@link TiledTiffWriter}).
      * @param project the project (must be saved for MPI mode)
      * @param startZ the height of the eye of the observer
      * @param destZ the height of the observed points, -1 if not used
@@ -126,12 +185,14 @@ public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRas
         this.sample = sample;
         this.resDir = resDir;
         this.isTan = false;
+        this.local = true;
     }
     
     /**
      * Creates a new GridMetricTask for tangential metric.
      * If resDir == null, the results are kept in memory and can be retrieved by {@link #getResult()}, 
-     * else the results are not kept in memory and directly saved in tiff files progressively.
+     * else the results are not kept in memory and directly saved in tiled compressed tiff files progressively
+     * by a background thread (see {@link TiledTiffWriter}).
      * @param project the project (must be saved for MPI mode)
      * @param startZ the height of the eye of the observer
      * @param bounds the 3D limits of the sight 
@@ -152,6 +213,7 @@ public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRas
         this.sample = sample;
         this.resDir = resDir;
         this.isTan = true;
+        this.local = true;
     }
 
     @Override
@@ -166,73 +228,419 @@ public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRas
         }
         // needed for getSplitRange
         dtm = project.getDtm();
+        land = project.getLandUse();
+        if(baselineDir != null) {
+            loadBaseline();
+        }
+        createTiles();
+        nextTile = local ? new AtomicInteger() : null;
         super.init(); 
         grid = project.getDtmCov().getGridGeometry();
         compute = project.getDefaultComputeView();
-        land = project.getLandUse();
+        // the viewsheds are consumed immediately by the metrics, the buffers can be reused
+        compute.setPooled(true);
+        if(checkpointed && local) {
+            openCheckpoint();
+        }
+    }
+    
+    /**
+     * Loads the result files of the baseline.
+     * @throws IllegalArgumentException if the size of a baseline file does not correspond to the grid
+     */
+    private void loadBaseline() {
+        baseline = new HashMap<>();
+        for(Metric metric : metrics) {
+            for(String resName : metric.getResultNames()) {
+                try {
+                    RenderedImage img = IOImage.loadCoverage(getResultFile(baselineDir, resName)).getRenderedImage();
+                    if(img.getWidth() != dtm.getWidth()/sample || img.getHeight() != dtm.getHeight()/sample) {
+                        throw new IllegalArgumentException("The size of the baseline " + resName + " does not correspond to the grid");
+                    }
+                    baseline.put(resName, img);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Opens the checkpoint and writes the results of the tiles already done in the result files.
+     */
+    private void openCheckpoint() {
+        try {
+            checkpoint = new Checkpoint(getCheckpointFile(), getSignature(), resume, new Checkpoint.Handler() {
+                @Override
+                public void record(String key, byte[] data) throws IOException {
+                    gatherTile(decodeTile(data), false);
+                }
+            });
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Splits the grid in tiles sorted by decreasing estimated cost and creates the shuffled order for MPI mode.
+     * The cost is estimated on a subsampling of the cells : each cell to calculate counts for 1 plus 
+     * its elevation normalized between 0 and 1.
+     * The result depends only on the data, so it is the same on all the MPI nodes.
+     */
+    private void createTiles() {
+        final int w = dtm.getWidth()/sample;
+        final int h = dtm.getHeight()/sample;
+        final int step = Math.max(1, tileSize / 16);
+        final RandomIter rDtm = RandomIterFactory.create(dtm, null);
+        final RandomIter rLand = from != null ? RandomIterFactory.create(land, null) : null;
+        final List<Rectangle> list = new ArrayList<>();
+        final List<double[]> stats = new ArrayList<>();
+        double zMin = Double.POSITIVE_INFINITY, zMax = Double.NEGATIVE_INFINITY;
+        for(int ty = 0; ty < h; ty += tileSize) {
+            for(int tx = 0; tx < w; tx += tileSize) {
+                final Rectangle tile = new Rectangle(tx, ty, Math.min(tileSize, w-tx), Math.min(tileSize, h-ty));
+                if(doneTiles != null && doneTiles.contains(getKey(tile))) {
+                    continue;
+                }
+                int n = 0;
+                double sumZ = 0;
+                for(int y = ty; y < ty+tile.height; y += step) {
+                    for(int x = tx; x < tx+tile.width; x += step) {
+                        if(isCalculated(rDtm, rLand, x, y)) {
+                            final double z = rDtm.getSampleDouble(x*sample+sample/2, y*sample+sample/2, 0);
+                            n++;
+                            sumZ += z;
+                            zMin = Math.min(zMin, z);
+                            zMax = Math.max(zMax, z);
+                        }
+                    }
+                }
+                list.add(tile);
+                stats.add(new double[] {n, sumZ});
+            }
+        }
+        final double[] costs = new double[list.size()];
+        final Integer[] ind = new Integer[list.size()];
+        for(int i = 0; i < costs.length; i++) {
+            final double n = stats.get(i)[0];
+            costs[i] = n + (zMax > zMin ? (stats.get(i)[1] - n*zMin) / (zMax-zMin) : 0);
+            ind[i] = i;
+        }
+        // stable sort : the tiles with the same cost stay in grid order
+        Arrays.sort(ind, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(costs[i2], costs[i1]);
+            }
+        });
+        tiles = new ArrayList<>(ind.length);
+        for(Integer i : ind) {
+            tiles.add(list.get(i));
+        }
+        
+        List<Integer> shuffle = new ArrayList<>(tiles.size());
+        for(int i = 0; i < tiles.size(); i++) {
+            shuffle.add(i);
+        }
+        Collections.shuffle(shuffle, new Random(TILE_SEED));
+        order = new int[shuffle.size()];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = shuffle.get(i);
+        }
     }
     
     private boolean isSaved() {
         return resDir != null;
     }
     
+    /**
+     * {@inheritDoc }
+     * In threaded mode, the range is ignored : the tiles are taken from the shared queue until it is empty, 
+     * and each tile is gathered as soon as it is calculated, so the result is empty.
+     * In MPI mode, the tiles of the range [start-end[ of the shuffled order are calculated, the most expensive first.
+     * @return the results of each tile calculated
+     */
     @Override
-    public Map<String, SerializableState> execute(int y0, int y1) {
-        Map<String, WritableRaster> map = new HashMap<>();
-        for(Metric metric : metrics) {
-            for(String resName : metric.getResultNames()) {
-                WritableRaster r = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, dtm.getWidth()/sample, y1-y0, 1), new Point(0, y0));
-                Arrays.fill(((DataBufferFloat)r.getDataBuffer()).getData(), Float.NaN);
-                map.put(resName, r);
+    public List<Map<String, SerializableState>> execute(int start, int end) {
+        final RandomIter rDtm = RandomIterFactory.create(dtm, null);
+        final RandomIter rLand = from != null ? RandomIterFactory.create(land, null) : null;
+        final List<Map<String, SerializableState>> results = new ArrayList<>();
+        final long time = System.currentTimeMillis();
+        long maxTime = 0;
+        Rectangle maxTile = null;
+        int nb = 0;
+        final int[] part = Arrays.copyOfRange(order, start, end);
+        // the tiles are sorted by decreasing cost
+        Arrays.sort(part);
+        int k = 0;
+        while(!isCanceled()) {
+            final int i;
+            if(nextTile != null) {
+                i = nextTile.getAndIncrement();
+                if(i >= tiles.size()) {
+                    break;
+                }
+            } else {
+                if(k >= part.length) {
+                    break;
+                }
+                i = part[k++];
             }
-        }
-        final int w = dtm.getWidth()/sample;
-        RandomIter rDtm = RandomIterFactory.create(dtm, null);
-        RandomIter rLand = from != null ? RandomIterFactory.create(land, null) : null;
-        for(int y = y0; y < y1; y++) {
+            final Rectangle tile = tiles.get(i);
+            final long t = System.currentTimeMillis();
+            final Map<String, WritableRaster> map = calcTile(tile, rDtm, rLand);
             if(isCanceled()) {
+                // the tile may be incomplete
                 break;
             }
-            for(int x = 0; x < w; x++) {
-                GridCoordinates2D c = new GridCoordinates2D(x*sample+sample/2, y*sample+sample/2);
-                
-                if(from != null && !from.contains(rLand.getSample(c.x, c.y, 0)) || Float.isNaN(rDtm.getSampleFloat(c.x, c.y, 0))) {
-                    continue;
-                }
-                long time = System.currentTimeMillis();
-                DirectPosition2D p = null;
-                try {
-                    p = (DirectPosition2D) grid.gridToWorld(c);
-                } catch (TransformException ex) {
-                    Logger.getLogger(GridMetricTask.class.getName()).log(Level.SEVERE, null, ex);
+            if(local) {
+                gatherTile(map, true);
+            } else {
+                Map<String, SerializableState> serialMap = new HashMap<>();
+                for(String resName : map.keySet()) {
+                    serialMap.put(resName, SerializerFactory.getState(map.get(resName)));
                 }
-                List<Double[]> values;
-                if(isTan) {
-                    values = compute.aggrViewTan(p, startZ, bounds, (List) metrics);
+                results.add(serialMap);
+            }
+            nb++;
+            final long dt = System.currentTimeMillis() - t;
+            if(maxTile == null || dt > maxTime) {
+                maxTime = dt;
+                maxTile = tile;
+            }
+        }
+        if(maxTile != null) {
+            Logger.getLogger(GridMetricTask.class.getName()).info(nb + " tiles calculated in " 
+                    + (System.currentTimeMillis()-time) + " ms - longest tile " + maxTile.x + "," + maxTile.y + " : " + maxTime + " ms");
+        }
+        return results;
+    }
+    
+    private Map<String, WritableRaster> calcTile(Rectangle tile, RandomIter rDtm, RandomIter rLand) {
+        final long time = System.currentTimeMillis();
+        final Map<String, WritableRaster> map = new HashMap<>();
+        for(Metric metric : metrics) {
+            for(String resName : metric.getResultNames()) {
+                WritableRaster r = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, tile.width, tile.height, 1), tile.getLocation());
+                if(baseline != null) {
+                    // the image readers are not thread safe
+                    synchronized(baseline) {
+                        r.setRect(baseline.get(resName).getData(tile));
+                    }
                 } else {
-                    values = compute.aggrViewShed(p, startZ, destZ, inverse, bounds, (List) metrics);
+                    Arrays.fill(((DataBufferFloat)r.getDataBuffer()).getData(), Float.NaN);
+                }
+                map.put(resName, r);
+            }
+        }
+        String msg;
+        if(adaptiveStep > 1 && affected == null) {
+            AdaptiveSampling adaptive = new AdaptiveSampling(dtm.getWidth()/sample, adaptiveStep, adaptiveTolerance, new ArrayList<>(map.values()), 
+                    new AdaptiveSampling.Cell() {
+                @Override
+                public boolean isCalculated(int x, int y) {
+                    return GridMetricTask.this.isCalculated(rDtm, rLand, x, y);
                 }
-                for(int i = 0; i < metrics.size(); i++) {
-                    int j = 0;
-                    for(String resName : metrics.get(i).getResultNames()) {
-                        map.get(resName).setSample(x, y, 0, values.get(i)[j++]);
+                @Override
+                public void calc(int x, int y) {
+                    if(!isCanceled()) {
+                        calcCell(map, x, y);
                     }
                 }
-                long dt = System.currentTimeMillis()-time;
-                Logger.getLogger(GridMetricTask.class.getName()).fine(dt + " ms");
-            }                   
-            incProgress(1);
+            });
+            adaptive.process(tile.x, tile.y, tile.x+tile.width, tile.y+tile.height);
+            msg = adaptive.getNbCalc() + " cells calculated - " + adaptive.getNbInterp() + " cells interpolated";
+        } else {
+            int nb = 0;
+            for(int y = tile.y; y < tile.y+tile.height; y++) {
+                if(isCanceled()) {
+                    break;
+                }
+                for(int x = tile.x; x < tile.x+tile.width; x++) {
+                    if(!isAffected(x, y)) {
+                        continue;
+                    }
+                    if(isValid(rDtm, rLand, x, y)) {
+                        calcCell(map, x, y);
+                        nb++;
+                    } else if(baseline != null) {
+                        // the cell may have a baseline value, but it is no longer calculated after the modification
+                        for(WritableRaster r : map.values()) {
+                            r.setSample(x, y, 0, Float.NaN);
+                        }
+                    }
+                }                   
+            }
+            msg = nb + " cells calculated";
         }
-        Map<String, SerializableState> serialMap = new HashMap<>();
-        for(String s : map.keySet()) {
-            serialMap.put(s, SerializerFactory.getState(map.get(s)));
+        incProgress(1);
+        Logger.getLogger(GridMetricTask.class.getName()).fine("Tile " + tile.x + "," + tile.y + " : " + msg 
+                + " in " + (System.currentTimeMillis()-time) + " ms");
+        return map;
+    }
+
+    private boolean isCalculated(RandomIter rDtm, RandomIter rLand, int x, int y) {
+        return isAffected(x, y) && isValid(rDtm, rLand, x, y);
+    }
+
+    /**
+     * @return true if the cell (x, y) of the grid may differ from the baseline, always true without baseline
+     */
+    private boolean isAffected(int x, int y) {
+        return affected == null || affected.get(x*sample+sample/2 + (y*sample+sample/2)*dtm.getWidth());
+    }
+
+    /**
+     * @return true if the cell (x, y) of the grid has a land code of the from set, if any, and an elevation
+     */
+    private boolean isValid(RandomIter rDtm, RandomIter rLand, int x, int y) {
+        final int gx = x*sample+sample/2;
+        final int gy = y*sample+sample/2;
+        return !(from != null && !from.contains(rLand.getSample(gx, gy, 0)) || Float.isNaN(rDtm.getSampleFloat(gx, gy, 0)));
+    }
+    
+    private void calcCell(Map<String, WritableRaster> map, int x, int y) {
+        GridCoordinates2D c = new GridCoordinates2D(x*sample+sample/2, y*sample+sample/2);
+        long time = System.currentTimeMillis();
+        DirectPosition2D p = null;
+        try {
+            p = (DirectPosition2D) grid.gridToWorld(c);
+        } catch (TransformException ex) {
+            Logger.getLogger(GridMetricTask.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        List<Double[]> values;
+        if(isTan) {
+            values = compute.aggrViewTan(p, startZ, bounds, (List) metrics);
+        } else {
+            values = compute.aggrViewShed(p, startZ, destZ, inverse, bounds, (List) metrics);
+        }
+        for(int i = 0; i < metrics.size(); i++) {
+            int j = 0;
+            for(String resName : metrics.get(i).getResultNames()) {
+                map.get(resName).setSample(x, y, 0, values.get(i)[j++]);
+            }
         }
-        return serialMap;
+        long dt = System.currentTimeMillis()-time;
+        Logger.getLogger(GridMetricTask.class.getName()).fine(dt + " ms");
     }
 
+    /**
+     * Enables the coarse to fine sampling : the metrics are calculated on a grid of step cells and 
+     * refined only where the calculated values differ by more than the relative tolerance, 
+     * the other cells are interpolated.
+     * The adaptive sampling is useful for smooth metrics (area, distances...) with a sampling of 1 pixel.
+     * By default, the adaptive sampling is disabled : all the cells are calculated.
+     * @param step the size of the coarse grid in cells, 1 for disabling the adaptive sampling
+     * @param tolerance the relative tolerance (0.05 for 5%) for interpolating between calculated values
+     * @throws IllegalArgumentException if step &lt; 1 or tolerance &lt; 0
+     * @see AdaptiveSampling
+     */
+    public void setAdaptiveSampling(int step, double tolerance) {
+        if(step < 1) {
+            throw new IllegalArgumentException("Adaptive sampling step must be greater than 0");
+        }
+        if(!(tolerance >= 0)) {
+            throw new IllegalArgumentException("Adaptive sampling tolerance must be positive");
+        }
+        this.adaptiveStep = step;
+        this.adaptiveTolerance = tolerance;
+    }
+    
+    /**
+     * Sets the size of the tiles which are the units of the parallel range.
+     * With the adaptive sampling, the size should be a multiple of the adaptive step.
+     * When the results are saved, the size should be a multiple of 16 : the TIFF tiles have then the same size
+     * and are written as soon as their tile is calculated. Otherwise, the result files have tiles of 
+     * {@link TiledTiffWriter#DEFAULT_TILE_SIZE} pixels and the tiles not complete are kept by the writer,
+     * in memory or in a temporary file.
+     * The default size is {@link #DEFAULT_TILE_SIZE}.
+     * @param size the size of the tiles in cells
+     * @throws IllegalArgumentException if size &lt; 1
+     */
+    public void setTileSize(int size) {
+        if(size < 1) {
+            throw new IllegalArgumentException("Tile size must be greater than 0");
+        }
+        this.tileSize = size;
+    }
+    
+    /**
+     * Adds overviews to the result files, useful for displaying large grids.
+     * By default, the overviews are not created.
+     * @param overviews true for creating the overviews
+     */
+    public void setOverviews(boolean overviews) {
+        this.overviews = overviews;
+    }
+    
+    /**
+     * Enables the checkpoint : the results of each tile are written in a checkpoint file of the result directory 
+     * as soon as the tile is gathered, the file is deleted when the task finishes without being canceled.
+     * If resume is true and the checkpoint file exists, the tiles already written are not calculated again.
+     * The checkpoint file must correspond to the same task with the same options, 
+     * so this method must be called after the other options (tile size, adaptive sampling).
+     * @param resume true for resuming an interrupted task
+     * @throws IOException if the checkpoint cannot be read
+     * @throws IllegalStateException if the results are not saved
+     * @throws IllegalArgumentException if the checkpoint file does not correspond to this task
+     */
+    public void setCheckpoint(boolean resume) throws IOException {
+        if(!isSaved()) {
+            throw new IllegalStateException("The checkpoint needs a result directory");
+        }
+        this.checkpointed = true;
+        this.resume = resume;
+        doneTiles = new HashSet<>();
+        if(resume) {
+            Checkpoint.read(getCheckpointFile(), getSignature(), new Checkpoint.Handler() {
+                @Override
+                public void record(String key, byte[] data) {
+                    doneTiles.add(key);
+                }
+            });
+            Logger.getLogger(GridMetricTask.class.getName()).info("Resume : " + doneTiles.size() + " tiles already done");
+        }
+    }
+    
+    /**
+     * Calculates only the cells affected by a modification of the data, the other cells are copied from the baseline.
+     * The baseline is the results of the same task, with the same options, before the modification, 
+     * saved in the directory dir.
+     * The adaptive sampling is not used for the affected cells.
+     * This method must be called before {@link #setCheckpoint(boolean) }.
+     * @param dir the directory containing the result files of the baseline
+     * @param affected the pixels of the grid whose values may differ from the baseline, indexed by x + y*width, 
+     *      null for calculating all the cells
+     * @throws IllegalArgumentException if a result file of the baseline does not exist or if dir is the result directory
+     * @see ImpactZone
+     */
+    public void setBaseline(File dir, BitSet affected) {
+        if(affected == null) {
+            this.baselineDir = null;
+            this.affected = null;
+            return;
+        }
+        if(isSaved() && dir.getAbsoluteFile().equals(resDir.getAbsoluteFile())) {
+            throw new IllegalArgumentException("The baseline directory must be different from the result directory");
+        }
+        for(Metric metric : metrics) {
+            for(String resName : metric.getResultNames()) {
+                if(!getResultFile(dir, resName).exists()) {
+                    throw new IllegalArgumentException("The baseline file " + getResultFile(dir, resName) + " does not exist");
+                }
+            }
+        }
+        this.baselineDir = dir;
+        this.affected = affected;
+    }
+    
+    /**
+     * {@inheritDoc }
+     * @return the number of tiles to calculate
+     */
     @Override
     public int getSplitRange() {
-        return dtm.getHeight()/sample;
+        return tiles.size();
     }
     
     @Override
@@ -241,7 +649,22 @@ public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRas
     }
 
     @Override
-    public void gather(Map<String, SerializableState> map) {
+    public void gather(List<Map<String, SerializableState>> results) {
+        for(Map<String, SerializableState> serialMap : results) {
+            Map<String, Raster> map = new HashMap<>();
+            for(String resName : serialMap.keySet()) {
+                map.put(resName, (Raster) serialMap.get(resName).getObject());
+            }
+            gatherTile(map, true);
+        }
+    }
+    
+    /**
+     * Writes the results of a tile in the result files or in the result rasters.
+     * @param map the result raster of the tile for each result name
+     * @param log if true, the tile is written in the checkpoint
+     */
+    private synchronized void gatherTile(Map<String, ? extends Raster> map, boolean log) {
         if(isSaved()) {
             if(writers == null) {
                 writers = new HashMap<>();
@@ -249,21 +672,16 @@ public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRas
             for(String resName : map.keySet()) {
                 try {
                     if(!writers.containsKey(resName)) {
-                        ImageWriter writer = new TIFFImageWriterSpi().createWriterInstance();                       
-                        writer.setOutput(new FileImageOutputStream(getResultFile(resName)));
-                        ImageWriteParam param = writer.getDefaultWriteParam();
-                        writer.prepareWriteEmpty(null, ImageTypeSpecifier.createBanded(ColorSpace.getInstance(ColorSpace.CS_GRAY),
-                                new int[]{0}, new int[]{0}, DataBuffer.TYPE_FLOAT, false, false), dtm.getWidth()/sample, dtm.getHeight()/sample, 
-                                null, null, param);
+                        // with the same size, each tile of the grid fills exactly one TIFF tile which is written at once
+                        TiledTiffWriter writer = new TiledTiffWriter(getResultFile(resName), dtm.getWidth()/sample, dtm.getHeight()/sample, 
+                                DataBuffer.TYPE_FLOAT, overviews, tileSize % 16 == 0 ? tileSize : TiledTiffWriter.DEFAULT_TILE_SIZE);
+                        Envelope2D env = getSavedGrid().getEnvelope2D();
+                        env.setCoordinateReferenceSystem(project.getCRS());
+                        writer.setGeoreference(env);
                         writers.put(resName, writer);
                     }
-                    ImageWriter writer = writers.get(resName);
-                    Raster r = (Raster) map.get(resName).getObject();
-                    writer.prepareReplacePixels(0, new Rectangle(r.getMinX(), r.getMinY(), r.getWidth(), r.getHeight()));
-                    ImageWriteParam param = writer.getDefaultWriteParam();
-                    param.setDestinationOffset(r.getBounds().getLocation());
-                    writer.replacePixels(r, param);
-                    writer.endReplacePixels();
+                    // the raster is compressed and written by the writer thread
+                    writers.get(resName).write(map.get(resName));
                 } catch (IOException ex) {
                     throw new RuntimeException(ex);
                 }
@@ -276,42 +694,135 @@ public class GridMetricTask extends AbstractParallelTask<Map<String, WritableRas
                 if(!result.containsKey(resName)) {
                     result.put(resName, Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, dtm.getWidth()/sample, dtm.getHeight()/sample, 1), null));
                 }
-                result.get(resName).setRect((Raster) map.get(resName).getObject());
+                result.get(resName).setRect(map.get(resName));
+            }
+        }
+        if(log && checkpoint != null && !map.isEmpty()) {
+            try {
+                final Raster r = map.values().iterator().next();
+                checkpoint.write(getKey(r.getBounds()), encodeTile(map));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
             }
         }
     }
     
+    private static String getKey(Rectangle tile) {
+        return tile.x + "," + tile.y;
+    }
+    
+    private static byte[] encodeTile(Map<String, ? extends Raster> map) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(map.size());
+            for(String resName : map.keySet()) {
+                final Raster r = map.get(resName);
+                out.writeUTF(resName);
+                out.writeInt(r.getMinX());
+                out.writeInt(r.getMinY());
+                out.writeInt(r.getWidth());
+                out.writeInt(r.getHeight());
+                for(float v : r.getSamples(r.getMinX(), r.getMinY(), r.getWidth(), r.getHeight(), 0, (float[])null)) {
+                    out.writeFloat(v);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static Map<String, Raster> decodeTile(byte[] data) throws IOException {
+        final Map<String, Raster> map = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            final int nb = in.readInt();
+            for(int i = 0; i < nb; i++) {
+                final String resName = in.readUTF();
+                final Point p = new Point(in.readInt(), in.readInt());
+                WritableRaster r = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, in.readInt(), in.readInt(), 1), p);
+                final float[] buf = ((DataBufferFloat)r.getDataBuffer()).getData();
+                for(int j = 0; j < buf.length; j++) {
+                    buf[j] = in.readFloat();
+                }
+                map.put(resName, r);
+            }
+        }
+        return map;
+    }
+    
     @Override
     public void finish() {
         super.finish(); 
-        if(isSaved()) {
-            GridGeometry2D savedGrid = grid;
-            if(sample > 1) {
-                double r = project.getDefaultScaleData().getResolution();
-                Envelope2D env = grid.getEnvelope2D();
-                int w = dtm.getWidth()/sample;
-                int h = dtm.getHeight()/sample;
-                env = new Envelope2D(env.getCoordinateReferenceSystem(), 
-                        env.x, env.y-(h*sample*r-env.getHeight()), w * sample*r, h * sample*r);
-                savedGrid = new GridGeometry2D(new Rectangle(w, h), env);
-            }
-            try {
-                for(String resName : writers.keySet()) {
-                    writers.get(resName).endWriteEmpty();
-                    writers.get(resName).dispose();
+        if(compute.getBufferPool() != null) {
+            Logger.getLogger(GridMetricTask.class.getName()).info(compute.getBufferPool().toString());
+        }
+        compute.setPooled(false);
+        if(isSaved() && writers != null) {
+            GridGeometry2D savedGrid = getSavedGrid();
+            for(String resName : writers.keySet()) {
+                try {
+                    // waits for the writing of the queued tiles
+                    writers.get(resName).close();
                     IOImage.createTIFFWorldFile(savedGrid, getResultFile(resName).getAbsolutePath());
+                } catch (IOException ex) {
+                    Logger.getLogger(GridMetricTask.class.getName()).log(Level.SEVERE, null, ex);
                 }
+            }
+        }
+        if(checkpoint != null) {
+            try {
+                checkpoint.close();
             } catch (IOException ex) {
                 Logger.getLogger(GridMetricTask.class.getName()).log(Level.SEVERE, null, ex);
             }
+            if(!isCanceled()) {
+                checkpoint.getFile().delete();
+            }
+            checkpoint = null;
         }
     }
     
+    /**
+     * @return the grid geometry of the result files
+     */
+    private GridGeometry2D getSavedGrid() {
+        if(sample == 1) {
+            return grid;
+        }
+        double r = project.getDefaultScaleData().getResolution();
+        Envelope2D env = grid.getEnvelope2D();
+        int w = dtm.getWidth()/sample;
+        int h = dtm.getHeight()/sample;
+        env = new Envelope2D(env.getCoordinateReferenceSystem(), 
+                env.x, env.y-(h*sample*r-env.getHeight()), w * sample*r, h * sample*r);
+        return new GridGeometry2D(new Rectangle(w, h), env);
+    }
+    
+    private File getCheckpointFile() {
+        return new File(resDir, "checkpoint-grid-" + (isTan ? "tan" : "plan" + (inverse ? "-inverse" : "")) + "-" + bounds + ".bin");
+    }
+    
+    /**
+     * @return the description of the task, for checking that a checkpoint corresponds to this task
+     */
+    private String getSignature() {
+        List<String> names = new ArrayList<>();
+        for(Metric metric : metrics) {
+            names.addAll(Arrays.asList(metric.getResultNames()));
+        }
+        return "grid " + prjFile + (isTan ? " tan" : " plan") + " zeye=" + startZ + " zdest=" + destZ + " inverse=" + inverse 
+                + " bounds=" + bounds + " from=" + from + " metrics=" + names + " sample=" + sample + " tile=" + tileSize 
+                + " adaptive=" + adaptiveStep + "," + adaptiveTolerance 
+                + (baselineDir != null ? " baseline=" + baselineDir + "," + affected.cardinality() : "");
+    }
+    
     private File getResultFile(String resName) {
+        return getResultFile(resDir, resName);
+    }
+    
+    private File getResultFile(File dir, String resName) {
         if(isTan) {
-            return new File(resDir, resName + "-" + bounds + ".tif");
+            return new File(dir, resName + "-" + bounds + ".tif");
         } else {
-            return new File(resDir, resName + (inverse ? "-inverse" : "") + "-" + bounds + ".tif");
+            return new File(dir, resName + (inverse ? "-inverse" : "") + "-" + bounds + ".tif");
         }
     }
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.geotools.geometry.DirectPosition2D;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.util.AffineTransformation;
+import org.thema.pixscape.view.BitViewShedResult;
+import org.thema.pixscape.view.ComputeViewJava;
+import org.thema.pixscape.view.ViewShedResult;
+import org.thema.pixscape.view.WindowViewShedResult;
+
+/**
+ * The observers whose view may be changed by a land modification, ie. new land codes and DSM heights on some pixels.
+ *
+ * A modified pixel can change the view of an observer only if the pixel is seen,
+ * at the maximum of its old and new heights, over the surface where the modified pixels are at the minimum of their heights.
+ * If no modified pixel is seen, the rays of the observer are the same before and after the modification.
+ * The observers seeing a modified pixel are given by the inverse viewshed of the pixel.
+ * In inverse mode, the roles are swapped : the observed point must see the modified pixel.
+ * The rays of the viewsheds do not pass exactly by the same pixels than the inverse rays, 
+ * so the inverse viewsheds are calculated over the minimum of the surface on the 3x3 neighbourhood of each pixel, 
+ * and the result is dilated by one pixel.
+ * The cost is one inverse viewshed by modified pixel, so it is useful for small zones only.
+ * The impact zone keeps copies of the land use and of the filtered surface.
+ *
+ * @author Gilles Vuidel
+ */
+final class ImpactZone {
+
+    private final ScaleData data;
+    /** the minimum surface on the 3x3 neighbourhood */
+    private final ScaleData minData;
+    private final ScaleDataOverlay overlay;
+    private final double aPrec;
+    private final boolean earthCurv;
+    private final double coefRefraction;
+
+    /** The modified pixels, x at 2*i and y at 2*i+1 */
+    private int[] pixels;
+    /** The minimum and maximum DSM height of the modified pixels */
+    private float[] zMin, zMax;
+    private int nbPixels;
+
+    private final Map<String, BitSet> cache;
+
+    /**
+     * Creates an empty impact zone.
+     * @param data the initial data, must contain land use and DSM and be loaded in memory (see {@link ScaleDataOverlay#isSupported })
+     * @param aPrec the precision in degree for the tangential view
+     * @param earthCurv take into account earth curvature ?
+     * @param coefRefraction refraction correction, 0 for no correction
+     */
+    ImpactZone(ScaleData data, double aPrec, boolean earthCurv, double coefRefraction) {
+        this.data = data;
+        this.minData = createMinSurface(data);
+        this.overlay = new ScaleDataOverlay(minData);
+        this.aPrec = aPrec;
+        this.earthCurv = earthCurv;
+        this.coefRefraction = coefRefraction;
+        pixels = new int[256];
+        zMin = new float[128];
+        zMax = new float[128];
+        cache = new HashMap<>();
+    }
+
+    /**
+     * Removes all the modified pixels.
+     */
+    synchronized void clear() {
+        nbPixels = 0;
+        cache.clear();
+    }
+
+    /**
+     * Adds a modified pixel.
+     * @param x x in grid coordinate
+     * @param y y in grid coordinate
+     * @param z the new DSM height of the pixel
+     */
+    synchronized void add(int x, int y, double z) {
+        if(nbPixels == zMin.length) {
+            pixels = Arrays.copyOf(pixels, 4*nbPixels);
+            zMin = Arrays.copyOf(zMin, 2*nbPixels);
+            zMax = Arrays.copyOf(zMax, 2*nbPixels);
+        }
+        final double z0 = data.getDsmRaster().getSampleDouble(x, y, 0);
+        pixels[2*nbPixels] = x;
+        pixels[2*nbPixels+1] = y;
+        zMin[nbPixels] = (float) Math.min(z0, z);
+        zMax[nbPixels] = (float) Math.max(z0, z);
+        nbPixels++;
+        cache.clear();
+    }
+
+    /**
+     * @return the number of modified pixels
+     */
+    int getNbPixels() {
+        return nbPixels;
+    }
+
+    /**
+     * Returns the observers (or the observed points in inverse mode) whose view may be changed by the modification.
+     * The results are kept for the same parameters.
+     * Returns null in inverse mode without destZ, because the observed points are on the surface.
+     * @param startZ the height of the eye of the observer
+     * @param destZ the height of the observed points, -1 if not used
+     * @param inverse if false each pixel is the observer, else each pixel is the observed point
+     * @param bounds the 3D limits of the sight, only the maximum distance is used
+     * @return the affected pixels indexed by x + y*width of the grid, or null if all pixels must be considered as affected
+     */
+    synchronized BitSet getAffected(double startZ, double destZ, boolean inverse, Bounds bounds) {
+        if(inverse && destZ == -1) {
+            // the height of the observed points is the surface
+            return null;
+        }
+        final String key = startZ + " " + destZ + " " + inverse + " " + bounds.getDmax();
+        if(cache.containsKey(key)) {
+            return cache.get(key);
+        }
+        final long time = System.currentTimeMillis();
+        final double eyeZ = inverse ? destZ : startZ;
+        final double destMin = inverse ? startZ : destZ;
+        final Bounds b = new Bounds();
+        b.setDmax(bounds.getDmax());
+        final int w = data.getDtm().getWidth();
+        final int h = data.getDtm().getHeight();
+        final BitSet view = new BitSet(w*h);
+        try {
+            setMinSurface(w, h);
+            final ComputeViewJava compute = new ComputeViewJava(overlay.createScaleData(minData.getCodes()), aPrec, earthCurv, coefRefraction);
+            compute.setParallel(true);
+            // only the visible pixels are needed, the viewsheds are packed from a reused buffer
+            compute.setPooled(true);
+            final AffineTransformation grid2World = data.getGrid2World();
+            for(int i = 0; i < nbPixels; i++) {
+                final int x = pixels[2*i];
+                final int y = pixels[2*i+1];
+                final Coordinate c = grid2World.transform(new Coordinate(x+0.5, y+0.5), new Coordinate());
+                final ViewShedResult result = compute.calcBitViewShed(new DirectPosition2D(c.x, c.y), eyeZ,
+                        Math.max(zMax[i], destMin), true, b);
+                addView(result, view, w);
+                view.set(x + y*w);
+            }
+        } finally {
+            overlay.reset();
+        }
+        final BitSet affected = dilate(view, w, h);
+        Logger.getLogger(ImpactZone.class.getName()).info("Impact zone of " + nbPixels + " pixels : "
+                + affected.cardinality() + " affected pixels on " + (w*h) + " in " + (System.currentTimeMillis()-time) + " ms");
+        cache.put(key, affected);
+        return affected;
+    }
+
+    /**
+     * Lowers the filtered surface of the overlay around the modified pixels at their minimum height.
+     * @param w the width of the grid
+     * @param h the height of the grid
+     */
+    private void setMinSurface(int w, int h) {
+        final Raster dtm = minData.getDtmRaster();
+        final Raster dsm = minData.getDsmRaster();
+        final Raster land = minData.getLandRaster();
+        final Map<Integer, Double> lowered = new HashMap<>();
+        for(int i = 0; i < nbPixels; i++) {
+            final int x = pixels[2*i];
+            final int y = pixels[2*i+1];
+            final double z = dtm.getSampleDouble(x, y, 0) + zMin[i];
+            for(int yy = Math.max(0, y-1); yy <= Math.min(h-1, y+1); yy++) {
+                for(int xx = Math.max(0, x-1); xx <= Math.min(w-1, x+1); xx++) {
+                    final double dz = z - dtm.getSampleDouble(xx, yy, 0);
+                    final Double cur = lowered.get(xx + yy*w);
+                    if(dz < (cur != null ? cur : dsm.getSampleDouble(xx, yy, 0))) {
+                        lowered.put(xx + yy*w, dz);
+                    }
+                }
+            }
+        }
+        for(Integer ind : lowered.keySet()) {
+            final int x = ind % w;
+            final int y = ind / w;
+            overlay.set(x, y, land.getSample(x, y, 0), lowered.get(ind));
+        }
+    }
+
+    /**
+     * Creates the scale data with the minimum of the surface (DTM + DSM) on the 3x3 neighbourhood of each pixel.
+     * The DTM is unchanged, the DSM height may be negative.
+     * @param data the initial data
+     * @return the scale data of the filtered surface, with float elevations
+     */
+    private static ScaleData createMinSurface(ScaleData data) {
+        final Raster dtm = data.getDtmRaster();
+        final Raster dsm = data.getDsmRaster();
+        final int w = dtm.getWidth();
+        final int h = dtm.getHeight();
+        final WritableRaster min = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, w, h, 1), null);
+        final float[] buf = ((DataBufferFloat)min.getDataBuffer()).getData();
+        final double[] surf = new double[3*w];
+        for(int y = -1; y < h; y++) {
+            // surface of the line y+1 in the circular buffer
+            if(y+1 < h) {
+                final int off = ((y+1) % 3) * w;
+                for(int x = 0; x < w; x++) {
+                    surf[off + x] = dtm.getSampleDouble(x, y+1, 0) + dsm.getSampleDouble(x, y+1, 0);
+                }
+            }
+            if(y < 0) {
+                continue;
+            }
+            for(int x = 0; x < w; x++) {
+                final double z = dtm.getSampleDouble(x, y, 0);
+                double zMin = Double.POSITIVE_INFINITY;
+                for(int yy = Math.max(0, y-1); yy <= Math.min(h-1, y+1); yy++) {
+                    final int off = (yy % 3) * w;
+                    for(int xx = Math.max(0, x-1); xx <= Math.min(w-1, x+1); xx++) {
+                        if(surf[off + xx] < zMin) {
+                            zMin = surf[off + xx];
+                        }
+                    }
+                }
+                buf[x + y*w] = (float) (zMin - z);
+            }
+        }
+        return new ScaleData(data.getDtmCov(), data.getLand(), new BufferedImage(new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, ColorModel.OPAQUE, DataBuffer.TYPE_FLOAT), min, false, null), 1);
+    }
+
+    /**
+     * Adds the visible pixels of the viewshed
+     * @param result the viewshed
+     * @param view the visible pixels indexed by x + y*w
+     * @param w the width of the grid
+     */
+    private static void addView(ViewShedResult result, BitSet view, int w) {
+        if(result instanceof BitViewShedResult) {
+            final BitViewShedResult bitResult = (BitViewShedResult) result;
+            final int h = result.getView().getHeight();
+            for(int y = 0; y < h; y++) {
+                for(int x = 0; x < w; x++) {
+                    if(bitResult.isSeen(x, y)) {
+                        view.set(x + y*w);
+                    }
+                }
+            }
+            return;
+        }
+        final Raster r;
+        final Rectangle rect;
+        if(result instanceof WindowViewShedResult) {
+            r = ((WindowViewShedResult)result).getWindow();
+            rect = ((WindowViewShedResult)result).getWindowRect();
+        } else {
+            r = result.getView();
+            rect = new Rectangle(0, 0, r.getWidth(), r.getHeight());
+        }
+        final int[] buf = r.getSamples(r.getMinX(), r.getMinY(), rect.width, rect.height, 0, (int[])null);
+        for(int y = 0; y < rect.height; y++) {
+            for(int x = 0; x < rect.width; x++) {
+                if(buf[x + y*rect.width] == 1) {
+                    view.set(rect.x+x + (rect.y+y)*w);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dilates the pixels by one pixel in the 8 directions
+     * @param pixels the pixels indexed by x + y*w
+     * @param w the width of the grid
+     * @param h the height of the grid
+     * @return the dilated pixels
+     */
+    private static BitSet dilate(BitSet pixels, int w, int h) {
+        final BitSet dilated = new BitSet(w*h);
+        for(int i = pixels.nextSetBit(0); i >= 0; i = pixels.nextSetBit(i+1)) {
+            final int x = i % w;
+            final int y = i / w;
+            for(int yy = Math.max(0, y-1); yy <= Math.min(h-1, y+1); yy++) {
+                dilated.set(yy*w + Math.max(0, x-1), yy*w + Math.min(w-1, x+1) + 1);
+            }
+        }
+        return dilated;
+    }
+}
@@ -33,6 +33,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.media.jai.TiledImage;
 import org.geotools.feature.SchemaException;
 import org.thema.common.collection.HashMapList;
@@ -43,6 +45,13 @@ import org.thema.parallel.AbstractParallelTask;
 
 /**
  * Parallel task for creating multiple projects from land modifications and executing CLI commands for each.
+ * By default, the projects are created in memory : the land use and the DSM are copied once in a {@link ScaleDataOverlay},
+ * the zone is applied on the copies before executing the commands and removed after, the DTM is shared.
+ * The projects are created and saved on disk if the data is not supported by the overlay, 
+ * if the new heights are outside of the range of the quantized DSM, 
+ * if the commands modify the project (--addscale) or in MPI mode (see {@link #setInMemory }).
+ * With a baseline (see {@link #setBaseline }), the grid metrics are calculated only for the cells 
+ * whose view may be changed by the zone (see {@link ImpactZone}).
  * This task works in theaded and MPI mode.
  * This task does not return result. The result is stored directly.
  * 
@@ -58,10 +67,14 @@ public class LandModTask extends AbstractParallelTask<Void, Void> implements Ser
     private List<String> zoneIds;
     private List<String> args;
     private File fileDsm;
+    private boolean inMemory = true;
+    private File baselineDir;
     
     private transient Project project;
     private transient HashMapList<String, DefaultFeature> zones;
     private transient Raster finalDsm;
+    private transient ScaleDataOverlay overlay;
+    private transient ImpactZone impactZone;
 
     /**
      * Creates a new LandmodTask
@@ -106,6 +119,27 @@ public class LandModTask extends AbstractParallelTask<Void, Void> implements Ser
         this.args = args;
     }
 
+    /**
+     * Sets whether the projects are created in memory when it is possible, true by default.
+     * Must be false if the commands are executed in MPI mode, because the MPI tasks load the project from its file.
+     * @param inMemory create the projects in memory ?
+     */
+    public void setInMemory(boolean inMemory) {
+        this.inMemory = inMemory;
+    }
+
+    /**
+     * Sets the directory containing the results of the commands on the initial project.
+     * For each zone, the grid metrics are calculated only for the cells whose view may be changed by the zone, 
+     * the values of the other cells are copied from the baseline results.
+     * The commands and the global options must be the same than for the baseline, 
+     * and the initial project must be loaded in memory.
+     * @param dir the directory of the baseline results, null for calculating all the cells
+     */
+    public void setBaseline(File dir) {
+        this.baselineDir = dir;
+    }
+
     @Override
     public void init() {
         try {
@@ -149,15 +183,42 @@ public class LandModTask extends AbstractParallelTask<Void, Void> implements Ser
     
     @Override
     public Void execute(int start, int end) {
+        if(overlay == null && inMemory && !args.contains("--addscale") 
+                && ScaleDataOverlay.isSupported(project.getDefaultScaleData())) {
+            overlay = new ScaleDataOverlay(project.getDefaultScaleData());
+        }
+        if(impactZone == null && baselineDir != null) {
+            if(ScaleDataOverlay.isSupported(project.getDefaultScaleData())) {
+                impactZone = new ImpactZone(project.getDefaultScaleData(), project.getAlphaPrec(), 
+                        project.isEarthCurv(), project.getCoefRefraction());
+            } else {
+                Logger.getLogger(LandModTask.class.getName()).log(Level.WARNING, 
+                        "The baseline needs land use and DSM loaded in memory, all the cells are calculated");
+                baselineDir = null;
+            }
+        }
         for(String id : zoneIds.subList(start, end)) {
             try {
-                File newPrjFile = createProject(id, zones.get(id)).getProjectFile();
-                
-                // execute next commands
-                ArrayList<String> newArgs = new ArrayList<>(args);
-                newArgs.add(0, "--project");
-                newArgs.add(1, newPrjFile.getAbsolutePath());
-                new CLITools().execute(newArgs.toArray(new String[0]));
+                Project prj = overlay != null ? createMemoryProject(id, zones.get(id)) : null;
+                CLITools cli = new CLITools();
+                if(impactZone != null) {
+                    cli.setBaseline(baselineDir, impactZone);
+                }
+                if(prj != null) {
+                    try {
+                        cli.execute(prj, new ArrayList<>(args));
+                    } finally {
+                        overlay.reset();
+                    }
+                } else {
+                    File newPrjFile = createProject(id, zones.get(id)).getProjectFile();
+
+                    // execute next commands
+                    ArrayList<String> newArgs = new ArrayList<>(args);
+                    newArgs.add(0, "--project");
+                    newArgs.add(1, newPrjFile.getAbsolutePath());
+                    cli.execute(newArgs.toArray(new String[0]));
+                }
             } catch (IOException | SchemaException ex) {
                 throw new RuntimeException(ex);
             }
@@ -183,6 +244,33 @@ public class LandModTask extends AbstractParallelTask<Void, Void> implements Ser
         throw new UnsupportedOperationException(); 
     }
 
+    /**
+     * Creates a new Project in memory based on the initial project while changing the land use and the DSM 
+     * of the overlay on areas covering the features zones.
+     * The overlay must be reset after using the project.
+     * @param id the identifier for the new project
+     * @param zones the zones to change in the land map and dsm map
+     * @return the new project or null if the zones cannot be applied on the overlay, the overlay is reset in this case
+     */
+    private Project createMemoryProject(String id, List<DefaultFeature> zones) {
+        TreeSet<Integer> codes = new TreeSet<>(project.getDefaultScaleData().getCodes());
+        try {
+            codes.addAll(applyZones(zones, new PixelSetter() {
+                @Override
+                public void set(int x, int y, int code, double z) {
+                    overlay.set(x, y, code, z);
+                }
+            }));
+        } catch(IllegalArgumentException ex) {
+            overlay.reset();
+            Logger.getLogger(LandModTask.class.getName()).log(Level.INFO, 
+                    "Zone " + id + " cannot be applied in memory, the project is created on disk : " + ex.getMessage());
+            return null;
+        }
+        File dir = new File(project.getDirectory(), id);
+        return project.createMemoryProject(project.getName() + "-" + id, dir, overlay.createScaleData(codes));
+    }
+    
     /**
      * Creates a new Project based on the initial project while changing the landmap on areas covering the features zones
      * @param id the identifier for the new project
@@ -192,41 +280,75 @@ public class LandModTask extends AbstractParallelTask<Void, Void> implements Ser
      * @throws SchemaException 
      */
     private Project createProject(String id, List<DefaultFeature> zones) throws IOException, SchemaException {
-        TiledImage land = new TiledImage(project.getDefaultScaleData().getLand(), false);
-        TiledImage dsm = new TiledImage(project.getDefaultScaleData().getDsm(), false);
+        final TiledImage land = new TiledImage(project.getDefaultScaleData().getLand(), false);
+        final TiledImage dsm = new TiledImage(project.getDefaultScaleData().getDsm(), false);
         
-        TreeSet<Integer> codes = new TreeSet<>(project.getCodes());
-        AffineTransformation trans = project.getDefaultScaleData().getWorld2Grid();
         // update land map
+        applyZones(zones, new PixelSetter() {
+            @Override
+            public void set(int x, int y, int code, double z) {
+                land.setSample(x, y, 0, code);
+                dsm.setSample(x, y, 0, z);
+            }
+        });
+        
+        // create project
+        File dir = new File(project.getDirectory(), id);   
+        return project.dupProject(project.getName() + "-" + id, dir, new ScaleData(project.getDtmCov(), land, dsm, 
+                1, project.getDefaultScaleData().getZPrecision()));
+    }
+    
+    /**
+     * Sets the new land code and the new height of the pixels covering the zones.
+     * The modified pixels are also stored in the impact zone if it exists.
+     * @param zones the zones to change in the land map and dsm map
+     * @param setter modifies the pixels
+     * @return the land codes of the zones
+     */
+    private TreeSet<Integer> applyZones(List<DefaultFeature> zones, PixelSetter setter) {
+        final int width = project.getDefaultScaleData().getLand().getWidth();
+        final int height = project.getDefaultScaleData().getLand().getHeight();
+        TreeSet<Integer> codes = new TreeSet<>();
+        AffineTransformation trans = project.getDefaultScaleData().getWorld2Grid();
+        GeometryFactory geomFact = new GeometryFactory();
+        if(impactZone != null) {
+            impactZone.clear();
+        }
         for(DefaultFeature zone : zones) {
             int code = ((Number)zone.getAttribute(codeField)).intValue();
-            int height = heightField != null ? ((Number)zone.getAttribute(heightField)).intValue() : 0;
+            int h = heightField != null ? ((Number)zone.getAttribute(heightField)).intValue() : 0;
             Geometry trGeom = trans.transform(zone.getGeometry());
             for(int i = 0; i < trGeom.getNumGeometries(); i++) {
                 Geometry transGeom = trGeom.getGeometryN(i);
                 Envelope env = transGeom.getEnvelopeInternal();
-                int miny = Math.max((int)env.getMinY(), land.getMinY());
-                int minx = Math.max((int)env.getMinX(), land.getMinX());
-                int maxy = Math.min((int)Math.ceil(env.getMaxY()), land.getMinY() + land.getHeight());
-                int maxx = Math.min((int)Math.ceil(env.getMaxX()), land.getMinX() + land.getWidth());
+                int miny = Math.max((int)env.getMinY(), 0);
+                int minx = Math.max((int)env.getMinX(), 0);
+                int maxy = Math.min((int)Math.ceil(env.getMaxY()), height);
+                int maxx = Math.min((int)Math.ceil(env.getMaxX()), width);
                 Coordinate c = new Coordinate();
-                GeometryFactory geomFact = new GeometryFactory();
                 for(c.y = miny+0.5; c.y < maxy; c.y++) {
                     for(c.x = minx+0.5; c.x < maxx; c.x++) {
                         if(transGeom.intersects(geomFact.createPoint(c))) {
                             final int x = (int)c.x;
                             final int y = (int)c.y;
-                            land.setSample(x, y, 0, code);
-                            dsm.setSample(x, y, 0, heightField != null ? height : finalDsm.getSampleDouble(x, y, 0));
+                            final double z = heightField != null ? h : finalDsm.getSampleDouble(x, y, 0);
+                            setter.set(x, y, code, z);
+                            if(impactZone != null) {
+                                impactZone.add(x, y, z);
+                            }
                         }
                     }
                 }
             }
             codes.add(code);
         }
-        
-        // create project
-        File dir = new File(project.getDirectory(), id);   
-        return project.dupProject(project.getName() + "-" + id, dir, new ScaleData(project.getDtmCov(), land, dsm));
+        return codes;
+    }
+    
+    /**
+     * Modifies a pixel of the land use and the DSM
+     */
+    private interface PixelSetter {
+        void set(int x, int y, int code, double z);
     }
 }
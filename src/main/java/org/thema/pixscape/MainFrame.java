@@ -521,6 +521,10 @@ public class MainFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_formWindowClosed
 
     private void genMSMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_genMSMenuItemActionPerformed
+        if(project.getDefaultScaleData().isQuantized()) {
+            JOptionPane.showMessageDialog(this, "Multiscale data is not supported with quantized elevations.");
+            return;
+        }
         double r = project.getDefaultScaleData().getResolution();
         
         String res = JOptionPane.showInputDialog(this, java.util.ResourceBundle.getBundle("org/thema/pixscape/Bundle").getString("CREATE MULTI SCALE DATABASE"), 
@@ -675,6 +679,10 @@ public class MainFrame extends javax.swing.JFrame {
     }//GEN-LAST:event_exitMenuItemActionPerformed
 
     private void addScaleMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_addScaleMenuItemActionPerformed
+        if(project.getDefaultScaleData().isQuantized()) {
+            JOptionPane.showMessageDialog(this, "Multiscale data is not supported with quantized elevations.");
+            return;
+        }
         AddScaleDialog dlg = new AddScaleDialog(this, project);
         dlg.setVisible(true);
         
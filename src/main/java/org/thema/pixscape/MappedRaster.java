@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single band raster stored in a flat file and mapped in memory.
+ * The file contains the pixels row by row, in float little endian or in unsigned byte, without header.
+ * The pixels are indexed by a long (x + y*width), so the raster size is not limited to 2^31 pixels
+ * and the raster does not use the java heap.
+ * The file is mapped by chunks of 2^28 pixels, each pixel belongs to only one chunk.
+ *
+ * @author Gilles Vuidel
+ */
+public final class MappedRaster {
+
+    /** Default number of pixels of a chunk in power of 2 */
+    static final int CHUNK_BITS = 28;
+
+    private final int width, height;
+    private final int dataType;
+    private final int chunkBits;
+    private final long chunkMask;
+    private final FloatBuffer[] floatChunks;
+    private final ByteBuffer[] byteChunks;
+
+    private MappedRaster(File file, int width, int height, int dataType, int chunkBits) throws IOException {
+        if(dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_BYTE) {
+            throw new IllegalArgumentException("Only float and byte rasters can be mapped");
+        }
+        this.width = width;
+        this.height = height;
+        this.dataType = dataType;
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1L << chunkBits) - 1;
+        final long size = (long)width * height;
+        final int pixelSize = getPixelSize(dataType);
+        if(file.length() != size * pixelSize) {
+            throw new IOException("The size of the file " + file + " does not correspond to the raster size");
+        }
+        final int nbChunk = (int) ((size + chunkMask) >> chunkBits);
+        floatChunks = dataType == DataBuffer.TYPE_FLOAT ? new FloatBuffer[nbChunk] : null;
+        byteChunks = dataType == DataBuffer.TYPE_BYTE ? new ByteBuffer[nbChunk] : null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for(int i = 0; i < nbChunk; i++) {
+                final long start = (long)i << chunkBits;
+                final long len = Math.min(1L << chunkBits, size - start);
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start*pixelSize, len*pixelSize)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if(floatChunks != null) {
+                    floatChunks[i] = buf.asFloatBuffer();
+                } else {
+                    byteChunks[i] = buf;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the width of the raster
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the raster
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the data type : DataBuffer.TYPE_FLOAT or DataBuffer.TYPE_BYTE
+     */
+    public int getDataType() {
+        return dataType;
+    }
+
+    /**
+     * Returns the value of the pixel of a float raster
+     * @param ind the pixel index : x + y*width
+     * @return the pixel value
+     */
+    public float getFloat(final long ind) {
+        return floatChunks[(int)(ind >> chunkBits)].get((int)(ind & chunkMask));
+    }
+
+    /**
+     * Returns the value of the pixel of a byte raster
+     * @param ind the pixel index : x + y*width
+     * @return the pixel value in [0-255]
+     */
+    public int getByte(final long ind) {
+        return byteChunks[(int)(ind >> chunkBits)].get((int)(ind & chunkMask)) & 0xff;
+    }
+
+    /**
+     * Returns the value of the pixel (x, y) whatever the data type
+     * @param x the x grid coordinate
+     * @param y the y grid coordinate
+     * @return the pixel value
+     */
+    public double getSampleDouble(int x, int y) {
+        final long ind = x + (long)y*width;
+        return dataType == DataBuffer.TYPE_FLOAT ? getFloat(ind) : getByte(ind);
+    }
+
+    /**
+     * Copies a rectangle of the mapped raster in a new raster.
+     * The returned raster is in grid coordinate : its upper left pixel is (r.x, r.y).
+     * @param r the rectangle to copy, must be inside the raster
+     * @return a new banded raster of the same data type containing the rectangle
+     * @throws IllegalArgumentException if r is not inside the raster
+     */
+    public WritableRaster getRaster(Rectangle r) {
+        if(!new Rectangle(width, height).contains(r)) {
+            throw new IllegalArgumentException("The rectangle is outside the raster");
+        }
+        WritableRaster raster = Raster.createWritableRaster(new BandedSampleModel(dataType, r.width, r.height, 1), new Point(r.x, r.y));
+        if(dataType == DataBuffer.TYPE_FLOAT) {
+            final float[] buf = ((DataBufferFloat)raster.getDataBuffer()).getData();
+            for(int y = 0; y < r.height; y++) {
+                copyRow(r.x + (r.y+y)*(long)width, buf, y*r.width, r.width);
+            }
+        } else {
+            final byte[] buf = ((DataBufferByte)raster.getDataBuffer()).getData();
+            for(int y = 0; y < r.height; y++) {
+                copyRow(r.x + (r.y+y)*(long)width, buf, y*r.width, r.width);
+            }
+        }
+        return raster;
+    }
+
+    private void copyRow(long ind, float[] dst, int off, int len) {
+        while(len > 0) {
+            final int start = (int)(ind & chunkMask);
+            final int n = (int) Math.min(len, (1L << chunkBits) - start);
+            FloatBuffer chunk = floatChunks[(int)(ind >> chunkBits)].duplicate();
+            chunk.position(start);
+            chunk.get(dst, off, n);
+            ind += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void copyRow(long ind, byte[] dst, int off, int len) {
+        while(len > 0) {
+            final int start = (int)(ind & chunkMask);
+            final int n = (int) Math.min(len, (1L << chunkBits) - start);
+            ByteBuffer chunk = byteChunks[(int)(ind >> chunkBits)].duplicate();
+            chunk.position(start);
+            chunk.get(dst, off, n);
+            ind += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Maps an existing flat raster file.
+     * @param file the flat file
+     * @param width the width of the raster
+     * @param height the height of the raster
+     * @param dataType DataBuffer.TYPE_FLOAT or DataBuffer.TYPE_BYTE
+     * @return the mapped raster
+     * @throws IOException if the file cannot be mapped or if its size does not correspond
+     */
+    public static MappedRaster map(File file, int width, int height, int dataType) throws IOException {
+        return new MappedRaster(file, width, height, dataType, CHUNK_BITS);
+    }
+
+    static MappedRaster map(File file, int width, int height, int dataType, int chunkBits) throws IOException {
+        return new MappedRaster(file, width, height, dataType, chunkBits);
+    }
+
+    /**
+     * Writes the first band of an image in a flat file.
+     * The image is read by blocks of rows, so it can be larger than the memory.
+     * The values are converted to the data type, for byte the values must be in [0-255].
+     * @param file the flat file to create or to overwrite
+     * @param img the image to write
+     * @param dataType DataBuffer.TYPE_FLOAT or DataBuffer.TYPE_BYTE
+     * @throws IOException
+     */
+    public static void write(File file, RenderedImage img, int dataType) throws IOException {
+        final int w = img.getWidth();
+        final int pixelSize = getPixelSize(dataType);
+        final int nbRow = Math.max(1, (1 << 24) / w);
+        ByteBuffer buf = ByteBuffer.allocateDirect(w * pixelSize * Math.min(nbRow, img.getHeight())).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for(int y = 0; y < img.getHeight(); y += nbRow) {
+                final int h = Math.min(nbRow, img.getHeight() - y);
+                Raster r = img.getData(new Rectangle(img.getMinX(), img.getMinY()+y, w, h));
+                buf.clear();
+                if(dataType == DataBuffer.TYPE_FLOAT) {
+                    float[] values = r.getSamples(r.getMinX(), r.getMinY(), w, h, 0, (float[])null);
+                    buf.asFloatBuffer().put(values);
+                    buf.position(values.length * pixelSize);
+                } else {
+                    for(int v : r.getSamples(r.getMinX(), r.getMinY(), w, h, 0, (int[])null)) {
+                        buf.put((byte)v);
+                    }
+                }
+                buf.flip();
+                while(buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a flat file already contains the image stored in a source file.
+     * @param file the flat file
+     * @param source the source file of the image or null
+     * @param width the width of the raster
+     * @param height the height of the raster
+     * @param dataType DataBuffer.TYPE_FLOAT or DataBuffer.TYPE_BYTE
+     * @return true if the flat file exists, has the good size and is not older than the source file
+     */
+    public static boolean isUpToDate(File file, File source, int width, int height, int dataType) {
+        return file.exists() && file.length() == (long)width * height * getPixelSize(dataType)
+                && (source == null || !source.exists() || file.lastModified() >= source.lastModified());
+    }
+
+    private static int getPixelSize(int dataType) {
+        return dataType == DataBuffer.TYPE_FLOAT ? 4 : 1;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Pyramid of the maximum elevation by square blocks.
+ * The level 0 contains the maximum of the blocks of 2^{@link #BLOCK_BITS} pixels, each upper level
+ * contains the maximum of 2x2 blocks of the level below, until the last level which contains only one block.
+ * The elevation is the maximum of the DTM and the DTM plus the DSM.
+ * A block containing a NaN pixel is NaN, it is never considered as hidden.
+ *
+ * The pyramid is used by the ray kernels to skip the blocks which cannot be seen,
+ * and to stop the ray when all the data cannot be seen.
+ *
+ * @author Gilles Vuidel
+ */
+public final class MaxZPyramid {
+
+    /** Size of the blocks of the first level in power of 2 */
+    public static final int BLOCK_BITS = 4;
+
+    private final float[][] levels;
+    private final int[] widths, heights;
+
+    /**
+     * Creates the pyramid from the DTM and the DSM rasters.
+     * The rasters are read row by row with their float samples, so they can be quantized.
+     * @param dtm the DTM raster
+     * @param dsm the DSM raster or null
+     */
+    public MaxZPyramid(Raster dtm, Raster dsm) {
+        final int w = dtm.getWidth();
+        final int h = dtm.getHeight();
+        int nb = 1;
+        while(w-1 >> (BLOCK_BITS+nb-1) > 0 || h-1 >> (BLOCK_BITS+nb-1) > 0) {
+            nb++;
+        }
+        levels = new float[nb][];
+        widths = new int[nb];
+        heights = new int[nb];
+
+        int lw = ((w-1) >> BLOCK_BITS) + 1;
+        int lh = ((h-1) >> BLOCK_BITS) + 1;
+        for(int l = 0; l < nb; l++) {
+            levels[l] = new float[lw*lh];
+            widths[l] = lw;
+            heights[l] = lh;
+            lw = ((lw-1) >> 1) + 1;
+            lh = ((lh-1) >> 1) + 1;
+        }
+        update(dtm, dsm, new Rectangle(w, h));
+    }
+
+    /**
+     * Creates a copy of the pyramid, which can be updated independently.
+     * @param pyramid the pyramid to copy
+     */
+    MaxZPyramid(MaxZPyramid pyramid) {
+        levels = new float[pyramid.levels.length][];
+        for(int l = 0; l < levels.length; l++) {
+            levels[l] = pyramid.levels[l].clone();
+        }
+        widths = pyramid.widths;
+        heights = pyramid.heights;
+    }
+
+    /**
+     * Recalculates the blocks of all levels intersecting a rectangle, after a modification of the rasters.
+     * The cost depends on the size of the rectangle only, not on the size of the rasters.
+     * @param dtm the DTM raster, with the same size than the one of the pyramid
+     * @param dsm the DSM raster or null
+     * @param rect the modified rectangle in grid coordinate, not empty
+     */
+    void update(Raster dtm, Raster dsm, Rectangle rect) {
+        int bx0 = rect.x >> BLOCK_BITS;
+        int by0 = rect.y >> BLOCK_BITS;
+        int bx1 = (rect.x+rect.width-1) >> BLOCK_BITS;
+        int by1 = (rect.y+rect.height-1) >> BLOCK_BITS;
+        final int x0 = bx0 << BLOCK_BITS;
+        final int w = Math.min(dtm.getWidth(), (bx1+1) << BLOCK_BITS) - x0;
+        final int y1 = Math.min(dtm.getHeight(), (by1+1) << BLOCK_BITS);
+        float[] level = levels[0];
+        int lw = widths[0];
+        for(int by = by0; by <= by1; by++) {
+            Arrays.fill(level, bx0 + by*lw, bx1+1 + by*lw, Float.NEGATIVE_INFINITY);
+        }
+        final float[] dtmRow = new float[w];
+        final float[] dsmRow = dsm != null ? new float[w] : null;
+        for(int y = by0 << BLOCK_BITS; y < y1; y++) {
+            dtm.getSamples(dtm.getMinX()+x0, dtm.getMinY()+y, w, 1, 0, dtmRow);
+            if(dsm != null) {
+                dsm.getSamples(dsm.getMinX()+x0, dsm.getMinY()+y, w, 1, 0, dsmRow);
+            }
+            final int row = (y >> BLOCK_BITS) * lw;
+            for(int x = 0; x < w; x++) {
+                // the float sum is rounded up, the kernels may add the DSM in double
+                final float z = dsm == null ? dtmRow[x] : Math.max(dtmRow[x], Math.nextUp(dtmRow[x]+dsmRow[x]));
+                final int i = row + ((x0+x) >> BLOCK_BITS);
+                level[i] = Math.max(level[i], z);
+            }
+        }
+        for(int l = 1; l < levels.length; l++) {
+            final float[] prec = level;
+            final int pw = lw, ph = heights[l-1];
+            level = levels[l];
+            lw = widths[l];
+            bx0 >>= 1;
+            by0 >>= 1;
+            bx1 >>= 1;
+            by1 >>= 1;
+            for(int by = by0; by <= by1; by++) {
+                for(int bx = bx0; bx <= bx1; bx++) {
+                    float max = Float.NEGATIVE_INFINITY;
+                    for(int y = 2*by; y < Math.min(ph, 2*by+2); y++) {
+                        for(int x = 2*bx; x < Math.min(pw, 2*bx+2); x++) {
+                            max = Math.max(max, prec[x + y*pw]);
+                        }
+                    }
+                    level[bx + by*lw] = max;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of levels, the last one contains only one block
+     */
+    public int getNbLevel() {
+        return levels.length;
+    }
+
+    /**
+     * @param level the level of the pyramid
+     * @return the size of the blocks of this level in power of 2
+     */
+    public int getBlockBits(int level) {
+        return BLOCK_BITS + level;
+    }
+
+    /**
+     * Returns the maximum elevation of the block of the level containing the pixel (x, y)
+     * @param level the level of the pyramid
+     * @param x x in grid coordinate
+     * @param y y in grid coordinate
+     * @return the maximum elevation of the block or NaN if the block contains a pixel without data
+     */
+    public float getMax(int level, int x, int y) {
+        final int bits = BLOCK_BITS + level;
+        return levels[level][(x >> bits) + (y >> bits)*widths[level]];
+    }
+
+    /**
+     * Returns the highest level of the block containing (x, y) whose all pixels are under the line of sight.
+     * A pixel at distance d from (cx, cy) is under the line of sight when its elevation is lower or equal to
+     * z0 + slope * (d - dOffset).
+     * The test is done on the minimal distance between (cx, cy) and the block,
+     * so the levels are tested from the bottom while the block is hidden.
+     *
+     * @param x x of the current pixel in grid coordinate
+     * @param y y of the current pixel in grid coordinate
+     * @param cx x of the origin of the ray
+     * @param cy y of the origin of the ray
+     * @param res the resolution of the grid
+     * @param z0 the elevation of the line of sight at the origin
+     * @param slope the slope of the line of sight, must be positive or zero
+     * @param dOffset the distance offset
+     * @return the highest level hidden or -1 if the block of the level 0 is not hidden
+     */
+    public int getHiddenLevel(int x, int y, int cx, int cy, double res, double z0, double slope, double dOffset) {
+        int level = -1;
+        for(int l = 0; l < levels.length; l++) {
+            final int bits = BLOCK_BITS + l;
+            final float max = levels[l][(x >> bits) + (y >> bits)*widths[l]];
+            if(Float.isNaN(max)) {
+                return level;
+            }
+            final int bx0 = (x >> bits) << bits;
+            final int by0 = (y >> bits) << bits;
+            final int dx = Math.max(0, Math.max(bx0 - cx, cx - (bx0 + (1 << bits) - 1)));
+            final int dy = Math.max(0, Math.max(by0 - cy, cy - (by0 + (1 << bits) - 1)));
+            final double dmin = res * Math.sqrt((double)dx*dx + (double)dy*dy);
+            if(max > z0 + slope * (dmin - dOffset)) {
+                return level;
+            }
+            level = l;
+        }
+        return level;
+    }
+}
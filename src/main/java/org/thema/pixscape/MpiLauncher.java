@@ -44,7 +44,7 @@ public class MpiLauncher extends MainMPI {
     @Override
     public void master() {
         try {
-            new CLITools().execute(args);
+            new CLITools(true).execute(args);
         } catch (IOException | SchemaException ex) {
             Logger.getLogger(MpiLauncher.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -16,6 +16,7 @@
  */
 package org.thema.pixscape;
 
+import java.awt.Rectangle;
 import java.awt.image.BandedSampleModel;
 import org.locationtech.jts.geom.Point;
 import java.awt.image.DataBuffer;
@@ -27,16 +28,16 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.geometry.DirectPosition2D;
+import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.geometry.Envelope2D;
 import org.thema.common.ProgressBar;
-import org.thema.data.IOImage;
 import org.thema.data.feature.DefaultFeature;
 import org.thema.data.feature.Feature;
 import org.thema.data.IOFeature;
 import org.thema.parallel.AbstractParallelTask;
 import org.thema.pixscape.view.ViewShedResult;
+import org.thema.pixscape.view.WindowViewShedResult;
 
 /**
  *
@@ -46,6 +47,9 @@ public class MultiViewshedTask extends AbstractParallelTask<Object, Object> {
     
     public enum RasterValue {COUNT, HEIGHT, AREA }
     
+    /** Number of rows of the result raster sharing the same lock */
+    private static final int STRIPE_HEIGHT = 16;
+    
     private Project project;
     
     private List<Feature> points;
@@ -67,6 +71,8 @@ public class MultiViewshedTask extends AbstractParallelTask<Object, Object> {
     /** Results */
     private List<DefaultFeature> viewSheds;
     private WritableRaster viewshedRast;
+    /** One lock for each stripe of {@link #STRIPE_HEIGHT} rows of viewshedRast */
+    private Object[] stripes;
 
     public MultiViewshedTask(List<Feature> points, Project project, boolean inverse, double zDest, Bounds bounds, boolean vectorOutput, 
             RasterValue outValue, ProgressBar monitor) {
@@ -86,6 +92,24 @@ public class MultiViewshedTask extends AbstractParallelTask<Object, Object> {
         super.init();
         viewSheds = vectorOutput ? new ArrayList<>() : null;
         viewshedRast = !vectorOutput ? Raster.createWritableRaster(new BandedSampleModel(isDegree() ? DataBuffer.TYPE_DOUBLE : DataBuffer.TYPE_INT, project.getDtm().getWidth(), project.getDtm().getHeight(), 1), null) : null;
+        if(!vectorOutput) {
+            stripes = new Object[(viewshedRast.getHeight()+STRIPE_HEIGHT-1) / STRIPE_HEIGHT];
+            for(int i = 0; i < stripes.length; i++) {
+                stripes[i] = new Object();
+            }
+        }
+        if(!vectorOutput && !isDegree()) {
+            // the viewsheds in count are packed in bits from the buffer of each thread
+            project.getDefaultComputeView().setPooled(true);
+        }
+    }
+
+    @Override
+    public void finish() {
+        super.finish();
+        if(!vectorOutput && !isDegree()) {
+            project.getDefaultComputeView().setPooled(false);
+        }
     }
 
 
@@ -94,23 +118,14 @@ public class MultiViewshedTask extends AbstractParallelTask<Object, Object> {
         return vectorOutput ? viewSheds : viewshedRast;
     }
 
+    /**
+     * {@inheritDoc }
+     * For raster output, the viewsheds are added directly to the shared result raster,
+     * the method returns null.
+     */
     @Override
     public Object execute(int start, int end) {
         List<DefaultFeature> viewsheds = new ArrayList<>();
-        WritableRaster sumViewshed = null;
-        if(!vectorOutput) {
-            int type;
-            if(isDegree()) {
-                type = DataBuffer.TYPE_DOUBLE;
-            } else if(end-start < 255) {
-                type = DataBuffer.TYPE_BYTE;
-            } else if(end-start < 65535) {
-                type = DataBuffer.TYPE_USHORT;
-            } else {
-                type = DataBuffer.TYPE_INT;
-            }
-            sumViewshed = Raster.createWritableRaster(new BandedSampleModel(type, project.getDtm().getWidth(), project.getDtm().getHeight(), 1), null);
-        }
         for(Feature point : points.subList(start, end)) {
             Point p = point.getGeometry().getCentroid();
             Bounds b = bounds.updateBounds(point);
@@ -126,42 +141,94 @@ public class MultiViewshedTask extends AbstractParallelTask<Object, Object> {
             }
             ViewShedResult viewshed = isDegree() ? 
                     project.getDefaultComputeView().calcViewShedDeg(new DirectPosition2D(p.getX(), p.getY()), zOrig, zDest, inverse, b, outValue == RasterValue.AREA) :
+                    !vectorOutput ? project.getDefaultComputeView().calcBitViewShed(new DirectPosition2D(p.getX(), p.getY()), zOrig, zDest, inverse, b) :
                     project.getDefaultComputeView().calcViewShed(new DirectPosition2D(p.getX(), p.getY()), zOrig, zDest, inverse, b);
             if(vectorOutput) {
                 viewsheds.add(b.createFeatureWithBoundAttr(point.getId(), viewshed.getPolygon()));
             } else {
-                DataBuffer sumBuf = sumViewshed.getDataBuffer();
-                DataBuffer viewBuf = viewshed.getView().getDataBuffer();
-                for(int i = 0; i < viewBuf.getSize(); i++) {
-                    sumBuf.setElemDouble(i, sumBuf.getElemDouble(i)+viewBuf.getElemDouble(i));
-                }
+                accumulate(viewshed, b);
             }
             incProgress(1);
         }
         
-        if(vectorOutput) {
-            return viewsheds;
-        } else {
-            return sumViewshed;
-        }
+        return vectorOutput ? viewsheds : null;
     }
 
     @Override
     public void gather(Object result) {
         if(vectorOutput) {
             viewSheds.addAll((List)result);
-        } else if(isDegree()) {
-            double[] viewTot = ((DataBufferDouble)viewshedRast.getDataBuffer()).getData();
-            DataBuffer sumBuf = ((Raster)result).getDataBuffer();
-            for(int i = 0; i < sumBuf.getSize(); i++) {
-                 viewTot[i] += sumBuf.getElemDouble(i);
-            }
+        }
+    }
+    
+    /**
+     * Adds the viewshed to the result raster.
+     * Only the window of the viewshed is read, or the dmax square around the point if the viewshed is not windowed.
+     * The window is added stripe by stripe, each stripe of the result is locked during the addition only.
+     * @param viewshed the viewshed to add
+     * @param b the bounds used for calculating the viewshed
+     */
+    private void accumulate(ViewShedResult viewshed, Bounds b) {
+        final Raster view;
+        final Rectangle rect;
+        // the position of the upper left pixel of rect in view
+        final int vx, vy;
+        if(viewshed instanceof WindowViewShedResult) {
+            view = ((WindowViewShedResult)viewshed).getWindow();
+            rect = ((WindowViewShedResult)viewshed).getWindowRect().intersection(viewshedRast.getBounds());
+            vx = view.getMinX() + rect.x - ((WindowViewShedResult)viewshed).getWindowRect().x;
+            vy = view.getMinY() + rect.y - ((WindowViewShedResult)viewshed).getWindowRect().y;
         } else {
-            int[] viewTot = ((DataBufferInt)viewshedRast.getDataBuffer()).getData();
-            DataBuffer sumBuf = ((Raster)result).getDataBuffer();
-            for(int i = 0; i < sumBuf.getSize(); i++) {
-                 viewTot[i] += sumBuf.getElem(i);
+            view = viewshed.getView();
+            if(view.getWidth() != viewshedRast.getWidth() || view.getHeight() != viewshedRast.getHeight()) {
+                throw new IllegalStateException("The viewshed does not have the size of the DTM");
             }
+            Rectangle r = view.getBounds();
+            if(b.getDmax() != Double.POSITIVE_INFINITY) {
+                final GridCoordinates2D cg = viewshed.getCoord();
+                final int d = (int)Math.ceil(b.getDmax() / viewshed.getRes2D()) + 1;
+                r = r.intersection(new Rectangle(view.getMinX()+cg.x-d, view.getMinY()+cg.y-d, 2*d+1, 2*d+1));
+            }
+            rect = new Rectangle(r.x-view.getMinX(), r.y-view.getMinY(), r.width, r.height);
+            vx = r.x;
+            vy = r.y;
+        }
+        if(rect.isEmpty()) {
+            return;
+        }
+        
+        final int width = viewshedRast.getWidth();
+        final int h = Math.min(STRIPE_HEIGHT, rect.height);
+        final double[] sumDeg = isDegree() ? ((DataBufferDouble)viewshedRast.getDataBuffer()).getData() : null;
+        final int[] sumCount = isDegree() ? null : ((DataBufferInt)viewshedRast.getDataBuffer()).getData();
+        final double[] bufDeg = isDegree() ? new double[rect.width*h] : null;
+        final int[] bufCount = isDegree() ? null : new int[rect.width*h];
+        int y = rect.y;
+        while(y < rect.y+rect.height) {
+            final int stripe = y / STRIPE_HEIGHT;
+            final int yEnd = Math.min(rect.y+rect.height, (stripe+1)*STRIPE_HEIGHT);
+            final int nRow = yEnd - y;
+            if(isDegree()) {
+                view.getSamples(vx, vy+y-rect.y, rect.width, nRow, 0, bufDeg);
+            } else {
+                view.getSamples(vx, vy+y-rect.y, rect.width, nRow, 0, bufCount);
+            }
+            synchronized(stripes[stripe]) {
+                for(int j = 0; j < nRow; j++) {
+                    final int ind = (y+j)*width + rect.x;
+                    final int i0 = j*rect.width;
+                    if(isDegree()) {
+                        for(int i = 0; i < rect.width; i++) {
+                            sumDeg[ind+i] += bufDeg[i0+i];
+                        }
+                    } else {
+                        for(int i = 0; i < rect.width; i++) {
+                            sumCount[ind+i] += bufCount[i0+i];
+                        }
+                    }
+                }
+            }
+            y = yEnd;
         }
     }
 
@@ -186,8 +253,11 @@ public class MultiViewshedTask extends AbstractParallelTask<Object, Object> {
             if(name == null) {
                 name = "multiviewshed" + (inverse ? "-inverse" : "") + (isDegree() ? "-deg" : "");
             }
-            IOImage.saveTiffCoverage(new File(dir, name + ".tif"),
-                new GridCoverageFactory().create("view", viewshedRast, env));
+            try (TiledTiffWriter writer = new TiledTiffWriter(new File(dir, name + ".tif"), viewshedRast.getWidth(), viewshedRast.getHeight(),
+                    viewshedRast.getSampleModel().getDataType(), false)) {
+                writer.setGeoreference(env);
+                writer.write(viewshedRast);
+            }
         }
     }
     
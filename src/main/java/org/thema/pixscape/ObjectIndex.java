@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.List;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.locationtech.jts.geom.Coordinate;
+import org.thema.data.feature.Feature;
+import org.thema.pixscape.view.ViewShedResult;
+import org.thema.pixscape.view.WindowViewShedResult;
+
+/**
+ * Observed points (objects) in grid coordinate with their height, indexed for retrieving the objects
+ * which may be seen from a point of view.
+ * Used by the tasks testing the visibility of many objects from many points,
+ * for choosing between one ray per object and one viewshed per point of view.
+ *
+ * @author Gilles Vuidel
+ */
+final class ObjectIndex {
+
+    /** The cost of a viewshed relatively to the number of pixels of its window, in ray steps */
+    private static final double VIEWSHED_COST = 2;
+
+    /** The minimum size of the cells of the index in pixel */
+    private static final int MIN_CELL = 16;
+
+    private final ScaleData data;
+    private final int[] x, y;
+    private final double[] z;
+    private final boolean sameZ;
+    private final PointGridIndex index;
+
+    /**
+     * Creates the index of the objects.
+     * The height of an object is given by its attribute "height" if it exists, defaultZ otherwise.
+     * @param objects the objects, only the first coordinate of their geometry is used
+     * @param defaultZ the default height of the objects, -1 for the DSM height
+     * @param data the data for converting the coordinates to the grid
+     * @param dmax the default maximum distance of the view, used for sizing the index
+     */
+    ObjectIndex(List<? extends Feature> objects, double defaultZ, ScaleData data, double dmax) {
+        this.data = data;
+        final int n = objects.size();
+        x = new int[n];
+        y = new int[n];
+        z = new double[n];
+        boolean same = true;
+        for(int i = 0; i < n; i++) {
+            Feature obj = objects.get(i);
+            Coordinate c = obj.getGeometry().getCoordinate();
+            GridCoordinates2D g = data.getWorld2Grid(new DirectPosition2D(c.x, c.y));
+            x[i] = g.x;
+            y[i] = g.y;
+            z[i] = obj.getAttributeNames().contains("height") ? ((Number)obj.getAttribute("height")).doubleValue() : defaultZ;
+            same = same && z[i] == z[0];
+        }
+        sameZ = same;
+        int cellSize = MIN_CELL;
+        if(dmax != Double.POSITIVE_INFINITY) {
+            cellSize = Math.max(cellSize, (int)Math.ceil(dmax / data.getResolution() / 2));
+        }
+        index = new PointGridIndex(x, y, cellSize);
+    }
+
+    /**
+     * @param i the object index
+     * @return the grid coordinate of the object
+     */
+    GridCoordinates2D getCoord(int i) {
+        return new GridCoordinates2D(x[i], y[i]);
+    }
+
+    /**
+     * @param i the object index
+     * @return the height of the object, -1 for the DSM height
+     */
+    double getZ(int i) {
+        return z[i];
+    }
+
+    /**
+     * @return true if all the objects have the same height, ie. a viewshed can replace the rays
+     */
+    boolean isSameZ() {
+        return sameZ;
+    }
+
+    /**
+     * Returns the objects which may be seen from orig given the bounds b.
+     * The objects farther than dmax, nearer than dmin or outside the orientation bounds are excluded,
+     * as in the ray kernel.
+     * @param orig the point of view in grid coordinate
+     * @param b the bounds of the view
+     * @return the indices of the objects in ascending order
+     */
+    int[] getCandidates(GridCoordinates2D orig, Bounds b) {
+        final double res = data.getResolution();
+        int[] objs;
+        if(b.getDmax() == Double.POSITIVE_INFINITY) {
+            objs = index.query(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        } else {
+            final int d = (int)Math.min(Integer.MAX_VALUE/4, Math.ceil(b.getDmax() / res));
+            objs = index.query(orig.x-d, orig.y-d, orig.x+d, orig.y+d);
+        }
+        int n = 0;
+        for(int ind : objs) {
+            final int dx = x[ind] - orig.x;
+            final int dy = y[ind] - orig.y;
+            if(b.isOrienBounded() && !b.isTheta1Included(Math.atan2(-dy, dx))) {
+                continue;
+            }
+            if(dx == 0 && dy == 0) {
+                if(b.getDmin() > 0) {
+                    continue;
+                }
+            } else {
+                final double dist = res * Math.sqrt((double)dx*dx + (double)dy*dy);
+                if(dist >= b.getDmax() || dist < b.getDmin()) {
+                    continue;
+                }
+            }
+            objs[n++] = ind;
+        }
+        return Arrays.copyOf(objs, n);
+    }
+
+    /**
+     * Estimates whether calculating the viewshed of the point of view is cheaper than calculating the rays to the objects.
+     * The cost of the rays is their number of steps, the cost of the viewshed is proportional to the size of its window,
+     * the viewsheds in degree are calculated on the whole grid.
+     * Returns always false if the objects have not the same height.
+     * @param orig the point of view in grid coordinate
+     * @param b the bounds of the view
+     * @param objs the objects to test
+     * @param degree is the viewshed calculated in degree ?
+     * @return true if the viewshed is cheaper
+     */
+    boolean isViewShedCheaper(GridCoordinates2D orig, Bounds b, int[] objs, boolean degree) {
+        if(!sameZ || objs.length == 0) {
+            return false;
+        }
+        double rayCost = 0;
+        for(int ind : objs) {
+            rayCost += Math.max(Math.abs(x[ind] - orig.x), Math.abs(y[ind] - orig.y));
+        }
+        Rectangle window = new Rectangle(0, 0, data.getDtm().getWidth(), data.getDtm().getHeight());
+        final double fullSize = (double)window.width * window.height;
+        if(b.getDmax() != Double.POSITIVE_INFINITY && !degree) {
+            final double d = Math.ceil(b.getDmax() / data.getResolution());
+            if(d < window.width + window.height) {
+                window = window.intersection(new Rectangle(orig.x-(int)d, orig.y-(int)d, 2*(int)d+1, 2*(int)d+1));
+            }
+        }
+        final double viewCost = VIEWSHED_COST * window.width * window.height + (degree ? fullSize : 0);
+        return viewCost < rayCost;
+    }
+
+    /**
+     * @param view the viewshed
+     * @param i the object index
+     * @return the value of the viewshed for the pixel of the object, 0 if it is outside the viewshed
+     */
+    double getValue(ViewShedResult view, int i) {
+        final Raster r;
+        final Rectangle rect;
+        if(view instanceof WindowViewShedResult) {
+            r = ((WindowViewShedResult)view).getWindow();
+            rect = ((WindowViewShedResult)view).getWindowRect();
+        } else {
+            r = view.getView();
+            rect = new Rectangle(0, 0, r.getWidth(), r.getHeight());
+        }
+        if(!rect.contains(x[i], y[i])) {
+            return 0;
+        }
+        return r.getSampleDouble(r.getMinX() + x[i]-rect.x, r.getMinY() + y[i]-rect.y, 0);
+    }
+}
@@ -23,6 +23,7 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.geometry.DirectPosition2D;
 import org.thema.common.ProgressBar;
@@ -31,9 +32,16 @@ import org.thema.data.IOFeature;
 import org.thema.parallel.AbstractParallelTask;
 import org.thema.pixscape.MultiViewshedTask.RasterValue;
 import org.thema.pixscape.view.SimpleComputeView;
+import org.thema.pixscape.view.ViewShedResult;
 
 /**
- *
+ * Calculates the visibility between a set of observation points (eyes) and a set of observed points (objects).
+ * 
+ * For each eye, only the objects which can be seen given the bounds (dmin, dmax and orientation) are tested,
+ * they are retrieved with a spatial index of the objects.
+ * The visibility of these objects is calculated, depending on the {@link Mode}, 
+ * by one ray for each object or by calculating the viewshed of the eye and looking up the objects in it.
+ * 
  * @author gvuidel
  */
 public class Point2PointViewTask extends AbstractParallelTask<Map, Map> implements Serializable {
@@ -42,6 +50,15 @@ public class Point2PointViewTask extends AbstractParallelTask<Map, Map> implemen
     
     public enum AgregOp { SUM, MIN, MAX }
     
+    /**
+     * The calculation mode of the visibility of the objects for an eye.
+     * RAY : one ray for each object,
+     * VIEWSHED : the viewshed of the eye is calculated and the objects are looked up in it,
+     * the values may differ slightly from the rays for some objects, as the viewshed rays do not follow exactly the same pixels.
+     * AUTO : the cheapest of both for each eye, given the number of objects and their distance.
+     */
+    public enum Mode { AUTO, RAY, VIEWSHED }
+    
     /** project file for loading project for MPI mode only */
     private File prjFile;
 
@@ -62,9 +79,12 @@ public class Point2PointViewTask extends AbstractParallelTask<Map, Map> implemen
     private Agreg agreg; 
     private AgregOp agregOp;
     
+    private Mode mode = Mode.AUTO;
+    
     private transient Project project;
     private transient List<? extends Feature> eyePoints;
     private transient List<? extends Feature> objPoints;
+    private transient ObjectIndex objIndex;
     
     private Map result;
     
@@ -126,12 +146,33 @@ public class Point2PointViewTask extends AbstractParallelTask<Map, Map> implemen
         } else {
             result = new HashMap();
         }
+        
+        objIndex = new ObjectIndex(objPoints, zDest, project.getSimpleComputeView().getData(), bounds.getDmax());
+        // the viewsheds in count are packed in bits from the buffer of each thread
+        project.getSimpleComputeView().setPooled(true);
+        if(mode == Mode.VIEWSHED && !objIndex.isSameZ()) {
+            throw new IllegalArgumentException("Viewshed mode needs the same height for all objects");
+        }
+    }
+    
+    /**
+     * Sets the calculation mode, default is {@link Mode#AUTO}.
+     * The {@link Mode#VIEWSHED} mode cannot be used if the objects have different heights.
+     * This method must be called before executing the task.
+     * @param mode the calculation mode
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
     }
 
     @Override
     public Map execute(int start, int end) {
         Map map = new HashMap();
         SimpleComputeView compute = project.getSimpleComputeView();
+        final boolean area = outValue == RasterValue.AREA;
+        // for agreg == object and min, number of eyes seeing each object
+        final int[] nbSeen = agreg == Agreg.OBJECT && agregOp == AgregOp.MIN ? new int[objPoints.size()] : null;
+        int nbRay = 0, nbView = 0;
         for(Feature point : eyePoints.subList(start, end)) {
             Point p = (Point) point.getGeometry();
             Bounds b = bounds.updateBounds(point);
@@ -140,16 +181,22 @@ public class Point2PointViewTask extends AbstractParallelTask<Map, Map> implemen
                 zOrig = ((Number)point.getAttribute("height")).doubleValue();
             }
             GridCoordinates2D orig = compute.getData().getWorld2Grid(new DirectPosition2D(p.getX(), p.getY()));
+            int[] candidates = objIndex.getCandidates(orig, b);
+            ViewShedResult view = null;
+            if(mode == Mode.AUTO ? objIndex.isViewShedCheaper(orig, b, candidates, outValue != RasterValue.COUNT) 
+                    : mode == Mode.VIEWSHED && candidates.length > 0) {
+                final DirectPosition2D pos = new DirectPosition2D(p.getX(), p.getY());
+                view = outValue == RasterValue.COUNT ? compute.calcBitViewShed(pos, zOrig, objIndex.getZ(0), false, b) :
+                        compute.calcViewShedDeg(pos, zOrig, objIndex.getZ(0), false, b, area);
+                nbView++;
+            } else {
+                nbRay += candidates.length;
+            }
             Map<Object, Double> objs = agreg == null ? new HashMap<>() : map;
             double agregValue = 0; // for agreg == eye
-            for(Feature obj : objPoints) {
-                double zDest = this.zDest;
-                if(obj.getAttributeNames().contains("height")) {
-                    zDest = ((Number)obj.getAttribute("height")).doubleValue();
-                }
-                p = (Point) obj.getGeometry();
-                GridCoordinates2D dest = compute.getData().getWorld2Grid(new DirectPosition2D(p.getX(), p.getY()));
-                double val = compute.calcRay(orig, zOrig, dest, zDest, b, outValue == RasterValue.AREA);
+            for(int ind : candidates) {
+                Feature obj = objPoints.get(ind);
+                double val = view != null ? objIndex.getValue(view, ind) : compute.calcRay(orig, zOrig, objIndex.getCoord(ind), objIndex.getZ(ind), b, area);
                 if(outValue == RasterValue.COUNT) {
                     val = val > 0 ? 1.0 : 0.0;
                 }
@@ -165,6 +212,9 @@ public class Point2PointViewTask extends AbstractParallelTask<Map, Map> implemen
                     if(prec != null) {
                         objs.put(obj.getId(), agreg(prec, val));
                     }
+                    if(nbSeen != null && val > 0) {
+                        nbSeen[ind]++;
+                    }
                 }
             }
             if(agreg == null) {
@@ -178,9 +228,23 @@ public class Point2PointViewTask extends AbstractParallelTask<Map, Map> implemen
             incProgress(1);
         }
         
+        if(agreg == Agreg.OBJECT) {
+            // the objects not tested for an eye are not seen by this eye
+            for(int i = 0; i < objPoints.size(); i++) {
+                final Object id = objPoints.get(i).getId();
+                if(nbSeen != null && nbSeen[i] < end-start) {
+                    map.put(id, 0.0);
+                } else {
+                    map.putIfAbsent(id, 0.0);
+                }
+            }
+        }
+        
+        Logger.getLogger(Point2PointViewTask.class.getName()).fine("Eyes " + start + "-" + end + " : " + nbRay + " rays, " + nbView + " viewsheds");
+        
         return map;
     }
-
+    
     @Override
     public void gather(Map m) {
         if(agreg == Agreg.OBJECT) {
@@ -201,6 +265,12 @@ public class Point2PointViewTask extends AbstractParallelTask<Map, Map> implemen
         return eyePoints.size();
     }
 
+    @Override
+    public void finish() {
+        super.finish();
+        project.getSimpleComputeView().setPooled(false);
+    }
+
     @Override
     public Map getResult() {
         return result;
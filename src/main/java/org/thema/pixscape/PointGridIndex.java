@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index of points in grid coordinate.
+ * The points are stored by buckets of cellSize x cellSize pixels covering the bounding box of the points,
+ * each bucket is a range of a single array of point indices.
+ * The index is immutable and can be queried by several threads.
+ *
+ * @author Gilles Vuidel
+ */
+final class PointGridIndex {
+
+    private final int[] x, y;
+    private final int cellSize;
+    private final int x0, y0, nx, ny;
+    /** The start of each cell in items, the cell i contains items[cellStart[i]] to items[cellStart[i+1]-1] */
+    private final int[] cellStart;
+    /** The point indices ordered by cell */
+    private final int[] items;
+
+    /**
+     * Creates the index of the points (x[i], y[i]).
+     * @param x the x grid coordinate of the points
+     * @param y the y grid coordinate of the points
+     * @param cellSize the size of the buckets in pixel
+     * @throws IllegalArgumentException if x and y have not the same length or if cellSize is lower than 1
+     */
+    PointGridIndex(int[] x, int[] y, int cellSize) {
+        if(x.length != y.length) {
+            throw new IllegalArgumentException("x and y must have the same length");
+        }
+        if(cellSize < 1) {
+            throw new IllegalArgumentException("Cell size must be greater than 0 : " + cellSize);
+        }
+        this.x = x;
+        this.y = y;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for(int i = 0; i < x.length; i++) {
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        if(x.length == 0) {
+            minX = maxX = minY = maxY = 0;
+        }
+        // limits the number of cells to the number of points
+        final double extent = ((double)maxX-minX+1) * ((double)maxY-minY+1);
+        this.cellSize = (int)Math.max(cellSize, Math.ceil(Math.sqrt(extent / Math.max(1, x.length))));
+        x0 = minX;
+        y0 = minY;
+        nx = (int)(((long)maxX-minX) / this.cellSize) + 1;
+        ny = (int)(((long)maxY-minY) / this.cellSize) + 1;
+
+        cellStart = new int[nx*ny+1];
+        for(int i = 0; i < x.length; i++) {
+            cellStart[getCell(i)+1]++;
+        }
+        for(int i = 0; i < nx*ny; i++) {
+            cellStart[i+1] += cellStart[i];
+        }
+        items = new int[x.length];
+        final int[] pos = Arrays.copyOf(cellStart, nx*ny);
+        for(int i = 0; i < x.length; i++) {
+            items[pos[getCell(i)]++] = i;
+        }
+    }
+
+    /**
+     * @return the size of the buckets in pixel, may be greater than the size given to the constructor
+     */
+    int getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Returns the indices of the points inside the rectangle [xmin, xmax] x [ymin, ymax], bounds included.
+     * @param xmin the minimum x
+     * @param ymin the minimum y
+     * @param xmax the maximum x
+     * @param ymax the maximum y
+     * @return the indices of the points in ascending order
+     */
+    int[] query(int xmin, int ymin, int xmax, int ymax) {
+        final int cx0 = getCellX(Math.max(xmin, x0));
+        final int cy0 = getCellY(Math.max(ymin, y0));
+        final int cx1 = getCellX(Math.min(xmax, x0 + (long)nx*cellSize - 1));
+        final int cy1 = getCellY(Math.min(ymax, y0 + (long)ny*cellSize - 1));
+        if(xmin > xmax || ymin > ymax || cx0 > cx1 || cy0 > cy1) {
+            return new int[0];
+        }
+        int n = 0;
+        for(int cy = cy0; cy <= cy1; cy++) {
+            n += cellStart[cy*nx+cx1+1] - cellStart[cy*nx+cx0];
+        }
+        final int[] result = new int[n];
+        n = 0;
+        for(int cy = cy0; cy <= cy1; cy++) {
+            for(int i = cellStart[cy*nx+cx0]; i < cellStart[cy*nx+cx1+1]; i++) {
+                final int ind = items[i];
+                if(x[ind] >= xmin && x[ind] <= xmax && y[ind] >= ymin && y[ind] <= ymax) {
+                    result[n++] = ind;
+                }
+            }
+        }
+        final int[] points = Arrays.copyOf(result, n);
+        Arrays.sort(points);
+        return points;
+    }
+
+    private int getCell(int i) {
+        return getCellY(y[i])*nx + getCellX(x[i]);
+    }
+
+    private int getCellX(long px) {
+        return (int)Math.floorDiv(px - x0, cellSize);
+    }
+
+    private int getCellY(long py) {
+        return (int)Math.floorDiv(py - y0, cellSize);
+    }
+}
@@ -20,13 +20,20 @@
 package org.thema.pixscape;
 
 import org.locationtech.jts.geom.Coordinate;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.geotools.geometry.DirectPosition2D;
@@ -43,6 +50,9 @@ import org.thema.pixscape.view.ComputeView;
 /**
  * Parallel task for calculating metrics on a point shapefile sampling.
  * 
+ * For long runs, the checkpoint (see {@link #setCheckpoint(boolean) }) logs the results of the points 
+ * by batches, so an interrupted task can be resumed without calculating again the points already done.
+ * 
  * @author Gilles Vuidel
  */
 public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>, Map<Object, List<Double[]>>> implements Serializable {
@@ -68,10 +78,24 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
     
     private final File resDir;
     
+    /** Number of points gathered and written in the checkpoint together in threaded mode */
+    private static final int GATHER_BATCH = 64;
+    
+    // checkpoint
+    private boolean checkpointed = false;
+    private boolean resume = false;
+    /** identifiers of the points already done in the checkpoint when resuming */
+    private Set<String> donePoints;
+    
+    /** true if this instance has been created locally, false if it has been sent to a MPI node */
+    private transient boolean local;
     private transient Project project;
     private transient ComputeView compute;
     private transient List<DefaultFeature> points;
+    /** points remaining to calculate */
+    private transient List<DefaultFeature> todoPoints;
     private transient Map<Object, List<Double[]>> result;
+    private transient Checkpoint checkpoint;
 
     /**
      * Creates a new PointMetricTask for viewshed metric.
@@ -100,6 +124,7 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
         this.idField = idField;
         this.resDir = resDir;
         this.isTan = false;
+        this.local = true;
     }
     
     /**
@@ -125,6 +150,7 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
         this.idField = idField;
         this.resDir = resDir;
         this.isTan = true;
+        this.local = true;
     }
 
     @Override
@@ -132,6 +158,12 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
         try {
             // needed for getSplitRange
             points = IOFeature.loadFeatures(pointFile, idField);
+            todoPoints = new ArrayList<>();
+            for(DefaultFeature p : points) {
+                if(donePoints == null || !donePoints.contains(String.valueOf(p.getId()))) {
+                    todoPoints.add(p);
+                }
+            }
             super.init(); 
             // useful for MPI only, because project is not serializable
             if(project == null) {
@@ -142,12 +174,49 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
         }
         
         compute = project.getDefaultComputeView();
+        // the viewsheds are consumed immediately by the metrics, the buffers can be reused
+        compute.setPooled(true);
+        if(checkpointed && local) {
+            openCheckpoint();
+        }
+    }
+    
+    /**
+     * Opens the checkpoint and gathers the results of the points already done.
+     */
+    private void openCheckpoint() {
+        final Map<String, Object> ids = new HashMap<>();
+        for(DefaultFeature p : points) {
+            ids.put(String.valueOf(p.getId()), p.getId());
+        }
+        try {
+            checkpoint = new Checkpoint(getCheckpointFile(), getSignature(), resume, new Checkpoint.Handler() {
+                @Override
+                public void record(String key, byte[] data) throws IOException {
+                    final Map<String, List<Double[]>> records = decodePoints(data);
+                    final Map<Object, List<Double[]>> map = new HashMap<>();
+                    for(String id : records.keySet()) {
+                        if(ids.containsKey(id)) {
+                            map.put(ids.get(id), records.get(id));
+                        }
+                    }
+                    gather(map, false);
+                }
+            });
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     private boolean isSaved() {
         return resDir != null;
     }
     
+    /**
+     * {@inheritDoc }
+     * In threaded mode, the points are gathered by batches of {@link #GATHER_BATCH} as soon as they are calculated, 
+     * so the result is empty.
+     */
     @Override
     public Map<Object, List<Double[]>> execute(int start, int end) {
         Map<Object, List<Double[]>> map = new HashMap<>();
@@ -156,7 +225,7 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
             if(isCanceled()) {
                 break;
             }
-            Feature p = points.get(i);
+            Feature p = todoPoints.get(i);
             double zOrig = startZ;
             double zDest = destZ;
             if(p.getAttributeNames().contains("height")) {
@@ -176,16 +245,55 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
             } else {
                 values = compute.aggrViewShed(gc, zOrig, zDest, inverse, b, (List) metrics);
             }
-            map.put(points.get(i).getId(), values);
+            map.put(p.getId(), values);
+            if(local && map.size() >= GATHER_BATCH) {
+                gather(map, true);
+                map = new HashMap<>();
+            }
             incProgress(1);
         }
+        if(local && !map.isEmpty()) {
+            gather(map, true);
+            map = new HashMap<>();
+        }
         
         return map;
     }
 
+    /**
+     * Enables the checkpoint : the results of the points are written in a checkpoint file of the result directory 
+     * as soon as they are gathered, one record by batch of points, the file is deleted when the task finishes without being canceled.
+     * If resume is true and the checkpoint file exists, the points already written are not calculated again.
+     * @param resume true for resuming an interrupted task
+     * @throws IOException if the checkpoint cannot be read
+     * @throws IllegalStateException if the results are not saved
+     * @throws IllegalArgumentException if the checkpoint file does not correspond to this task
+     */
+    public void setCheckpoint(boolean resume) throws IOException {
+        if(!isSaved()) {
+            throw new IllegalStateException("The checkpoint needs a result directory");
+        }
+        this.checkpointed = true;
+        this.resume = resume;
+        donePoints = new HashSet<>();
+        if(resume) {
+            Checkpoint.read(getCheckpointFile(), getSignature(), new Checkpoint.Handler() {
+                @Override
+                public void record(String key, byte[] data) throws IOException {
+                    donePoints.addAll(decodePoints(data).keySet());
+                }
+            });
+            Logger.getLogger(PointMetricTask.class.getName()).info("Resume : " + donePoints.size() + " points already done");
+        }
+    }
+    
+    /**
+     * {@inheritDoc }
+     * @return the number of points to calculate
+     */
     @Override
     public int getSplitRange() {
-        return points.size();
+        return todoPoints.size();
     }
     
     @Override
@@ -207,15 +315,78 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
 
     @Override
     public void gather(Map<Object, List<Double[]>> map) {
+        gather(map, true);
+    }
+    
+    /**
+     * Adds the results of the points.
+     * @param map the metric values for each point identifier
+     * @param log if true, the points are written in one record of the checkpoint
+     */
+    private synchronized void gather(Map<Object, List<Double[]>> map, boolean log) {
         if(result == null) {
             result = new HashMap<>();
         }
         result.putAll(map);
+        if(log && checkpoint != null && !map.isEmpty()) {
+            try {
+                checkpoint.write(String.valueOf(map.keySet().iterator().next()), encodePoints(map));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+    
+    /**
+     * Encodes the metric values of several points for the checkpoint, the points are identified by the string of their id.
+     */
+    private static byte[] encodePoints(Map<Object, List<Double[]>> map) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(map.size());
+            for(Object id : map.keySet()) {
+                final List<Double[]> values = map.get(id);
+                out.writeUTF(String.valueOf(id));
+                out.writeInt(values.size());
+                for(Double[] vals : values) {
+                    out.writeInt(vals.length);
+                    for(Double v : vals) {
+                        out.writeDouble(v == null ? Double.NaN : v);
+                    }
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static Map<String, List<Double[]>> decodePoints(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            final int nbPoint = in.readInt();
+            final Map<String, List<Double[]>> map = new HashMap<>();
+            for(int k = 0; k < nbPoint; k++) {
+                final String id = in.readUTF();
+                final int nb = in.readInt();
+                final List<Double[]> values = new ArrayList<>(nb);
+                for(int i = 0; i < nb; i++) {
+                    final Double[] vals = new Double[in.readInt()];
+                    for(int j = 0; j < vals.length; j++) {
+                        vals[j] = in.readDouble();
+                    }
+                    values.add(vals);
+                }
+                map.put(id, values);
+            }
+            return map;
+        }
     }
     
     @Override
     public void finish() {
         super.finish(); 
+        if(compute.getBufferPool() != null) {
+            Logger.getLogger(PointMetricTask.class.getName()).info(compute.getBufferPool().toString());
+        }
+        compute.setPooled(false);
         if(isSaved()) {
             try {
                 IOFeature.saveFeatures(getResult(), getResultFile(), project.getCRS());
@@ -223,6 +394,33 @@ public class PointMetricTask extends AbstractParallelTask<List<DefaultFeature>,
                 Logger.getLogger(PointMetricTask.class.getName()).log(Level.SEVERE, null, ex);
             } 
         }
+        if(checkpoint != null) {
+            try {
+                checkpoint.close();
+            } catch (IOException ex) {
+                Logger.getLogger(PointMetricTask.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            if(!isCanceled()) {
+                checkpoint.getFile().delete();
+            }
+            checkpoint = null;
+        }
+    }
+    
+    private File getCheckpointFile() {
+        return new File(resDir, "checkpoint-" + getResultFile().getName() + ".bin");
+    }
+    
+    /**
+     * @return the description of the task, for checking that a checkpoint corresponds to this task
+     */
+    private String getSignature() {
+        List<String> names = new ArrayList<>();
+        for(Metric metric : metrics) {
+            names.addAll(Arrays.asList(metric.getResultNames()));
+        }
+        return "point " + prjFile + (isTan ? " tan" : " plan") + " zeye=" + startZ + " zdest=" + destZ + " inverse=" + inverse 
+                + " bounds=" + bounds + " metrics=" + names + " points=" + pointFile.getAbsolutePath() + " id=" + idField;
     }
     
     private File getResultFile() {
@@ -66,6 +66,8 @@ import org.thema.pixscape.metric.ShannonMetric;
 import org.thema.pixscape.metric.SkyLineMetric;
 import org.thema.pixscape.view.ComputeView;
 import org.thema.pixscape.view.ComputeViewJava;
+import org.thema.pixscape.view.ComputeViewMappedJava;
+import org.thema.pixscape.view.ComputeViewSweepJava;
 import org.thema.pixscape.view.MultiComputeView;
 import org.thema.pixscape.view.MultiComputeViewLargeJava;
 import org.thema.pixscape.view.SimpleComputeView;
@@ -102,6 +104,8 @@ public final class Project {
     private boolean earthCurv = true;
     private double coefRefraction = 0.13;
     private double minDistMS = -1;
+    private boolean parallelView = false;
+    private boolean radialSweep = false;
 
     
     private Project() {
@@ -117,13 +121,29 @@ public final class Project {
      * @throws IOException 
      */
     public Project(String name, File prjPath, GridCoverage2D dtmCov, double resZ) throws IOException {
+        this(name, prjPath, dtmCov, resZ, 0);
+    }
+    
+    /**
+     * Creates a new project with quantized elevations and saves it in prjPath.
+     * The DTM and the DSM added later are stored in 16 bits with the precision zPrec 
+     * (see {@link ScaleData#ScaleData(GridCoverage2D, RenderedImage, RenderedImage, double, double) }).
+     * @param name the name of the project
+     * @param prjPath the project directory, it will be created if it does not exist
+     * @param dtmCov the DTM coverage
+     * @param resZ the elevation resolution int meter of dtmCov
+     * @param zPrec the precision in meter of the quantized elevations, 0 for float elevations
+     * @throws IOException 
+     * @throws IllegalArgumentException if the range of the elevations is too large for the precision
+     */
+    public Project(String name, File prjPath, GridCoverage2D dtmCov, double resZ, double zPrec) throws IOException {
         this.name = name;
         this.dir = prjPath;
         this.scaleDatas = new TreeMap<>();
-        ScaleData scaleData = new ScaleData(dtmCov, null, null, resZ);
+        ScaleData scaleData = new ScaleData(dtmCov, null, null, resZ, zPrec);
         scaleDatas.put(scaleData.getResolution(), scaleData);
         prjPath.mkdirs();
-        IOImage.saveTiffCoverage(new File(prjPath, "dtm-" + scaleData.getResolution() + ".tif"), scaleData.getDtmCov());
+        scaleData.save(prjPath);
         
         CoordinateReferenceSystem crs = dtmCov.getCoordinateReferenceSystem2D();
         if(crs != null) {
@@ -164,6 +184,22 @@ public final class Project {
      * @throws IOException 
      */
     public Project dupProject(String name, File prjPath, ScaleData scaleData) throws IOException {
+        Project prj = createMemoryProject(name, prjPath, scaleData);
+        scaleData.save(prjPath);
+        prj.save();
+        return prj;
+    }
+
+    /**
+     * Creates a new project based on this one without saving it.
+     * The project directory is created for storing the results but the project and the data are not saved, 
+     * so the project cannot be reloaded (ie. in MPI mode).
+     * @param name the name of the project
+     * @param prjPath the project directory, it will be created if it does not exist
+     * @param scaleData the default scale data containing dtm, dsm and landuse for the finest 2D resolution
+     * @return the new project
+     */
+    Project createMemoryProject(String name, File prjPath, ScaleData scaleData) {
         Project prj = new Project();
         prj.name = name;
         prj.wktCRS = wktCRS;
@@ -175,19 +211,18 @@ public final class Project {
         prj.earthCurv = earthCurv;
         prj.coefRefraction = coefRefraction;
         prj.minDistMS = -1;
+        prj.parallelView = parallelView;
+        prj.radialSweep = radialSweep;
         
         prj.dir = prjPath;
         prj.scaleDatas = new TreeMap<>();
         prj.scaleDatas.put(scaleData.getResolution(), scaleData);
         prjPath.mkdirs();
-        scaleData.save(prjPath);
         
         CoordinateReferenceSystem crs = scaleData.getDtmCov().getCoordinateReferenceSystem2D();
         if(crs != null) {
             prj.wktCRS = crs.toWKT();
         }
-
-        prj.save();
         return prj;
     }
 
@@ -206,7 +241,8 @@ public final class Project {
             throw new IllegalArgumentException("Land use bounds does not correspond to DTM bounds");
         }
         
-        ScaleData newData = new ScaleData(getDtmCov(), landCov.getRenderedImage(), getDefaultScaleData().getDsm());
+        ScaleData newData = new ScaleData(getDtmCov(), landCov.getRenderedImage(), getDefaultScaleData().getDsm(), 
+                1, getDefaultScaleData().getZPrecision());
         scaleDatas.put(newData.getResolution(), newData);
         simpleComputeView = null;
         
@@ -241,7 +277,8 @@ public final class Project {
             throw new IllegalArgumentException("DSM bounds does not correspond to DTM bounds");
         }
         
-        ScaleData newData = new ScaleData(getDtmCov(), getLandUse(), dsmCov.getRenderedImage());
+        ScaleData newData = new ScaleData(getDtmCov(), getLandUse(), dsmCov.getRenderedImage(), 
+                1, getDefaultScaleData().getZPrecision());
         scaleDatas.put(newData.getResolution(), newData);
         simpleComputeView = null;
         
@@ -257,8 +294,13 @@ public final class Project {
      * @throws IllegalArgumentException if the data resolution is less than the defaultscale
      * @throws IllegalArgumentException if the data does not cover the the defaultscale data
      * @throws IllegalArgumentException if the data does not contain landuse while defaultscale so or inverse 
+     * @throws IllegalArgumentException if the elevations of the project or of the data are quantized, 
+     * the multiscale computation does not support them
      */
     public void addScaleData(ScaleData data) throws IOException {
+        if(getDefaultScaleData().isQuantized() || data.isQuantized()) {
+            throw new IllegalArgumentException("Multiscale data cannot be added to a project with quantized elevations.");
+        }
         if(data.getResolution() <= getDefaultScaleData().getResolution()) {
             throw new IllegalArgumentException("The data resolution must must be coarser.");
         }
@@ -480,6 +522,45 @@ public final class Project {
     public void setMinDistMS(double minDistMS) {
         this.minDistMS = minDistMS;
     }
+
+    /**
+     * @return true if one view computation is split over several cores
+     */
+    public boolean isParallelView() {
+        return parallelView;
+    }
+
+    /**
+     * Sets the parallel view option : the rays of one view are split over several cores.
+     * Useful for computing one or a few large views, should not be enabled for grid computation.
+     * @param parallelView split the computation of one view over several cores ?
+     */
+    public void setParallelView(boolean parallelView) {
+        this.parallelView = parallelView;
+        if(simpleComputeView != null) {
+            simpleComputeView.setParallel(parallelView);
+        }
+    }
+    
+    /**
+     * @return true if the direct viewshed is computed with the radial sweep algorithm instead of ray casting
+     */
+    public boolean isRadialSweep() {
+        return radialSweep;
+    }
+
+    /**
+     * Sets the radial sweep option : the direct viewshed is computed with {@link ComputeViewSweepJava}.
+     * Used only in Java mode, ignored if CUDA is used.
+     * @param radialSweep use the radial sweep algorithm ?
+     */
+    public synchronized void setRadialSweep(boolean radialSweep) {
+        this.radialSweep = radialSweep;
+        if(simpleComputeView != null) {
+            simpleComputeView.dispose();
+        }
+        simpleComputeView = null;
+    }
     
     
     //
@@ -506,12 +587,14 @@ public final class Project {
     
     /**
      * Creates, if not already creates, and returns the mono scale computation class.
-     * Can be CUDA or Java depending of global options and CUDA GPU presence.
+     * Can be CUDA or Java (ray casting or radial sweep) depending of global options and CUDA GPU presence.
+     * If the data is too large to be loaded, it is mapped in memory and the Java ray casting on mapped data is used.
+     * Quantized elevations are supported only by the Java ray casting.
      * @return the current mono scale computation class
      */
     public synchronized SimpleComputeView getSimpleComputeView() {
         if(simpleComputeView == null) {
-            if(isUseCUDA()) {
+            if(isUseCUDA() && !getDefaultScaleData().isMapped() && !getDefaultScaleData().isQuantized()) {
                 try {
                     simpleComputeView = new ComputeViewCUDA(getDefaultScaleData(), aPrec, earthCurv, coefRefraction, nbGPU);
                 } catch (Exception ex) {
@@ -521,8 +604,15 @@ public final class Project {
                 }
             } 
             if(simpleComputeView == null) {
-                simpleComputeView = new ComputeViewJava(getDefaultScaleData(), aPrec, earthCurv, coefRefraction);
+                if(getDefaultScaleData().isMapped()) {
+                    simpleComputeView = new ComputeViewMappedJava(getDefaultScaleData(), aPrec, earthCurv, coefRefraction);
+                } else if(radialSweep && !getDefaultScaleData().isQuantized()) {
+                    simpleComputeView = new ComputeViewSweepJava(getDefaultScaleData(), aPrec, earthCurv, coefRefraction);
+                } else {
+                    simpleComputeView = new ComputeViewJava(getDefaultScaleData(), aPrec, earthCurv, coefRefraction);
+                }
             }
+            simpleComputeView.setParallel(parallelView);
         }
         
         return simpleComputeView;
@@ -541,6 +631,7 @@ public final class Project {
         
         MultiComputeView compute = new MultiComputeViewLargeJava(scaleDatas, 
             (int) Math.ceil(distMin/getDefaultScaleData().getResolution()), aPrec, earthCurv, coefRefraction);
+        compute.setParallel(parallelView);
 
         return compute;
     }
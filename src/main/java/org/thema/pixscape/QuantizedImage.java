@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/**
+ * Image decoding the raw short values of a source image with a {@link QuantizedSampleModel}.
+ * The tiles and the rasters returned share the data of the source image when it is possible,
+ * their float and double samples are the decoded elevations.
+ *
+ * @author Gilles Vuidel
+ */
+public final class QuantizedImage implements RenderedImage {
+
+    private final RenderedImage source;
+    private final float scale, base;
+
+    /**
+     * Creates a new QuantizedImage
+     * @param source the image containing the raw short values
+     * @param scale the size of a quantization step in meter
+     * @param base the elevation of the raw value 0
+     */
+    public QuantizedImage(RenderedImage source, float scale, float base) {
+        this.source = source;
+        this.scale = scale;
+        this.base = base;
+    }
+
+    /**
+     * @return the image containing the raw values
+     */
+    public RenderedImage getSource() {
+        return source;
+    }
+
+    /**
+     * @return the size of a quantization step in meter
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return the elevation of the raw value 0
+     */
+    public float getBase() {
+        return base;
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        Vector<RenderedImage> sources = new Vector<>();
+        sources.add(source);
+        return sources;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return source.getProperty(name);
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return source.getPropertyNames();
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return source.getColorModel();
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        final SampleModel sm = source.getSampleModel();
+        return new QuantizedSampleModel(sm.getWidth(), sm.getHeight(), scale, base);
+    }
+
+    @Override
+    public int getWidth() {
+        return source.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return source.getHeight();
+    }
+
+    @Override
+    public int getMinX() {
+        return source.getMinX();
+    }
+
+    @Override
+    public int getMinY() {
+        return source.getMinY();
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return source.getNumXTiles();
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return source.getNumYTiles();
+    }
+
+    @Override
+    public int getMinTileX() {
+        return source.getMinTileX();
+    }
+
+    @Override
+    public int getMinTileY() {
+        return source.getMinTileY();
+    }
+
+    @Override
+    public int getTileWidth() {
+        return source.getTileWidth();
+    }
+
+    @Override
+    public int getTileHeight() {
+        return source.getTileHeight();
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return source.getTileGridXOffset();
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return source.getTileGridYOffset();
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return QuantizedSampleModel.wrap(source.getTile(tileX, tileY), scale, base);
+    }
+
+    @Override
+    public Raster getData() {
+        return QuantizedSampleModel.wrap(source.getData(), scale, base);
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        return QuantizedSampleModel.wrap(source.getData(rect), scale, base);
+    }
+
+    /**
+     * {@inheritDoc }
+     * The decoded elevations are copied in the raster.
+     */
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if(raster == null) {
+            return (WritableRaster) getData();
+        }
+        final Rectangle r = raster.getBounds().intersection(new Rectangle(getMinX(), getMinY(), getWidth(), getHeight()));
+        if(r.isEmpty()) {
+            return raster;
+        }
+        final float[] values = getData(r).getSamples(r.x, r.y, r.width, r.height, 0, (float[])null);
+        raster.setSamples(r.x, r.y, r.width, r.height, 0, values);
+        return raster;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Point;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Single band sample model storing elevations in 16 bits.
+ * The raw short value s is decoded in base + scale*s, the value {@link #NODATA} is decoded in NaN.
+ * The float and double accessors of the rasters ({@link Raster#getSampleDouble(int, int, int) }, {@link Raster#getSamples(int, int, int, int, int, float[]) }...)
+ * return the decoded elevation, the integer accessors and the data elements return the raw values.
+ *
+ * @author Gilles Vuidel
+ */
+public final class QuantizedSampleModel extends ComponentSampleModel {
+
+    /** Raw value for no data */
+    public static final short NODATA = Short.MIN_VALUE;
+
+    /** Maximum number of quantization steps for valid values */
+    public static final int NB_STEP = 0xffff - 1;
+
+    private final float scale;
+    private final float base;
+
+    /**
+     * Creates a new QuantizedSampleModel
+     * @param w the width of the raster
+     * @param h the height of the raster
+     * @param pixelStride the pixel stride of the data buffer
+     * @param scanlineStride the line stride of the data buffer
+     * @param bandOffset the offset of the first pixel in the data buffer
+     * @param scale the size of a quantization step in meter
+     * @param base the elevation of the raw value 0
+     */
+    public QuantizedSampleModel(int w, int h, int pixelStride, int scanlineStride, int bandOffset, float scale, float base) {
+        super(DataBuffer.TYPE_SHORT, w, h, pixelStride, scanlineStride, new int[] {bandOffset});
+        if(!(scale > 0)) {
+            throw new IllegalArgumentException("The quantization scale must be positive");
+        }
+        this.scale = scale;
+        this.base = base;
+    }
+
+    /**
+     * Creates a new QuantizedSampleModel for a new raster
+     * @param w the width of the raster
+     * @param h the height of the raster
+     * @param scale the size of a quantization step in meter
+     * @param base the elevation of the raw value 0
+     */
+    public QuantizedSampleModel(int w, int h, float scale, float base) {
+        this(w, h, 1, w, 0, scale, base);
+    }
+
+    /**
+     * @return the size of a quantization step in meter
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return the elevation of the raw value 0
+     */
+    public float getBase() {
+        return base;
+    }
+
+    /**
+     * Decodes a raw value
+     * @param s the raw value
+     * @return the elevation or NaN
+     */
+    public float decode(short s) {
+        return decode(s, scale, base);
+    }
+
+    /**
+     * Encodes an elevation to the nearest raw value
+     * @param z the elevation or NaN
+     * @return the raw value
+     * @throws IllegalArgumentException if z is outside of the range of the quantization
+     */
+    public short encode(double z) {
+        if(Double.isNaN(z)) {
+            return NODATA;
+        }
+        final long s = Math.round((z - base) / scale);
+        if(s <= NODATA || s > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Elevation " + z + " is outside of the quantization range");
+        }
+        return (short) s;
+    }
+
+    @Override
+    public float getSampleFloat(int x, int y, int b, DataBuffer data) {
+        return decode((short)super.getSample(x, y, b, data));
+    }
+
+    @Override
+    public double getSampleDouble(int x, int y, int b, DataBuffer data) {
+        return getSampleFloat(x, y, b, data);
+    }
+
+    @Override
+    public void setSample(int x, int y, int b, float s, DataBuffer data) {
+        super.setSample(x, y, b, encode(s), data);
+    }
+
+    @Override
+    public void setSample(int x, int y, int b, double s, DataBuffer data) {
+        super.setSample(x, y, b, encode(s), data);
+    }
+
+    @Override
+    public SampleModel createCompatibleSampleModel(int w, int h) {
+        return new QuantizedSampleModel(w, h, scale, base);
+    }
+
+    @Override
+    public SampleModel createSubsetSampleModel(int[] bands) {
+        if(bands.length != 1 || bands[0] != 0) {
+            throw new IllegalArgumentException("QuantizedSampleModel contains only one band");
+        }
+        return new QuantizedSampleModel(getWidth(), getHeight(), getPixelStride(), getScanlineStride(), getBandOffsets()[0], scale, base);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof QuantizedSampleModel)) {
+            return false;
+        }
+        final QuantizedSampleModel other = (QuantizedSampleModel) o;
+        return super.equals(o) && scale == other.scale && base == other.base;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + Float.floatToIntBits(scale)) + Float.floatToIntBits(base);
+    }
+
+    /**
+     * Decodes a raw value, this method is used by the ray kernels
+     * @param s the raw value
+     * @param scale the size of a quantization step
+     * @param base the elevation of the raw value 0
+     * @return the elevation or NaN
+     */
+    public static float decode(short s, float scale, float base) {
+        return s == NODATA ? Float.NaN : base + scale*s;
+    }
+
+    /**
+     * Creates a new quantized sample model covering the range [min, max] with a given precision.
+     * @param w the width of the raster
+     * @param h the height of the raster
+     * @param min the minimum elevation
+     * @param max the maximum elevation
+     * @param scale the size of a quantization step in meter
+     * @return the new sample model
+     * @throws IllegalArgumentException if the range is too large for the precision
+     */
+    public static QuantizedSampleModel create(int w, int h, double min, double max, float scale) {
+        if(Double.isNaN(min) || Double.isInfinite(min)) {
+            min = max = 0;
+        }
+        if((max - min) / scale > NB_STEP) {
+            throw new IllegalArgumentException("The elevation range " + (max-min) + " is too large for the precision " + scale
+                    + ", the precision must be greater than " + (max-min) / NB_STEP);
+        }
+        // the minimum is encoded by the lowest valid raw value
+        return new QuantizedSampleModel(w, h, scale, (float) (min - scale*(NODATA+1)));
+    }
+
+    /**
+     * Returns a raster decoding the raw values of a raster.
+     * The data buffer is shared when it is possible, otherwise the raw values are copied.
+     * @param raw the raster containing the raw values, must be a short raster
+     * @param scale the size of a quantization step in meter
+     * @param base the elevation of the raw value 0
+     * @return a raster with a QuantizedSampleModel containing the same raw values
+     * @throws IllegalArgumentException if raw does not contain short values
+     */
+    public static WritableRaster wrap(Raster raw, float scale, float base) {
+        final SampleModel sm = raw.getSampleModel();
+        if(sm.getDataType() != DataBuffer.TYPE_SHORT) {
+            throw new IllegalArgumentException("The quantized raster must contain short values");
+        }
+        if(sm instanceof ComponentSampleModel && raw.getDataBuffer() instanceof DataBufferShort) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            WritableRaster r = Raster.createWritableRaster(new QuantizedSampleModel(csm.getWidth(), csm.getHeight(),
+                    csm.getPixelStride(), csm.getScanlineStride(), csm.getBandOffsets()[0], scale, base),
+                    raw.getDataBuffer(), new Point(raw.getSampleModelTranslateX(), raw.getSampleModelTranslateY()));
+            if(r.getBounds().equals(raw.getBounds())) {
+                return r;
+            }
+            return r.createWritableChild(raw.getMinX(), raw.getMinY(), raw.getWidth(), raw.getHeight(),
+                    raw.getMinX(), raw.getMinY(), null);
+        }
+        WritableRaster r = Raster.createWritableRaster(new QuantizedSampleModel(raw.getWidth(), raw.getHeight(), scale, base),
+                new Point(raw.getMinX(), raw.getMinY()));
+        r.setDataElements(raw.getMinX(), raw.getMinY(), raw);
+        return r;
+    }
+}
@@ -32,6 +32,7 @@ import org.thema.common.collection.TreeMapList;
 import org.thema.data.feature.DefaultFeature;
 import org.thema.data.feature.Feature;
 import org.thema.pixscape.view.SimpleComputeView;
+import org.thema.pixscape.view.ViewShedResult;
 
 /**
  *
@@ -49,42 +50,77 @@ public class Saturation {
     }
     
     public void calc(Coordinate c0, double maxDist, List<DefaultFeature> objects, String idField) {
+        ObjectIndex index = new ObjectIndex(objects, -1, project.getSimpleComputeView().getData(), maxDist);
+        calc(c0, project.getStartZ(), maxDist, objects, idField, getGroupIds(objects, idField), index, false);
+    }
+    
+    /**
+     * @param objects the objects
+     * @param idField the attribute grouping the objects
+     * @return the groups of all the objects
+     */
+    static Set getGroupIds(List<? extends Feature> objects, String idField) {
+        Set groupIds = new HashSet();
+        for(Feature obj : objects) {
+            groupIds.add(obj.getAttribute(idField));
+        }
+        return groupIds;
+    }
+    
+    /**
+     * Calculates the saturation around c0 for the objects within maxDist.
+     * The objects are retrieved with the index, their angular height is calculated by one ray for each object,
+     * or read in the viewshed in degree of c0 if useViewShed is true and if it is cheaper than the rays.
+     * 
+     * @param c0 the point of view in world coordinate
+     * @param zOrig the height of the eye
+     * @param maxDist the maximum distance of the objects
+     * @param objects the objects
+     * @param idField the attribute grouping the objects
+     * @param groupIds the groups of all the objects, even the ones out of maxDist (see {@link #getGroupIds})
+     * @param index the index of the objects, created with a default height of -1
+     * @param useViewShed can the viewshed replace the rays ?
+     */
+    void calc(Coordinate c0, double zOrig, double maxDist, List<? extends Feature> objects, String idField, Set groupIds, ObjectIndex index, boolean useViewShed) {
         SimpleComputeView compute = project.getSimpleComputeView();
-        double zOrig = project.getStartZ();
         GridCoordinates2D orig = compute.getData().getWorld2Grid(new DirectPosition2D(c0.getX(), c0.getY()));
+        // the distance in grid is greater than the distance in world by one pixel diagonal at most
+        Bounds distBounds = new Bounds();
+        distBounds.setDmax(maxDist + 2*compute.getData().getResolution());
+        int [] candidates = index.getCandidates(orig, distBounds);
+        ViewShedResult view = null;
+        if(useViewShed && index.isViewShedCheaper(orig, distBounds, candidates, true)) {
+            view = compute.calcViewShedDeg(new DirectPosition2D(c0.getX(), c0.getY()), zOrig, index.getZ(0), false, distBounds, false);
+        }
         
         Map<Feature, Double> angleHeight = new HashMap<>();
         TreeMapList<Double, Feature> angleHoriz = new TreeMapList<>();
-        Set groupIds = new HashSet();
         objectSeen = new ArrayList<>();
         List<String> attrNames = new ArrayList<>(objects.get(0).getAttributeNames());
         attrNames.add("zh");
-        for(Feature obj : objects) {
-            groupIds.add(obj.getAttribute(idField));
+        for(int ind : candidates) {
+            Feature obj = objects.get(ind);
             Coordinate c1 = obj.getGeometry().getCoordinate();
             double dist = c0.distance(c1);
             if(dist > maxDist) {
                 continue;
             }
-            double zDest = -1;
-            if(obj.getAttributeNames().contains("height")) {
-                zDest = ((Number)obj.getAttribute("height")).doubleValue();
-            }
-            GridCoordinates2D dest = compute.getData().getWorld2Grid(new DirectPosition2D(c1.getX(), c1.getY()));
-            double zh = compute.calcRay(orig, zOrig, dest, zDest, new Bounds(), false);
+            double zh = view != null ? index.getValue(view, ind) : compute.calcRay(orig, zOrig, index.getCoord(ind), index.getZ(ind), new Bounds(), false);
             if(zh == 0) {
                 continue;
             }
-            List attrs = obj.getAttributes();
+            List attrs = new ArrayList(obj.getAttributes());
             attrs.add(zh);
             objectSeen.add(new DefaultFeature(obj.getId(), obj.getGeometry(), attrNames, attrs));
             angleHeight.put(obj, zh);
             angleHoriz.putValue(Math.atan2(c1.y-c0.y, c1.x-c0.x), obj);
         }
-        groupIds.add(null);
+        // null for the free sector
+        List ids = new ArrayList(groupIds);
+        ids.add(null);
         sectors = new ArrayList<>();
         freeSector = null;
-        for(Object id : groupIds) {
+        for(Object id : ids) {
             double first = Double.NaN, prec = Double.NaN;
             double maxAngle = 0, hMax = 0;
             double aMin = Double.NaN, aMax = Double.NaN;
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2022 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thema.pixscape;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.locationtech.jts.geom.Coordinate;
+import org.thema.common.ProgressBar;
+import org.thema.data.IOFeature;
+import org.thema.data.feature.DefaultFeature;
+import org.thema.data.feature.Feature;
+import org.thema.parallel.AbstractParallelTask;
+
+/**
+ * Calculates the {@link Saturation} for many points of view (origins) and the same objects.
+ *
+ * The objects are indexed and their groups are collected once, for each origin only the objects within the maximum distance are tested,
+ * by rays or by the viewshed of the origin if it is cheaper.
+ * The result contains the free sector and the sectors of each group of objects for all the origins,
+ * in one layer with the attribute "type" equal to "free" or "group".
+ *
+ * @author gvuidel
+ */
+public class SaturationTask extends AbstractParallelTask<List<DefaultFeature>, Map<Integer, List<DefaultFeature>>> implements Serializable {
+
+    /** The attributes of the resulting sectors */
+    public static final List<String> ATTRS = Arrays.asList("origin", "type", "group", "nbobj", "zhmax", "amplitude", "aleft", "aright");
+
+    /** project file for loading project for MPI mode only */
+    private File prjFile;
+
+    private File originFile;
+    private String idOriginField;
+
+    private File objectFile;
+    private String groupField;
+
+    private double maxDist;
+
+    private transient Project project;
+    private transient List<? extends Feature> origins;
+    private transient List<? extends Feature> objects;
+    private transient ObjectIndex index;
+    private transient Set groupIds;
+
+    /** Results by first origin index */
+    private transient TreeMap<Integer, List<DefaultFeature>> result;
+
+    /**
+     * Creates a new saturation task.
+     * The height of the origins is given by their attribute "height" if it exists, the project default otherwise.
+     * @param originFile the point file of the origins
+     * @param idOriginField the identifier field of the origins
+     * @param objectFile the point file of the objects
+     * @param groupField the attribute grouping the objects
+     * @param maxDist the maximum distance of the objects
+     * @param project the project
+     * @param monitor the progress monitor
+     */
+    public SaturationTask(File originFile, String idOriginField, File objectFile, String groupField, double maxDist,
+            Project project, ProgressBar monitor) {
+        super(monitor);
+        this.project = project;
+        this.prjFile = project.getProjectFile();
+        this.originFile = originFile;
+        this.idOriginField = idOriginField;
+        this.objectFile = objectFile;
+        this.groupField = groupField;
+        this.maxDist = maxDist;
+    }
+
+    @Override
+    public void init() {
+        try {
+            origins = IOFeature.loadFeatures(originFile, idOriginField);
+            objects = IOFeature.loadFeatures(objectFile);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if(objects.isEmpty()) {
+            throw new IllegalArgumentException("No object in " + objectFile);
+        }
+        super.init();
+        // useful for MPI only, because project is not serializable
+        if(project == null) {
+            try {
+                project = Project.load(prjFile);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        } else {
+            result = new TreeMap<>();
+        }
+        index = new ObjectIndex(objects, -1, project.getSimpleComputeView().getData(), maxDist);
+        groupIds = Saturation.getGroupIds(objects, groupField);
+    }
+
+    @Override
+    public Map<Integer, List<DefaultFeature>> execute(int start, int end) {
+        List<DefaultFeature> sectors = new ArrayList<>();
+        for(Feature origin : origins.subList(start, end)) {
+            Coordinate c0 = origin.getGeometry().getCoordinate();
+            double zOrig = project.getStartZ();
+            if(origin.getAttributeNames().contains("height")) {
+                zOrig = ((Number)origin.getAttribute("height")).doubleValue();
+            }
+            Saturation saturation = new Saturation(project);
+            saturation.calc(c0, zOrig, maxDist, objects, groupField, groupIds, index, true);
+
+            double zhMax = 0;
+            for(DefaultFeature obj : saturation.getObjectSeen()) {
+                zhMax = Math.max(zhMax, ((Number)obj.getAttribute("zh")).doubleValue());
+            }
+            DefaultFeature free = saturation.getFreeSector();
+            sectors.add(new DefaultFeature(origin.getId() + "-free", free.getGeometry(), ATTRS,
+                    Arrays.asList(origin.getId().toString(), "free", "", saturation.getObjectSeen().size(), zhMax,
+                            ((Number)free.getAttribute("amplitude")).doubleValue(),
+                            ((Number)free.getAttribute("aleft")).doubleValue(), ((Number)free.getAttribute("aright")).doubleValue())));
+            for(DefaultFeature sector : saturation.getSectors()) {
+                sectors.add(new DefaultFeature(origin.getId() + "-" + sector.getId(), sector.getGeometry(), ATTRS,
+                        Arrays.asList(origin.getId().toString(), "group", sector.getId().toString(), sector.getAttribute("nbobj"),
+                                sector.getAttribute("zhmax"), sector.getAttribute("amplitude"),
+                                sector.getAttribute("aleft"), sector.getAttribute("aright"))));
+            }
+            incProgress(1);
+        }
+        TreeMap<Integer, List<DefaultFeature>> map = new TreeMap<>();
+        map.put(start, sectors);
+        return map;
+    }
+
+    @Override
+    public void gather(Map<Integer, List<DefaultFeature>> map) {
+        result.putAll(map);
+    }
+
+    @Override
+    public int getSplitRange() {
+        return origins.size();
+    }
+
+    /**
+     * @return the sectors of all the origins, in the order of the origins
+     */
+    @Override
+    public List<DefaultFeature> getResult() {
+        List<DefaultFeature> sectors = new ArrayList<>();
+        for(List<DefaultFeature> list : result.values()) {
+            sectors.addAll(list);
+        }
+        return sectors;
+    }
+
+    /**
+     * Saves the sectors of all the origins in a GeoPackage file.
+     * @param file the GeoPackage file
+     * @throws IOException
+     */
+    public void saveResult(File file) throws IOException {
+        IOFeature.saveFeatures(getResult(), file, project.getCRS());
+    }
+}
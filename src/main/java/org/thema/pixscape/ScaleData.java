@@ -24,11 +24,13 @@ import java.awt.Rectangle;
 import java.awt.color.ColorSpace;
 import org.locationtech.jts.geom.util.AffineTransformation;
 import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.util.SortedSet;
@@ -61,12 +63,17 @@ public final class ScaleData {
     private transient GridCoverage2D dtmCov;
     private transient RenderedImage dtm, land, dsm;
     private transient Raster dtmRaster, landRaster, dsmRaster;
+    private transient MappedRaster dtmMap, landMap, dsmMap;
     private transient Double maxZ;
+    private transient MaxZPyramid maxZPyramid;
     
     private transient GridGeometry2D gridGeom;
     
     private SortedSet<Integer> codes;
     
+    /** quantization of the elevations, zScale == 0 for float elevations */
+    private float zScale, dtmBase, dsmBase;
+    
 
     /**
      * Creates a new ScaleData.
@@ -81,6 +88,27 @@ public final class ScaleData {
      * @throws IllegalArgumentException if land has float number type or if values are outside of [0-255]
      */
     public ScaleData(GridCoverage2D dtmCov, RenderedImage land, RenderedImage dsm, double resZ) {
+        this(dtmCov, land, dsm, resZ, 0);
+    }
+    
+    /**
+     * Creates a new ScaleData with quantized elevations.
+     * If zPrec &gt; 0, the DTM and the DSM are stored in 16 bits with a precision of zPrec meter, 
+     * each one with its own offset (see {@link QuantizedSampleModel}), 
+     * so they use half the memory of float elevations.
+     * The unit of the coordinate system in dtmCov must be metric
+     * The coordinate system for the land and dsm is supposed to be the same
+     * The elevation resolution of the DSM must be metric.
+     * @param dtmCov the DTM coverage
+     * @param land the land use raster, may be null
+     * @param dsm the DSM raster or null
+     * @param resZ the elevation resolution in meter of the DTM
+     * @param zPrec the precision in meter of the quantized elevations, 0 for float elevations
+     * @throws IllegalArgumentException if land or dsm have not the same size than the dtmCov
+     * @throws IllegalArgumentException if land has float number type or if values are outside of [0-255]
+     * @throws IllegalArgumentException if the range of the elevations is greater than 65534 * zPrec
+     */
+    public ScaleData(GridCoverage2D dtmCov, RenderedImage land, RenderedImage dsm, double resZ, double zPrec) {
         double noData = Double.NaN;
         NoDataContainer noDataProp = CoverageUtilities.getNoDataProperty(dtmCov);
         if(noDataProp != null) {
@@ -88,7 +116,18 @@ public final class ScaleData {
         }
         
         RenderedImage img = dtmCov.getRenderedImage();
-        if(img.getSampleModel().getDataType() != DataBuffer.TYPE_FLOAT || resZ != 1 || !Double.isNaN(noData)) {
+        if(zPrec > 0) {
+            zScale = (float) zPrec;
+            WritableRaster dtmR = quantize(img, resZ, noData);
+            dtmBase = ((QuantizedSampleModel)dtmR.getSampleModel()).getBase();
+            WritableRaster dsmR = null;
+            if(dsm != null) {
+                dsmR = quantize(dsm, 1, Double.NaN);
+                dsmBase = ((QuantizedSampleModel)dsmR.getSampleModel()).getBase();
+            }
+            init(new GridCoverageFactory().create("", createQuantizedImage(dtmR), dtmCov.getEnvelope2D()), land, 
+                    dsmR != null ? createQuantizedImage(dsmR) : null);
+        } else if(img.getSampleModel().getDataType() != DataBuffer.TYPE_FLOAT || resZ != 1 || !Double.isNaN(noData)) {
             RandomIter r = RandomIterFactory.create(img, null);
             TiledImage dtmFloat = new TiledImage(0, 0, img.getWidth(), img.getHeight(), 0, 0, 
                         new BandedSampleModel(DataBuffer.TYPE_FLOAT, 1000, 1000, 1), 
@@ -134,7 +173,112 @@ public final class ScaleData {
         dtmRaster = data.getDtmRaster(rect);
         dsmRaster = data.getDsmRaster(rect);
         landRaster = data.getLandRaster(rect);
+        dtmMap = data.dtmMap;
+        dsmMap = data.dsmMap;
+        landMap = data.landMap;
         codes = data.getCodes();
+        zScale = data.zScale;
+        dtmBase = data.dtmBase;
+        dsmBase = data.dsmBase;
+    }
+    
+    /**
+     * Creates a scale data sharing the DTM of data with other land use and DSM rasters, used by {@link ScaleDataOverlay}.
+     * The rasters are not copied, they must have the same size and the same sample model than the rasters of data.
+     * The pyramid, if not null, must correspond to the DTM of data and to dsmRaster, it is not copied either.
+     * @param data the scale data containing the DTM
+     * @param landRaster the land use raster
+     * @param dsmRaster the DSM raster
+     * @param codes the land codes contained in landRaster
+     * @param maxZPyramid the pyramid of the maximum elevation or null
+     */
+    ScaleData(ScaleData data, WritableRaster landRaster, WritableRaster dsmRaster, SortedSet<Integer> codes, 
+            MaxZPyramid maxZPyramid) {
+        resolution = data.getResolution();
+        dtmCov = data.getDtmCov();
+        dtm = data.getDtm();
+        dtmRaster = data.dtmRaster;
+        gridGeom = data.gridGeom;
+        zScale = data.zScale;
+        dtmBase = data.dtmBase;
+        dsmBase = data.dsmBase;
+        this.landRaster = landRaster;
+        this.dsmRaster = dsmRaster;
+        land = createImage(landRaster);
+        dsm = createImage(dsmRaster);
+        this.codes = codes;
+        this.maxZPyramid = maxZPyramid;
+    }
+
+    /**
+     * Creates an image sharing the data of a raster.
+     * @param raster a raster with one band at (0,0), quantized or not
+     * @return the image of the raster
+     */
+    private static RenderedImage createImage(WritableRaster raster) {
+        if(raster.getSampleModel() instanceof QuantizedSampleModel) {
+            return createQuantizedImage(raster);
+        }
+        return new BufferedImage(new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, ColorModel.OPAQUE, raster.getSampleModel().getDataType()), raster, false, null);
+    }
+
+    /**
+     * Quantizes the first band of an image with the precision zScale
+     * @param img the elevation image
+     * @param resZ the elevation resolution in meter
+     * @param noData the no data value of the image or NaN
+     * @return a new raster with a {@link QuantizedSampleModel}
+     */
+    private WritableRaster quantize(RenderedImage img, double resZ, double noData) {
+        final RandomIter r = RandomIterFactory.create(img, null);
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for(int y = 0; y < img.getHeight(); y++) {
+            for(int x = 0; x < img.getWidth(); x++) {
+                final double val = r.getSampleDouble(x, y, 0);
+                if(val != noData && !Double.isNaN(val)) {
+                    min = Math.min(min, val * resZ);
+                    max = Math.max(max, val * resZ);
+                }
+            }
+        }
+        final QuantizedSampleModel sm = QuantizedSampleModel.create(img.getWidth(), img.getHeight(), min, max, zScale);
+        final WritableRaster raster = Raster.createWritableRaster(sm, null);
+        for(int y = 0; y < img.getHeight(); y++) {
+            for(int x = 0; x < img.getWidth(); x++) {
+                final double val = r.getSampleDouble(x, y, 0);
+                raster.setSample(x, y, 0, val == noData ? Double.NaN : val * resZ);
+            }
+        }
+        return raster;
+    }
+    
+    /**
+     * Returns the data of the image, the data is shared with the quantized images created by {@link #createQuantizedImage }.
+     * @param img the image
+     * @return the full raster of the image
+     */
+    private static Raster getFullRaster(RenderedImage img) {
+        if(img instanceof QuantizedImage && ((QuantizedImage)img).getSource() instanceof BufferedImage) {
+            QuantizedImage qImg = (QuantizedImage) img;
+            return QuantizedSampleModel.wrap(((BufferedImage)qImg.getSource()).getRaster(), qImg.getScale(), qImg.getBase());
+        }
+        return img.getData();
+    }
+    
+    /**
+     * Creates an image decoding a quantized raster.
+     * The raster data is shared with the image.
+     * @param raster a raster created by {@link #quantize }
+     * @return the image of the elevations
+     */
+    private static RenderedImage createQuantizedImage(WritableRaster raster) {
+        final QuantizedSampleModel sm = (QuantizedSampleModel) raster.getSampleModel();
+        final WritableRaster raw = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_SHORT, 
+                raster.getWidth(), raster.getHeight(), 1), raster.getDataBuffer(), null);
+        final BufferedImage rawImg = new BufferedImage(new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), 
+                false, false, ColorModel.OPAQUE, DataBuffer.TYPE_SHORT), raw, false, null);
+        return new QuantizedImage(rawImg, sm.getScale(), sm.getBase());
     }
     
     private void init(GridCoverage2D dtmCov, RenderedImage land, RenderedImage dsm) {
@@ -187,7 +331,7 @@ public final class ScaleData {
             if(dsm.getWidth() != r.getWidth() || dsm.getHeight() != r.getHeight()) {
                 throw new IllegalArgumentException("DSM raster size does not correspond to DTM raster size");
             }
-            if(dsm.getSampleModel().getDataType() != DataBuffer.TYPE_FLOAT) {
+            if(!isQuantized() && dsm.getSampleModel().getDataType() != DataBuffer.TYPE_FLOAT) {
                 RandomIter rDsm = RandomIterFactory.create(dsm, null);
                 this.dsm = new TiledImage(0, 0, dsm.getWidth(), dsm.getHeight(), 0, 0, 
                         new BandedSampleModel(DataBuffer.TYPE_FLOAT, 1000, 1000, 1), 
@@ -205,9 +349,9 @@ public final class ScaleData {
         
         this.dtm = dtmCov.getRenderedImage();
         if(isLoadable()) {
-            dtmRaster = this.dtm.getData();
+            dtmRaster = getFullRaster(this.dtm);
             if(this.dsm != null) {
-                dsmRaster = this.dsm.getData();
+                dsmRaster = getFullRaster(this.dsm);
             }
             if(this.land != null) {
                 landRaster = this.land.getData();
@@ -215,6 +359,20 @@ public final class ScaleData {
         }
     }
     
+    /**
+     * @return true if the DTM and the DSM are stored in 16 bits (see {@link #ScaleData(GridCoverage2D, RenderedImage, RenderedImage, double, double) })
+     */
+    public boolean isQuantized() {
+        return zScale > 0;
+    }
+
+    /**
+     * @return the precision in meter of the quantized elevations or 0 if the elevations are not quantized
+     */
+    public double getZPrecision() {
+        return zScale;
+    }
+
     /**
      * @return the 2D resolution of the data in meter ie. pixel size
      */
@@ -264,6 +422,8 @@ public final class ScaleData {
     public Raster getDtmRaster(Rectangle env) {
         if(dtmRaster != null) {
             return dtmRaster;
+        } else if(dtmMap != null) {
+            return dtmMap.getRaster(env);
         } else {
             return dtm.getData(env);
         }
@@ -280,6 +440,8 @@ public final class ScaleData {
         if(land != null) {
             if(landRaster != null) {
                 return landRaster;
+            } else if(landMap != null) {
+                return landMap.getRaster(env);
             } else {
                 return land.getData(env);
             }
@@ -299,6 +461,8 @@ public final class ScaleData {
         if(dsm != null) {
             if(dsmRaster != null) {
                 return dsmRaster;
+            } else if(dsmMap != null) {
+                return dsmMap.getRaster(env);
             } else {
                 return dsm.getData(env);
             }
@@ -307,6 +471,57 @@ public final class ScaleData {
         }
     }
 
+    /**
+     * @return true if the rasters are mapped in memory from flat files (see {@link #map(java.io.File) })
+     */
+    public boolean isMapped() {
+        return dtmMap != null;
+    }
+
+    /**
+     * @return the DTM mapped in memory or null if the data is not mapped
+     */
+    public MappedRaster getMappedDtm() {
+        return dtmMap;
+    }
+
+    /**
+     * @return the DSM mapped in memory or null if the data is not mapped or has no DSM
+     */
+    public MappedRaster getMappedDsm() {
+        return dsmMap;
+    }
+
+    /**
+     * @return the land use mapped in memory or null if the data is not mapped or has no land use
+     */
+    public MappedRaster getMappedLand() {
+        return landMap;
+    }
+
+    /**
+     * Maps the rasters in memory from flat files stored in a directory.
+     * The flat files (dtm-res.raw, dsm-res.raw and land-res.raw) are created from the rasters
+     * if they do not exist or if they are older than the tiff files of the directory.
+     * The mapped rasters do not use the java heap and are used when the data is not loadable.
+     * @param dir the directory containing the rasters of this scale data
+     * @throws IOException
+     */
+    public void map(File dir) throws IOException {
+        dtmMap = mapRaster(dir, "dtm", dtm, DataBuffer.TYPE_FLOAT);
+        dsmMap = dsm != null ? mapRaster(dir, "dsm", dsm, DataBuffer.TYPE_FLOAT) : null;
+        landMap = land != null ? mapRaster(dir, "land", land, DataBuffer.TYPE_BYTE) : null;
+    }
+    
+    private MappedRaster mapRaster(File dir, String name, RenderedImage img, int dataType) throws IOException {
+        File file = new File(dir, name + "-" + resolution + ".raw");
+        File tifFile = new File(dir, name + "-" + resolution + ".tif");
+        if(!MappedRaster.isUpToDate(file, tifFile, img.getWidth(), img.getHeight(), dataType)) {
+            MappedRaster.write(file, img, dataType);
+        }
+        return MappedRaster.map(file, img.getWidth(), img.getHeight(), dataType);
+    }
+    
     /**
      * @return the landuse codes contained in the landuse raster or null of no landuse raster
      */
@@ -385,6 +600,13 @@ public final class ScaleData {
             }
             return z;
         }
+        if(dtmMap != null) {
+            double z = dtmMap.getSampleDouble(x, y);
+            if(dsmMap != null) {
+                z += dsmMap.getSampleDouble(x, y);
+            }
+            return z;
+        }
         throw new UnsupportedOperationException();
     }
     
@@ -413,17 +635,32 @@ public final class ScaleData {
         return maxZ;
     }
     
+    /**
+     * Creates, if not already done, and returns the pyramid of the maximum full elevation.
+     * The DTM and the DSM are loaded in memory.
+     * @return the pyramid of the maximum full elevation of the map
+     */
+    public synchronized MaxZPyramid getMaxZPyramid() {
+        if(maxZPyramid == null) {
+            final Raster dtmR = getDtmRaster();
+            final Raster dsmR = getDsmRaster();
+            maxZPyramid = new MaxZPyramid(dtmR, dsmR);
+        }
+        return maxZPyramid;
+    }
+    
     /**
      * Check if DTM DSM and landuse can be loaded completely in memory
      * @return 
      */
     public boolean isLoadable() {
-        double coef = dsm == null ? 5 : 10;
+        double coef = isQuantized() ? (dsm == null ? 3 : 6) : (dsm == null ? 5 : 10);
         return Runtime.getRuntime().maxMemory() > coef*dtm.getWidth()*dtm.getHeight() && dtm.getWidth()*(long)dtm.getHeight() < Integer.MAX_VALUE;
     }
     
     /**
      * Loads the 1, 2 or 3 rasters from a directory.
+     * If the rasters are too large to be loaded in memory, they are mapped from flat files (see {@link #map(java.io.File) }).
      * @param dir the directory containing the rasters of this scale data
      * @throws IOException 
      */
@@ -444,14 +681,24 @@ public final class ScaleData {
             land = landCov.getRenderedImage();
         }
         
+        if(isQuantized()) {
+            dtm = new QuantizedImage(dtm, zScale, dtmBase);
+            dtmCov = new GridCoverageFactory().create("", dtm, dtmCov.getEnvelope2D());
+            if(dsm != null) {
+                dsm = new QuantizedImage(dsm, zScale, dsmBase);
+            }
+        }
+        
         if(isLoadable()) {
-            dtmRaster = dtm.getData();
+            dtmRaster = getFullRaster(dtm);
             if(this.dsm != null) {
-                dsmRaster = dsm.getData();
+                dsmRaster = getFullRaster(dsm);
             }
             if(this.land != null) {
                 landRaster = land.getData();
             }
+        } else {
+            map(dir);
         }
         
     }
@@ -462,9 +709,12 @@ public final class ScaleData {
      * @throws IOException 
      */
     void save(File dir) throws IOException {
-        IOImage.saveTiffCoverage(new File(dir, "dtm-" + getResolution() + ".tif"), dtmCov);
+        // quantized elevations are saved in raw short values
+        IOImage.saveTiffCoverage(new File(dir, "dtm-" + getResolution() + ".tif"), isQuantized() ? 
+                new GridCoverageFactory().create("", ((QuantizedImage)dtm).getSource(), dtmCov.getEnvelope2D()) : dtmCov);
         if(dsm != null) {
-            GridCoverage2D dsmCov = new GridCoverageFactory().create("", dsm, dtmCov.getEnvelope2D());
+            GridCoverage2D dsmCov = new GridCoverageFactory().create("", isQuantized() ? ((QuantizedImage)dsm).getSource() : dsm, 
+                    dtmCov.getEnvelope2D());
             IOImage.saveTiffCoverage(new File(dir, "dsm-" + getResolution() + ".tif"), dsmCov);
         }
         if(hasLandUse()) {
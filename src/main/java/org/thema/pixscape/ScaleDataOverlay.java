@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.SortedSet;
+
+/**
+ * Modifiable land use and DSM over a base {@link ScaleData}, for calculating many scenarios of land modification.
+ *
+ * The overlay holds one copy of the land use and the DSM of the base, the DTM is shared.
+ * The modifications of a scenario are written in the copies with {@link #set },
+ * the scale data of the scenario is created with {@link #createScaleData },
+ * then {@link #reset } restores the modified pixels from the base for the next scenario.
+ * The pyramid of the maximum elevation is also kept by the overlay, it is updated on the bounding box of the modified pixels only.
+ * So the rasters are copied once for all the scenarios and each scenario costs only its modified pixels.
+ * The ray kernels need the full rasters in memory, the base must be loaded in memory (not mapped).
+ * An overlay must be used by one thread at a time.
+ *
+ * @author Gilles Vuidel
+ */
+final class ScaleDataOverlay {
+
+    private final ScaleData base;
+    private final Raster baseLand, baseDsm;
+    private final WritableRaster land, dsm;
+    private final MaxZPyramid pyramid;
+    /** The bounding box of the pixels modified or restored since the last update of the pyramid, or null */
+    private Rectangle dirty;
+
+    /** The modified pixels, x at 2*i and y at 2*i+1 */
+    private int[] modified;
+    private int nbModified;
+
+    /**
+     * Creates an overlay and copies the land use and the DSM of the base.
+     * @param base the base scale data
+     * @throws IllegalArgumentException if the base is not supported (see {@link #isSupported })
+     */
+    ScaleDataOverlay(ScaleData base) {
+        if(!isSupported(base)) {
+            throw new IllegalArgumentException("The data must contain land use and DSM and be loaded in memory");
+        }
+        this.base = base;
+        baseLand = base.getLandRaster();
+        baseDsm = base.getDsmRaster();
+        land = copy(baseLand);
+        dsm = copy(baseDsm);
+        pyramid = new MaxZPyramid(base.getDtmRaster(), dsm);
+        modified = new int[1024];
+    }
+
+    /**
+     * @param data a scale data
+     * @return true if an overlay can be created on data : it contains land use and DSM, they are loaded in memory
+     */
+    static boolean isSupported(ScaleData data) {
+        return data.hasLandUse() && data.getDsm() != null && !data.isMapped() && data.isLoadable();
+    }
+
+    /**
+     * Sets the land code and the DSM height of a pixel.
+     * @param x x in grid coordinate
+     * @param y y in grid coordinate
+     * @param code the new land code
+     * @param z the new DSM height
+     * @throws IllegalArgumentException if z is outside of the range of the quantized DSM, the pixel is not modified
+     */
+    void set(int x, int y, int code, double z) {
+        if(2*nbModified+2 > modified.length) {
+            modified = Arrays.copyOf(modified, 2*modified.length);
+        }
+        dsm.setSample(x, y, 0, z);
+        land.setSample(x, y, 0, code);
+        updatePixel(x, y);
+        modified[2*nbModified] = x;
+        modified[2*nbModified+1] = y;
+        nbModified++;
+    }
+
+    /**
+     * Creates the scale data of the current scenario.
+     * The scale data shares the rasters and the pyramid of the overlay, 
+     * it is no longer valid after {@link #reset }.
+     * @param codes the land codes of the scenario
+     * @return the scale data with the modified land use and DSM
+     */
+    ScaleData createScaleData(SortedSet<Integer> codes) {
+        if(dirty != null) {
+            pyramid.update(base.getDtmRaster(), dsm, dirty);
+            dirty = null;
+        }
+        return new ScaleData(base, land, dsm, codes, pyramid);
+    }
+
+    /**
+     * Restores the pixels modified since the last reset from the base.
+     */
+    void reset() {
+        Object landPix = null, dsmPix = null;
+        for(int i = 0; i < nbModified; i++) {
+            final int x = modified[2*i];
+            final int y = modified[2*i+1];
+            landPix = baseLand.getDataElements(x, y, landPix);
+            land.setDataElements(x, y, landPix);
+            dsmPix = baseDsm.getDataElements(x, y, dsmPix);
+            dsm.setDataElements(x, y, dsmPix);
+            updatePixel(x, y);
+        }
+        nbModified = 0;
+    }
+
+    /**
+     * Adds the pixel to the area of the pyramid to update.
+     */
+    private void updatePixel(int x, int y) {
+        if(dirty == null) {
+            dirty = new Rectangle(x, y, 1, 1);
+        } else {
+            dirty.add(new Rectangle(x, y, 1, 1));
+        }
+    }
+
+    private static WritableRaster copy(Raster r) {
+        final WritableRaster copy = r.createCompatibleWritableRaster();
+        copy.setDataElements(0, 0, r);
+        return copy;
+    }
+}
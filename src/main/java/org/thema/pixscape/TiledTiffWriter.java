@@ -0,0 +1,785 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+
+/**
+ * Single band GeoTIFF writer, internally tiled and deflate compressed, fed by blocks of any size.
+ *
+ * The blocks given to {@link #write(java.awt.image.Raster) } are queued and processed by a background thread :
+ * their samples are copied in the TIFF tiles and each TIFF tile is compressed and appended to the file
+ * as soon as all its pixels have been received. So, each pixel must be written only once.
+ * The calling thread waits only when the queued blocks exceed {@link #MAX_PENDING} bytes.
+ * When the blocks are aligned on the TIFF tiles, each tile is written as soon as its block is received.
+ * Otherwise, the tiles not complete are kept in memory up to {@link #MAX_PARTIAL} bytes,
+ * the least recently used ones beyond are moved to a temporary file next to the image until their next block.
+ * When the writer is closed, the tiles not complete are written with no data,
+ * the overviews are calculated from the tiles written, if they are enabled, and the directories are written at the end of the file.
+ * The file is a BigTIFF if it exceeds 4 GB.
+ *
+ * @author Gilles Vuidel
+ */
+public final class TiledTiffWriter implements Closeable {
+
+    /** Default size of the TIFF tiles in pixels */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /** Maximum size in bytes of the blocks waiting in the queue */
+    public static final int MAX_PENDING = 64 << 20;
+
+    /** Maximum size in bytes of the tiles not complete kept in memory */
+    public static final int MAX_PARTIAL = 64 << 20;
+
+    private static final int HEADER_SIZE = 16;
+
+    // TIFF field types
+    private static final short ASCII = 2;
+    private static final short SHORT = 3;
+    private static final short LONG = 4;
+    private static final short DOUBLE = 12;
+    private static final short LONG8 = 16;
+
+    private final File file;
+    private final int width, height;
+    private final int tileSize;
+    private final int dataType;
+    private final int sampleSize;
+    private final boolean overviews;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long position = HEADER_SIZE;
+    private final Deflater deflater = new Deflater();
+
+    private final ExecutorService executor;
+    private final Semaphore pending = new Semaphore(MAX_PENDING >> 10);
+    private volatile IOException error;
+    private boolean closed;
+
+    /** tiles of the full resolution not yet complete */
+    private final Map<Integer, Tile> partialTiles = new HashMap<>();
+    /** tiles not complete kept in memory, in access order */
+    private final LinkedHashMap<Integer, Tile> loadedTiles = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxLoadedTiles;
+    private volatile int peakLoadedTiles;
+    /** temporary file for the tiles not complete which are not kept in memory */
+    private File spillFile;
+    private RandomAccessFile spillRaf;
+    /** for each level, width and height in pixels, and offsets and sizes of the tiles */
+    private final List<int[]> levelSizes = new ArrayList<>();
+    private final List<long[]> tileOffsets = new ArrayList<>();
+    private final List<long[]> tileCounts = new ArrayList<>();
+
+    // georeference
+    private double[] pixelScale, tiePoint;
+    private short[] geoKeys;
+
+    /**
+     * Creates a new writer with tiles of {@link #DEFAULT_TILE_SIZE} pixels.
+     * @param file the file to create
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param dataType the type of the samples : DataBuffer.TYPE_FLOAT, TYPE_DOUBLE or TYPE_INT
+     * @param overviews if true, the overviews are added when the writer is closed
+     * @throws IOException if the file cannot be created
+     */
+    public TiledTiffWriter(File file, int width, int height, int dataType, boolean overviews) throws IOException {
+        this(file, width, height, dataType, overviews, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Creates a new writer.
+     * @param file the file to create
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param dataType the type of the samples : DataBuffer.TYPE_FLOAT, TYPE_DOUBLE or TYPE_INT
+     * @param overviews if true, the overviews are added when the writer is closed
+     * @param tileSize the size of the TIFF tiles, must be a multiple of 16
+     * @throws IOException if the file cannot be created
+     * @throws IllegalArgumentException if the data type or the tile size is not supported
+     */
+    public TiledTiffWriter(File file, int width, int height, int dataType, boolean overviews, int tileSize) throws IOException {
+        if(dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_DOUBLE && dataType != DataBuffer.TYPE_INT) {
+            throw new IllegalArgumentException("Unsupported data type : " + dataType);
+        }
+        if(tileSize <= 0 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("The tile size must be a multiple of 16");
+        }
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.dataType = dataType;
+        this.sampleSize = DataBuffer.getDataTypeSize(dataType) / 8;
+        this.overviews = overviews;
+        this.tileSize = tileSize;
+        this.maxLoadedTiles = Math.max(1, MAX_PARTIAL / (tileSize*tileSize*sampleSize));
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        addLevel(width, height);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TiffWriter-" + TiledTiffWriter.this.file.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the file written
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the maximum number of tiles not complete kept in memory.
+     * Must be called before the first block.
+     * @param max the maximum number of tiles, at least 1
+     */
+    void setMaxLoadedTiles(int max) {
+        if(max < 1) {
+            throw new IllegalArgumentException("At least one tile must be kept in memory");
+        }
+        this.maxLoadedTiles = max;
+    }
+
+    /**
+     * Must be called after {@link #close() } to be exact.
+     * @return the maximum number of tiles not complete which have been kept in memory at the same time
+     */
+    int getPeakLoadedTiles() {
+        return peakLoadedTiles;
+    }
+
+    /**
+     * Sets the georeference of the image.
+     * The CRS is written only if it has an EPSG code.
+     * @param env the envelope of the image with its CRS, the CRS may be null
+     */
+    public void setGeoreference(Envelope2D env) {
+        pixelScale = new double[] {env.getWidth() / width, env.getHeight() / height, 0};
+        tiePoint = new double[] {0, 0, 0, env.getMinX(), env.getMaxY(), 0};
+        final CoordinateReferenceSystem crs = env.getCoordinateReferenceSystem();
+        Integer epsg = null;
+        if(crs != null) {
+            try {
+                epsg = CRS.lookupEpsgCode(crs, false);
+            } catch (FactoryException ex) {
+                Logger.getLogger(TiledTiffWriter.class.getName()).log(Level.WARNING, null, ex);
+            }
+            if(epsg == null) {
+                Logger.getLogger(TiledTiffWriter.class.getName()).warning("No EPSG code for the CRS, the CRS is not written in " + file.getName());
+            }
+        }
+        final boolean geographic = crs instanceof GeographicCRS;
+        if(epsg == null) {
+            // GTModelTypeGeoKey, GTRasterTypeGeoKey = PixelIsArea
+            geoKeys = new short[] {1, 1, 0, 2, 1024, 0, 1, (short)(geographic ? 2 : 1), 1025, 0, 1, 1};
+        } else {
+            geoKeys = new short[] {1, 1, 0, 3, 1024, 0, 1, (short)(geographic ? 2 : 1), 1025, 0, 1, 1,
+                (short)(geographic ? 2048 : 3072), 0, 1, epsg.shortValue()};
+        }
+    }
+
+    /**
+     * Queues a block of the image for writing.
+     * The raster must not be modified after this call.
+     * The block is clipped to the image, its samples are read from the band 0.
+     * @param r the block in image coordinates
+     * @throws IOException if an error occurred in the background writing
+     * @throws IllegalStateException if the writer is closed
+     */
+    public void write(final Raster r) throws IOException {
+        if(closed) {
+            throw new IllegalStateException("The writer is closed");
+        }
+        checkError();
+        // permits in KB
+        final int permits = (int) Math.min(MAX_PENDING >> 10, Math.max(1, (long)r.getWidth() * r.getHeight() * sampleSize >> 10));
+        pending.acquireUninterruptibly(permits);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(error == null) {
+                        addBlock(r);
+                    }
+                } catch (IOException ex) {
+                    error = ex;
+                } finally {
+                    pending.release(permits);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the blocks in the queue, writes the tiles not complete, the overviews and the directories, and closes the file.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(error == null) {
+                        finish();
+                    }
+                } catch (IOException ex) {
+                    error = ex;
+                }
+            }
+        });
+        executor.shutdown();
+        try {
+            while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                Logger.getLogger(TiledTiffWriter.class.getName()).info("Waiting for writing " + file.getName());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + file, ex);
+        } finally {
+            deflater.end();
+            raf.close();
+            if(spillRaf != null) {
+                spillRaf.close();
+                spillFile.delete();
+            }
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        if(error != null) {
+            throw new IOException("Error while writing " + file, error);
+        }
+    }
+
+    private void addLevel(int w, int h) {
+        final int n = nbTileX(w) * nbTileY(h);
+        levelSizes.add(new int[] {w, h});
+        tileOffsets.add(new long[n]);
+        tileCounts.add(new long[n]);
+    }
+
+    private int nbTileX(int w) {
+        return (w-1) / tileSize + 1;
+    }
+
+    private int nbTileY(int h) {
+        return (h-1) / tileSize + 1;
+    }
+
+    /**
+     * Copies the block in the tiles and writes the complete tiles.
+     * Called by the background thread only.
+     */
+    private void addBlock(Raster r) throws IOException {
+        final Rectangle rect = r.getBounds().intersection(new Rectangle(width, height));
+        if(rect.isEmpty()) {
+            return;
+        }
+        final int nx = nbTileX(width);
+        for(int ty = rect.y / tileSize; ty <= (rect.y+rect.height-1) / tileSize; ty++) {
+            for(int tx = rect.x / tileSize; tx <= (rect.x+rect.width-1) / tileSize; tx++) {
+                final int ind = tx + ty*nx;
+                final Rectangle tileRect = new Rectangle(tx*tileSize, ty*tileSize, tileSize, tileSize).intersection(new Rectangle(width, height));
+                final Rectangle inter = tileRect.intersection(rect);
+                final Tile tile = loadTile(ind, tileRect.width * tileRect.height);
+                final double[] samples = r.getSamples(inter.x, inter.y, inter.width, inter.height, 0, (double[])null);
+                int k = 0;
+                for(int y = inter.y; y < inter.y+inter.height; y++) {
+                    final int row = (y - ty*tileSize) * tileSize - tx*tileSize;
+                    for(int x = inter.x; x < inter.x+inter.width; x++) {
+                        putSample(tile.data, row + x, samples[k++]);
+                    }
+                }
+                tile.nbPixel -= inter.width * inter.height;
+                if(tile.nbPixel <= 0) {
+                    writeTile(0, ind, tile.data);
+                    partialTiles.remove(ind);
+                    loadedTiles.remove(ind);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the tile in memory, creating it or reading it from the temporary file if needed.
+     * The least recently used tiles are moved to the temporary file to keep at most maxLoadedTiles in memory.
+     * Called by the background thread only.
+     * @param ind the index of the tile
+     * @param nbPixel the number of pixels of the image in the tile
+     */
+    private Tile loadTile(int ind, int nbPixel) throws IOException {
+        Tile tile = loadedTiles.get(ind);
+        if(tile != null) {
+            return tile;
+        }
+        while(loadedTiles.size() >= maxLoadedTiles) {
+            final Iterator<Map.Entry<Integer, Tile>> it = loadedTiles.entrySet().iterator();
+            final Map.Entry<Integer, Tile> eldest = it.next();
+            it.remove();
+            spillTile(eldest.getKey(), eldest.getValue());
+        }
+        tile = partialTiles.get(ind);
+        if(tile == null) {
+            tile = new Tile(nbPixel);
+            partialTiles.put(ind, tile);
+        } else {
+            tile.data = readSpilledTile(ind);
+        }
+        loadedTiles.put(ind, tile);
+        peakLoadedTiles = Math.max(peakLoadedTiles, loadedTiles.size());
+        return tile;
+    }
+
+    private void spillTile(int ind, Tile tile) throws IOException {
+        if(spillRaf == null) {
+            spillFile = new File(file.getPath() + ".part");
+            spillRaf = new RandomAccessFile(spillFile, "rw");
+            spillRaf.setLength(0);
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(tile.data.array());
+        long pos = (long)ind * buf.capacity();
+        while(buf.hasRemaining()) {
+            pos += spillRaf.getChannel().write(buf, pos);
+        }
+        tile.data = null;
+    }
+
+    private ByteBuffer readSpilledTile(int ind) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(tileSize*tileSize*sampleSize);
+        long pos = (long)ind * buf.capacity();
+        while(buf.hasRemaining()) {
+            final int n = spillRaf.getChannel().read(buf, pos);
+            if(n < 0) {
+                throw new IOException("Unexpected end of file " + spillFile);
+            }
+            pos += n;
+        }
+        return buf.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the remaining tiles, the overviews, the directories and the header.
+     * Called by the background thread only.
+     */
+    private void finish() throws IOException {
+        for(Integer ind : partialTiles.keySet()) {
+            final Tile tile = partialTiles.get(ind);
+            writeTile(0, ind, tile.data != null ? tile.data : readSpilledTile(ind));
+        }
+        partialTiles.clear();
+        loadedTiles.clear();
+        // the missing tiles share the same empty tile
+        long[] offsets = tileOffsets.get(0);
+        long[] counts = tileCounts.get(0);
+        long emptyOffset = -1, emptyCount = 0;
+        for(int i = 0; i < offsets.length; i++) {
+            if(counts[i] == 0) {
+                if(emptyOffset == -1) {
+                    writeTile(0, i, newTileBuffer());
+                    emptyOffset = offsets[i];
+                    emptyCount = counts[i];
+                } else {
+                    offsets[i] = emptyOffset;
+                    counts[i] = emptyCount;
+                }
+            }
+        }
+
+        if(overviews) {
+            int w = width, h = height;
+            while(w > tileSize || h > tileSize) {
+                w = (w+1) / 2;
+                h = (h+1) / 2;
+                addLevel(w, h);
+                writeOverview(levelSizes.size()-1);
+            }
+        }
+
+        long total = position;
+        for(long[] o : tileOffsets) {
+            total += o.length * 16L + 1024;
+        }
+        final boolean big = total > 0xffffffffL;
+        // the directories are written from the last level, so each one knows the position of the next one
+        long ifd = 0;
+        for(int l = levelSizes.size()-1; l >= 0; l--) {
+            ifd = writeIFD(l, big, ifd);
+        }
+        writeHeader(ifd, big);
+        channel.force(false);
+        Logger.getLogger(TiledTiffWriter.class.getName()).fine(file.getName() + " : " + position + " bytes - " + levelSizes.size() + " levels");
+    }
+
+    private void writeOverview(int level) throws IOException {
+        final int[] size = levelSizes.get(level);
+        final int[] prevSize = levelSizes.get(level-1);
+        final int nx = nbTileX(size[0]);
+        final int pnx = nbTileX(prevSize[0]);
+        final int pny = nbTileY(prevSize[1]);
+        final double[] sum = new double[tileSize*tileSize];
+        final int[] nb = new int[tileSize*tileSize];
+        for(int ty = 0; ty < nbTileY(size[1]); ty++) {
+            for(int tx = 0; tx < nx; tx++) {
+                Arrays.fill(sum, 0);
+                Arrays.fill(nb, 0);
+                for(int j = 0; j < 2; j++) {
+                    for(int i = 0; i < 2; i++) {
+                        final int ptx = 2*tx+i, pty = 2*ty+j;
+                        if(ptx >= pnx || pty >= pny) {
+                            continue;
+                        }
+                        final ByteBuffer child = readTile(level-1, ptx + pty*pnx);
+                        // pixels of the child tile inside the previous level
+                        final int cw = Math.min(tileSize, prevSize[0] - ptx*tileSize);
+                        final int ch = Math.min(tileSize, prevSize[1] - pty*tileSize);
+                        for(int y = 0; y < ch; y++) {
+                            final int row = ((j*tileSize + y) / 2) * tileSize;
+                            for(int x = 0; x < cw; x++) {
+                                final double v = getSample(child, y*tileSize + x);
+                                if(!Double.isNaN(v)) {
+                                    final int ind = row + (i*tileSize + x) / 2;
+                                    sum[ind] += v;
+                                    nb[ind]++;
+                                }
+                            }
+                        }
+                    }
+                }
+                final ByteBuffer data = newTileBuffer();
+                for(int i = 0; i < sum.length; i++) {
+                    if(nb[i] > 0) {
+                        putSample(data, i, sum[i] / nb[i]);
+                    }
+                }
+                writeTile(level, tx + ty*nx, data);
+            }
+        }
+    }
+
+    private ByteBuffer newTileBuffer() {
+        final ByteBuffer data = ByteBuffer.allocate(tileSize*tileSize*sampleSize).order(ByteOrder.LITTLE_ENDIAN);
+        if(dataType != DataBuffer.TYPE_INT) {
+            for(int i = 0; i < tileSize*tileSize; i++) {
+                putSample(data, i, Double.NaN);
+            }
+        }
+        return data;
+    }
+
+    private void putSample(ByteBuffer data, int ind, double v) {
+        switch(dataType) {
+            case DataBuffer.TYPE_FLOAT:
+                data.putFloat(ind*4, (float) v);
+                break;
+            case DataBuffer.TYPE_DOUBLE:
+                data.putDouble(ind*8, v);
+                break;
+            default:
+                data.putInt(ind*4, (int) Math.round(v));
+        }
+    }
+
+    private double getSample(ByteBuffer data, int ind) {
+        switch(dataType) {
+            case DataBuffer.TYPE_FLOAT:
+                return data.getFloat(ind*4);
+            case DataBuffer.TYPE_DOUBLE:
+                return data.getDouble(ind*8);
+            default:
+                return data.getInt(ind*4);
+        }
+    }
+
+    private void writeTile(int level, int ind, ByteBuffer data) throws IOException {
+        deflater.reset();
+        deflater.setInput(data.array());
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.capacity() / 4);
+        final byte[] buf = new byte[65536];
+        while(!deflater.finished()) {
+            final int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        tileOffsets.get(level)[ind] = position;
+        tileCounts.get(level)[ind] = out.size();
+        writeBytes(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private ByteBuffer readTile(int level, int ind) throws IOException {
+        final ByteBuffer compressed = ByteBuffer.allocate((int) tileCounts.get(level)[ind]);
+        long pos = tileOffsets.get(level)[ind];
+        while(compressed.hasRemaining()) {
+            final int n = channel.read(compressed, pos);
+            if(n < 0) {
+                throw new IOException("Unexpected end of file " + file);
+            }
+            pos += n;
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            final byte[] data = new byte[tileSize*tileSize*sampleSize];
+            int off = 0;
+            while(off < data.length && !inflater.finished()) {
+                final int n = inflater.inflate(data, off, data.length-off);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated or corrupted tile " + ind + " at level " + level + " in " + file);
+                }
+                off += n;
+            }
+            if(off < data.length) {
+                throw new IOException("Incomplete tile " + ind + " at level " + level + " in " + file);
+            }
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void writeBytes(ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * Aligns the position on a word boundary
+     * @return the new position
+     */
+    private long align() throws IOException {
+        if(position % 2 != 0) {
+            writeBytes(ByteBuffer.wrap(new byte[1]));
+        }
+        return position;
+    }
+
+    private void writeHeader(long firstIFD, boolean big) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte)'I').put((byte)'I');
+        if(big) {
+            buf.putShort((short)43).putShort((short)8).putShort((short)0).putLong(firstIFD);
+        } else {
+            buf.putShort((short)42).putInt((int) firstIFD);
+        }
+        buf.rewind();
+        int pos = 0;
+        while(buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    /**
+     * Writes the directory of a level with its values, at the end of the file.
+     * @param level the level
+     * @param big true for BigTIFF format
+     * @param nextIFD the position of the next directory, 0 for the last
+     * @return the position of the directory
+     */
+    private long writeIFD(int level, boolean big, long nextIFD) throws IOException {
+        final int[] size = levelSizes.get(level);
+        final List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(254, LONG, new long[] {level > 0 ? 1 : 0}));
+        entries.add(new Entry(256, LONG, new long[] {size[0]}));
+        entries.add(new Entry(257, LONG, new long[] {size[1]}));
+        entries.add(new Entry(258, SHORT, new long[] {sampleSize*8}));
+        entries.add(new Entry(259, SHORT, new long[] {8}));
+        entries.add(new Entry(262, SHORT, new long[] {1}));
+        entries.add(new Entry(277, SHORT, new long[] {1}));
+        entries.add(new Entry(284, SHORT, new long[] {1}));
+        entries.add(new Entry(322, LONG, new long[] {tileSize}));
+        entries.add(new Entry(323, LONG, new long[] {tileSize}));
+        entries.add(new Entry(324, big ? LONG8 : LONG, tileOffsets.get(level)));
+        entries.add(new Entry(325, LONG, tileCounts.get(level)));
+        entries.add(new Entry(339, SHORT, new long[] {dataType == DataBuffer.TYPE_INT ? 2 : 3}));
+        if(level == 0 && pixelScale != null) {
+            entries.add(new Entry(33550, pixelScale));
+            entries.add(new Entry(33922, tiePoint));
+            final long[] keys = new long[geoKeys.length];
+            for(int i = 0; i < keys.length; i++) {
+                keys[i] = geoKeys[i] & 0xffff;
+            }
+            entries.add(new Entry(34735, SHORT, keys));
+        }
+        if(dataType != DataBuffer.TYPE_INT) {
+            entries.add(new Entry(42113, "nan"));
+        }
+
+        // values not fitting in the entries are written before the directory
+        final int inline = big ? 8 : 4;
+        final long[] valuePos = new long[entries.size()];
+        for(int i = 0; i < entries.size(); i++) {
+            final ByteBuffer value = entries.get(i).getValue();
+            if(value.capacity() > inline) {
+                valuePos[i] = align();
+                writeBytes(value);
+            }
+        }
+        final long ifdPos = align();
+        final int ifdSize = big ? 8 + entries.size()*20 + 8 : 2 + entries.size()*12 + 4;
+        final ByteBuffer buf = ByteBuffer.allocate(ifdSize).order(ByteOrder.LITTLE_ENDIAN);
+        if(big) {
+            buf.putLong(entries.size());
+        } else {
+            buf.putShort((short) entries.size());
+        }
+        for(int i = 0; i < entries.size(); i++) {
+            final Entry e = entries.get(i);
+            final ByteBuffer value = e.getValue();
+            buf.putShort((short) e.tag).putShort(e.type);
+            if(big) {
+                buf.putLong(e.count);
+            } else {
+                buf.putInt((int) e.count);
+            }
+            final int start = buf.position();
+            if(value.capacity() > inline) {
+                if(big) {
+                    buf.putLong(valuePos[i]);
+                } else {
+                    buf.putInt((int) valuePos[i]);
+                }
+            } else {
+                value.rewind();
+                buf.put(value);
+            }
+            buf.position(start + inline);
+        }
+        if(big) {
+            buf.putLong(nextIFD);
+        } else {
+            buf.putInt((int) nextIFD);
+        }
+        buf.rewind();
+        writeBytes(buf);
+        return ifdPos;
+    }
+
+    /**
+     * A TIFF directory entry with its values.
+     */
+    private static final class Entry {
+        private final int tag;
+        private final short type;
+        private final long count;
+        private final ByteBuffer value;
+
+        private Entry(int tag, short type, long[] values) {
+            this.tag = tag;
+            this.type = type;
+            this.count = values.length;
+            final int size = type == SHORT ? 2 : type == LONG ? 4 : 8;
+            value = ByteBuffer.allocate(values.length * size).order(ByteOrder.LITTLE_ENDIAN);
+            for(long v : values) {
+                if(type == SHORT) {
+                    value.putShort((short) v);
+                } else if(type == LONG) {
+                    value.putInt((int) v);
+                } else {
+                    value.putLong(v);
+                }
+            }
+        }
+
+        private Entry(int tag, double[] values) {
+            this.tag = tag;
+            this.type = DOUBLE;
+            this.count = values.length;
+            value = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+            for(double v : values) {
+                value.putDouble(v);
+            }
+        }
+
+        private Entry(int tag, String s) {
+            this.tag = tag;
+            this.type = ASCII;
+            final byte[] bytes = (s + "\0").getBytes(StandardCharsets.US_ASCII);
+            this.count = bytes.length;
+            value = ByteBuffer.wrap(bytes);
+        }
+
+        private ByteBuffer getValue() {
+            value.rewind();
+            return value;
+        }
+    }
+
+    /**
+     * A tile of the full resolution being filled.
+     */
+    private final class Tile {
+        /** the samples, null if the tile is in the temporary file */
+        private ByteBuffer data;
+        /** number of pixels of the image not yet received */
+        private int nbPixel;
+
+        private Tile(int nbPixel) {
+            this.data = newTileBuffer();
+            this.nbPixel = nbPixel;
+        }
+    }
+}
@@ -75,6 +75,40 @@ public abstract class AbstractDistMetric extends AbstractMetric {
      */
     protected abstract double calcMetric(ViewResult result, double dmin, double dmax);
     
+    /**
+     * Same as {@link #calcMetric(org.thema.pixscape.view.ViewResult) } from the statistics of a viewshed scan.
+     * Calls {@link #calcMetric(org.thema.pixscape.metric.ViewShedScan, double, double) } for each distance range.
+     * @param scan the viewshed scan
+     * @return the result of the metric for each distance range
+     */
+    protected Double [] calcMetric(ViewShedScan scan) {
+        if(distances.isEmpty()) {
+            return new Double[] {calcMetric(scan, 0, Double.POSITIVE_INFINITY)};
+        }
+        List<Double> results = new ArrayList<>(distances.size());
+        Iterator<Double> it = distances.iterator();
+        double d1 = it.next();
+        while(it.hasNext()) {
+            double d2 = it.next();
+            results.add(calcMetric(scan, d1, d2));
+            d1 = d2;
+        }
+        return results.toArray(new Double[results.size()]);
+    }
+    
+    /**
+     * Calculates the metric for the given distance range [dmin-dmax[ from the statistics of a viewshed scan.
+     * Must be overriden by the metrics implementing {@link ScanViewShedMetric}.
+     * @param scan the viewshed scan
+     * @param dmin the min distance inclusive
+     * @param dmax the max distance exclusive
+     * @return the result of the metric for the given distance range
+     * @throws UnsupportedOperationException by default
+     */
+    protected double calcMetric(ViewShedScan scan, double dmin, double dmax) {
+        throw new UnsupportedOperationException("Viewshed scan is not supported for metric : " + this);
+    }
+    
     /**
      * The set can be empty if no range is defined.
      * 
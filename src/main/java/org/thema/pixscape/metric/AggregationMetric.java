@@ -25,7 +25,7 @@ import org.thema.pixscape.view.ViewTanResult;
  *
  * @author gvuidel
  */
-public class AggregationMetric extends AbstractMetric implements ViewShedMetric, ViewTanMetric {
+public class AggregationMetric extends AbstractMetric implements ScanViewShedMetric, ViewTanMetric {
 
     public AggregationMetric() {
         super(true);
@@ -41,6 +41,21 @@ public class AggregationMetric extends AbstractMetric implements ViewShedMetric,
         return new Double[] {calcAgg(result, result.isView360())};
     }
     
+    @Override
+    public void prepareScan(ViewShedScan scan) {
+        scan.requireAdjacency();
+    }
+
+    @Override
+    public Double[] calcMetric(ViewShedScan scan) {
+        final int[][] adj = scan.getAdjacency();
+        final int[] border = new int[256];
+        for(int l = 0; l < 256; l++) {
+            border[l] = adj[l][l];
+        }
+        return new Double[] {calcAgg(scan.getLandCount(), border, scan.getResult())};
+    }
+    
     @Override
     public String getShortName() {
         return "AG";
@@ -78,6 +93,10 @@ public class AggregationMetric extends AbstractMetric implements ViewShedMetric,
             }
         }
         
+        return calcAgg(count, border, result);
+    }
+    
+    private Double calcAgg(int[] count, int[] border, ViewResult result) {
         if(hasCodeGroup()) {
             throw new IllegalArgumentException("AG does not support land category groups");
         }
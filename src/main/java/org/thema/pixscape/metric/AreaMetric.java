@@ -32,7 +32,7 @@ import org.thema.pixscape.view.ViewTanResult;
  * 
  * @author Gilles Vuidel
  */
-public class AreaMetric extends AbstractDistMetric implements ViewShedMetric, ViewTanMetric {
+public class AreaMetric extends AbstractDistMetric implements ScanViewShedMetric, ViewTanMetric {
 
     /**
      * Creates a new AreaMetric
@@ -60,6 +60,19 @@ public class AreaMetric extends AbstractDistMetric implements ViewShedMetric, Vi
         return calcMetric((ViewResult)result);
     }
     
+    @Override
+    public void prepareScan(ViewShedScan scan) {
+        scan.addDistances(getDistances());
+        if(!getCodes().isEmpty()) {
+            scan.requireLand();
+        }
+    }
+
+    @Override
+    public final Double[] calcMetric(ViewShedScan scan) {
+        return super.calcMetric(scan);
+    }
+    
     @Override
     protected final double calcMetric(ViewResult result, double dmin, double dmax) {
         if(getCodes().isEmpty()) {
@@ -74,6 +87,20 @@ public class AreaMetric extends AbstractDistMetric implements ViewShedMetric, Vi
         }
     }
     
+    @Override
+    protected final double calcMetric(ViewShedScan scan, double dmin, double dmax) {
+        if(getCodes().isEmpty()) {
+            return scan.getArea(dmin, dmax);
+        } else {
+            double[] count = scan.getAreaLand(dmin, dmax);
+            double sum = 0;
+            for(int code : getCodes()) {
+                sum += count[code];
+            }
+            return sum;
+        }
+    }
+    
     @Override
     public String getShortName() {
         return "A";
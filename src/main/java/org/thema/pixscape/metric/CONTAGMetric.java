@@ -35,7 +35,7 @@ import org.thema.pixscape.view.ViewTanResult;
  * 
  * @author Gilles Vuidel
  */
-public class CONTAGMetric extends AbstractMetric implements ViewShedMetric, ViewTanMetric {
+public class CONTAGMetric extends AbstractMetric implements ScanViewShedMetric, ViewTanMetric {
 
     /**
      * Creates a new CONTAGMetric
@@ -59,6 +59,26 @@ public class CONTAGMetric extends AbstractMetric implements ViewShedMetric, View
         return new Double[] {calcCONTAG(result, result.isView360())};
     }
     
+    @Override
+    public void prepareScan(ViewShedScan scan) {
+        scan.requireAdjacency();
+    }
+
+    @Override
+    public Double[] calcMetric(ViewShedScan scan) {
+        final int[][] adj = scan.getAdjacency();
+        final int[][] border = new int[256][256];
+        for(int l = 0; l < 256; l++) {
+            for(int l1 = 0; l1 < 256; l1++) {
+                if(adj[l][l1] > 0) {
+                    border[l][l1] += adj[l][l1];
+                    border[l1][l] += adj[l][l1];
+                }
+            }
+        }
+        return new Double[] {calcCONTAG(scan.getLandCount(), border, scan.getResult())};
+    }
+    
     private double calcCONTAG(ViewResult result, boolean cylinder) {
         int [] count = new int[256];
         int[][] border = new int[256][256];
@@ -94,6 +114,10 @@ public class CONTAGMetric extends AbstractMetric implements ViewShedMetric, View
             }
         }
         
+        return calcCONTAG(count, border, result);
+    }
+    
+    private double calcCONTAG(int[] count, int[][] border, ViewResult result) {
         SortedSet<Integer> codes;
         if(hasCodeGroup()) {
             HashMapList<Integer, Integer> groups = getCodeGroups();
@@ -29,7 +29,7 @@ import org.thema.pixscape.view.ViewShedResult;
  * 
  * @author Gilles Vuidel
  */
-public class CompactMetric extends AbstractMetric implements ViewShedMetric {
+public class CompactMetric extends AbstractMetric implements ScanViewShedMetric {
 
     /**
      * Creates a new CompactMetric
@@ -40,10 +40,21 @@ public class CompactMetric extends AbstractMetric implements ViewShedMetric {
     
     @Override
     public Double[] calcMetric(ViewShedResult result) {
-        double a = result.getArea();
-        double p = result.getPerimeter();
-        
-        return new Double[] {p / (2 * Math.sqrt(Math.PI * a))};
+        return new Double[] {calcCompact(result.getArea(), result.getPerimeter())};
+    }
+    
+    @Override
+    public void prepareScan(ViewShedScan scan) {
+        scan.requirePerimeter();
+    }
+
+    @Override
+    public Double[] calcMetric(ViewShedScan scan) {
+        return new Double[] {calcCompact(scan.getArea(0, Double.POSITIVE_INFINITY), scan.getPerimeter())};
+    }
+    
+    private double calcCompact(double a, double p) {
+        return p / (2 * Math.sqrt(Math.PI * a));
     }
     
     @Override
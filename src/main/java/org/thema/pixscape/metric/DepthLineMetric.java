@@ -19,7 +19,6 @@
 
 package org.thema.pixscape.metric;
 
-import java.awt.image.Raster;
 import org.thema.pixscape.view.ViewTanResult;
 
 /**
@@ -39,8 +38,7 @@ public class DepthLineMetric extends AbstractMetric implements ViewTanMetric {
     
     @Override
     public final Double[] calcMetric(ViewTanResult tanResult) {
-        Raster view = tanResult.getView();
-        final int w = view.getWidth();
+        final int w = tanResult.getThetaWidth();
         double len = 0;
         final double firstDist = tanResult.getMaxDistance(0);
         double precDist = firstDist;
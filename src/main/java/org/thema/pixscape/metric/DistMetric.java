@@ -30,7 +30,7 @@ import org.thema.pixscape.view.ViewTanResult;
  * Does not support codes nor distance ranges.
  * @author Gilles Vuidel
  */
-public class DistMetric extends AbstractMetric implements ViewShedMetric, ViewTanMetric {
+public class DistMetric extends AbstractMetric implements ScanViewShedMetric, ViewTanMetric {
 
     /**
      * Creates a new DistMetric
@@ -68,6 +68,16 @@ public class DistMetric extends AbstractMetric implements ViewShedMetric, ViewTa
         return new Double[] {n, sum, sum/n, min, max};
     }
 
+    @Override
+    public void prepareScan(ViewShedScan scan) {
+        scan.requireDistance();
+    }
+
+    @Override
+    public Double[] calcMetric(ViewShedScan scan) {
+        return scan.getDistance();
+    }
+
     @Override
     public Double[] calcMetric(ViewTanResult result) {
         int[] view = ((DataBufferInt)result.getView().getDataBuffer()).getData();
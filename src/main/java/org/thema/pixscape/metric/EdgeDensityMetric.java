@@ -25,7 +25,7 @@ import org.thema.pixscape.view.ViewTanResult;
  *
  * @author gvuidel
  */
-public class EdgeDensityMetric extends AbstractMetric implements ViewShedMetric, ViewTanMetric {
+public class EdgeDensityMetric extends AbstractMetric implements ScanViewShedMetric, ViewTanMetric {
     
     
     public EdgeDensityMetric() {
@@ -37,6 +37,16 @@ public class EdgeDensityMetric extends AbstractMetric implements ViewShedMetric,
         return new Double[] {calcNbEdges(result, false) * result.getRes2D() / result.getArea()};
     }
 
+    @Override
+    public void prepareScan(ViewShedScan scan) {
+        scan.requireAdjacency();
+    }
+
+    @Override
+    public Double[] calcMetric(ViewShedScan scan) {
+        return new Double[] {calcNbEdges(scan.getAdjacency()) * scan.getResult().getRes2D() / scan.getArea(0, Double.POSITIVE_INFINITY)};
+    }
+
     @Override
     public Double[] calcMetric(ViewTanResult result) {
         return new Double[] {calcNbEdges(result, result.isView360()) * result.getAres()*180/Math.PI / result.getArea()};
@@ -81,6 +91,24 @@ public class EdgeDensityMetric extends AbstractMetric implements ViewShedMetric,
         return nbEdges;
     }
     
+    private int calcNbEdges(int[][] adj) {
+        if(hasCodeGroup()) {
+            throw new IllegalArgumentException("ED does not support land category groups");
+        }
+        
+        int nbEdges = 0;
+        final boolean allCodes = getCodes().isEmpty();
+        for(int l = 0; l < adj.length; l++) {
+            for(int l1 = 0; l1 < adj.length; l1++) {
+                if(adj[l][l1] > 0 && l != l1 && (allCodes || getCodes().contains(l) || getCodes().contains(l1))) {
+                    nbEdges += adj[l][l1];
+                }
+            }
+        }
+        
+        return nbEdges;
+    }
+    
     @Override
     public String getShortName() {
         return "ED";
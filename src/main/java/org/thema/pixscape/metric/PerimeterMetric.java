@@ -27,7 +27,7 @@ import org.thema.pixscape.view.ViewShedResult;
  * Does not support codes nor distance ranges.
  * @author Gilles Vuidel
  */
-public class PerimeterMetric extends AbstractMetric implements ViewShedMetric {
+public class PerimeterMetric extends AbstractMetric implements ScanViewShedMetric {
 
     /**
      * Creates a new PerimeterMetric
@@ -42,6 +42,16 @@ public class PerimeterMetric extends AbstractMetric implements ViewShedMetric {
     }
     
     
+    @Override
+    public void prepareScan(ViewShedScan scan) {
+        scan.requirePerimeter();
+    }
+
+    @Override
+    public Double[] calcMetric(ViewShedScan scan) {
+        return new Double[] {scan.getPerimeter()};
+    }
+    
     @Override
     public String getShortName() {
         return "P";
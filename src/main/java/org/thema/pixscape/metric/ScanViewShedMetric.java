@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.metric;
+
+/**
+ * Interface for planimetric metric which can be calculated from the statistics of a {@link ViewShedScan}.
+ * 
+ * Several metrics can share the same scan of the viewshed.
+ * The result of {@link #calcMetric(ViewShedScan) } must be the same as 
+ * {@link #calcMetric(org.thema.pixscape.view.ViewShedResult) } for the scanned viewshed.
+ * 
+ * @author Gilles Vuidel
+ */
+public interface ScanViewShedMetric extends ViewShedMetric {
+    
+    /**
+     * Requests the statistics needed by this metric.
+     * @param scan the scan not yet done
+     */
+    public void prepareScan(ViewShedScan scan);
+    
+    /**
+     * Calculates the metric from the statistics of the scan.
+     * The size of the array equals to {@link #getResultNames() } size.
+     * @param scan the scan already done
+     * @return the metric results 
+     */
+    public Double [] calcMetric(ViewShedScan scan);
+}
@@ -20,6 +20,7 @@
 package org.thema.pixscape.metric;
 
 import java.util.List;
+import java.util.SortedSet;
 import org.thema.pixscape.view.ViewResult;
 import org.thema.pixscape.view.ViewShedResult;
 import org.thema.pixscape.view.ViewTanResult;
@@ -31,7 +32,7 @@ import org.thema.pixscape.view.ViewTanResult;
  * Support landuse codes, landuse code groups and distance ranges.
  * @author Gilles Vuidel
  */
-public class ShannonMetric extends AbstractDistMetric implements ViewShedMetric, ViewTanMetric {
+public class ShannonMetric extends AbstractDistMetric implements ScanViewShedMetric, ViewTanMetric {
 
     /**
      * Creates a new ShannonMetric
@@ -50,17 +51,36 @@ public class ShannonMetric extends AbstractDistMetric implements ViewShedMetric,
         return calcMetric((ViewResult)result);
     }
     
+    @Override
+    public void prepareScan(ViewShedScan scan) {
+        scan.addDistances(getDistances());
+        scan.requireLand();
+    }
+
+    @Override
+    public final Double[] calcMetric(ViewShedScan scan) {
+        return super.calcMetric(scan);
+    }
+    
     @Override
     protected double calcMetric(ViewResult result, double dmin, double dmax) {
-        double[] count = result.getAreaLand(dmin, dmax);
+        return calcShannon(result.getAreaLand(dmin, dmax), getCodes(result));
+    }
+    
+    @Override
+    protected double calcMetric(ViewShedScan scan, double dmin, double dmax) {
+        return calcShannon(scan.getAreaLand(dmin, dmax), getCodes(scan.getResult()));
+    }
+    
+    private double calcShannon(double[] count, SortedSet<Integer> resultCodes) {
         double shannon = 0;
         double sum = 0;
-        for(int code : getCodes(result)) {
+        for(int code : resultCodes) {
             sum += count[code];
         }
         int n = 0;
         if(!hasCodeGroup()) {
-            for(int code : getCodes(result)) {
+            for(int code : resultCodes) {
                 final double nb = count[code];
                 if(nb > 0) {
                     shannon += - nb/sum * Math.log(nb/sum);
@@ -47,22 +47,13 @@ public class SkyLineMetric extends AbstractDistMetric implements ViewTanMetric {
     @Override
     protected double calcMetric(ViewResult result, double dmin, double dmax) {
         final ViewTanResult tanResult = (ViewTanResult) result;
-        boolean maxUnbounded = Double.isInfinite(dmax);
-        Raster view = result.getView();
-        final int w = view.getWidth();
-        final int h = view.getHeight();
+        final int w = tanResult.getThetaWidth();
         double len = 0;
-        int y = 0;
-        while(y < h && view.getSample(0, y, 0) == -1 && (maxUnbounded || tanResult.getDistance(0, y) > dmax)) {
-            y++;
-        }
+        int y = getSkyLine(tanResult, 0, dmax);
         int firstY = y;
         int precY = y;
         for(int x = 1; x < w; x++) {
-            y = 0;
-            while(y < h && view.getSample(x, y, 0) == -1 && (maxUnbounded || tanResult.getDistance(x, y) > dmax)) {
-                y++;
-            } 
+            y = getSkyLine(tanResult, x, dmax);
             len += Math.sqrt(Math.pow(y-precY, 2) + 1);
             precY = y;
         }
@@ -71,6 +62,19 @@ public class SkyLineMetric extends AbstractDistMetric implements ViewTanMetric {
         return len / w;
     }
     
+    private static int getSkyLine(ViewTanResult tanResult, int x, double dmax) {
+        if(Double.isInfinite(dmax)) {
+            return tanResult.getFirstSeen(x);
+        }
+        final Raster view = tanResult.getView();
+        final int h = view.getHeight();
+        int y = 0;
+        while(y < h && view.getSample(x, y, 0) == -1 && tanResult.getDistance(x, y) > dmax) {
+            y++;
+        }
+        return y;
+    }
+    
     @Override
     public String getShortName() {
         return "SL";
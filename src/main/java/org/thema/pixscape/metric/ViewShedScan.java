@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.metric;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.thema.pixscape.view.SimpleViewShedResult;
+import org.thema.pixscape.view.ViewShedResult;
+import org.thema.pixscape.view.WindowViewShedResult;
+
+/**
+ * Per pixel statistics of a monoscale planimetric viewshed calculated in one pass over the view.
+ *
+ * The metrics implementing {@link ScanViewShedMetric} declare the statistics they need in
+ * {@link ScanViewShedMetric#prepareScan(ViewShedScan) }, then the view is scanned once with {@link #scan() }
+ * and each metric is calculated from the statistics with {@link ScanViewShedMetric#calcMetric(ViewShedScan) }.
+ *
+ * The available statistics are : the number of pixels seen and the land histogram by distance ring,
+ * the distance distribution, the adjacencies between landuse codes and the perimeter.
+ *
+ * @author Gilles Vuidel
+ */
+public final class ViewShedScan {
+
+    private final SimpleViewShedResult result;
+
+    private final SortedSet<Double> distances;
+    private boolean land, dist, adjacency, perimeter;
+    private boolean started, scanned;
+
+    private Raster landRaster;
+    private GridCoordinates2D coord;
+    private double res, res2;
+
+    private double[] rings;
+    private int[] ringCount;
+    private int[][] ringLand;
+    private int[] landCount;
+    private int[][] adj;
+    private double distN, distSum, distMin, distMax;
+    private double perim;
+
+    /**
+     * Creates a new scan for the viewshed result. No statistic is requested yet.
+     * @param result the viewshed
+     * @throws IllegalArgumentException if the result is not supported
+     * @see #isSupported(org.thema.pixscape.view.ViewShedResult)
+     */
+    public ViewShedScan(ViewShedResult result) {
+        if(!isSupported(result)) {
+            throw new IllegalArgumentException("Viewshed scan is not supported for " + result.getClass().getSimpleName());
+        }
+        this.result = (SimpleViewShedResult) result;
+        this.distances = new TreeSet<>();
+        distances.add(0.0);
+        distances.add(Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @return the scanned viewshed
+     */
+    public ViewShedResult getResult() {
+        return result;
+    }
+
+    /**
+     * Adds distance ring boundaries for {@link #getArea(double, double) } and {@link #getAreaLand(double, double) }.
+     * The ring [0 - Double.POSITIVE_INFINITY] is always available.
+     * @param dists the distances, can be empty
+     * @throws IllegalStateException if the scan is already done
+     */
+    public void addDistances(SortedSet<Double> dists) {
+        checkNotScanned();
+        distances.addAll(dists);
+    }
+
+    /**
+     * Requests the land histogram by distance ring
+     * @throws IllegalStateException if the scan is already done
+     */
+    public void requireLand() {
+        checkNotScanned();
+        land = true;
+    }
+
+    /**
+     * Requests the distance distribution
+     * @throws IllegalStateException if the scan is already done
+     */
+    public void requireDistance() {
+        checkNotScanned();
+        dist = true;
+    }
+
+    /**
+     * Requests the land histogram and the adjacencies between landuse codes
+     * @throws IllegalStateException if the scan is already done
+     */
+    public void requireAdjacency() {
+        checkNotScanned();
+        adjacency = true;
+    }
+
+    /**
+     * Requests the perimeter
+     * @throws IllegalStateException if the scan is already done
+     */
+    public void requirePerimeter() {
+        checkNotScanned();
+        perimeter = true;
+    }
+
+    /**
+     * Scans the view once and calculates all the requested statistics.
+     * @throws IllegalStateException if the scan is already done
+     */
+    public void scan() {
+        begin();
+
+        final Raster view;
+        final int x0, y0;
+        if(result instanceof WindowViewShedResult) {
+            view = ((WindowViewShedResult)result).getWindow();
+            Rectangle r = ((WindowViewShedResult)result).getWindowRect();
+            x0 = r.x;
+            y0 = r.y;
+        } else {
+            view = result.getView();
+            x0 = 0;
+            y0 = 0;
+        }
+        final boolean scanAdj = landRaster != null && adjacency;
+        final int w = view.getWidth();
+        final int h = view.getHeight();
+        for(int y = 0; y < h; y++) {
+            final int gy = y + y0;
+            for(int x = 0; x < w; x++) {
+                if(view.getSample(x, y, 0) != 1) {
+                    continue;
+                }
+                final int gx = x + x0;
+                add(gx, gy);
+
+                if(scanAdj) {
+                    final int l = landRaster.getSample(gx, gy, 0) & 0xff;
+                    if(x < w-1 && view.getSample(x+1, y, 0) == 1) {
+                        adj[l][landRaster.getSample(gx+1, gy, 0) & 0xff]++;
+                    }
+                    if(y < h-1 && view.getSample(x, y+1, 0) == 1) {
+                        adj[l][landRaster.getSample(gx, gy+1, 0) & 0xff]++;
+                    }
+                }
+
+                if(perimeter) {
+                    if(x == 0 || view.getSample(x-1, y, 0) != 1) {
+                        perim++;
+                    }
+                    if(y == 0 || view.getSample(x, y-1, 0) != 1) {
+                        perim++;
+                    }
+                    if(x == w-1 || view.getSample(x+1, y, 0) != 1) {
+                        perim++;
+                    }
+                    if(y == h-1 || view.getSample(x, y+1, 0) != 1) {
+                        perim++;
+                    }
+                }
+            }
+        }
+        end();
+    }
+
+    /**
+     * Can the statistics be calculated while the viewshed is calculated, pixel by pixel, 
+     * with {@link #begin() }, {@link #add(int, int) } and {@link #end() } ?
+     * The adjacencies and the perimeter need the whole view, they cannot be streamed.
+     * @return true if the requested statistics do not need the neighbourhood of the pixels
+     */
+    public boolean isStreamable() {
+        return !adjacency && !perimeter;
+    }
+
+    /**
+     * Starts the scan : no more statistic can be requested.
+     * The visible pixels must then be added once each with {@link #add(int, int) }, and the scan finished with {@link #end() }.
+     * @throws IllegalStateException if the scan is already started
+     */
+    public void begin() {
+        checkNotScanned();
+        started = true;
+
+        final boolean hasLand = result.getData().hasLandUse();
+        final boolean scanLand = hasLand && (land || adjacency);
+        landRaster = null;
+        if(scanLand) {
+            landRaster = result instanceof WindowViewShedResult ? ((WindowViewShedResult)result).getLandWindow() : result.getData().getLandRaster();
+        }
+        coord = result.getCoord();
+        res = result.getRes2D();
+        res2 = res*res;
+
+        rings = new double[distances.size()];
+        int i = 0;
+        for(double d : distances) {
+            rings[i++] = d*d;
+        }
+        final int nRing = rings.length-1;
+        ringCount = new int[nRing];
+        if(scanLand) {
+            ringLand = new int[nRing][256];
+            landCount = new int[256];
+        }
+        if(hasLand && adjacency) {
+            adj = new int[256][256];
+        }
+        distN = 0;
+        distSum = 0;
+        distMin = Double.POSITIVE_INFINITY;
+        distMax = Double.NEGATIVE_INFINITY;
+        perim = 0;
+    }
+
+    /**
+     * Adds a visible pixel to the statistics.
+     * Each visible pixel must be added only once.
+     * The adjacencies and the perimeter are not updated.
+     * @param gx the x grid coordinate of the pixel
+     * @param gy the y grid coordinate of the pixel
+     */
+    public void add(final int gx, final int gy) {
+        final double d2 = res2 * ((gx-coord.x)*(double)(gx-coord.x) + (gy-coord.y)*(double)(gy-coord.y));
+        int ring = rings.length-2;
+        while(d2 < rings[ring]) {
+            ring--;
+        }
+        ringCount[ring]++;
+
+        if(landRaster != null) {
+            final int l = landRaster.getSample(gx, gy, 0) & 0xff;
+            ringLand[ring][l]++;
+            landCount[l]++;
+        }
+
+        if(dist) {
+            final double d = coord.distance(gx, gy) * res;
+            distN++;
+            distSum += d;
+            if(d < distMin) {
+                distMin = d;
+            }
+            if(d > distMax) {
+                distMax = d;
+            }
+        }
+    }
+
+    /**
+     * Finishes the scan, the statistics are then available.
+     * @throws IllegalStateException if the scan is not started or already finished
+     */
+    public void end() {
+        if(!started || scanned) {
+            throw new IllegalStateException("Viewshed scan is not started");
+        }
+        scanned = true;
+        perim *= res;
+    }
+
+    /**
+     * Returns the sight area between dmin inclusive and dmax exclusive.
+     * dmin and dmax must be ring boundaries.
+     * @param dmin the min distance
+     * @param dmax the max distance
+     * @return the sight area in square meter
+     * @throws IllegalStateException if the scan is not done
+     * @throws IllegalArgumentException if dmin or dmax are not ring boundaries
+     */
+    public double getArea(double dmin, double dmax) {
+        checkScanned();
+        int nb = 0;
+        for(int i = getRing(dmin); i < getRing(dmax); i++) {
+            nb += ringCount[i];
+        }
+        return nb * result.getRes2D()*result.getRes2D();
+    }
+
+    /**
+     * Returns the sight area for each landuse code between dmin inclusive and dmax exclusive.
+     * dmin and dmax must be ring boundaries.
+     * @param dmin the min distance
+     * @param dmax the max distance
+     * @return the sight area in square meter for each landuse code (array of size 256)
+     * @throws IllegalStateException if the scan is not done or the land histogram has not been requested
+     * @throws IllegalArgumentException if dmin or dmax are not ring boundaries
+     */
+    public double[] getAreaLand(double dmin, double dmax) {
+        checkScanned();
+        if(!land) {
+            throw new IllegalStateException("Land histogram has not been requested");
+        }
+        final double res2D2 = result.getRes2D()*result.getRes2D();
+        final double[] area = new double[256];
+        if(ringLand == null) {
+            return area;
+        }
+        final int iMax = getRing(dmax);
+        for(int i = getRing(dmin); i < iMax; i++) {
+            for(int l = 0; l < 256; l++) {
+                area[l] += ringLand[i][l];
+            }
+        }
+        for(int l = 0; l < 256; l++) {
+            area[l] *= res2D2;
+        }
+        return area;
+    }
+
+    /**
+     * @return the number of pixels seen for each landuse code (array of size 256)
+     * @throws IllegalStateException if the scan is not done or the adjacencies have not been requested
+     */
+    public int[] getLandCount() {
+        checkScanned();
+        if(!adjacency && !land) {
+            throw new IllegalStateException("Land histogram has not been requested");
+        }
+        return landCount == null ? new int[256] : landCount;
+    }
+
+    /**
+     * Returns the number of adjacencies between pixels seen for each couple of landuse codes.
+     * adj[l1][l2] counts the pixels of code l1 having their right or bottom neighbour of code l2.
+     * The matrix is not symmetric.
+     * @return the adjacency matrix (size 256x256)
+     * @throws IllegalStateException if the scan is not done or the adjacencies have not been requested
+     */
+    public int[][] getAdjacency() {
+        checkScanned();
+        if(!adjacency) {
+            throw new IllegalStateException("Adjacencies have not been requested");
+        }
+        return adj == null ? new int[256][256] : adj;
+    }
+
+    /**
+     * @return the distance distribution {n, sum, avg, min, max}
+     * @throws IllegalStateException if the scan is not done or the distances have not been requested
+     */
+    public Double[] getDistance() {
+        checkScanned();
+        if(!dist) {
+            throw new IllegalStateException("Distances have not been requested");
+        }
+        return new Double[] {distN, distSum, distSum/distN, distMin, distMax};
+    }
+
+    /**
+     * @return the full perimeter (including holes) of the viewshed in meter
+     * @throws IllegalStateException if the scan is not done or the perimeter has not been requested
+     */
+    public double getPerimeter() {
+        checkScanned();
+        if(!perimeter) {
+            throw new IllegalStateException("Perimeter has not been requested");
+        }
+        return perim;
+    }
+
+    private int getRing(double d) {
+        final double d2 = d*d;
+        for(int i = 0; i < rings.length; i++) {
+            if(rings[i] == d2) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Distance " + d + " is not a ring boundary");
+    }
+
+    private void checkNotScanned() {
+        if(started) {
+            throw new IllegalStateException("Viewshed is already scanned");
+        }
+    }
+
+    private void checkScanned() {
+        if(!scanned) {
+            throw new IllegalStateException("Viewshed is not scanned");
+        }
+    }
+
+    /**
+     * @param result a viewshed
+     * @return true if the viewshed can be scanned, ie. it is a monoscale viewshed
+     */
+    public static boolean isSupported(ViewShedResult result) {
+        return result instanceof SimpleViewShedResult;
+    }
+
+    /**
+     * Calculates all the metrics on the viewshed.
+     * The metrics implementing {@link ScanViewShedMetric} are calculated from one scan of the viewshed,
+     * the others are calculated directly with {@link ViewShedMetric#calcMetric(org.thema.pixscape.view.ViewShedResult) }.
+     * If the viewshed is not supported, all metrics are calculated directly.
+     *
+     * @param result the viewshed
+     * @param metrics the metrics to calculate
+     * @return the results of the metrics in the same order
+     */
+    public static List<Double[]> calcMetrics(ViewShedResult result, List<? extends ViewShedMetric> metrics) {
+        ViewShedScan scan = prepare(result, metrics);
+        if(scan != null) {
+            scan.scan();
+        }
+        return calcMetrics(scan, result, metrics);
+    }
+
+    /**
+     * Creates the scan of the viewshed for the metrics implementing {@link ScanViewShedMetric}.
+     * The viewshed may not be calculated yet, the scan can then be streamed if {@link #isStreamable() }.
+     *
+     * @param result the viewshed
+     * @param metrics the metrics to calculate
+     * @return the scan prepared for the metrics, not started, or null if no metric uses the scan or if the viewshed is not supported
+     */
+    public static ViewShedScan prepare(ViewShedResult result, List<? extends ViewShedMetric> metrics) {
+        ViewShedScan scan = null;
+        if(isSupported(result)) {
+            for(ViewShedMetric m : metrics) {
+                if(m instanceof ScanViewShedMetric) {
+                    if(scan == null) {
+                        scan = new ViewShedScan(result);
+                    }
+                    ((ScanViewShedMetric)m).prepareScan(scan);
+                }
+            }
+        }
+        return scan;
+    }
+
+    /**
+     * Calculates all the metrics on the viewshed, once the scan is done.
+     *
+     * @param scan the finished scan returned by {@link #prepare(ViewShedResult, List) } or null
+     * @param result the viewshed
+     * @param metrics the metrics to calculate
+     * @return the results of the metrics in the same order
+     */
+    public static List<Double[]> calcMetrics(ViewShedScan scan, ViewShedResult result, List<? extends ViewShedMetric> metrics) {
+        List<Double[]> results = new ArrayList<>(metrics.size());
+        for(ViewShedMetric m : metrics) {
+            if(scan != null && m instanceof ScanViewShedMetric) {
+                results.add(((ScanViewShedMetric)m).calcMetric(scan));
+            } else {
+                results.add(m.calcMetric(result));
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.thema.pixscape.Bounds;
+
+/**
+ * Monoscale viewshed stored with one bit per pixel.
+ * The view is a packed raster (1 bit per pixel, the first pixel of a byte is the most significant bit),
+ * so {@link #getView() } can be used by all the metrics as a standard viewshed with 0 and 1 values.
+ * The area is calculated by counting the bits of each byte and the land areas by iterating over the bits set only.
+ * It uses 8 times less memory than {@link SimpleViewShedResult}.
+ *
+ * @author Gilles Vuidel
+ */
+public class BitViewShedResult extends SimpleViewShedResult {
+
+    private final byte[] bits;
+    private final int stride;
+
+    /**
+     * Creates a new BitViewShedResult
+     * @param cg the point of view or observed point in grid coordinate
+     * @param view the resulting viewshed in a packed raster created by {@link #createBitRaster(int, int) }
+     * @param compute the compute view used
+     * @throws IllegalArgumentException if the view is not a 1 bit packed raster
+     */
+    public BitViewShedResult(GridCoordinates2D cg, Raster view, SimpleComputeView compute) {
+        super(cg, view, compute);
+        if(!(view.getSampleModel() instanceof MultiPixelPackedSampleModel) || view.getSampleModel().getSampleSize(0) != 1
+                || view.getDataBuffer().getDataType() != DataBuffer.TYPE_BYTE) {
+            throw new IllegalArgumentException("The view must be a 1 bit packed raster");
+        }
+        this.bits = ((DataBufferByte)view.getDataBuffer()).getData();
+        this.stride = ((MultiPixelPackedSampleModel)view.getSampleModel()).getScanlineStride();
+    }
+
+    /**
+     * @param x x in grid coordinate
+     * @param y y in grid coordinate
+     * @return true if the pixel (x, y) is seen
+     */
+    public final boolean isSeen(int x, int y) {
+        return (bits[y*stride + (x >> 3)] & (0x80 >> (x & 7))) != 0;
+    }
+
+    @Override
+    public int getLand(int x, int y) {
+        if(!isSeen(x, y)) {
+            return -1;
+        }
+        return getData().getLandRaster().getSample(x, y, 0) & 0xff;
+    }
+
+    @Override
+    protected double calcAreaUnbounded() {
+        long nb = 0;
+        for(byte b : bits) {
+            nb += Integer.bitCount(b & 0xff);
+        }
+        return nb * getRes2D()*getRes2D();
+    }
+
+    @Override
+    protected double[] calcAreaLandUnbounded() {
+        return calcAreaLand(new Rectangle(view.getWidth(), view.getHeight()), 0, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    protected double[] calcAreaLand(double dmin, double dmax) {
+        if(Bounds.isUnboundedDistance(dmin, dmax)) {
+            return calcAreaLandUnbounded();
+        }
+        return calcAreaLand(getDistRect(dmax), dmin, dmax);
+    }
+
+    @Override
+    public double getArea(double dmin, double dmax) {
+        if(Bounds.isUnboundedDistance(dmin, dmax)) {
+            return calcAreaUnbounded();
+        }
+        final Rectangle r = getDistRect(dmax);
+        int nb = 0;
+        for(int y = r.y; y < r.y+r.height; y++) {
+            for(int x = nextSeen(y, r.x, r.x+r.width); x < r.x+r.width; x = nextSeen(y, x+1, r.x+r.width)) {
+                if(isInside(x, y, dmin, dmax)) {
+                    nb++;
+                }
+            }
+        }
+        return nb * getRes2D()*getRes2D();
+    }
+
+    private double[] calcAreaLand(Rectangle r, double dmin, double dmax) {
+        final boolean unbounded = Bounds.isUnboundedDistance(dmin, dmax);
+        final Raster land = getData().getLandRaster();
+        final double res2D2 = getRes2D()*getRes2D();
+        final double[] count = new double[256];
+        for(int y = r.y; y < r.y+r.height; y++) {
+            for(int x = nextSeen(y, r.x, r.x+r.width); x < r.x+r.width; x = nextSeen(y, x+1, r.x+r.width)) {
+                if(unbounded || isInside(x, y, dmin, dmax)) {
+                    count[land.getSample(x, y, 0)] += res2D2;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the first pixel seen of the row y in [x, xmax[, the bytes without any bit set are skipped.
+     * @param y the row
+     * @param x the first pixel to test
+     * @param xmax the end of the span (excluded)
+     * @return the x coordinate of the first pixel seen or xmax if no pixel is seen
+     */
+    private int nextSeen(int y, int x, int xmax) {
+        final int row = y*stride;
+        while(x < xmax) {
+            final int b = (bits[row + (x >> 3)] & 0xff) & (0xff >> (x & 7));
+            if(b != 0) {
+                return Math.min(xmax, (x & ~7) + Integer.numberOfLeadingZeros(b) - 24);
+            }
+            x = (x & ~7) + 8;
+        }
+        return xmax;
+    }
+
+    private Rectangle getDistRect(double dmax) {
+        final Rectangle bounds = new Rectangle(view.getWidth(), view.getHeight());
+        if(Double.isInfinite(dmax)) {
+            return bounds;
+        }
+        final int size = (int) Math.ceil(dmax / getRes2D());
+        return new GridEnvelope2D(getCoord().x-size, getCoord().y-size, 2*size+1, 2*size+1).intersection(bounds);
+    }
+
+    /**
+     * Creates an empty packed raster with 1 bit per pixel.
+     * @param w the width of the raster
+     * @param h the height of the raster
+     * @return a new 1 bit packed raster
+     */
+    public static WritableRaster createBitRaster(int w, int h) {
+        return Raster.createPackedRaster(DataBuffer.TYPE_BYTE, w, h, 1, 1, null);
+    }
+
+    /**
+     * Packs a full size viewshed in a new BitViewShedResult.
+     * The given viewshed can be reused after.
+     * If the viewshed is already packed or is not a full size monoscale viewshed (ie. {@link WindowViewShedResult}),
+     * it is returned unchanged.
+     *
+     * @param result the viewshed to pack
+     * @return the packed viewshed or result
+     */
+    public static ViewShedResult pack(ViewShedResult result) {
+        if(!(result instanceof SimpleViewShedResult) || result instanceof BitViewShedResult
+                || result instanceof WindowViewShedResult) {
+            return result;
+        }
+        final Raster view = result.getView();
+        final int w = view.getWidth();
+        final int h = view.getHeight();
+        final WritableRaster bitView = createBitRaster(w, h);
+        final byte[] bitBuf = ((DataBufferByte)bitView.getDataBuffer()).getData();
+        final int stride = ((MultiPixelPackedSampleModel)bitView.getSampleModel()).getScanlineStride();
+        final int[] row = new int[w];
+        for(int y = 0; y < h; y++) {
+            view.getSamples(view.getMinX(), view.getMinY()+y, w, 1, 0, row);
+            for(int x = 0; x < w; x++) {
+                if(row[x] == 1) {
+                    bitBuf[y*stride + (x >> 3)] |= 0x80 >> (x & 7);
+                }
+            }
+        }
+        return new BitViewShedResult(result.getCoord(), bitView, ((SimpleViewShedResult)result).compute);
+    }
+}
@@ -19,12 +19,14 @@
 
 package org.thema.pixscape.view;
 
+import java.awt.image.WritableRaster;
 import java.util.ArrayList;
 import java.util.List;
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.geometry.DirectPosition2D;
 import org.thema.pixscape.Bounds;
 import org.thema.pixscape.metric.ViewShedMetric;
+import org.thema.pixscape.metric.ViewShedScan;
 import org.thema.pixscape.metric.ViewTanMetric;
 
 /**
@@ -43,6 +45,8 @@ public abstract class ComputeView {
 
     private boolean earthCurv;
     private double coefRefraction;
+    private boolean parallel = false;
+    private boolean pooled = false;
     
     /**
      * Creates a new instance of ComputeView
@@ -70,15 +74,44 @@ public abstract class ComputeView {
     public List<Double[]> aggrViewShed(DirectPosition2D cg, double startZ, double destZ, boolean inverse, Bounds bounds, List<? extends ViewShedMetric> metrics) {
         
         ViewShedResult view = calcViewShed(cg, startZ, destZ, inverse, bounds); 
-        List<Double[]> results = new ArrayList<>(metrics.size());
-        for(ViewShedMetric m : metrics) {
-            results.add(m.calcMetric(view));
-        }
-        return results;
+        return calcMetrics(view, metrics);
+    }
+    
+    /**
+     * Calculate all the metrics on the viewshed view.
+     * The metrics supporting {@link ViewShedScan} share one scan of the view.
+     * 
+     * @param view the viewshed
+     * @param metrics the metrics to calculate
+     * @return the results of the metrics
+     */
+    protected final List<Double[]> calcMetrics(ViewShedResult view, List<? extends ViewShedMetric> metrics) {
+        return ViewShedScan.calcMetrics(view, metrics);
+    }
+    
+    /**
+     * Calculates the viewshed size of all the cells of the data in one pass (total viewshed).
+     * If inverse is false, the result is the number of cells seen from each cell,
+     * else it is the number of cells which see each cell.
+     * The default implementation throws UnsupportedOperationException.
+     * 
+     * @param startZ the height of the eye of the observer
+     * @param destZ the height of the observed points, -1 if not used
+     * @param inverse if false, each cell is the observer, else each cell is the observed point
+     * @param bounds the limits of the viewshed
+     * @param nbSector the number of angular sectors, must be even
+     * @return the raster of the viewshed size in number of cells
+     * @throws UnsupportedOperationException if this compute view does not support total viewshed
+     * @see TotalViewShed
+     */
+    public WritableRaster calcTotalViewShed(double startZ, double destZ, boolean inverse, Bounds bounds, int nbSector) {
+        throw new UnsupportedOperationException("Total viewshed is not supported by " + getClass().getSimpleName());
     }
     
     /**
      * Calculate the tangential view from cg and calculate all the metrics on this view.
+     * The tangential view is split over several cores only if {@link #isParallel() } is true, 
+     * because the metrics are usually calculated by parallel tasks.
      * 
      * @param cg the point of view in world coordinate
      * @param startZ the height of the eye of the observer
@@ -88,7 +121,7 @@ public abstract class ComputeView {
      */
     public List<Double[]> aggrViewTan(DirectPosition2D cg, double startZ, Bounds bounds, List<? extends ViewTanMetric> metrics) {
         
-        ViewTanResult view = calcViewTan(cg, startZ, bounds);
+        ViewTanResult view = calcViewTan(cg, startZ, bounds, isParallel());
         List<Double[]> results = new ArrayList<>(metrics.size());
         for(ViewTanMetric m : metrics) {
             results.add(m.calcMetric(view));
@@ -98,6 +131,8 @@ public abstract class ComputeView {
     
     /**
      * Calculate the tangential view from cg.
+     * This method is used for computing one view, the implementations may split the computation 
+     * over several cores even if {@link #isParallel() } is false.
      * 
      * @param cg the point of view in world coordinate
      * @param startZ the height of the eye of the observer
@@ -106,6 +141,20 @@ public abstract class ComputeView {
      */
     public abstract ViewTanResult calcViewTan(DirectPosition2D cg, double startZ, Bounds bounds) ;
     
+    /**
+     * Calculate the tangential view from cg, split or not over several cores.
+     * The default implementation ignores the parallel parameter and calls {@link #calcViewTan(DirectPosition2D, double, Bounds) }.
+     * 
+     * @param cg the point of view in world coordinate
+     * @param startZ the height of the eye of the observer
+     * @param bounds the limits of the viewshed
+     * @param parallel split the computation of the view over several cores ?
+     * @return the resulting tangential view
+     */
+    public ViewTanResult calcViewTan(DirectPosition2D cg, double startZ, Bounds bounds, boolean parallel) {
+        return calcViewTan(cg, startZ, bounds);
+    }
+    
     
     /**
      * Calculate the viewshed from cg.
@@ -119,6 +168,23 @@ public abstract class ComputeView {
      */
     public abstract ViewShedResult calcViewShed(DirectPosition2D cg, double startZ, double destZ, boolean inverse, Bounds bounds) ;
     
+    /**
+     * Calculate the viewshed from cg, stored with one bit per pixel if the implementation supports it.
+     * The result must be used when many viewsheds are kept in memory at the same time.
+     * The default implementation returns {@link #calcViewShed(DirectPosition2D, double, double, boolean, Bounds) }.
+     * 
+     * @param cg the point of view if direct=true, the observed point otherwise. cg is in world coordinate
+     * @param startZ the height of the eye of the observer
+     * @param destZ the height of the observed points, -1 if not used
+     * @param inverse if false, observer is on cg, else observed point is on cg
+     * @param bounds the limits of the viewshed
+     * @return the resulting viewshed
+     * @see BitViewShedResult
+     */
+    public ViewShedResult calcBitViewShed(DirectPosition2D cg, double startZ, double destZ, boolean inverse, Bounds bounds) {
+        return calcViewShed(cg, startZ, destZ, inverse, bounds);
+    }
+    
     /**
      * Calculate the viewshed from cg and stores the visible surface of each pixel in squared degree
      * 
@@ -211,6 +277,46 @@ public abstract class ComputeView {
         this.coefRefraction = coefRefraction;
     }
 
+    /**
+     * @return true if one view computation can be split over several cores
+     */
+    public final boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Enables the parallel computation of one view (if supported by the implementation).
+     * Useful for computing a few large views, must be disabled when the views are already computed in parallel tasks.
+     * @param parallel split one view computation over several cores ?
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return true if the viewsheds computed for metrics aggregation reuse pooled buffers
+     */
+    public final boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Enables the reuse of per thread buffers in {@link #aggrViewShed } (if supported by the implementation).
+     * Avoids the allocation of a full size raster for each viewshed when many viewsheds are calculated (grid or points metrics).
+     * @param pooled reuse the viewshed buffers ?
+     */
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    /**
+     * Default implementation returns null
+     * @return the buffer pool used when pooled mode is enabled, or null if the implementation does not use pool or pooled mode is disabled
+     */
+    public ViewBufferPool getBufferPool() {
+        return null;
+    }
+
     public final static double rad2deg2(double rad2) {
         return rad2*Math.pow(180/Math.PI, 2);
     }
@@ -18,20 +18,29 @@
 
 package org.thema.pixscape.view;
 
+import java.awt.Rectangle;
 import java.awt.image.BandedSampleModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferDouble;
 import java.awt.image.DataBufferFloat;
-import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.geometry.DirectPosition2D;
 import org.thema.pixscape.Bounds;
+import org.thema.pixscape.MaxZPyramid;
+import org.thema.pixscape.QuantizedSampleModel;
 import org.thema.pixscape.ScaleData;
+import org.thema.pixscape.metric.ViewShedMetric;
+import org.thema.pixscape.metric.ViewShedScan;
 
 /**
  * Default implementation of SimpleComputeView in Java.
@@ -40,10 +49,27 @@ import org.thema.pixscape.ScaleData;
  */
 public final class ComputeViewJava extends SimpleComputeView {
     
+    /**
+     * Number of angular sectors for splitting the rays in parallel mode
+     */
+    private static final int NB_SECTOR = 64;
+    
+    /**
+     * Number of azimuth columns calculated by one task for the parallel tangential view
+     */
+    static final int NB_TAN_COLUMN = 32;
+    
     private final float[] dtmBuf;
     private final float[] dsmBuf;
+    // quantized elevations, used when the rasters have a QuantizedSampleModel
+    private final short[] dtmShort;
+    private final short[] dsmShort;
+    private final float zScale, dtmBase, dsmBase;
     private Raster dtm;
     
+    private MaxZPyramid pyramid;
+    private boolean blockSkip = true;
+    
     /**
      * Creates a new ComputeViewJava.
      * @param data the data for this resolution
@@ -54,8 +80,78 @@ public final class ComputeViewJava extends SimpleComputeView {
     public ComputeViewJava(ScaleData data, double aPrec, boolean earthCurv, double coefRefraction) {
         super(data, aPrec, earthCurv, coefRefraction);
         this.dtm = data.getDtmRaster();
-        this.dtmBuf = ((DataBufferFloat)dtm.getDataBuffer()).getData();
-        this.dsmBuf = data.getDsm() != null ? ((DataBufferFloat)data.getDsmRaster().getDataBuffer()).getData() : null;
+        final Raster dsm = data.getDsm() != null ? data.getDsmRaster() : null;
+        if(dtm.getSampleModel() instanceof QuantizedSampleModel) {
+            final QuantizedSampleModel sm = (QuantizedSampleModel) dtm.getSampleModel();
+            this.dtmBuf = null;
+            this.dsmBuf = null;
+            this.dtmShort = ((DataBufferShort)dtm.getDataBuffer()).getData();
+            this.dsmShort = dsm != null ? ((DataBufferShort)dsm.getDataBuffer()).getData() : null;
+            this.zScale = sm.getScale();
+            this.dtmBase = sm.getBase();
+            this.dsmBase = dsm != null ? ((QuantizedSampleModel)dsm.getSampleModel()).getBase() : 0;
+        } else {
+            this.dtmBuf = ((DataBufferFloat)dtm.getDataBuffer()).getData();
+            this.dsmBuf = dsm != null ? ((DataBufferFloat)dsm.getDataBuffer()).getData() : null;
+            this.dtmShort = null;
+            this.dsmShort = null;
+            this.zScale = this.dtmBase = this.dsmBase = 0;
+        }
+    }
+
+    /**
+     * @param ind the index of the pixel
+     * @return the DTM elevation of the pixel
+     */
+    private float getDtmZ(int ind) {
+        return dtmBuf != null ? dtmBuf[ind] : QuantizedSampleModel.decode(dtmShort[ind], zScale, dtmBase);
+    }
+
+    /**
+     * @param ind the index of the pixel
+     * @return the DSM height of the pixel or 0 if there is no DSM
+     */
+    private float getDsmZ(int ind) {
+        if(dsmBuf != null) {
+            return dsmBuf[ind];
+        }
+        return dsmShort != null ? QuantizedSampleModel.decode(dsmShort[ind], zScale, dsmBase) : 0;
+    }
+
+    /**
+     * @return true if the rays skip the blocks of the data which cannot be seen
+     */
+    public boolean isBlockSkip() {
+        return blockSkip;
+    }
+
+    /**
+     * Enables the skipping of the hidden blocks in the ray kernels of the viewshed and the tangential view.
+     * When the line of sight of a ray is above the maximum elevation of a block of the {@link MaxZPyramid}, 
+     * the pixels of the block are skipped, and the ray stops when the whole data is below the line of sight.
+     * The results are exactly the same.
+     * @param blockSkip skip the hidden blocks ?
+     */
+    public void setBlockSkip(boolean blockSkip) {
+        this.blockSkip = blockSkip;
+    }
+    
+    /**
+     * Creates the block skipping state for a new ray, the pyramid is created at first call.
+     * @param c0 the origin of the ray
+     * @param z0 the elevation of the line of sight at the origin, minus the height added to the data pixels
+     * @param dOffset the distance offset of the slope
+     * @param squared is the slope of the kernel squared ?
+     * @return the new block skip or null if block skipping is disabled
+     */
+    private BlockSkip createBlockSkip(GridCoordinates2D c0, double z0, double dOffset, boolean squared) {
+        if(!blockSkip) {
+            return null;
+        }
+        if(pyramid == null) {
+            pyramid = getData().getMaxZPyramid();
+        }
+        return new BlockSkip(pyramid, c0, getData().getResolution(), z0, dOffset, squared);
     }
     
     @Override
@@ -81,7 +177,7 @@ public final class ComputeViewJava extends SimpleComputeView {
         int yy = 0;
         int ind = c0.x + c0.y*w;
         final int ind1 = c1.x + c1.y*w;
-        final double z0 = dtmBuf[ind] + startZ;
+        final double z0 = getDtmZ(ind) + startZ;
         
         if(ind == ind1 && bounds.getDmin() == 0) {
             final double si = Math.min(-startZ / (res/2), bounds.getSlopemax());
@@ -92,7 +188,7 @@ public final class ComputeViewJava extends SimpleComputeView {
             }
         }
         // max slope at end point
-        double zEnd = dtmBuf[ind1] + (destZ == -1 ? (dsmBuf != null ? dsmBuf[ind1] : 0) : destZ);
+        double zEnd = getDtmZ(ind1) + (destZ == -1 ? getDsmZ(ind1) : destZ);
         double dTot = c0.distance(c1) * res;
         if(isEarthCurv()) {
             zEnd -= (1 - getCoefRefraction()) * dTot*dTot / EARTH_DIAM;
@@ -117,7 +213,7 @@ public final class ComputeViewJava extends SimpleComputeView {
                 ind += sy*w;
             }
             
-            double z = dtmBuf[ind];
+            double z = getDtmZ(ind);
             if(Double.isNaN(z)) {
                 return 0;
             }
@@ -131,7 +227,7 @@ public final class ComputeViewJava extends SimpleComputeView {
             if(isEarthCurv()) {
                 z -= (1 - getCoefRefraction()) * dist*dist / EARTH_DIAM;
             }
-            final double zSurf = z + (dsmBuf != null ? dsmBuf[ind] : 0);
+            final double zSurf = z + getDsmZ(ind);
 
             if(ind == ind1 && dist >= bounds.getDmin()) {
                 final double zView = destZ == -1 ? zSurf : (z + destZ);
@@ -156,27 +252,158 @@ public final class ComputeViewJava extends SimpleComputeView {
    
     }
     
+    /**
+     * {@inheritDoc }
+     * In pooled mode, the viewshed is calculated in the buffer of the current thread.
+     * If the metrics need only the pixels seen (area, land, distance), the statistics are accumulated 
+     * by the ray kernels while the viewshed is calculated (see {@link ViewShedScan#isStreamable() }),
+     * so the view is not scanned afterwards. The streaming is not used in parallel mode.
+     */
+    @Override
+    public List<Double[]> aggrViewShed(DirectPosition2D p, double startZ, double destZ, boolean inverse, Bounds bounds, List<? extends ViewShedMetric> metrics) {
+        final GridCoordinates2D cg = getWorld2Grid(p);
+        final Rectangle window = getViewWindow(cg, bounds);
+        final ViewShedResult result;
+        final ViewBuffer buf;
+        if(isPooled()) {
+            // the pooled buffer of a bounded viewshed has the size of the window only
+            final Rectangle r = window == null ? dtm.getBounds() : window;
+            WritableRaster view = window == null ? getBufferPool().getBuffer(getViewRect(cg, bounds)) 
+                    : getBufferPool().getWindowBuffer(window.width, window.height);
+            buf = new ViewBuffer(r, ((DataBufferByte)view.getDataBuffer()).getData(), r.width, 0);
+            result = window == null ? new SimpleViewShedResult(cg, view, this) : new WindowViewShedResult(cg, view, window, this);
+        } else {
+            final Rectangle r = window == null ? dtm.getBounds() : window;
+            WritableRaster view = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, r.width, r.height, 1, null);
+            buf = new ViewBuffer(r, ((DataBufferByte)view.getDataBuffer()).getData(), r.width, 0);
+            result = window == null ? new SimpleViewShedResult(cg, view, this) : new WindowViewShedResult(cg, view, window, this);
+        }
+        
+        final ViewShedScan scan = ViewShedScan.prepare(result, metrics);
+        if(scan != null && scan.isStreamable() && !isParallel()) {
+            scan.begin();
+            calcViewShed(cg, startZ, destZ, inverse, bounds, new ViewBuffer(buf, scan));
+            scan.end();
+        } else {
+            calcViewShed(cg, startZ, destZ, inverse, bounds, buf);
+            if(scan != null) {
+                scan.scan();
+            }
+        }
+        return ViewShedScan.calcMetrics(scan, result, metrics);
+    }
+    
+    /**
+     * {@inheritDoc }
+     * If the distance is bounded, the rays are cast only to the border of the dmax square 
+     * and the result is a {@link WindowViewShedResult} containing only this window.
+     */
     @Override
     public ViewShedResult calcViewShed(DirectPosition2D p, double startZ, double destZ, boolean inverse, Bounds bounds)  {
-        long time = System.currentTimeMillis();
-        WritableRaster view = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, dtm.getWidth(), dtm.getHeight(), 1, null);
-        byte [] viewBuf = ((DataBufferByte)view.getDataBuffer()).getData();
         GridCoordinates2D cg = getWorld2Grid(p);
-        GridCoordinates2D c = new GridCoordinates2D();
-        for(c.x = 0; c.x < dtm.getWidth(); c.x++) {
-            c.y = 0;
-            calcRay(inverse, cg, c, startZ, destZ, bounds, viewBuf);
-            c.y = dtm.getHeight()-1;
-            calcRay(inverse, cg, c, startZ, destZ, bounds, viewBuf);
-        }
-        for(c.y = 1; c.y < dtm.getHeight()-1; c.y++) {
-            c.x = 0;
-            calcRay(inverse, cg, c, startZ, destZ, bounds, viewBuf);
-            c.x = dtm.getWidth()-1;
-            calcRay(inverse, cg, c, startZ, destZ, bounds, viewBuf);
+        Rectangle window = getViewWindow(cg, bounds);
+        if(window == null) {
+            WritableRaster view = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, dtm.getWidth(), dtm.getHeight(), 1, null);
+            return calcViewShed(cg, startZ, destZ, inverse, bounds, view);
+        }
+        WritableRaster view = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, window.width, window.height, 1, null);
+        calcViewShed(cg, startZ, destZ, inverse, bounds, 
+                new ViewBuffer(window, ((DataBufferByte)view.getDataBuffer()).getData(), window.width, 0));
+        return new WindowViewShedResult(cg, view, window, this);
+    }
+    
+    /**
+     * {@inheritDoc }
+     * In pooled mode, the full size viewshed is calculated in the buffer of the current thread, then packed 
+     * in a {@link BitViewShedResult}, so the byte view of the size of the data is never allocated.
+     * A bounded viewshed is calculated in its own window, as without pooling.
+     */
+    @Override
+    public ViewShedResult calcBitViewShed(DirectPosition2D p, double startZ, double destZ, boolean inverse, Bounds bounds) {
+        GridCoordinates2D cg = getWorld2Grid(p);
+        if(!isPooled() || getViewWindow(cg, bounds) != null) {
+            return super.calcBitViewShed(p, startZ, destZ, inverse, bounds);
+        }
+        return BitViewShedResult.pack(calcViewShed(cg, startZ, destZ, inverse, bounds, getBufferPool().getBuffer(null)));
+    }
+    
+    /**
+     * Calculate the viewshed from cg in the given empty raster.
+     * If the distance is bounded, the rays are cast only to the border of the dmax square 
+     * and the result is a {@link WindowViewShedResult} backed by a child raster of view.
+     * 
+     * @param cg the point of view if direct=true, the observed point otherwise. cg is in grid coordinate
+     * @param startZ the height of the eye of the observer
+     * @param destZ the height of the observed points, -1 if not used
+     * @param inverse if false, observer is on cg, else observed point is on cg
+     * @param bounds the limits of the viewshed
+     * @param view empty byte raster of the size of dtm data
+     * @return the resulting viewshed
+     */
+    ViewShedResult calcViewShed(GridCoordinates2D cg, double startZ, double destZ, boolean inverse, Bounds bounds, WritableRaster view)  {
+        final int w = dtm.getWidth();
+        final byte [] viewBuf = ((DataBufferByte)view.getDataBuffer()).getData();
+        Rectangle window = getViewWindow(cg, bounds);
+        if(window == null) {
+            calcViewShed(cg, startZ, destZ, inverse, bounds, new ViewBuffer(dtm.getBounds(), viewBuf, w, 0));
+            return new SimpleViewShedResult(cg, view, this);
+        } else {
+            calcViewShed(cg, startZ, destZ, inverse, bounds, new ViewBuffer(window, viewBuf, w, window.x + window.y*w));
+            return new WindowViewShedResult(cg, view.createWritableChild(window.x, window.y, window.width, window.height, 0, 0, null), 
+                    window, this);
+        }
+    }
+    
+    /**
+     * Casts the rays from cg to each pixel of the border of the view window.
+     * 
+     * @param cg the point of view if direct=true, the observed point otherwise. cg is in grid coordinate
+     * @param startZ the height of the eye of the observer
+     * @param destZ the height of the observed points, -1 if not used
+     * @param inverse if false, observer is on cg, else observed point is on cg
+     * @param bounds the limits of the viewshed
+     * @param view the empty view buffer
+     */
+    private void calcViewShed(GridCoordinates2D cg, double startZ, double destZ, boolean inverse, Bounds bounds, ViewBuffer view)  {
+        long time = System.currentTimeMillis();
+        final Rectangle r = view.rect;
+        if(isParallel()) {
+            List<SectorRayTask> tasks = new ArrayList<>();
+            for(int [] sector : getBorderSectors(cg, r)) {
+                tasks.add(new SectorRayTask(inverse, cg, sector, startZ, destZ, bounds, view));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            GridCoordinates2D c = new GridCoordinates2D();
+            for(c.x = r.x; c.x < r.x+r.width; c.x++) {
+                c.y = r.y;
+                calcRay(inverse, cg, c, startZ, destZ, bounds, view);
+                c.y = r.y+r.height-1;
+                calcRay(inverse, cg, c, startZ, destZ, bounds, view);
+            }
+            for(c.y = r.y+1; c.y < r.y+r.height-1; c.y++) {
+                c.x = r.x;
+                calcRay(inverse, cg, c, startZ, destZ, bounds, view);
+                c.x = r.x+r.width-1;
+                calcRay(inverse, cg, c, startZ, destZ, bounds, view);
+            }
         }
         Logger.getLogger(ComputeViewJava.class.getName()).fine((System.currentTimeMillis()-time) + " ms");
-        return new SimpleViewShedResult(cg, view, this);
+    }
+    
+    /**
+     * Returns the window containing all the pixels which can be seen from or can see cg.
+     * @param cg the point of view or the observed point in grid coordinate
+     * @param bounds the limits of the viewshed
+     * @return the dmax square around cg inside the data, or null if it covers all the data
+     */
+    private Rectangle getViewWindow(GridCoordinates2D cg, Bounds bounds) {
+        Rectangle r = getViewRect(cg, bounds);
+        if(r == null) {
+            return null;
+        }
+        r = r.intersection(dtm.getBounds());
+        return r.equals(dtm.getBounds()) ? null : r;
     }
     
     /**
@@ -199,56 +426,103 @@ public final class ComputeViewJava extends SimpleComputeView {
         WritableRaster view = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_DOUBLE, dtm.getWidth(), dtm.getHeight(), 1), null);
         double [] viewBuf = ((DataBufferDouble)view.getDataBuffer()).getData();
         GridCoordinates2D cg = getWorld2Grid(p);
-        GridCoordinates2D c = new GridCoordinates2D();
-        for(c.x = 0; c.x < dtm.getWidth(); c.x++) {
-            c.y = 0;
-            calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewBuf, area, dd);
-            c.y = dtm.getHeight()-1;
-            calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewBuf, area, dd);
-        }
-        for(c.y = 1; c.y < dtm.getHeight()-1; c.y++) {
-            c.x = 0;
-            calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewBuf, area, dd);
-            c.x = dtm.getWidth()-1;
-            calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewBuf, area, dd);
+        if(isParallel()) {
+            int [][] sectors = getBorderSectors(cg, dtm.getBounds());
+            List<SectorRayTask> tasks = new ArrayList<>();
+            for(int i = 0; i < NB_SECTOR; i++) {
+                tasks.add(new SectorRayTask(inverse, cg, sectors[i], startZ, destZ, bounds, viewBuf, area, dd, new SectorWriter(i)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            // the pixels outside the sector of their ray are set after, in sector order, to keep the result deterministic
+            for(SectorRayTask task : tasks) {
+                task.writer.flush(viewBuf);
+            }
+        } else {
+            GridCoordinates2D c = new GridCoordinates2D();
+            for(c.x = 0; c.x < dtm.getWidth(); c.x++) {
+                c.y = 0;
+                calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewBuf, area, dd, null);
+                c.y = dtm.getHeight()-1;
+                calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewBuf, area, dd, null);
+            }
+            for(c.y = 1; c.y < dtm.getHeight()-1; c.y++) {
+                c.x = 0;
+                calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewBuf, area, dd, null);
+                c.x = dtm.getWidth()-1;
+                calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewBuf, area, dd, null);
+            }
         }
         Logger.getLogger(ComputeViewJava.class.getName()).fine((System.currentTimeMillis()-time) + " ms");
         return new SimpleViewShedResult(cg, view, this);
     }
     
+    /**
+     * {@inheritDoc }
+     * The azimuth columns are always calculated in parallel.
+     */
     @Override
     public ViewTanResult calcViewTan(DirectPosition2D p, double startZ, Bounds bounds)  {
+        return calcViewTan(p, startZ, bounds, true);
+    }
+    
+    /**
+     * {@inheritDoc }
+     * In parallel, the azimuth columns are split in blocks of {@link #NB_TAN_COLUMN} columns, 
+     * each ray writes only its own column in the view.
+     * The rays produce directly the runs of a {@link SpanViewTanResult}, the full view is not allocated.
+     */
+    @Override
+    public ViewTanResult calcViewTan(DirectPosition2D p, double startZ, Bounds bounds, boolean parallel)  {
         long time = System.currentTimeMillis();
         int n = (int)Math.ceil(bounds.getAmplitudeRad() / getRadaPrec());
-        WritableRaster view = Raster.createBandedRaster(DataBuffer.TYPE_INT, n, (int)Math.ceil(Math.PI/getRadaPrec()), 1, null);
-        int [] viewBuf = ((DataBufferInt)view.getDataBuffer()).getData();
-        Arrays.fill(viewBuf, -1);
         GridCoordinates2D cg = getWorld2Grid(p);
-        double aStart = bounds.getTheta1Left();
-        for(int ax = 0; ax < n; ax++) {
+        SpanViewTanResult view = new SpanViewTanResult(cg, n, (int)Math.ceil(Math.PI/getRadaPrec()), this);
+        if(parallel) {
+            List<TanColumnTask> tasks = new ArrayList<>();
+            for(int ax = 0; ax < n; ax += NB_TAN_COLUMN) {
+                tasks.add(new TanColumnTask(cg, startZ, bounds, view, ax, Math.min(n, ax+NB_TAN_COLUMN)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            calcRayTan(cg, startZ, bounds, view, 0, n);
+        }
+        Logger.getLogger(ComputeViewJava.class.getName()).fine((System.currentTimeMillis()-time) + " ms");
+        return view;
+    }
+    
+    /**
+     * Calculates the rays of the azimuth columns [ax0-ax1[ of the tangential view.
+     * @param c0 the point of view
+     * @param startZ the height of the eye
+     * @param bounds the limits of the view
+     * @param view the resulting tangential view
+     * @param ax0 the first column inclusive
+     * @param ax1 the last column exclusive
+     */
+    private void calcRayTan(final GridCoordinates2D c0, final double startZ, final Bounds bounds, final SpanViewTanResult view, 
+            final int ax0, final int ax1) {
+        final double aStart = bounds.getTheta1Left();
+        for(int ax = ax0; ax < ax1; ax++) {
             double a = (aStart - ax*getRadaPrec() + 2*Math.PI) % (2*Math.PI);
             if(bounds.isTheta1Included(a)) {
-                calcRayTan(cg, startZ, bounds, viewBuf, a, n, ax, getRadaPrec());
+                calcRayTan(c0, startZ, bounds, view, a, ax, getRadaPrec());
             }
         }
-        Logger.getLogger(ComputeViewJava.class.getName()).fine((System.currentTimeMillis()-time) + " ms");
-        return new SimpleViewTanResult(cg, view, this);
     }
     
     /**
      * Calculates the ray from c0 with angle a.
-     * Set the pixel index in view when the pixel is viewed from c0
+     * Adds the runs of the pixel index in the column ax of view when the pixel is viewed from c0
      * @param c0 the point of view
      * @param startZ the height of the eye
      * @param bounds the limits of the view
      * @param view the resulting tangential view
      * @param a the horizontal angle of the ray in (0-2PI(
-     * @param wa the width of the view buffer
-     * @param ax the x index in the view buffer for this ray
+     * @param ax the x index in the view for this ray
      * @param ares the resolution (in degree) of the view
      */
-    private void calcRayTan(final GridCoordinates2D c0, final double startZ, final Bounds bounds, final int[] view, 
-            final double a, final int wa, final int ax, final double ares) {
+    private void calcRayTan(final GridCoordinates2D c0, final double startZ, final Bounds bounds, final SpanViewTanResult view, 
+            final double a, final int ax, final double ares) {
         final int w = dtm.getWidth();
         final int h = dtm.getHeight();
         final double res = getData().getResolution();
@@ -264,7 +538,8 @@ public final class ComputeViewJava extends SimpleComputeView {
             x1 = c0.x + ddx;
         }
         
-        final double z0 = dtm.getSample(c0.x, c0.y, 0) + startZ;
+        // integer part of the elevation, as Raster.getSample on a float raster
+        final double z0 = (int) getDtmZ(c0.x + c0.y*w) + startZ;
         
         final int dx = Math.abs(x1-c0.x);
         final int dy = Math.abs(y1-c0.y);
@@ -280,10 +555,9 @@ public final class ComputeViewJava extends SimpleComputeView {
             final double si = Math.min(-startZ / (res/2), bounds.getSlopemax());
             final int zi1 = (int) ((Math.PI/2 - Math.atan(si)) / ares);
             final int zi2 = (int) ((Math.PI/2 - Math.atan(bounds.getSlopemin())) / ares);
-            for(int yz = zi1; yz < zi2; yz++) {
-                view[yz*wa + ax] = (int) ind;
-            }
+            view.addRun(ax, zi1, zi2, ind);
         }
+        final BlockSkip skip = createBlockSkip(c0, z0, res/2, false);
         double maxSlope = Math.max(-startZ / (res/2), bounds.getSlopemin());
         double maxZ = Double.NEGATIVE_INFINITY;
         while(ind != ind1) {
@@ -299,7 +573,14 @@ public final class ComputeViewJava extends SimpleComputeView {
                 ind += sy*w;
             }
 
-            double z = dtmBuf[ind] + (dsmBuf != null ? dsmBuf[ind] : 0);
+            if(skip != null && skip.isHidden(c0.x+xx, c0.y+yy, maxSlope)) {
+                if(skip.isAllHidden()) {
+                    return;
+                }
+                continue;
+            }
+            
+            double z = getDtmZ(ind) + getDsmZ(ind);
             if(Double.isNaN(z)) {
                 return;
             }
@@ -321,12 +602,7 @@ public final class ComputeViewJava extends SimpleComputeView {
                     final int z2 = (int) Math.round((Math.PI/2 - Math.atan(maxSlope)) / ares);
                     final int z1 = (int) ((Math.PI/2 - Math.atan(s2)) / ares);
 
-                    for(int yz = z1; yz < z2; yz++) {
-                        final int i = yz*wa + ax;
-                        if(view[i] == -1) {
-                            view[i] = (int) ind;
-                        }
-                    }
+                    view.addRun(ax, z1, z2, ind);
                 }   
                 maxSlope = slope;
             }
@@ -350,14 +626,15 @@ public final class ComputeViewJava extends SimpleComputeView {
      * @param destZ the eight of the observed point or -1
      * @param bounds the limits of the view
      * @param view the resulting viewshed in squared degree (buffer of the size of dtm data)
+     * @param sector the sector writer in parallel mode, null otherwise
      */
     private void calcRayDeg(final boolean inverse, final GridCoordinates2D c0, final GridCoordinates2D c1, 
-            final double startZ, final double destZ, Bounds bounds, final double[] view, boolean area, int dd) {
+            final double startZ, final double destZ, Bounds bounds, final double[] view, boolean area, int dd, SectorWriter sector) {
         if(!bounds.isOrienBounded() || bounds.isTheta1Included(Math.atan2(c0.y-c1.y, c1.x-c0.x))) {
             if(inverse) {
-                calcRayIndirectDeg(c0, c1, startZ, destZ, bounds, view, area, dd);
+                calcRayIndirectDeg(c0, c1, startZ, destZ, bounds, view, area, dd, sector);
             } else {
-                calcRayDirectDeg(c0, c1, startZ, destZ, bounds, view, area, dd);
+                calcRayDirectDeg(c0, c1, startZ, destZ, bounds, view, area, dd, sector);
             }
         }
     }
@@ -371,9 +648,10 @@ public final class ComputeViewJava extends SimpleComputeView {
      * @param destZ the height of observed point or -1
      * @param bounds the limits of the view
      * @param view the result view (buffer of the size of dtm data)
+     * @param sector the sector writer in parallel mode, null otherwise
      */
     private void calcRayDirectDeg(final GridCoordinates2D c0, final GridCoordinates2D c1, final double startZ, 
-            final double destZ, Bounds bounds, final double[] view, boolean area, int dd) {
+            final double destZ, Bounds bounds, final double[] view, boolean area, int dd, SectorWriter sector) {
         final double res = getData().getResolution();
         final int w = dtm.getWidth();
         final int dx = Math.abs(c1.x-c0.x);
@@ -385,9 +663,9 @@ public final class ComputeViewJava extends SimpleComputeView {
         int yy = 0;
         int ind = c0.x + c0.y*w;
         final int ind1 = c1.x + c1.y*w;
-        final double z0 = dtmBuf[ind] + startZ;
+        final double z0 = getDtmZ(ind) + startZ;
         
-        if(view[ind] == 0 && bounds.getDmin() == 0) {
+        if((sector == null || sector.isOwner(0, 0)) && view[ind] == 0 && bounds.getDmin() == 0) {
             final double si = Math.min(-startZ / (res/2), bounds.getSlopemax());
             if(bounds.getSlopemin() < si) {
                 final double a1 = Math.atan(si);
@@ -410,7 +688,7 @@ public final class ComputeViewJava extends SimpleComputeView {
                 ind += sy*w;
             }
             
-            double z = dtmBuf[ind];
+            double z = getDtmZ(ind);
             if(Double.isNaN(z)) {
                 return;
             }
@@ -425,19 +703,25 @@ public final class ComputeViewJava extends SimpleComputeView {
                 z -= (1 - getCoefRefraction()) * dist*dist / EARTH_DIAM;
             }
             
-            final double zSurf = z + (dsmBuf != null ? dsmBuf[ind] : 0);
+            final double zSurf = z + getDsmZ(ind);
             final double zView = destZ == -1 ? zSurf : (z + destZ);
             
             if(maxSlope >= 0 && zSurf <= maxZ && zView <= maxZ) {
                 continue;
             }
             
-            if(view[ind] == 0 && dist >= bounds.getDmin()) {
+            final boolean own = sector == null || sector.isOwner(xx, yy);
+            if((!own || view[ind] == 0) && dist >= bounds.getDmin()) {
                 final double slopeView = (zView - z0) / (dist-dd*Math.signum(zView - z0)*res/2);
                 if(slopeView > maxSlope) {
                     final double z2 = Math.atan(maxSlope);
                     final double z1 = Math.atan(Math.min(bounds.getSlopemax(), slopeView));
-                    view[ind] = Math.abs(area ? rad2deg2((z2-z1) * 2*Math.atan((res/2) / dist)) : rad2deg(z2-z1));
+                    final double val = Math.abs(area ? rad2deg2((z2-z1) * 2*Math.atan((res/2) / dist)) : rad2deg(z2-z1));
+                    if(own) {
+                        view[ind] = val;
+                    } else {
+                        sector.defer(ind, val);
+                    }
                 }
             }
             final double slopeSurf = (zSurf - z0) / (dist-dd*Math.signum(zSurf - z0)*res/2);
@@ -464,9 +748,10 @@ public final class ComputeViewJava extends SimpleComputeView {
      * @param destZ the height of observed point or -1
      * @param bounds the limits of the view
      * @param view the result view (buffer of the size of dtm data)
+     * @param sector the sector writer in parallel mode, null otherwise
      */
     private void calcRayIndirectDeg(final GridCoordinates2D c0, final GridCoordinates2D c1, 
-            final double startZ, double destZ, Bounds bounds, final double[] view, boolean area, int dd) {
+            final double startZ, double destZ, Bounds bounds, final double[] view, boolean area, int dd, SectorWriter sector) {
         final double dsmZ = (getData().getDsm()!= null ? getData().getDsmRaster().getSampleDouble(c0.x, c0.y, 0) : 0);
         if(destZ != -1 && destZ < dsmZ) {
             return;
@@ -485,7 +770,7 @@ public final class ComputeViewJava extends SimpleComputeView {
         int ind = c0.x + c0.y*w;
         final int ind1 = c1.x + c1.y*w;
         
-        if(view[ind] == 0 && bounds.getDmin() == 0) {
+        if((sector == null || sector.isOwner(0, 0)) && view[ind] == 0 && bounds.getDmin() == 0) {
             final double si = Math.min(-startZ / (res/2), bounds.getSlopemax());
             if(bounds.getSlopemin() < si) {
                 final double a1 = Math.atan(si);
@@ -512,13 +797,13 @@ public final class ComputeViewJava extends SimpleComputeView {
                 ind += sy*w;
             }
             
-            double z = dtmBuf[ind];
+            double z = getDtmZ(ind);
             if(Double.isNaN(z)) {
                 return;
             }
             
             if(first) {
-                zBase = z + (dsmBuf != null ? dsmBuf[ind] : 0);
+                zBase = z + getDsmZ(ind);
                 if(zBase > zTop) {
                     zBase = zTop;
                 }
@@ -542,12 +827,14 @@ public final class ComputeViewJava extends SimpleComputeView {
             }
             final double zEye = z + startZ;
             final double slopeEye = (zEye - zTop) / (dist+dd*Math.signum(zEye - zTop)*res/2);
-            if(view[ind] == 0 && slopeEye > maxSlope && dist >= bounds.getDmin()) {
+            final boolean own = sector == null || sector.isOwner(xx, yy);
+            if((!own || view[ind] == 0) && slopeEye > maxSlope && dist >= bounds.getDmin()) {
                 final double slopeEyeBase = (zEye - zBase) / (dist-dBase);
+                final double val;
                 if(slopeEyeBase >= maxSlopeBase) { // on voit l'élément en entier
                     final double z2 = Math.atan(slopeEyeBase);
                     final double z1 = Math.atan(Math.min(bounds.getSlopemax(), slopeEye));
-                    view[ind] = Math.abs(area ? rad2deg2((z2-z1) * 2*Math.atan((res/2) / dist)) : rad2deg(z2-z1));
+                    val = Math.abs(area ? rad2deg2((z2-z1) * 2*Math.atan((res/2) / dist)) : rad2deg(z2-z1));
                 } else {
                     final double zb = zTop + maxSlope * dist;
                     final double zh = zBase + maxSlopeBase * dist;
@@ -558,10 +845,15 @@ public final class ComputeViewJava extends SimpleComputeView {
                     final double zzi = zEye - (zi+zBase);
                     final double z2 = Math.atan(zzi / (dist+dd*Math.signum(zzi)*res/2));
                     final double z1 = Math.atan(Math.min(bounds.getSlopemax(), slopeEye));
-                    view[ind] = Math.abs(area ? rad2deg2((z2-z1) * 2*Math.atan((res/2) / dist)) : rad2deg(z2-z1));
+                    val = Math.abs(area ? rad2deg2((z2-z1) * 2*Math.atan((res/2) / dist)) : rad2deg(z2-z1));
+                }
+                if(own) {
+                    view[ind] = val;
+                } else {
+                    sector.defer(ind, val);
                 }
             } 
-            final double zDsm = z + (dsmBuf != null ? dsmBuf[ind] : 0);
+            final double zDsm = z + getDsmZ(ind);
             final double slope = (zDsm - zTop) / (dist+dd*Math.signum(zDsm - zTop)*res/2);
             if(slope > maxSlope) {
                 maxSlope = slope;
@@ -589,11 +881,20 @@ public final class ComputeViewJava extends SimpleComputeView {
      * @param startZ the height of the eye
      * @param destZ the eight of the observed point or -1
      * @param bounds the limits of the view
-     * @param view the resulting viewshed (buffer of the size of dtm data)
+     * @param view the resulting viewshed
      */
     private void calcRay(final boolean inverse, final GridCoordinates2D c0, final GridCoordinates2D c1, 
-            final double startZ, final double destZ, Bounds bounds, final byte[] view) {
-        if(bounds.isUnbounded() && !isEarthCurv() && !inverse && destZ == -1) {
+            final double startZ, final double destZ, Bounds bounds, final ViewBuffer view) {
+        if(view.scan != null) {
+            // the unbounded kernel does not feed the scan
+            if(!bounds.isOrienBounded() || bounds.isTheta1Included(Math.atan2(c0.y-c1.y, c1.x-c0.x))) {
+                if(inverse) {
+                    calcRayIndirect(c0, c1, startZ, destZ, bounds, view);
+                } else {
+                    calcRayDirect(c0, c1, startZ, destZ, bounds, view);
+                }
+            }
+        } else if(bounds.isUnbounded() && !isEarthCurv() && !inverse && destZ == -1) {
             calcRayDirectUnbound(c0, c1, startZ, view);
         } else {
             if(!bounds.isOrienBounded() || bounds.isTheta1Included(Math.atan2(c0.y-c1.y, c1.x-c0.x))) {
@@ -614,10 +915,10 @@ public final class ComputeViewJava extends SimpleComputeView {
      * @param startZ the height of the eye
      * @param destZ the height of observed point or -1
      * @param bounds the limits of the view
-     * @param view the result view (buffer of the size of dtm data)
+     * @param viewBuf the result view
      */
     private void calcRayDirect(final GridCoordinates2D c0, final GridCoordinates2D c1, final double startZ, 
-            final double destZ, Bounds bounds, final byte[] view) {
+            final double destZ, Bounds bounds, final ViewBuffer viewBuf) {
         final double res2D2 = getData().getResolution()*getData().getResolution();
         final int w = dtm.getWidth();
         final int dx = Math.abs(c1.x-c0.x);
@@ -628,12 +929,20 @@ public final class ComputeViewJava extends SimpleComputeView {
         int xx = 0;
         int yy = 0;
         int ind = c0.x + c0.y*w;
+        final byte[] view = viewBuf.buf;
+        final int vw = viewBuf.stride;
+        int vind = viewBuf.getIndex(c0.x, c0.y);
+        final ViewShedScan scan = viewBuf.scan;
         final int ind1 = c1.x + c1.y*w;
-        final double z0 = dtmBuf[ind] + startZ;
+        final double z0 = getDtmZ(ind) + startZ;
         
         if(bounds.getSlopemin() == Double.NEGATIVE_INFINITY && bounds.getDmin() == 0) {
-            view[ind] = 1;
+            if(scan != null && view[vind] == 0) {
+                scan.add(c0.x+xx, c0.y+yy);
+            }
+            view[vind] = 1;
         }
+        final BlockSkip skip = createBlockSkip(c0, z0 - Math.max(0, destZ), 0, true);
         double maxSlope = bounds.getSlopemin2();
         double maxZ = -Double.MAX_VALUE;
         while(ind != ind1) {           
@@ -642,14 +951,23 @@ public final class ComputeViewJava extends SimpleComputeView {
                 err -= dy;
                 xx += sx;
                 ind += sx;
+                vind += sx;
             }
             if(e2 < dx) {
                 err += dx;
                 yy += sy;
                 ind += sy*w;
+                vind += sy*vw;
+            }
+            
+            if(skip != null && skip.isHidden(c0.x+xx, c0.y+yy, maxSlope)) {
+                if(skip.isAllHidden()) {
+                    return;
+                }
+                continue;
             }
             
-            double z = dtmBuf[ind];
+            double z = getDtmZ(ind);
             if(Double.isNaN(z)) {
                 return;
             }
@@ -663,7 +981,7 @@ public final class ComputeViewJava extends SimpleComputeView {
             if(isEarthCurv()) {
                 z -= (1 - getCoefRefraction()) * d2 / EARTH_DIAM;
             }
-            final double zSurf = z + (dsmBuf != null ? dsmBuf[ind] : 0);
+            final double zSurf = z + getDsmZ(ind);
             final double zView = destZ == -1 ? zSurf : (z + destZ);
             
             if(maxSlope >= 0 && zSurf <= maxZ && zView <= maxZ) {
@@ -679,13 +997,19 @@ public final class ComputeViewJava extends SimpleComputeView {
             if(d2 >= bounds.getDmin2() && zView >= zSurf) {
                 if(zView == zSurf) {
                     if(slopeSurf > maxSlope) {
-                        view[ind] = 1;
+                        if(scan != null && view[vind] == 0) {
+                            scan.add(c0.x+xx, c0.y+yy);
+                        }
+                        view[vind] = 1;
                     }
                 } else {
                     final double zzView = (zView - z0);
                     final double slopeView = zzView*Math.abs(zzView) / d2;
                     if(slopeView > maxSlope) {
-                        view[ind] = 1;
+                        if(scan != null && view[vind] == 0) {
+                            scan.add(c0.x+xx, c0.y+yy);
+                        }
+                        view[vind] = 1;
                     }
                 }
             }
@@ -706,10 +1030,10 @@ public final class ComputeViewJava extends SimpleComputeView {
      * @param c0 the point of view, starting point of the ray
      * @param c1 the ending point of the ray
      * @param startZ the height of the eye
-     * @param view the result view (buffer of the size of dtm data)
+     * @param viewBuf the result view
      */
     private void calcRayDirectUnbound(final GridCoordinates2D c0, final GridCoordinates2D c1, final double startZ, 
-            final byte[] view) {
+            final ViewBuffer viewBuf) {
         final double res2D2 = getData().getResolution()*getData().getResolution();
         final int w = dtm.getWidth();
         final int dx = Math.abs(c1.x-c0.x);
@@ -720,11 +1044,15 @@ public final class ComputeViewJava extends SimpleComputeView {
         int xx = 0;
         int yy = 0;
         int ind = c0.x + c0.y*w;
+        final byte[] view = viewBuf.buf;
+        final int vw = viewBuf.stride;
+        int vind = viewBuf.getIndex(c0.x, c0.y);
         final int ind1 = c1.x + c1.y*w;
-        final double z0 = dtmBuf[ind] + startZ;
+        final double z0 = getDtmZ(ind) + startZ;
         
-        view[ind] = 1;
+        view[vind] = 1;
         
+        final BlockSkip skip = createBlockSkip(c0, z0, 0, true);
         double maxSlope = -Double.MAX_VALUE;
         double maxZ = -Double.MAX_VALUE;
         while(ind != ind1) {           
@@ -733,14 +1061,23 @@ public final class ComputeViewJava extends SimpleComputeView {
                 err -= dy;
                 xx += sx;
                 ind += sx;
+                vind += sx;
             }
             if(e2 < dx) {
                 err += dx;
                 yy += sy;
                 ind += sy*w;
+                vind += sy*vw;
+            }
+            
+            if(skip != null && skip.isHidden(c0.x+xx, c0.y+yy, maxSlope)) {
+                if(skip.isAllHidden()) {
+                    return;
+                }
+                continue;
             }
             
-            final double zSurf = dtmBuf[ind] + (dsmBuf != null ? dsmBuf[ind] : 0);
+            final double zSurf = getDtmZ(ind) + getDsmZ(ind);
             if(Double.isNaN(zSurf)) {
                 return;
             }
@@ -751,7 +1088,7 @@ public final class ComputeViewJava extends SimpleComputeView {
             final double zzSurf = (zSurf - z0);
             final double slopeSurf = zzSurf*Math.abs(zzSurf) / (res2D2 * (xx*xx + yy*yy));
             if(slopeSurf > maxSlope) {
-                view[ind] = 1;
+                view[vind] = 1;
                 maxSlope = slopeSurf;
             }
 
@@ -770,9 +1107,9 @@ public final class ComputeViewJava extends SimpleComputeView {
      * @param startZ the height of the point of view
      * @param destZ the height of observed point or -1
      * @param bounds the limits of the view
-     * @param view the result view (buffer of the size of dtm data)
+     * @param viewBuf the result view
      */
-    private void calcRayIndirect(final GridCoordinates2D c0, final GridCoordinates2D c1, final double startZ, double destZ, Bounds bounds, final byte[] view) {
+    private void calcRayIndirect(final GridCoordinates2D c0, final GridCoordinates2D c1, final double startZ, double destZ, Bounds bounds, final ViewBuffer viewBuf) {
         final double dsmZ = (getData().getDsm()!= null ? getData().getDsmRaster().getSampleDouble(c0.x, c0.y, 0) : 0);
         if(destZ != -1 && destZ < dsmZ) {
             return;
@@ -787,12 +1124,20 @@ public final class ComputeViewJava extends SimpleComputeView {
         int xx = 0;
         int yy = 0;
         int ind = c0.x + c0.y*w;
+        final byte[] view = viewBuf.buf;
+        final int vw = viewBuf.stride;
+        int vind = viewBuf.getIndex(c0.x, c0.y);
+        final ViewShedScan scan = viewBuf.scan;
         final int ind1 = c1.x + c1.y*w;
         
         if(bounds.getSlopemin() == Double.NEGATIVE_INFINITY && bounds.getDmin() == 0) {
-            view[ind] = 1;
+            if(scan != null && view[vind] == 0) {
+                scan.add(c0.x+xx, c0.y+yy);
+            }
+            view[vind] = 1;
         }
         
+        final BlockSkip skip = createBlockSkip(c0, z0 - Math.max(0, startZ), 0, true);
         double maxSlope = bounds.getSlopemin2();
         double maxZ = -Double.MAX_VALUE;
         while(ind != ind1) {
@@ -801,14 +1146,23 @@ public final class ComputeViewJava extends SimpleComputeView {
                 err -= dy;
                 xx += sx;
                 ind += sx;
+                vind += sx;
             }
             if(e2 < dx) {
                 err += dx;
                 yy += sy;
                 ind += sy*w;
+                vind += sy*vw;
             }
             
-            double z = dtmBuf[ind];
+            if(skip != null && skip.isHidden(c0.x+xx, c0.y+yy, maxSlope)) {
+                if(skip.isAllHidden()) {
+                    return;
+                }
+                continue;
+            }
+            
+            double z = getDtmZ(ind);
             if(Double.isNaN(z)) {
                 return;
             }
@@ -828,10 +1182,13 @@ public final class ComputeViewJava extends SimpleComputeView {
             final double slopeEye = zz*Math.abs(zz) / d2;
             if(slopeEye > maxSlope) {
                 if(d2 >= bounds.getDmin2() && slopeEye <= bounds.getSlopemax2()) {
-                    view[ind] = 1;
+                    if(scan != null && view[vind] == 0) {
+                        scan.add(c0.x+xx, c0.y+yy);
+                    }
+                    view[vind] = 1;
                 }
             } 
-            final double ztot = z + (dsmBuf != null ? dsmBuf[ind] : 0);
+            final double ztot = z + getDsmZ(ind);
             final double dz = ztot - z0;
             final double slope = dz*Math.abs(dz) / d2;
             if(slope > maxSlope) {
@@ -846,5 +1203,291 @@ public final class ComputeViewJava extends SimpleComputeView {
         }
    
     }
+
+    /**
+     * Groups the border pixels of the rectangle r by angular sector around cg.
+     * @param cg the center of the view in grid coordinate
+     * @param r the rectangle in grid coordinate containing cg
+     * @return for each sector, the pixel indices (x + y*w) of the border pixels
+     */
+    private int[][] getBorderSectors(GridCoordinates2D cg, Rectangle r) {
+        final int w = dtm.getWidth();
+        int [] border = new int[2*r.width + 2*Math.max(0, r.height-2)];
+        int n = 0;
+        for(int x = r.x; x < r.x+r.width; x++) {
+            border[n++] = x + r.y*w;
+            border[n++] = x + (r.y+r.height-1)*w;
+        }
+        for(int y = r.y+1; y < r.y+r.height-1; y++) {
+            border[n++] = r.x + y*w;
+            border[n++] = r.x+r.width-1 + y*w;
+        }
+        int [] count = new int[NB_SECTOR];
+        for(int ind : border) {
+            count[getSector(ind % w - cg.x, ind / w - cg.y)]++;
+        }
+        int [][] sectors = new int[NB_SECTOR][];
+        for(int i = 0; i < NB_SECTOR; i++) {
+            sectors[i] = new int[count[i]];
+            count[i] = 0;
+        }
+        for(int ind : border) {
+            final int s = getSector(ind % w - cg.x, ind / w - cg.y);
+            sectors[s][count[s]++] = ind;
+        }
+        return sectors;
+    }
+    
+    /**
+     * Returns the angular sector of a pixel relative to the center of the view.
+     * Uses a pseudo angle in [0-4[ (monotone with the true angle) to avoid trigonometry.
+     * @param xx the x offset of the pixel from the center
+     * @param yy the y offset (in grid coordinate ie. downward) of the pixel from the center
+     * @return the sector index in [0-NB_SECTOR[
+     */
+    private static int getSector(final int xx, final int yy) {
+        if(xx == 0 && yy == 0) {
+            return 0;
+        }
+        final int dy = -yy;
+        final double a;
+        if(dy >= 0) {
+            a = xx >= 0 ? (double)dy / (xx+dy) : 1 - (double)xx / (dy-xx);
+        } else {
+            a = xx < 0 ? 2 - (double)dy / (-xx-dy) : 3 + (double)xx / (xx-dy);
+        }
+        return Math.min(NB_SECTOR-1, (int)(a * NB_SECTOR / 4));
+    }
+    
+    /**
+     * Stores the writes of a sector task in the degree buffer for the pixels which do not belong to its sector.
+     * Each pixel is written directly only by the task of its own sector, so the "first ray wins" rule 
+     * of the degree viewshed stays without concurrent write.
+     */
+    private static final class SectorWriter {
+        private final int sector;
+        private int [] inds = new int[256];
+        private double [] vals = new double[256];
+        private int size = 0;
+
+        private SectorWriter(int sector) {
+            this.sector = sector;
+        }
+        
+        private boolean isOwner(final int xx, final int yy) {
+            return getSector(xx, yy) == sector;
+        }
+        
+        private void defer(final int ind, final double val) {
+            if(size == inds.length) {
+                inds = Arrays.copyOf(inds, size*2);
+                vals = Arrays.copyOf(vals, size*2);
+            }
+            inds[size] = ind;
+            vals[size] = val;
+            size++;
+        }
+        
+        private void flush(final double[] view) {
+            for(int i = 0; i < size; i++) {
+                if(view[inds[i]] == 0) {
+                    view[inds[i]] = vals[i];
+                }
+            }
+        }
+    }
+    
+    /**
+     * Byte view buffer covering a rectangle of the data.
+     * The buffer can be the rectangle itself or a larger raster (ie. a pooled raster of the size of the data).
+     * If the scan is not null, each pixel seen is added to the scan the first time it is set.
+     */
+    private static final class ViewBuffer {
+        private final Rectangle rect;
+        private final byte [] buf;
+        private final int stride;
+        private final int offset;
+        private final ViewShedScan scan;
+
+        /**
+         * @param rect the rectangle of the view in grid coordinate
+         * @param buf the byte buffer
+         * @param stride the line length of the buffer
+         * @param offset the index in buf of the upper left pixel of rect
+         */
+        private ViewBuffer(Rectangle rect, byte[] buf, int stride, int offset) {
+            this.rect = rect;
+            this.buf = buf;
+            this.stride = stride;
+            this.offset = offset;
+            this.scan = null;
+        }
+        
+        /**
+         * Creates the same buffer feeding the scan
+         * @param view the view buffer
+         * @param scan the started scan
+         */
+        private ViewBuffer(ViewBuffer view, ViewShedScan scan) {
+            this.rect = view.rect;
+            this.buf = view.buf;
+            this.stride = view.stride;
+            this.offset = view.offset;
+            this.scan = scan;
+        }
+        
+        private int getIndex(final int x, final int y) {
+            return offset + (x-rect.x) + (y-rect.y)*stride;
+        }
+    }
+    
+    /**
+     * Block skipping state of one ray.
+     * The pyramid is tested each time the ray enters a new block of the first level, 
+     * then all the pixels of the highest hidden block are skipped.
+     */
+    private static final class BlockSkip {
+        private final MaxZPyramid pyramid;
+        private final int cx, cy;
+        private final double res, z0, dOffset;
+        private final boolean squared;
+        private int blockX = -1, blockY = -1;
+        private int skipBits, skipX, skipY;
+        private boolean allHidden;
+
+        private BlockSkip(MaxZPyramid pyramid, GridCoordinates2D c0, double res, double z0, double dOffset, boolean squared) {
+            this.pyramid = pyramid;
+            this.cx = c0.x;
+            this.cy = c0.y;
+            this.res = res;
+            this.z0 = z0;
+            this.dOffset = dOffset;
+            this.squared = squared;
+        }
+
+        /**
+         * @param x x of the current pixel of the ray
+         * @param y y of the current pixel of the ray
+         * @param maxSlope the current maximal slope of the ray
+         * @return true if the pixel is in a hidden block and must be skipped
+         */
+        private boolean isHidden(int x, int y, double maxSlope) {
+            if(skipBits > 0) {
+                if(x >> skipBits == skipX && y >> skipBits == skipY) {
+                    return true;
+                }
+                skipBits = 0;
+            }
+            if(maxSlope < 0) {
+                return false;
+            }
+            final int bx = x >> MaxZPyramid.BLOCK_BITS;
+            final int by = y >> MaxZPyramid.BLOCK_BITS;
+            if(bx == blockX && by == blockY) {
+                return false;
+            }
+            blockX = bx;
+            blockY = by;
+            final int level = pyramid.getHiddenLevel(x, y, cx, cy, res, z0, squared ? Math.sqrt(maxSlope) : maxSlope, dOffset);
+            if(level == -1) {
+                return false;
+            }
+            skipBits = pyramid.getBlockBits(level);
+            skipX = x >> skipBits;
+            skipY = y >> skipBits;
+            allHidden = level == pyramid.getNbLevel()-1;
+            return true;
+        }
+
+        /**
+         * @return true if all the data is hidden, the ray can be stopped
+         */
+        private boolean isAllHidden() {
+            return allHidden;
+        }
+    }
+    
+    /**
+     * Calculates a block of azimuth columns, for parallel tangential view.
+     * Each column is written by only one task.
+     */
+    private final class TanColumnTask extends RecursiveAction {
+        private final GridCoordinates2D cg;
+        private final double startZ;
+        private final Bounds bounds;
+        private final SpanViewTanResult view;
+        private final int ax0, ax1;
+
+        private TanColumnTask(GridCoordinates2D cg, double startZ, Bounds bounds, SpanViewTanResult view, int ax0, int ax1) {
+            this.cg = cg;
+            this.startZ = startZ;
+            this.bounds = bounds;
+            this.view = view;
+            this.ax0 = ax0;
+            this.ax1 = ax1;
+        }
+
+        @Override
+        protected void compute() {
+            calcRayTan(cg, startZ, bounds, view, ax0, ax1);
+        }
+    }
+    
+    /**
+     * Calculates all the rays of one angular sector, for parallel viewshed.
+     * In byte mode, the rays of different sectors can write the same pixels concurrently, 
+     * but they always write 1, so the result does not depend on the order.
+     */
+    private final class SectorRayTask extends RecursiveAction {
+        private final boolean inverse;
+        private final GridCoordinates2D cg;
+        private final int [] sector;
+        private final double startZ, destZ;
+        private final Bounds bounds;
+        private final ViewBuffer view;
+        private final double [] viewDeg;
+        private final boolean area;
+        private final int dd;
+        private final SectorWriter writer;
+
+        private SectorRayTask(boolean inverse, GridCoordinates2D cg, int[] sector, double startZ, double destZ, Bounds bounds, ViewBuffer view) {
+            this(inverse, cg, sector, startZ, destZ, bounds, view, null, false, 1, null);
+        }
+        
+        private SectorRayTask(boolean inverse, GridCoordinates2D cg, int[] sector, double startZ, double destZ, Bounds bounds, 
+                double[] viewDeg, boolean area, int dd, SectorWriter writer) {
+            this(inverse, cg, sector, startZ, destZ, bounds, null, viewDeg, area, dd, writer);
+        }
+        
+        private SectorRayTask(boolean inverse, GridCoordinates2D cg, int[] sector, double startZ, double destZ, Bounds bounds, 
+                ViewBuffer view, double[] viewDeg, boolean area, int dd, SectorWriter writer) {
+            this.inverse = inverse;
+            this.cg = cg;
+            this.sector = sector;
+            this.startZ = startZ;
+            this.destZ = destZ;
+            this.bounds = bounds;
+            this.view = view;
+            this.viewDeg = viewDeg;
+            this.area = area;
+            this.dd = dd;
+            this.writer = writer;
+        }
+        
+        @Override
+        protected void compute() {
+            final int w = dtm.getWidth();
+            GridCoordinates2D c = new GridCoordinates2D();
+            for(int ind : sector) {
+                c.x = ind % w;
+                c.y = ind / w;
+                if(view != null) {
+                    calcRay(inverse, cg, c, startZ, destZ, bounds, view);
+                } else {
+                    calcRayDeg(inverse, cg, c, startZ, destZ, bounds, viewDeg, area, dd, writer);
+                }
+            }
+        }
+    }
     
 }
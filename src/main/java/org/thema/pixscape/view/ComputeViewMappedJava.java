@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.MappedRaster;
+import org.thema.pixscape.ScaleData;
+
+/**
+ * Implementation of SimpleComputeView in Java for data mapped in memory (see {@link ScaleData#map(java.io.File) }).
+ * Used when the rasters do not fit in the java heap.
+ * The ray kernels are the same as {@link ComputeViewJava} but read the mapped rasters with long indices.
+ * The viewsheds are calculated in the dmax window only and returned as {@link WindowViewShedResult},
+ * so the distance must be bounded when the data is larger than 2^31 pixels.
+ *
+ * @author Gilles Vuidel
+ */
+public final class ComputeViewMappedJava extends SimpleComputeView {
+
+    /**
+     * Number of border pixels calculated by one task in parallel mode
+     */
+    private static final int NB_RAY_TASK = 256;
+
+    private final MappedRaster dtm, dsm;
+    private final int w, h;
+
+    /**
+     * Creates a new ComputeViewMappedJava.
+     * @param data the data for this resolution, must be mapped
+     * @param aPrec the precision in degree for tangential view
+     * @param earthCurv true for taking into account earth curvature
+     * @param coefRefraction refraction correction coefficient, 0 for no correction
+     * @throws IllegalArgumentException if the data is not mapped
+     */
+    public ComputeViewMappedJava(ScaleData data, double aPrec, boolean earthCurv, double coefRefraction) {
+        super(data, aPrec, earthCurv, coefRefraction);
+        if(!data.isMapped()) {
+            throw new IllegalArgumentException("The data is not mapped in memory");
+        }
+        this.dtm = data.getMappedDtm();
+        this.dsm = data.getMappedDsm();
+        this.w = dtm.getWidth();
+        this.h = dtm.getHeight();
+    }
+
+    @Override
+    public double calcRay(final GridCoordinates2D c0, final double startZ, final GridCoordinates2D c1,
+            final double destZ, Bounds bounds, boolean area) {
+        return calcRay(c0, startZ, c1, destZ, bounds, area, 1);
+    }
+
+    public double calcRay(final GridCoordinates2D c0, final double startZ, final GridCoordinates2D c1,
+            final double destZ, Bounds bounds, boolean area, int dd) {
+
+        if(bounds.isOrienBounded() && !bounds.isTheta1Included(Math.atan2(c0.y-c1.y, c1.x-c0.x))) {
+            return 0;
+        }
+        final double res = getData().getResolution();
+        final int dx = Math.abs(c1.x-c0.x);
+        final int dy = Math.abs(c1.y-c0.y);
+        final int sx = c0.x < c1.x ? 1 : -1;
+        final int sy = c0.y < c1.y ? 1 : -1;
+        int err = dx-dy;
+        int xx = 0;
+        int yy = 0;
+        long ind = c0.x + c0.y*(long)w;
+        final long ind1 = c1.x + c1.y*(long)w;
+        final double z0 = dtm.getFloat(ind) + startZ;
+
+        if(ind == ind1 && bounds.getDmin() == 0) {
+            final double si = Math.min(-startZ / (res/2), bounds.getSlopemax());
+            if(bounds.getSlopemin() < si) {
+                final double a1 = Math.atan(si);
+                final double a2 = Math.atan(bounds.getSlopemin());
+                return area ? rad2deg2(Math.pow(2*(a1-a2), 2)) : rad2deg(2*(a1-a2));
+            }
+        }
+        // max slope at end point
+        double zEnd = dtm.getFloat(ind1) + (destZ == -1 ? (dsm != null ? dsm.getFloat(ind1) : 0) : destZ);
+        double dTot = c0.distance(c1) * res;
+        if(isEarthCurv()) {
+            zEnd -= (1 - getCoefRefraction()) * dTot*dTot / EARTH_DIAM;
+        }
+        double zzEnd = zEnd - z0;
+        double maxSlopeBound = Math.min(zzEnd / (dTot-dd*Math.signum(zzEnd)*res/2), bounds.getSlopemax());
+
+        double maxSlope = Math.max(-startZ / (res/2), bounds.getSlopemin());
+        while(ind != ind1) {
+            if(maxSlope > maxSlopeBound) {
+                return 0;
+            }
+            final int e2 = (err << 1);
+            if(e2 > -dy) {
+                err -= dy;
+                xx += sx;
+                ind += sx;
+            }
+            if(e2 < dx) {
+                err += dx;
+                yy += sy;
+                ind += sy*(long)w;
+            }
+
+            double z = dtm.getFloat(ind);
+            if(Double.isNaN(z)) {
+                return 0;
+            }
+
+            // distance
+            final double dist = res * Math.sqrt(xx*xx + yy*yy);
+            if(dist >= bounds.getDmax()) {
+                return 0;
+            }
+
+            if(isEarthCurv()) {
+                z -= (1 - getCoefRefraction()) * dist*dist / EARTH_DIAM;
+            }
+            final double zSurf = z + (dsm != null ? dsm.getFloat(ind) : 0);
+
+            if(ind == ind1 && dist >= bounds.getDmin()) {
+                final double zView = destZ == -1 ? zSurf : (z + destZ);
+                final double zzView = (zView - z0);
+                final double slopeView = zzView / (dist-dd*Math.signum(zzView)*res/2);
+                if(slopeView > maxSlope) {
+                    final double z1 = Math.atan(Math.min(slopeView, bounds.getSlopemax()));
+                    final double z2 = Math.atan(maxSlope);
+                    return Math.abs(area ? rad2deg2((z1-z2) * 2*Math.atan((res/2) / dist)) : rad2deg(z1-z2));
+                }
+
+            }
+
+            final double zzSurf = (zSurf - z0);
+            final double slopeSurf = zzSurf / (dist-dd*Math.signum(zzSurf)*res/2);
+            if(slopeSurf > maxSlope) {
+                maxSlope = slopeSurf;
+            }
+        }
+
+        return 0;
+
+    }
+
+    /**
+     * {@inheritDoc }
+     * The result is always a {@link WindowViewShedResult}, the window is the dmax square around cg inside the data.
+     * @throws IllegalArgumentException if the distance is not bounded and the data is larger than 2^31 pixels
+     */
+    @Override
+    public ViewShedResult calcViewShed(DirectPosition2D p, double startZ, double destZ, boolean inverse, Bounds bounds)  {
+        long time = System.currentTimeMillis();
+        final GridCoordinates2D cg = getWorld2Grid(p);
+        Rectangle window = getViewRect(cg, bounds);
+        window = window == null ? new Rectangle(w, h) : window.intersection(new Rectangle(w, h));
+        if((long)window.width * window.height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The viewshed is too large, the maximum distance must be bounded");
+        }
+        final WritableRaster view = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, window.width, window.height, 1, null);
+        final byte[] viewBuf = ((DataBufferByte)view.getDataBuffer()).getData();
+
+        final int[][] border = getBorder(window);
+        if(isParallel()) {
+            List<RayTask> tasks = new ArrayList<>();
+            for(int i = 0; i < border[0].length; i += NB_RAY_TASK) {
+                tasks.add(new RayTask(inverse, cg, border, i, Math.min(i+NB_RAY_TASK, border[0].length),
+                        startZ, destZ, bounds, window, viewBuf));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            new RayTask(inverse, cg, border, 0, border[0].length, startZ, destZ, bounds, window, viewBuf).compute();
+        }
+        Logger.getLogger(ComputeViewMappedJava.class.getName()).fine((System.currentTimeMillis()-time) + " ms");
+        return new WindowViewShedResult(cg, view, window, this);
+    }
+
+    /**
+     * Not supported
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public ViewShedResult calcViewShedDeg(DirectPosition2D cg, double startZ, double destZ, boolean inverse, Bounds bounds, boolean area) {
+        throw new UnsupportedOperationException("Not supported for mapped data");
+    }
+
+    /**
+     * Not supported
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public ViewTanResult calcViewTan(DirectPosition2D cg, double startZ, Bounds bounds) {
+        throw new UnsupportedOperationException("Not supported for mapped data");
+    }
+
+    /**
+     * Not supported
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public WritableRaster calcTotalViewShed(double startZ, double destZ, boolean inverse, Bounds bounds, int nbSector) {
+        throw new UnsupportedOperationException("Not supported for mapped data");
+    }
+
+    /**
+     * The viewsheds are already limited to their window, the buffer pool is not used.
+     * @return null
+     */
+    @Override
+    public ViewBufferPool getBufferPool() {
+        return null;
+    }
+
+    /**
+     * @param r a rectangle in grid coordinate
+     * @return the x and y coordinates of the border pixels of r
+     */
+    private static int[][] getBorder(Rectangle r) {
+        final int n = r.height == 1 ? r.width : 2*r.width + 2*Math.max(0, r.height-2);
+        final int[] xs = new int[n];
+        final int[] ys = new int[n];
+        int i = 0;
+        for(int x = r.x; x < r.x+r.width; x++) {
+            xs[i] = x;
+            ys[i++] = r.y;
+            if(r.height > 1) {
+                xs[i] = x;
+                ys[i++] = r.y+r.height-1;
+            }
+        }
+        for(int y = r.y+1; y < r.y+r.height-1; y++) {
+            xs[i] = r.x;
+            ys[i++] = y;
+            xs[i] = r.x+r.width-1;
+            ys[i++] = y;
+        }
+        return new int[][] {xs, ys};
+    }
+
+    /**
+     * Calculates the ray from c0 to c1.
+     * Set view to 1 when the pixel is seen from the point of view c0.
+     * Same as {@link ComputeViewJava} direct ray kernel.
+     * @param c0 the point of view, starting point of the ray
+     * @param c1 the ending point of the ray
+     * @param startZ the height of the eye
+     * @param destZ the height of observed point or -1
+     * @param bounds the limits of the view
+     * @param window the window of the view in grid coordinate
+     * @param view the result view of the window
+     */
+    private void calcRayDirect(final GridCoordinates2D c0, final GridCoordinates2D c1, final double startZ,
+            final double destZ, Bounds bounds, final Rectangle window, final byte[] view) {
+        final double res2D2 = getData().getResolution()*getData().getResolution();
+        final int dx = Math.abs(c1.x-c0.x);
+        final int dy = Math.abs(c1.y-c0.y);
+        final int sx = c0.x < c1.x ? 1 : -1;
+        final int sy = c0.y < c1.y ? 1 : -1;
+        int err = dx-dy;
+        int xx = 0;
+        int yy = 0;
+        long ind = c0.x + c0.y*(long)w;
+        final int vw = window.width;
+        int vind = (c0.x-window.x) + (c0.y-window.y)*vw;
+        final long ind1 = c1.x + c1.y*(long)w;
+        final double z0 = dtm.getFloat(ind) + startZ;
+
+        if(bounds.getSlopemin() == Double.NEGATIVE_INFINITY && bounds.getDmin() == 0) {
+            view[vind] = 1;
+        }
+        double maxSlope = bounds.getSlopemin2();
+        double maxZ = -Double.MAX_VALUE;
+        while(ind != ind1) {
+            final int e2 = (err << 1);
+            if(e2 > -dy) {
+                err -= dy;
+                xx += sx;
+                ind += sx;
+                vind += sx;
+            }
+            if(e2 < dx) {
+                err += dx;
+                yy += sy;
+                ind += sy*(long)w;
+                vind += sy*vw;
+            }
+
+            double z = dtm.getFloat(ind);
+            if(Double.isNaN(z)) {
+                return;
+            }
+
+            // distance au carré
+            final double d2 = res2D2 * (xx*xx + yy*yy);
+            if(d2 >= bounds.getDmax2()) {
+                return;
+            }
+
+            if(isEarthCurv()) {
+                z -= (1 - getCoefRefraction()) * d2 / EARTH_DIAM;
+            }
+            final double zSurf = z + (dsm != null ? dsm.getFloat(ind) : 0);
+            final double zView = destZ == -1 ? zSurf : (z + destZ);
+
+            if(maxSlope >= 0 && zSurf <= maxZ && zView <= maxZ) {
+                continue;
+            }
+
+            final double zzSurf = (zSurf - z0);
+            final double slopeSurf = zzSurf*Math.abs(zzSurf) / d2;
+            if(slopeSurf > bounds.getSlopemax2()) {
+                return;
+            }
+
+            if(d2 >= bounds.getDmin2() && zView >= zSurf) {
+                if(zView == zSurf) {
+                    if(slopeSurf > maxSlope) {
+                        view[vind] = 1;
+                    }
+                } else {
+                    final double zzView = (zView - z0);
+                    final double slopeView = zzView*Math.abs(zzView) / d2;
+                    if(slopeView > maxSlope) {
+                        view[vind] = 1;
+                    }
+                }
+            }
+            if(slopeSurf > maxSlope) {
+                maxSlope = slopeSurf;
+            }
+            if(zSurf > maxZ) {
+                maxZ = zSurf;
+            }
+        }
+
+    }
+
+    /**
+     * Calculates the ray from c0 to c1 in inverse mode.
+     * Set view to 1 when the pixel sees the observed point c0.
+     * Same as {@link ComputeViewJava} indirect ray kernel.
+     * @param c0 the observed point, starting point of the ray
+     * @param c1 the ending point of the ray
+     * @param startZ the height of the eye
+     * @param destZ the height of observed point or -1
+     * @param bounds the limits of the view
+     * @param window the window of the view in grid coordinate
+     * @param view the result view of the window
+     */
+    private void calcRayIndirect(final GridCoordinates2D c0, final GridCoordinates2D c1, final double startZ,
+            double destZ, Bounds bounds, final Rectangle window, final byte[] view) {
+        long ind = c0.x + c0.y*(long)w;
+        final double dsmZ = dsm != null ? dsm.getFloat(ind) : 0;
+        if(destZ != -1 && destZ < dsmZ) {
+            return;
+        }
+        final double z0 = dtm.getFloat(ind) + (destZ != -1 ? destZ : dsmZ);
+        final double res2D2 = getData().getResolution()*getData().getResolution();
+        final int dx = Math.abs(c1.x-c0.x);
+        final int dy = Math.abs(c1.y-c0.y);
+        final int sx = c0.x < c1.x ? 1 : -1;
+        final int sy = c0.y < c1.y ? 1 : -1;
+        int err = dx-dy;
+        int xx = 0;
+        int yy = 0;
+        final int vw = window.width;
+        int vind = (c0.x-window.x) + (c0.y-window.y)*vw;
+        final long ind1 = c1.x + c1.y*(long)w;
+
+        if(bounds.getSlopemin() == Double.NEGATIVE_INFINITY && bounds.getDmin() == 0) {
+            view[vind] = 1;
+        }
+
+        double maxSlope = bounds.getSlopemin2();
+        double maxZ = -Double.MAX_VALUE;
+        while(ind != ind1) {
+            final int e2 = err << 1;
+            if(e2 > -dy) {
+                err -= dy;
+                xx += sx;
+                ind += sx;
+                vind += sx;
+            }
+            if(e2 < dx) {
+                err += dx;
+                yy += sy;
+                ind += sy*(long)w;
+                vind += sy*vw;
+            }
+
+            double z = dtm.getFloat(ind);
+            if(Double.isNaN(z)) {
+                return;
+            }
+
+            final double d2 = res2D2 * (xx*xx + yy*yy);
+            if(d2 >= bounds.getDmax2()) {
+                return;
+            }
+            if(isEarthCurv()) {
+                z -= (1 - getCoefRefraction()) * d2 / EARTH_DIAM;
+            }
+            if(maxSlope >= 0 && z+startZ <= maxZ) {
+                continue;
+            }
+
+            final double zz = z + startZ - z0;
+            final double slopeEye = zz*Math.abs(zz) / d2;
+            if(slopeEye > maxSlope) {
+                if(d2 >= bounds.getDmin2() && slopeEye <= bounds.getSlopemax2()) {
+                    view[vind] = 1;
+                }
+            }
+            final double ztot = z + (dsm != null ? dsm.getFloat(ind) : 0);
+            final double dz = ztot - z0;
+            final double slope = dz*Math.abs(dz) / d2;
+            if(slope > maxSlope) {
+                maxSlope = slope;
+            }
+            if(maxSlope > bounds.getSlopemax2()) {
+                return;
+            }
+            if(ztot > maxZ) {
+                maxZ = ztot;
+            }
+        }
+
+    }
+
+    /**
+     * Calculates the rays from cg to a range of border pixels of the window.
+     * The rays of different tasks can write the same pixels concurrently,
+     * but they always write 1, so the result does not depend on the order.
+     */
+    private final class RayTask extends RecursiveAction {
+        private final boolean inverse;
+        private final GridCoordinates2D cg;
+        private final int[][] border;
+        private final int start, end;
+        private final double startZ, destZ;
+        private final Bounds bounds;
+        private final Rectangle window;
+        private final byte[] view;
+
+        private RayTask(boolean inverse, GridCoordinates2D cg, int[][] border, int start, int end,
+                double startZ, double destZ, Bounds bounds, Rectangle window, byte[] view) {
+            this.inverse = inverse;
+            this.cg = cg;
+            this.border = border;
+            this.start = start;
+            this.end = end;
+            this.startZ = startZ;
+            this.destZ = destZ;
+            this.bounds = bounds;
+            this.window = window;
+            this.view = view;
+        }
+
+        @Override
+        protected void compute() {
+            GridCoordinates2D c = new GridCoordinates2D();
+            for(int i = start; i < end; i++) {
+                c.x = border[0][i];
+                c.y = border[1][i];
+                if(bounds.isOrienBounded() && !bounds.isTheta1Included(Math.atan2(cg.y-c.y, c.x-cg.x))) {
+                    continue;
+                }
+                if(inverse) {
+                    calcRayIndirect(cg, c, startZ, destZ, bounds, window, view);
+                } else {
+                    calcRayDirect(cg, c, startZ, destZ, bounds, window, view);
+                }
+            }
+        }
+    }
+}
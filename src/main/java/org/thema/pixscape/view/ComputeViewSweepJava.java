@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.ScaleData;
+import org.thema.pixscape.metric.ViewShedMetric;
+
+/**
+ * Implementation of SimpleComputeView with a radial sweep algorithm (Van Kreveld) for the direct viewshed.
+ *
+ * Instead of casting one ray per border pixel, each cell is processed once : a half line turns around the point of view
+ * and the cells crossed by the half line are stored in a balanced tree ordered by distance to the point of view.
+ * When the half line passes through the center of a cell, the cell is visible if its slope is greater
+ * than the maximum slope of the nearer cells in the tree. The cost is O(n log n) instead of O(n.perimeter) for ray casting.
+ * The sweep is done independently for each octant around the point of view.
+ * Each octant is swept by slices of angle of about 2^18 cells, so that the events of a slice only are kept in memory.
+ *
+ * Like a Bresenham ray, a line of sight is blocked by a cell when it crosses the center line of the cell
+ * perpendicular to the main direction of the octant. The result is very close to ray casting but not identical, 
+ * as ray casting tests each cell along the ray to the border instead of the line of sight to the cell center.
+ * Inverse viewshed, viewshed in degree, tangential view and single ray are delegated to {@link ComputeViewJava}.
+ *
+ * @author Gilles Vuidel
+ */
+public final class ComputeViewSweepJava extends SimpleComputeView {
+
+    private static final int NB_OCTANT = 8;
+
+    // at the same angle, enter before center before exit : a line of sight passing at the end of the center line of a cell is blocked
+    private static final int ENTER = 0;
+    private static final int CENTER = 1;
+    private static final int EXIT = 2;
+
+    /** default maximum number of cells of a slice of octant */
+    private static final int SLICE_CELLS = 1 << 18;
+
+    private final float[] dtmBuf;
+    private final float[] dsmBuf;
+    private final Raster dtm;
+    private int sliceCells = SLICE_CELLS;
+
+    /**
+     * Creates a new ComputeViewSweepJava.
+     * @param data the data for this resolution
+     * @param aPrec the precision in degree for tangential view
+     * @param earthCurv true for taking into account earth curvature
+     * @param coefRefraction refraction correction coefficient, 0 for no correction
+     * @throws IllegalArgumentException if the elevations are quantized
+     */
+    public ComputeViewSweepJava(ScaleData data, double aPrec, boolean earthCurv, double coefRefraction) {
+        super(data, aPrec, earthCurv, coefRefraction);
+        if(data.isQuantized()) {
+            throw new IllegalArgumentException("Radial sweep does not support quantized elevations");
+        }
+        this.dtm = data.getDtmRaster();
+        this.dtmBuf = ((DataBufferFloat)dtm.getDataBuffer()).getData();
+        this.dsmBuf = data.getDsm() != null ? ((DataBufferFloat)data.getDsmRaster().getDataBuffer()).getData() : null;
+    }
+
+    /**
+     * Sets the number of cells of the slices of octant swept at once.
+     * It bounds the memory used by the events of one octant, the result does not depend on it.
+     * @param sliceCells the maximum number of cells of a slice, approximately
+     */
+    void setSliceCells(int sliceCells) {
+        if(sliceCells < 1 || sliceCells >= 1 << 29) {
+            throw new IllegalArgumentException("Bad slice size : " + sliceCells);
+        }
+        this.sliceCells = sliceCells;
+    }
+
+    @Override
+    public double calcRay(GridCoordinates2D c0, double startZ, GridCoordinates2D c1, double destZ, Bounds bounds, boolean area) {
+        return createRayView().calcRay(c0, startZ, c1, destZ, bounds, area);
+    }
+
+    @Override
+    public ViewShedResult calcViewShedDeg(DirectPosition2D p, double startZ, double destZ, boolean inverse, Bounds bounds, boolean area) {
+        return createRayView().calcViewShedDeg(p, startZ, destZ, inverse, bounds, area);
+    }
+
+    @Override
+    public ViewTanResult calcViewTan(DirectPosition2D p, double startZ, Bounds bounds) {
+        return createRayView().calcViewTan(p, startZ, bounds);
+    }
+
+    @Override
+    public ViewTanResult calcViewTan(DirectPosition2D p, double startZ, Bounds bounds, boolean parallel) {
+        return createRayView().calcViewTan(p, startZ, bounds, parallel);
+    }
+
+    /**
+     * {@inheritDoc }
+     * In pooled mode, the viewshed is calculated in the buffer of the current thread.
+     */
+    @Override
+    public List<Double[]> aggrViewShed(DirectPosition2D p, double startZ, double destZ, boolean inverse, Bounds bounds, List<? extends ViewShedMetric> metrics) {
+        if(!isPooled()) {
+            return super.aggrViewShed(p, startZ, destZ, inverse, bounds, metrics);
+        }
+        GridCoordinates2D cg = getWorld2Grid(p);
+        WritableRaster view = getBufferPool().getBuffer(getViewRect(cg, bounds));
+        ViewShedResult result = inverse ? createRayView().calcViewShed(cg, startZ, destZ, true, bounds, view) 
+                : calcViewShed(cg, startZ, destZ, bounds, view);
+        return calcMetrics(result, metrics);
+    }
+
+    @Override
+    public ViewShedResult calcViewShed(DirectPosition2D p, double startZ, double destZ, boolean inverse, Bounds bounds) {
+        if(inverse) {
+            return createRayView().calcViewShed(p, startZ, destZ, inverse, bounds);
+        }
+        WritableRaster view = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, dtm.getWidth(), dtm.getHeight(), 1, null);
+        return calcViewShed(getWorld2Grid(p), startZ, destZ, bounds, view);
+    }
+
+    /**
+     * Calculate the direct viewshed from cg in the given empty raster.
+     *
+     * @param cg the point of view in grid coordinate
+     * @param startZ the height of the eye of the observer
+     * @param destZ the height of the observed points, -1 if not used
+     * @param bounds the limits of the viewshed
+     * @param view empty byte raster of the size of dtm data
+     * @return the resulting viewshed
+     */
+    private ViewShedResult calcViewShed(GridCoordinates2D cg, double startZ, double destZ, Bounds bounds, WritableRaster view) {
+        long time = System.currentTimeMillis();
+        byte [] viewBuf = ((DataBufferByte)view.getDataBuffer()).getData();
+
+        if(bounds.getSlopemin() == Double.NEGATIVE_INFINITY && bounds.getDmin() == 0) {
+            viewBuf[cg.x + cg.y*dtm.getWidth()] = 1;
+        }
+        if(isParallel()) {
+            List<OctantTask> tasks = new ArrayList<>();
+            for(int k = 0; k < NB_OCTANT; k++) {
+                tasks.add(new OctantTask(k, cg, startZ, destZ, bounds, viewBuf));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for(int k = 0; k < NB_OCTANT; k++) {
+                sweepOctant(k, cg, startZ, destZ, bounds, viewBuf);
+            }
+        }
+        Logger.getLogger(ComputeViewSweepJava.class.getName()).fine((System.currentTimeMillis()-time) + " ms");
+        return new SimpleViewShedResult(cg, view, this);
+    }
+
+    /**
+     * Sweeps one octant around cg.
+     * The octant is processed in a local frame (u, v) with 0 &lt;= v &lt;= u (angle phi in [0-PI/4]),
+     * obtained from the grid offsets by symmetry.
+     * The cells on the axis and on the diagonals belong to 2 octants, their visibility is calculated only by one of them.
+     *
+     * @param k the octant index in [0-7], counterclockwise from the east
+     * @param cg the point of view in grid coordinate
+     * @param startZ the height of the eye
+     * @param destZ the height of the observed points or -1
+     * @param bounds the limits of the viewshed
+     * @param view the resulting viewshed (buffer of the size of dtm data)
+     */
+    private void sweepOctant(final int k, final GridCoordinates2D cg, final double startZ, final double destZ,
+            final Bounds bounds, final byte[] view) {
+        final int w = dtm.getWidth();
+        final int h = dtm.getHeight();
+        final double res = getData().getResolution();
+        final double res2 = res*res;
+        final double z0 = dtmBuf[cg.x + cg.y*w] + startZ;
+        final double curvCoef = isEarthCurv() ? (1 - getCoefRefraction()) / EARTH_DIAM : 0;
+        final boolean odd = (k & 1) == 1;
+        int maxU = Math.max(Math.max(cg.x, w-1-cg.x), Math.max(cg.y, h-1-cg.y));
+        if(bounds.getDmax() != Double.POSITIVE_INFINITY) {
+            maxU = Math.min(maxU, (int)Math.ceil(bounds.getDmax() / res));
+        }
+
+        // the octant is swept by slices of angle, each slice containing about the same number of cells,
+        // so that the events of one slice only are in memory
+        final double nbCell = Math.min((double)maxU*maxU/2, Math.PI*bounds.getDmax2()/res2/NB_OCTANT);
+        final int nSlice = (int) Math.max(1, Math.ceil(nbCell / sliceCells));
+        int [] cells = new int[1024];
+        long [] events = new long[3072];
+        for(int s = 0; s < nSlice; s++) {
+            // the number of cells is proportional to the tangent of the angle
+            final double t0 = s / (double)nSlice;
+            final double t1 = (s+1) / (double)nSlice;
+            final float a0 = (float)Math.atan(t0);
+            final float a1 = s == nSlice-1 ? Float.POSITIVE_INFINITY : (float)Math.atan(t1);
+            int nCell = 0, nEvent = 0;
+            final SlopeTreap active = new SlopeTreap();
+            for(int u = 1; u <= maxU; u++) {
+                final int vMin = Math.max(0, (int)Math.floor(u*t0 - 0.5) - 1);
+                final int vMax = Math.min(u, (int)Math.ceil(u*t1 + 0.5) + 1);
+                for(int v = vMin; v <= vMax; v++) {
+                    final float aStart = (float)Math.atan2(v-0.5, u);
+                    final float aEnd = (float)Math.atan2(v+0.5, u);
+                    if(aEnd < a0 || aStart >= a1) {
+                        continue;
+                    }
+                    final int x = cg.x + getDx(k, u, v);
+                    final int y = cg.y - getDy(k, u, v);
+                    if(x < 0 || y < 0 || x >= w || y >= h) {
+                        continue;
+                    }
+                    final long d2 = (long)u*u + (long)v*v;
+                    if(res2*d2 >= bounds.getDmax2()) {
+                        continue;
+                    }
+                    if(nCell == cells.length) {
+                        cells = Arrays.copyOf(cells, nCell*2);
+                    }
+                    final int id = nCell++;
+                    cells[id] = x + y*w;
+
+                    if(nEvent+3 > events.length) {
+                        events = Arrays.copyOf(events, events.length*2);
+                    }
+                    if(aStart < a0) {
+                        active.insert(d2, id, getSlope(cells[id], d2, res2, z0, curvCoef));
+                    } else {
+                        events[nEvent++] = createEvent(aStart, ENTER, id);
+                    }
+                    final float aCenter = (float)Math.atan2(v, u);
+                    if(!(odd && v == 0) && !(!odd && v == u) && aCenter >= a0 && aCenter < a1) {
+                        events[nEvent++] = createEvent(aCenter, CENTER, id);
+                    }
+                    if(aEnd < a1) {
+                        events[nEvent++] = createEvent(aEnd, EXIT, id);
+                    }
+                }
+            }
+            Arrays.sort(events, 0, nEvent);
+            sweepEvents(cg, z0, curvCoef, destZ, bounds, cells, events, nEvent, active, view);
+        }
+    }
+
+    /**
+     * Processes the sorted events of one slice of an octant.
+     *
+     * @param cg the point of view in grid coordinate
+     * @param z0 the elevation of the eye
+     * @param curvCoef the earth curvature coefficient, 0 if not used
+     * @param destZ the height of the observed points or -1
+     * @param bounds the limits of the viewshed
+     * @param cells the index in the grid of the cells of the slice
+     * @param events the sorted events of the slice
+     * @param nEvent the number of events
+     * @param active the cells crossed by the half line at the start of the slice
+     * @param view the resulting viewshed (buffer of the size of dtm data)
+     */
+    private void sweepEvents(final GridCoordinates2D cg, final double z0, final double curvCoef, final double destZ,
+            final Bounds bounds, final int[] cells, final long[] events, final int nEvent, final SlopeTreap active, final byte[] view) {
+        final int w = dtm.getWidth();
+        final double res = getData().getResolution();
+        final double res2 = res*res;
+        final double slopemin2 = bounds.getSlopemin2();
+        final double slopemax2 = bounds.getSlopemax2();
+        final double dmin2 = bounds.getDmin2();
+        for(int i = 0; i < nEvent; i++) {
+            final long event = events[i];
+            final int id = (int) (event & 0x3FFFFFFF);
+            final int type = (int) ((event >>> 30) & 3);
+            final int ind = cells[id];
+            final int dx = ind % w - cg.x;
+            final int dy = ind / w - cg.y;
+            final long d2 = (long)dx*dx + (long)dy*dy;
+            if(type == ENTER) {
+                active.insert(d2, id, getSlope(ind, d2, res2, z0, curvCoef));
+            } else if(type == EXIT) {
+                active.remove(d2, id);
+            } else {
+                double z = dtmBuf[ind];
+                if(Double.isNaN(z)) {
+                    continue;
+                }
+                final double d2w = res2*d2;
+                if(d2w < dmin2 || (bounds.isOrienBounded() && !bounds.isTheta1Included(Math.atan2(-dy, dx)))) {
+                    continue;
+                }
+                final double maxSlope = active.getMaxSlope(d2);
+                if(maxSlope > slopemax2) {
+                    continue;
+                }
+                z -= curvCoef * d2w;
+                final double zSurf = z + (dsmBuf != null ? dsmBuf[ind] : 0);
+                final double zView = destZ == -1 ? zSurf : (z + destZ);
+                final double zzSurf = zSurf - z0;
+                final double slopeSurf = zzSurf*Math.abs(zzSurf) / d2w;
+                if(slopeSurf > slopemax2 || zView < zSurf) {
+                    continue;
+                }
+                final double zzView = zView - z0;
+                final double slopeView = zzView*Math.abs(zzView) / d2w;
+                if(slopeView > Math.max(maxSlope, slopemin2)) {
+                    view[ind] = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the squared signed slope of the surface of a cell seen from the point of view.
+     * A cell without elevation (NaN) blocks the view.
+     */
+    private double getSlope(final int ind, final long d2, final double res2, final double z0, final double curvCoef) {
+        final double d2w = res2*d2;
+        final double z = dtmBuf[ind] - curvCoef * d2w + (dsmBuf != null ? dsmBuf[ind] : 0);
+        if(Double.isNaN(z)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        final double zz = z - z0;
+        return zz*Math.abs(zz) / d2w;
+    }
+
+    /**
+     * Packs an event in a long for sorting : angle (positive float), type, cell id.
+     * The cell id is less than 2^30, as the number of cells of a slice is limited.
+     */
+    private static long createEvent(float angle, int type, int id) {
+        return ((long)Float.floatToIntBits(angle) << 32) | ((long)type << 30) | id;
+    }
+
+    private static int getDx(int k, int u, int v) {
+        switch(k) {
+            case 0: case 7: return u;
+            case 1: case 6: return v;
+            case 2: case 5: return -v;
+            default: return -u;
+        }
+    }
+
+    private static int getDy(int k, int u, int v) {
+        switch(k) {
+            case 0: case 3: return v;
+            case 1: case 2: return u;
+            case 4: case 7: return -v;
+            default: return -u;
+        }
+    }
+
+    private ComputeViewJava createRayView() {
+        ComputeViewJava compute = new ComputeViewJava(getData(), getaPrec(), isEarthCurv(), getCoefRefraction());
+        compute.setParallel(isParallel());
+        return compute;
+    }
+
+    /**
+     * Sweeps one octant in a ForkJoin task.
+     * Each octant sets the visibility of its own cells only.
+     */
+    private final class OctantTask extends RecursiveAction {
+        private final int octant;
+        private final GridCoordinates2D cg;
+        private final double startZ, destZ;
+        private final Bounds bounds;
+        private final byte[] view;
+
+        private OctantTask(int octant, GridCoordinates2D cg, double startZ, double destZ, Bounds bounds, byte[] view) {
+            this.octant = octant;
+            this.cg = cg;
+            this.startZ = startZ;
+            this.destZ = destZ;
+            this.bounds = bounds;
+            this.view = view;
+        }
+
+        @Override
+        protected void compute() {
+            sweepOctant(octant, cg, startZ, destZ, bounds, view);
+        }
+    }
+
+    /**
+     * Treap (randomized balanced binary tree) stored in arrays,
+     * ordered by distance then cell id and storing the maximum slope of each sub tree.
+     */
+    private static final class SlopeTreap {
+        private long [] dists = new long[256];
+        private int [] ids = new int[256];
+        private double [] slopes = new double[256];
+        private double [] maxSlopes = new double[256];
+        private int [] prios = new int[256];
+        private int [] lefts = new int[256];
+        private int [] rights = new int[256];
+        private int size = 1; // node 0 is the null node
+        private int freeNode = 0;
+        private int root = 0;
+        private int seed = 0x2545F491;
+
+        private SlopeTreap() {
+            maxSlopes[0] = Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * @return true if the key of node n is lower than (d2, id)
+         */
+        private boolean isLower(int n, long d2, int id) {
+            return dists[n] < d2 || (dists[n] == d2 && ids[n] < id);
+        }
+
+        /**
+         * @param d2 the squared distance in pixel
+         * @return the maximum slope of the cells strictly nearer than d2
+         */
+        private double getMaxSlope(long d2) {
+            double max = Double.NEGATIVE_INFINITY;
+            int n = root;
+            while(n != 0) {
+                if(dists[n] < d2) {
+                    max = Math.max(max, Math.max(maxSlopes[lefts[n]], slopes[n]));
+                    n = rights[n];
+                } else {
+                    n = lefts[n];
+                }
+            }
+            return max;
+        }
+
+        private void insert(long d2, int id, double slope) {
+            final int n = newNode(d2, id, slope);
+            final int[] lr = split(root, d2, id);
+            root = merge(merge(lr[0], n), lr[1]);
+        }
+
+        private void remove(long d2, int id) {
+            final int[] lr = split(root, d2, id);
+            final int[] mr = split(lr[1], d2, id+1);
+            final int n = mr[0];
+            if(n != 0) {
+                lefts[n] = freeNode;
+                freeNode = n;
+            }
+            root = merge(lr[0], mr[1]);
+        }
+
+        /**
+         * Splits the tree n in 2 trees : keys &lt; (d2, id) and keys &gt;= (d2, id)
+         */
+        private int[] split(int n, long d2, int id) {
+            if(n == 0) {
+                return new int[] {0, 0};
+            }
+            if(isLower(n, d2, id)) {
+                final int[] lr = split(rights[n], d2, id);
+                rights[n] = lr[0];
+                update(n);
+                lr[0] = n;
+                return lr;
+            } else {
+                final int[] lr = split(lefts[n], d2, id);
+                lefts[n] = lr[1];
+                update(n);
+                lr[1] = n;
+                return lr;
+            }
+        }
+
+        private int merge(int a, int b) {
+            if(a == 0) {
+                return b;
+            }
+            if(b == 0) {
+                return a;
+            }
+            if(prios[a] > prios[b]) {
+                rights[a] = merge(rights[a], b);
+                update(a);
+                return a;
+            } else {
+                lefts[b] = merge(a, lefts[b]);
+                update(b);
+                return b;
+            }
+        }
+
+        private void update(int n) {
+            maxSlopes[n] = Math.max(slopes[n], Math.max(maxSlopes[lefts[n]], maxSlopes[rights[n]]));
+        }
+
+        private int newNode(long d2, int id, double slope) {
+            int n;
+            if(freeNode != 0) {
+                n = freeNode;
+                freeNode = lefts[n];
+            } else {
+                if(size == dists.length) {
+                    final int len = size*2;
+                    dists = Arrays.copyOf(dists, len);
+                    ids = Arrays.copyOf(ids, len);
+                    slopes = Arrays.copyOf(slopes, len);
+                    maxSlopes = Arrays.copyOf(maxSlopes, len);
+                    prios = Arrays.copyOf(prios, len);
+                    lefts = Arrays.copyOf(lefts, len);
+                    rights = Arrays.copyOf(rights, len);
+                }
+                n = size++;
+            }
+            // xorshift random priority
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            dists[n] = d2;
+            ids[n] = id;
+            slopes[n] = slope;
+            maxSlopes[n] = slope;
+            prios[n] = seed;
+            lefts[n] = 0;
+            rights[n] = 0;
+            return n;
+        }
+    }
+}
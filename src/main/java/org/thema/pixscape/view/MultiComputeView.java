@@ -41,6 +41,11 @@ public abstract class MultiComputeView extends ComputeView {
     
     public MultiComputeView(TreeMap<Double, ScaleData> datas, int distMin, double aPrec, boolean earthCurv, double coefRefraction) {
         super(aPrec, earthCurv, coefRefraction);
+        for(ScaleData data : datas.values()) {
+            if(data.isQuantized()) {
+                throw new IllegalArgumentException("Multiscale computation does not support quantized elevations");
+            }
+        }
         this.datas = datas;
         this.distMin = distMin;
     }
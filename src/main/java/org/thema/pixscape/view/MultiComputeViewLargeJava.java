@@ -26,8 +26,12 @@ import java.awt.image.DataBufferFloat;
 import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridEnvelope2D;
@@ -410,8 +414,22 @@ public class MultiComputeViewLargeJava extends MultiComputeView {
         return maxSlope;
     }
 
+    /**
+     * {@inheritDoc }
+     * The azimuth columns are always calculated in parallel.
+     */
     @Override
     public ViewTanResult calcViewTan(DirectPosition2D p, double startZ, Bounds bounds)  {
+        return calcViewTan(p, startZ, bounds, true);
+    }
+    
+    /**
+     * {@inheritDoc }
+     * In parallel, the azimuth columns are split in blocks of {@link ComputeViewJava#NB_TAN_COLUMN} columns, 
+     * each ray writes only its own column in the view and the scale.
+     */
+    @Override
+    public ViewTanResult calcViewTan(final DirectPosition2D p, final double startZ, final Bounds bounds, boolean parallel)  {
         try {
             long time = System.currentTimeMillis();
             
@@ -441,12 +459,25 @@ public class MultiComputeViewLargeJava extends MultiComputeView {
             byte [] scaleBuf = ((DataBufferByte)scale.getDataBuffer()).getData();
             Arrays.fill(scaleBuf, (byte)-1);
 
-            double aStart = bounds.getTheta1Left();
-            for(int ax = 0; ax < n; ax++) {
-                double a = (aStart - ax*getRadaPrec() + 2*Math.PI) % (2*Math.PI);
-                if(bounds.isTheta1Included(a)) {
-                    calcRayTan(p, startZ, bounds, viewBuf, scaleBuf, a, n, ax, getRadaPrec(), viewZones, dtmBufs, dsmBufs, dtmRect);
+            if(parallel) {
+                List<RecursiveAction> tasks = new ArrayList<>();
+                for(int ax = 0; ax < n; ax += ComputeViewJava.NB_TAN_COLUMN) {
+                    final int ax0 = ax;
+                    final int ax1 = Math.min(n, ax+ComputeViewJava.NB_TAN_COLUMN);
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            try {
+                                calcRayTan(p, startZ, bounds, viewBuf, scaleBuf, n, ax0, ax1, viewZones, dtmBufs, dsmBufs, dtmRect);
+                            } catch(TransformException ex) {
+                                throw new IllegalArgumentException(ex);
+                            }
+                        }
+                    });
                 }
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                calcRayTan(p, startZ, bounds, viewBuf, scaleBuf, n, 0, n, viewZones, dtmBufs, dsmBufs, dtmRect);
             }
 
             Logger.getLogger(ComputeViewJava.class.getName()).fine((System.currentTimeMillis()-time) + " ms");
@@ -457,6 +488,31 @@ public class MultiComputeViewLargeJava extends MultiComputeView {
         }
     }
     
+    /**
+     * Calculates the rays of the azimuth columns [ax0-ax1[ of the tangential view, at several scales.
+     * @param p0 the point of view in world coordinate
+     * @param startZ the height of the eye
+     * @param bounds the limits of the view
+     * @param view the resulting view
+     * @param scale the scale for each pixel of view
+     * @param wa the width of the view buffer
+     * @param ax0 the first column inclusive
+     * @param ax1 the last column exclusive
+     * @param zones the boundary of the view for each scale
+     * @throws TransformException 
+     */
+    private void calcRayTan(final DirectPosition2D p0, final double startZ, Bounds bounds, int[] view, byte[] scale, 
+            final int wa, final int ax0, final int ax1, final TreeMap<Double, GridEnvelope2D> zones,
+            final TreeMap<Double, float[]> dtms, final TreeMap<Double, float[]> dsms, TreeMap<Double, Rectangle> dtmRects) throws TransformException {
+        final double aStart = bounds.getTheta1Left();
+        for(int ax = ax0; ax < ax1; ax++) {
+            double a = (aStart - ax*getRadaPrec() + 2*Math.PI) % (2*Math.PI);
+            if(bounds.isTheta1Included(a)) {
+                calcRayTan(p0, startZ, bounds, view, scale, a, wa, ax, getRadaPrec(), zones, dtms, dsms, dtmRects);
+            }
+        }
+    }
+    
     /**
      * Calculates the ray starting from p0 with angle a, at several scales.
 
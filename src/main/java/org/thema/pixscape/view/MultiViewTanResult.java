@@ -122,6 +122,11 @@ public final class MultiViewTanResult extends MultiViewResult implements ViewTan
         return resultDelegate.getMaxDistance(theta1);
     }
 
+    @Override
+    public int getFirstSeen(int theta1) {
+        return resultDelegate.getFirstSeen(theta1);
+    }
+
     @Override
     public boolean isView360() {
         return resultDelegate.isView360();
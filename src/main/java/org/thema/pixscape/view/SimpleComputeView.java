@@ -19,6 +19,8 @@
 
 package org.thema.pixscape.view;
 
+import java.awt.Rectangle;
+import java.awt.image.WritableRaster;
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.geometry.DirectPosition2D;
 import org.thema.pixscape.Bounds;
@@ -32,6 +34,7 @@ import org.thema.pixscape.ScaleData;
 public abstract class SimpleComputeView extends ComputeView {
     
     private final ScaleData data;
+    private ViewBufferPool bufferPool;
 
     /**
      * Creates a new SimpleComputeView.
@@ -53,6 +56,67 @@ public abstract class SimpleComputeView extends ComputeView {
         return data;
     }
     
+    /**
+     * Creates the pool at first call if pooled mode is enabled.
+     * @return the buffer pool for viewsheds of the size of the data, or null if pooled mode is disabled
+     */
+    @Override
+    public synchronized ViewBufferPool getBufferPool() {
+        if(!isPooled()) {
+            return null;
+        }
+        if(bufferPool == null) {
+            bufferPool = new ViewBufferPool(data.getDtmRaster().getWidth(), data.getDtmRaster().getHeight());
+        }
+        return bufferPool;
+    }
+
+    /**
+     * Releases the buffers of all the threads when pooled mode is disabled
+     * @param pooled reuse the viewshed buffers ?
+     */
+    @Override
+    public synchronized void setPooled(boolean pooled) {
+        super.setPooled(pooled);
+        if(!pooled && bufferPool != null) {
+            // the thread local buffers may be still referenced by the threads of the pool, their arrays are released
+            bufferPool.release();
+            bufferPool = null;
+        }
+    }
+    
+    /**
+     * {@inheritDoc }
+     * The full size viewsheds are packed in a {@link BitViewShedResult}.
+     */
+    @Override
+    public ViewShedResult calcBitViewShed(DirectPosition2D cg, double startZ, double destZ, boolean inverse, Bounds bounds) {
+        return BitViewShedResult.pack(calcViewShed(cg, startZ, destZ, inverse, bounds));
+    }
+    
+    /**
+     * {@inheritDoc }
+     * The total viewshed is calculated in Java by {@link TotalViewShed} on the data of this scale.
+     */
+    @Override
+    public WritableRaster calcTotalViewShed(double startZ, double destZ, boolean inverse, Bounds bounds, int nbSector) {
+        return new TotalViewShed(this, nbSector).calcTotalViewShed(startZ, destZ, inverse, bounds);
+    }
+    
+    /**
+     * Returns the rectangle in grid coordinate which may be modified by a viewshed from or to cg.
+     * @param cg the point of view or the observed point in grid coordinate
+     * @param bounds the limits of the viewshed
+     * @return the square around cg limited by dmax, or null if dmax is infinite
+     */
+    protected final Rectangle getViewRect(GridCoordinates2D cg, Bounds bounds) {
+        if(bounds.getDmax() == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+        final int size = (int) Math.ceil(bounds.getDmax() / data.getResolution()) + 1;
+        return new Rectangle(cg.x-size, cg.y-size, 2*size+1, 2*size+1);
+    }
+    
     /**
      * Transform a point from world coordinate to grid coordinate
      * @param p the point in world coordinate
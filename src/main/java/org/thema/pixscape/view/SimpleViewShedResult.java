@@ -48,7 +48,7 @@ public class SimpleViewShedResult extends SimpleViewResult implements ViewShedRe
     }
     
     @Override
-    public final int getLand(int x, int y) {
+    public int getLand(int x, int y) {
         final int ind = getView().getSample(x, y, 0);
         if(ind == 0) {
             return -1;
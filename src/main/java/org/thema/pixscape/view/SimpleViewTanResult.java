@@ -126,7 +126,7 @@ public class SimpleViewTanResult extends SimpleViewResult implements ViewTanResu
     }
 
     @Override
-    public final double getDistance(int theta1, int theta2) {
+    public double getDistance(int theta1, int theta2) {
         final int ind = getView().getSample(theta1, theta2, 0);
         if(ind == -1) {
             return Double.NaN;
@@ -135,7 +135,7 @@ public class SimpleViewTanResult extends SimpleViewResult implements ViewTanResu
     }
 
     @Override
-    public final double getElevation(int theta1, int theta2) {
+    public double getElevation(int theta1, int theta2) {
         final int ind = getView().getSample(theta1, theta2, 0);
         if(ind == -1) {
             return Double.NaN;
@@ -144,7 +144,7 @@ public class SimpleViewTanResult extends SimpleViewResult implements ViewTanResu
     }
     
     @Override
-    public final int getLand(int theta1, int theta2) {
+    public int getLand(int theta1, int theta2) {
         final int ind = getView().getSample(theta1, theta2, 0);
         if(ind == -1) {
             return -1;
@@ -192,13 +192,19 @@ public class SimpleViewTanResult extends SimpleViewResult implements ViewTanResu
     }
 
     @Override
-    public double getMaxDistance(int theta1) {
+    public int getFirstSeen(int theta1) {
         final int h = getThetaHeight();
         int y = 0;
         while(y < h && getView().getSample(theta1, y, 0) == -1) {
             y++;
         } 
-        return y == h ? 0 : getDistance(theta1, y);
+        return y;
+    }
+
+    @Override
+    public double getMaxDistance(int theta1) {
+        final int y = getFirstSeen(theta1);
+        return y == getThetaHeight() ? 0 : getDistance(theta1, y);
     }
 
     @Override
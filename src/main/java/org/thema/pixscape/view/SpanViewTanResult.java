@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.thema.pixscape.Bounds;
+
+/**
+ * Monoscale tangential view stored by runs in each azimuth column.
+ * A run is a span [y0, y1[ of z angles where the same pixel of the data is seen.
+ * The runs of a column are stored from the bottom to the top of the view, as they are produced by the ray :
+ * the last run contains the skyline and the farthest pixel seen.
+ * The areas, the distances and the land are calculated from the runs.
+ * The full views ({@link #getView() }, {@link #getLanduseView() }) are created only when they are requested.
+ *
+ * @author Gilles Vuidel
+ */
+public class SpanViewTanResult extends SimpleViewTanResult {
+
+    private static final int INIT_RUNS = 4;
+
+    private final int width, height;
+    /** runs of each column : y0, y1, pixel index */
+    private final int[][] runs;
+    private final int[] nbRuns;
+
+    /**
+     * Creates a new empty SpanViewTanResult.
+     * The runs are added by the ray kernels with {@link #addRun(int, int, int, int) }.
+     * @param cg the point of view in grid coordinate
+     * @param width the number of azimuth columns
+     * @param height the number of z angles
+     * @param compute the compute view used
+     */
+    SpanViewTanResult(GridCoordinates2D cg, int width, int height, SimpleComputeView compute) {
+        super(cg, null, compute);
+        this.width = width;
+        this.height = height;
+        this.runs = new int[width][];
+        this.nbRuns = new int[width];
+    }
+
+    /**
+     * Adds the run [y0, y1[ of the pixel ind on the top of the column ax.
+     * The part of the run already covered by the previous runs of the column is ignored.
+     * Each column must be filled by only one thread, from the bottom to the top.
+     * @param ax the azimuth column
+     * @param y0 the first z angle inclusive
+     * @param y1 the last z angle exclusive
+     * @param ind the pixel index in the data
+     */
+    void addRun(int ax, int y0, int y1, int ind) {
+        final int n = nbRuns[ax];
+        int[] col = runs[ax];
+        y0 = Math.max(0, y0);
+        y1 = Math.min(height, y1);
+        if(y0 >= y1) {
+            return;
+        }
+        if(n > 0 && y1 > col[3*(n-1)]) {
+            insertRun(ax, y0, y1, ind);
+            return;
+        }
+        if(col == null) {
+            col = runs[ax] = new int[3*INIT_RUNS];
+        } else if(3*n == col.length) {
+            col = runs[ax] = Arrays.copyOf(col, 2*col.length);
+        }
+        col[3*n] = y0;
+        col[3*n+1] = y1;
+        col[3*n+2] = ind;
+        nbRuns[ax] = n+1;
+    }
+
+    /**
+     * Adds the parts of the run [y0, y1[ which are not covered by the runs of the column ax.
+     * General case of {@link #addRun(int, int, int, int) } when the run does not lie above the column.
+     */
+    private void insertRun(int ax, int y0, int y1, int ind) {
+        final int n = nbRuns[ax];
+        final int[] col = runs[ax];
+        final int[] newCol = new int[3*(2*n+1)];
+        int k = 0;
+        int hi = y1;
+        for(int i = 0; i < 3*n; i += 3) {
+            final int lo = Math.max(col[i+1], y0);
+            if(lo < hi) {
+                newCol[k++] = lo;
+                newCol[k++] = hi;
+                newCol[k++] = ind;
+            }
+            newCol[k++] = col[i];
+            newCol[k++] = col[i+1];
+            newCol[k++] = col[i+2];
+            hi = Math.min(hi, col[i]);
+        }
+        if(y0 < hi) {
+            newCol[k++] = y0;
+            newCol[k++] = hi;
+            newCol[k++] = ind;
+        }
+        runs[ax] = newCol;
+        nbRuns[ax] = k/3;
+    }
+
+    /**
+     * Returns the pixel index seen at this position.
+     * @param theta1 the orientation in pixel [0 getThetaWidth()[
+     * @param theta2 the z angle in pixel [0 getThetaHeight()[
+     * @return the pixel index or -1 if nothing is seen
+     */
+    public int getIndex(int theta1, int theta2) {
+        final int[] col = runs[theta1];
+        // runs are sorted by decreasing y
+        int lo = 0, hi = nbRuns[theta1]-1;
+        while(lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if(theta2 < col[3*mid]) {
+                lo = mid+1;
+            } else if(theta2 >= col[3*mid+1]) {
+                hi = mid-1;
+            } else {
+                return col[3*mid+2];
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getFirstSeen(int theta1) {
+        final int n = nbRuns[theta1];
+        return n == 0 ? height : runs[theta1][3*(n-1)];
+    }
+
+    @Override
+    public double getMaxDistance(int theta1) {
+        final int n = nbRuns[theta1];
+        return n == 0 ? 0 : getIndexDistance(runs[theta1][3*(n-1)+2]);
+    }
+
+    @Override
+    public double getDistance(int theta1, int theta2) {
+        final int ind = getIndex(theta1, theta2);
+        return ind == -1 ? Double.NaN : getIndexDistance(ind);
+    }
+
+    @Override
+    public double getElevation(int theta1, int theta2) {
+        final int ind = getIndex(theta1, theta2);
+        return ind == -1 ? Double.NaN : getData().getZ(ind%getW(), ind/getW());
+    }
+
+    @Override
+    public int getLand(int theta1, int theta2) {
+        final int ind = getIndex(theta1, theta2);
+        return ind == -1 ? -1 : getData().getLandRaster().getSample(ind%getW(), ind/getW(), 0) & 0xff;
+    }
+
+    @Override
+    public int getThetaWidth() {
+        return width;
+    }
+
+    @Override
+    public int getThetaHeight() {
+        return height;
+    }
+
+    @Override
+    protected double calcAreaUnbounded() {
+        return getArea(0, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    protected double[] calcAreaLandUnbounded() {
+        return calcAreaLand(0, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public double getArea(double dmin, double dmax) {
+        final boolean unbounded = Bounds.isUnboundedDistance(dmin, dmax);
+        long nb = 0;
+        for(int x = 0; x < width; x++) {
+            final int[] col = runs[x];
+            for(int i = 0; i < 3*nbRuns[x]; i += 3) {
+                if(unbounded || isInside(col[i+2] % getW(), col[i+2] / getW(), dmin, dmax)) {
+                    nb += col[i+1] - col[i];
+                }
+            }
+        }
+        return nb * Math.pow(getAres()*180/Math.PI, 2);
+    }
+
+    @Override
+    protected double[] calcAreaLand(double dmin, double dmax) {
+        final boolean unbounded = Bounds.isUnboundedDistance(dmin, dmax);
+        final double res = Math.pow(getAres()*180/Math.PI, 2);
+        final double[] count = new double[256];
+        final Raster land = getData().getLandRaster();
+        for(int x = 0; x < width; x++) {
+            final int[] col = runs[x];
+            for(int i = 0; i < 3*nbRuns[x]; i += 3) {
+                final int ind = col[i+2];
+                if(unbounded || isInside(ind % getW(), ind / getW(), dmin, dmax)) {
+                    count[land.getSample(ind % getW(), ind / getW(), 0) & 0xff] += (col[i+1] - col[i]) * res;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc }
+     * The view is created from the runs at the first call.
+     */
+    @Override
+    public synchronized Raster getView() {
+        if(view == null) {
+            WritableRaster r = Raster.createBandedRaster(DataBuffer.TYPE_INT, width, height, 1, null);
+            final int[] buf = ((DataBufferInt)r.getDataBuffer()).getData();
+            Arrays.fill(buf, -1);
+            for(int x = 0; x < width; x++) {
+                final int[] col = runs[x];
+                for(int i = 0; i < 3*nbRuns[x]; i += 3) {
+                    for(int y = col[i]; y < col[i+1]; y++) {
+                        buf[y*width + x] = col[i+2];
+                    }
+                }
+            }
+            view = r;
+        }
+        return view;
+    }
+
+    /**
+     * {@inheritDoc }
+     * The landuse view is created from the runs at the first call.
+     */
+    @Override
+    public synchronized Raster getLanduseView() {
+        if(landuse == null && getData().hasLandUse()) {
+            WritableRaster r = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_SHORT, width, height, 1), null);
+            final short[] buf = ((DataBufferShort)r.getDataBuffer()).getData();
+            Arrays.fill(buf, (short)-1);
+            final Raster land = getData().getLandRaster();
+            for(int x = 0; x < width; x++) {
+                final int[] col = runs[x];
+                for(int i = 0; i < 3*nbRuns[x]; i += 3) {
+                    final short l = (short) (land.getSample(col[i+2] % getW(), col[i+2] / getW(), 0) & 0xff);
+                    for(int y = col[i]; y < col[i+1]; y++) {
+                        buf[y*width + x] = l;
+                    }
+                }
+            }
+            landuse = r;
+        }
+        return landuse;
+    }
+
+    private double getIndexDistance(int ind) {
+        return getRes2D() * Math.sqrt(Math.pow(getCoord().x-(ind%getW()), 2) + Math.pow(getCoord().y-(ind/getW()), 2));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of viewshed buffers, one buffer by thread.
+ *
+ * Each thread reuses the same byte array for all its viewsheds : either as a raster of the size of the data 
+ * for the unbounded viewsheds (see {@link #getBuffer }), or as a raster of the size of the window 
+ * for the viewsheds bounded by a maximum distance (see {@link #getWindowBuffer }).
+ * The array grows to the largest raster requested by the thread, so the bounded viewsheds 
+ * do not hold a buffer of the size of the data.
+ * Only the rectangle touched by the previous viewshed is cleared before reuse.
+ * The buffer is valid until the next call of {@link #getBuffer } or {@link #getWindowBuffer } in the same thread,
+ * so it must be used only when the viewshed result is consumed immediately (ie. metrics aggregation).
+ * The arrays of all threads are released by {@link #release }.
+ *
+ * @author Gilles Vuidel
+ */
+public final class ViewBufferPool {
+
+    private final int width, height;
+
+    private final ThreadLocal<Buffer> buffers = new ThreadLocal<>();
+    private final List<Buffer> allBuffers = new ArrayList<>();
+
+    private final AtomicLong nbHit = new AtomicLong();
+    private final AtomicLong nbMiss = new AtomicLong();
+    private final AtomicInteger nbBuffer = new AtomicInteger();
+    private final AtomicLong memorySize = new AtomicLong();
+
+    /**
+     * Creates a new pool for buffers of size width x height at most
+     * @param width the width of the data
+     * @param height the height of the data
+     */
+    public ViewBufferPool(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the buffer of the size of the data for the current thread, cleared of the previous viewshed.
+     * The buffer is created if it is the first call for this thread.
+     * @param dirty the rectangle which will be written by the caller, null for the whole buffer
+     * @return an empty byte raster of size width x height
+     */
+    public WritableRaster getBuffer(Rectangle dirty) {
+        final Buffer buf = getThreadBuffer(width*height);
+        buf.dirty = dirty == null ? new Rectangle(width, height) : dirty.intersection(new Rectangle(width, height));
+        buf.stride = width;
+        return createRaster(buf.data, width, height);
+    }
+
+    /**
+     * Returns a buffer of the size of a window for the current thread, cleared of the previous viewshed.
+     * The raster starts at (0, 0), its lines are contiguous.
+     * @param w the width of the window
+     * @param h the height of the window
+     * @return an empty byte raster of size w x h
+     */
+    public WritableRaster getWindowBuffer(int w, int h) {
+        final Buffer buf = getThreadBuffer(w*h);
+        buf.dirty = new Rectangle(w, h);
+        buf.stride = w;
+        return createRaster(buf.data, w, h);
+    }
+
+    /**
+     * Releases the arrays of all the threads.
+     * The pool can still be used, the arrays are created again.
+     */
+    public void release() {
+        synchronized(allBuffers) {
+            for(Buffer buf : allBuffers) {
+                buf.data = null;
+            }
+            allBuffers.clear();
+        }
+        memorySize.set(0);
+    }
+
+    private Buffer getThreadBuffer(int size) {
+        Buffer buf = buffers.get();
+        if(buf == null || buf.data == null) {
+            nbMiss.incrementAndGet();
+            nbBuffer.incrementAndGet();
+            buf = new Buffer();
+            buf.data = new byte[size];
+            memorySize.addAndGet(size);
+            synchronized(allBuffers) {
+                allBuffers.add(buf);
+            }
+            buffers.set(buf);
+        } else {
+            nbHit.incrementAndGet();
+            if(buf.data.length < size) {
+                memorySize.addAndGet(size - buf.data.length);
+                buf.data = new byte[size];
+            } else {
+                buf.clear();
+            }
+        }
+        return buf;
+    }
+
+    private static WritableRaster createRaster(byte[] data, int w, int h) {
+        return Raster.createBandedRaster(new DataBufferByte(data, w*h), w, h, w, new int[] {0}, new int[] {0}, null);
+    }
+
+    /**
+     * @return the number of calls which have reused an existing buffer
+     */
+    public long getNbHit() {
+        return nbHit.get();
+    }
+
+    /**
+     * @return the number of calls which have created a new buffer
+     */
+    public long getNbMiss() {
+        return nbMiss.get();
+    }
+
+    /**
+     * @return the number of buffers created, ie. the number of threads which have used the pool
+     */
+    public int getNbBuffer() {
+        return nbBuffer.get();
+    }
+
+    /**
+     * @return the memory used by the buffers not released in bytes
+     */
+    public long getMemorySize() {
+        return memorySize.get();
+    }
+
+    @Override
+    public String toString() {
+        return "View buffer pool : " + getNbBuffer() + " buffers (" + getMemorySize()/1024/1024 + " MB) - "
+                + getNbHit() + " hits - " + getNbMiss() + " misses";
+    }
+
+    private static final class Buffer {
+        private byte[] data;
+        /** the rectangle written by the previous viewshed and the line length of its raster */
+        private Rectangle dirty;
+        private int stride;
+
+        private void clear() {
+            if(dirty.width == stride) {
+                Arrays.fill(data, dirty.y*stride, (dirty.y+dirty.height)*stride, (byte)0);
+            } else {
+                for(int y = dirty.y; y < dirty.y+dirty.height; y++) {
+                    Arrays.fill(data, y*stride + dirty.x, y*stride + dirty.x+dirty.width, (byte)0);
+                }
+            }
+        }
+    }
+}
@@ -49,6 +49,14 @@ public interface ViewTanResult extends ViewResult {
      */
     double getMaxDistance(int theta1);
     
+    /**
+     * Returns the first z angle, from the top of the view, where something is seen for the orientation theta1.
+     * It is the skyline position.
+     * @param theta1 the orientation in pixel [0 getThetaWidth()[
+     * @return the z angle in pixel [0 getThetaHeight()], getThetaHeight() if nothing is seen
+     */
+    int getFirstSeen(int theta1);
+    
     /**
      * Returns the distance to the pixel seen at this position
      * @param theta1 the orientation in pixel [0 getThetaWidth()[
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.util.AffineTransformation;
+import org.thema.pixscape.Bounds;
+import org.thema.process.Vectorizer;
+
+/**
+ * Monoscale viewshed limited to a window of the data.
+ * Used when the distance is bounded : all the pixels outside the window are not visible.
+ * The area, the land areas and the perimeter are calculated on the window only.
+ * The full size view is created only if {@link #getView() } is called.
+ *
+ * @author Gilles Vuidel
+ */
+public class WindowViewShedResult extends SimpleViewShedResult {
+
+    private final Raster window;
+    private final Rectangle rect;
+    private double perim = -1;
+    private Raster landWindow;
+
+    /**
+     * Creates a new WindowViewShedResult
+     * @param cg the point of view or observed point in grid coordinate
+     * @param window the resulting viewshed in the window, the upper left pixel is (0,0)
+     * @param rect the window in grid coordinate
+     * @param compute the compute view used
+     */
+    public WindowViewShedResult(GridCoordinates2D cg, Raster window, Rectangle rect, SimpleComputeView compute) {
+        super(cg, null, compute);
+        this.window = window;
+        this.rect = rect;
+    }
+
+    /**
+     * @return the viewshed in the window, the upper left pixel is (0,0)
+     */
+    public Raster getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the window in grid coordinate
+     */
+    public Rectangle getWindowRect() {
+        return rect;
+    }
+
+    /**
+     * Returns the land use covering at least the window, in grid coordinate.
+     * It is the full land use raster if it is loaded, a copy of the window otherwise.
+     * @return the land use raster containing the window
+     */
+    public synchronized Raster getLandWindow() {
+        if(landWindow == null) {
+            landWindow = getData().getLandRaster(rect);
+        }
+        return landWindow;
+    }
+
+    /**
+     * Creates the view of the size of the data at first call.
+     * @return the viewshed of the size of the data
+     */
+    @Override
+    public synchronized Raster getView() {
+        if(view == null) {
+            WritableRaster full = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, getW(), getGrid().getGridRange2D().height, 1, null);
+            full.setRect(rect.x, rect.y, window);
+            view = full;
+        }
+        return view;
+    }
+
+    @Override
+    public int getLand(int x, int y) {
+        if(!rect.contains(x, y) || window.getSample(x-rect.x, y-rect.y, 0) == 0) {
+            return -1;
+        }
+        return getLandWindow().getSample(x, y, 0) & 0xff;
+    }
+
+    @Override
+    public synchronized Raster getLanduseView() {
+        if(landuse == null && getData().hasLandUse()) {
+            WritableRaster landview = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_SHORT,
+                    getW(), getGrid().getGridRange2D().height, 1), null);
+            Arrays.fill(((DataBufferShort)landview.getDataBuffer()).getData(), (short)-1);
+            for(int y = rect.y; y < rect.y+rect.height; y++) {
+                for(int x = rect.x; x < rect.x+rect.width; x++) {
+                    landview.setSample(x, y, 0, getLand(x, y));
+                }
+            }
+            landuse = landview;
+        }
+        return landuse;
+    }
+
+    @Override
+    public synchronized double getPerimeter() {
+        // the pixels around the window are not visible, the perimeter of the window is the same
+        if(perim == -1) {
+            perim = calcPerimeter(window) * getRes2D();
+        }
+        return perim;
+    }
+
+    @Override
+    public double getArea(double dmin, double dmax) {
+        final boolean unbounded = Bounds.isUnboundedDistance(dmin, dmax);
+        int nb = 0;
+        for(int y = 0; y < rect.height; y++) {
+            for(int x = 0; x < rect.width; x++) {
+                if(window.getSample(x, y, 0) == 1 && (unbounded || isInside(x+rect.x, y+rect.y, dmin, dmax))) {
+                    nb++;
+                }
+            }
+        }
+        return nb * getRes2D()*getRes2D();
+    }
+
+    @Override
+    protected double[] calcAreaLand(double dmin, double dmax) {
+        final boolean unbounded = Bounds.isUnboundedDistance(dmin, dmax);
+        final Raster land = getLandWindow();
+        final double res2D2 = getRes2D()*getRes2D();
+        final double[] count = new double[256];
+        for(int y = 0; y < rect.height; y++) {
+            for(int x = 0; x < rect.width; x++) {
+                if(window.getSample(x, y, 0) == 1 && (unbounded || isInside(x+rect.x, y+rect.y, dmin, dmax))) {
+                    count[land.getSample(x+rect.x, y+rect.y, 0)] += res2D2;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Geometry getPolygon() {
+        Geometry poly = Vectorizer.vectorize(window, 1);
+        poly.apply(AffineTransformation.translationInstance(rect.x, rect.y).compose(getData().getGrid2World()));
+        return poly;
+    }
+}
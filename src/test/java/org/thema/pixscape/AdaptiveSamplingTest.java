@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Point;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class AdaptiveSamplingTest {
+
+    /**
+     * Test of process method, of class AdaptiveSampling.
+     * A linear function is interpolated exactly, a constant function needs only the coarse grid.
+     */
+    @Test
+    public void testProcessLinear() {
+        Func linear = new Func() {
+            @Override
+            double getValue(int x, int y) {
+                return 10 + x + 2*y;
+            }
+        };
+        WritableRaster r = createRaster(50, 10, 40);
+        AdaptiveSampling adaptive = new AdaptiveSampling(50, 8, 10, Collections.singletonList(r), new FuncCell(linear, r));
+        adaptive.process(10, 50);
+        for(int y = 10; y < 50; y++) {
+            for(int x = 0; x < 50; x++) {
+                assertEquals(linear.getValue(x, y), r.getSampleFloat(x, y, 0), 1e-4);
+            }
+        }
+        assertEquals(50*40, adaptive.getNbCalc() + adaptive.getNbInterp());
+        assertEquals(8*6, adaptive.getNbCalc());
+
+        // with a tolerance of 0, all cells are calculated
+        r = createRaster(50, 10, 40);
+        adaptive = new AdaptiveSampling(50, 8, 0, Collections.singletonList(r), new FuncCell(linear, r));
+        adaptive.process(10, 50);
+        assertEquals(50*40, adaptive.getNbCalc());
+
+        Func constant = new Func() {
+            @Override
+            double getValue(int x, int y) {
+                return 3;
+            }
+        };
+        r = createRaster(50, 10, 40);
+        adaptive = new AdaptiveSampling(50, 8, 0, Collections.singletonList(r), new FuncCell(constant, r));
+        adaptive.process(10, 50);
+        assertEquals(8*6, adaptive.getNbCalc());
+        for(float v : ((DataBufferFloat)r.getDataBuffer()).getData()) {
+            assertEquals(3, v, 0);
+        }
+    }
+
+    /**
+     * Test of process method, of class AdaptiveSampling.
+     * The error of the interpolated values is bounded by the tolerance for a monotonic function.
+     */
+    @Test
+    public void testProcessTolerance() {
+        Func dist = new Func() {
+            @Override
+            double getValue(int x, int y) {
+                return 1 + Math.sqrt(x*x + y*y);
+            }
+        };
+        for(double tol : new double[] {0.01, 0.1, 0.5}) {
+            for(int [] size : Arrays.asList(new int[] {37, 0, 23}, new int[] {1, 5, 20}, new int[] {30, 3, 1}, new int[] {16, 0, 17})) {
+                final int w = size[0], y0 = size[1], h = size[2];
+                WritableRaster r = createRaster(w, y0, h);
+                AdaptiveSampling adaptive = new AdaptiveSampling(w, 4, tol, Collections.singletonList(r), new FuncCell(dist, r));
+                adaptive.process(y0, y0+h);
+                assertEquals(w*h, adaptive.getNbCalc() + adaptive.getNbInterp());
+                for(int y = y0; y < y0+h; y++) {
+                    for(int x = 0; x < w; x++) {
+                        final double v = dist.getValue(x, y);
+                        assertEquals(v, r.getSampleFloat(x, y, 0), tol*v*2);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of process method, of class AdaptiveSampling.
+     * The cells without data are never calculated nor interpolated.
+     */
+    @Test
+    public void testProcessNoData() {
+        final Func func = new Func() {
+            @Override
+            double getValue(int x, int y) {
+                return 5;
+            }
+        };
+        final WritableRaster r = createRaster(40, 0, 40);
+        AdaptiveSampling adaptive = new AdaptiveSampling(40, 8, 0, Collections.singletonList(r), new FuncCell(func, r) {
+            @Override
+            public boolean isCalculated(int x, int y) {
+                return (x+y) % 7 != 0;
+            }
+            @Override
+            public void calc(int x, int y) {
+                assertTrue(isCalculated(x, y));
+                super.calc(x, y);
+            }
+        });
+        adaptive.process(0, 40);
+        for(int y = 0; y < 40; y++) {
+            for(int x = 0; x < 40; x++) {
+                if((x+y) % 7 == 0) {
+                    assertTrue(Float.isNaN(r.getSampleFloat(x, y, 0)));
+                } else {
+                    assertEquals(5, r.getSampleFloat(x, y, 0), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of process method by rectangle, of class AdaptiveSampling.
+     * The tiles cover the grid without overlap and each tile stays inside its rectangle.
+     */
+    @Test
+    public void testProcessTile() {
+        Func linear = new Func() {
+            @Override
+            double getValue(int x, int y) {
+                return 10 + x + 2*y;
+            }
+        };
+        final WritableRaster r = createRaster(50, 0, 40);
+        final int[] count = new int[50*40];
+        AdaptiveSampling adaptive = new AdaptiveSampling(50, 8, 10, Collections.singletonList(r), new FuncCell(linear, r) {
+            @Override
+            public void calc(int x, int y) {
+                count[y*50 + x]++;
+                super.calc(x, y);
+            }
+        });
+        for(int y = 0; y < 40; y += 16) {
+            for(int x = 0; x < 50; x += 16) {
+                adaptive.process(x, y, Math.min(50, x+16), Math.min(40, y+16));
+            }
+        }
+        for(int y = 0; y < 40; y++) {
+            for(int x = 0; x < 50; x++) {
+                assertEquals(linear.getValue(x, y), r.getSampleFloat(x, y, 0), 1e-4);
+                assertTrue(count[y*50 + x] <= 1);
+            }
+        }
+        assertEquals(50*40, adaptive.getNbCalc() + adaptive.getNbInterp());
+    }
+
+    private static WritableRaster createRaster(int w, int y0, int h) {
+        WritableRaster r = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, w, h, 1), new Point(0, y0));
+        Arrays.fill(((DataBufferFloat)r.getDataBuffer()).getData(), Float.NaN);
+        return r;
+    }
+
+    private abstract static class Func {
+        abstract double getValue(int x, int y);
+    }
+
+    private static class FuncCell implements AdaptiveSampling.Cell {
+        private final Func func;
+        private final WritableRaster raster;
+
+        private FuncCell(Func func, WritableRaster raster) {
+            this.func = func;
+            this.raster = raster;
+        }
+
+        @Override
+        public boolean isCalculated(int x, int y) {
+            return true;
+        }
+
+        @Override
+        public void calc(int x, int y) {
+            raster.setSample(x, y, 0, func.getValue(x, y));
+        }
+    }
+}
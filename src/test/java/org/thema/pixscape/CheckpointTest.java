@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class CheckpointTest {
+
+    /**
+     * Test of write and read methods, of class Checkpoint.
+     * The records are read back on resume and the new records are appended.
+     */
+    @Test
+    public void testResume() throws IOException {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.deleteOnExit();
+        try (Checkpoint checkpoint = new Checkpoint(file, "task", false, null)) {
+            checkpoint.write("a", new byte[] {1, 2, 3});
+            checkpoint.write("b", new byte[0]);
+        }
+        final List<String> keys = new ArrayList<>();
+        try (Checkpoint checkpoint = new Checkpoint(file, "task", true, new Recorder(keys))) {
+            assertEquals(Arrays.asList("a:3", "b:0"), keys);
+            checkpoint.write("c", new byte[] {4});
+        }
+        keys.clear();
+        Checkpoint.read(file, "task", new Recorder(keys));
+        assertEquals(Arrays.asList("a:3", "b:0", "c:1"), keys);
+
+        // without resume, the checkpoint is cleared
+        new Checkpoint(file, "task", false, null).close();
+        keys.clear();
+        Checkpoint.read(file, "task", new Recorder(keys));
+        assertTrue(keys.isEmpty());
+
+        try {
+            Checkpoint.read(file, "other task", null);
+            fail();
+        } catch(IllegalArgumentException ex) {
+            // the signature differs
+        }
+        assertEquals(-1, Checkpoint.read(new File(file.getParentFile(), "none" + file.getName()), "task", null));
+    }
+
+    /**
+     * Test of read method, of class Checkpoint.
+     * An incomplete or corrupted last record is ignored and removed on resume.
+     */
+    @Test
+    public void testIncomplete() throws IOException {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.deleteOnExit();
+        try (Checkpoint checkpoint = new Checkpoint(file, "task", false, null)) {
+            checkpoint.write("a", new byte[] {1, 2, 3});
+        }
+        final long valid = file.length();
+        try (Checkpoint checkpoint = new Checkpoint(file, "task", true, null)) {
+            checkpoint.write("b", new byte[100]);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 5);
+        }
+        assertEquals(valid, Checkpoint.read(file, "task", null));
+
+        try (Checkpoint checkpoint = new Checkpoint(file, "task", true, null)) {
+            checkpoint.write("c", new byte[] {5});
+        }
+        // corrupts the data of c
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 9);
+            raf.write(6);
+        }
+        final List<String> keys = new ArrayList<>();
+        assertEquals(valid, Checkpoint.read(file, "task", new Recorder(keys)));
+        assertEquals(Arrays.asList("a:3"), keys);
+    }
+
+    private static class Recorder implements Checkpoint.Handler {
+        private final List<String> keys;
+
+        private Recorder(List<String> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public void record(String key, byte[] data) {
+            keys.add(key + ":" + data.length);
+        }
+    }
+}
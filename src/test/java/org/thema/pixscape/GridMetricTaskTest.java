@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import org.thema.common.swing.TaskMonitor;
+import org.thema.parallel.ExecutorService;
+import org.thema.pixscape.metric.AreaMetric;
+import org.thema.pixscape.metric.ViewShedMetric;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class GridMetricTaskTest {
+
+    /**
+     * Test of setBaseline method, of class GridMetricTask.
+     * The modification changes the code of a cell out of the from codes :
+     * the cell is no longer calculated and must not keep its baseline value.
+     */
+    @Test
+    public void testBaseline() throws IOException {
+        ScaleData data = TestTools.createFlatDataWithLand(20, 4);
+        Project project = new Project("GridMetricTaskTest", Files.createTempDirectory("pixscape").toFile(), data);
+        File baselineDir = Files.createTempDirectory("baseline").toFile();
+        Set<Integer> from = Collections.singleton(0);
+        List<ViewShedMetric> metrics = Collections.singletonList((ViewShedMetric)new AreaMetric());
+        GridMetricTask task = new GridMetricTask(project, project.getStartZ(), -1, false, new Bounds(), from, metrics, 1,
+                baselineDir, new TaskMonitor.EmptyMonitor());
+        ExecutorService.execute(task);
+
+        ScaleDataOverlay overlay = new ScaleDataOverlay(data);
+        overlay.set(5, 2, 1, 0);
+        Project zoneProject = project.createMemoryProject("zone", Files.createTempDirectory("zone").toFile(),
+                overlay.createScaleData(data.getCodes()));
+        BitSet affected = new BitSet(20*20);
+        affected.set(5 + 2*20);
+        affected.set(6 + 2*20);
+        affected.set(6 + 12*20);
+        task = new GridMetricTask(zoneProject, project.getStartZ(), -1, false, new Bounds(), from, metrics, 1,
+                null, new TaskMonitor.EmptyMonitor());
+        task.setBaseline(baselineDir, affected);
+        ExecutorService.execute(task);
+
+        Raster r = task.getResult().values().iterator().next();
+        // the cell out of from after the modification
+        assertTrue(Float.isNaN(r.getSampleFloat(5, 2, 0)));
+        // affected and still in from
+        assertEquals(400, r.getSampleFloat(6, 2, 0), 1e-6);
+        // affected and out of from before and after
+        assertTrue(Float.isNaN(r.getSampleFloat(6, 12, 0)));
+        // copied from the baseline
+        assertEquals(400, r.getSampleFloat(0, 0, 0), 1e-6);
+        assertTrue(Float.isNaN(r.getSampleFloat(0, 19, 0)));
+    }
+}
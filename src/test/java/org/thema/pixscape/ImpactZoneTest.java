@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.util.BitSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class ImpactZoneTest {
+
+    /**
+     * Test of getAffected method, of class ImpactZone, on flat data with a maximum distance.
+     */
+    @Test
+    public void testFlat() {
+        ScaleData data = TestTools.createFlatDataWithLand(30, 3);
+        ImpactZone zone = new ImpactZone(data, 0.1, false, 0);
+        zone.add(15, 15, 5);
+        assertEquals(1, zone.getNbPixels());
+        Bounds bounds = new Bounds();
+        bounds.setDmax(5);
+        BitSet affected = zone.getAffected(1.7, -1, false, bounds);
+        assertTrue(affected.get(15 + 15*30));
+        assertTrue(affected.get(18 + 15*30));
+        assertTrue(affected.get(15 + 12*30));
+        assertFalse(affected.get(25 + 15*30));
+        assertFalse(affected.get(0));
+        // the same parameters give the same result
+        assertTrue(affected == zone.getAffected(1.7, -1, false, bounds));
+
+        bounds = new Bounds();
+        affected = zone.getAffected(1.7, -1, false, bounds);
+        assertTrue(affected.get(0));
+        assertTrue(affected.get(29 + 29*30));
+        assertNull(zone.getAffected(1.7, -1, true, bounds));
+        assertNotNull(zone.getAffected(1.7, 0, true, bounds));
+    }
+
+    /**
+     * Test of getAffected method, of class ImpactZone, with a wall hiding the modification.
+     * The wall is 3 pixels wide, because the surface is filtered on the 3x3 neighbourhood.
+     */
+    @Test
+    public void testWall() {
+        ScaleData data = TestTools.createFlatDataWithLand(30, 3);
+        ScaleDataOverlay wall = new ScaleDataOverlay(data);
+        for(int y = 0; y < 30; y++) {
+            wall.set(9, y, 1, 50);
+            wall.set(10, y, 1, 50);
+            wall.set(11, y, 1, 50);
+        }
+        data = wall.createScaleData(data.getCodes());
+        ImpactZone zone = new ImpactZone(data, 0.1, false, 0);
+        zone.add(20, 15, 3);
+        zone.add(21, 15, 3);
+        BitSet affected = zone.getAffected(1.7, -1, false, new Bounds());
+        assertTrue(affected.get(20 + 15*30));
+        assertTrue(affected.get(25 + 5*30));
+        assertTrue(affected.get(13 + 15*30));
+        assertFalse(affected.get(5 + 15*30));
+        assertFalse(affected.get(0));
+
+        zone.clear();
+        assertEquals(0, zone.getNbPixels());
+        zone.add(5, 15, 3);
+        affected = zone.getAffected(1.7, -1, false, new Bounds());
+        assertTrue(affected.get(0));
+        assertFalse(affected.get(20 + 15*30));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class MappedRasterTest {
+
+    /**
+     * Test of write and map methods, of class MappedRaster.
+     * The chunks are small to test the pixels and the rows across several chunks.
+     */
+    @Test
+    public void testWriteMap() throws IOException {
+        ScaleData data = TestTools.createRandomData(37);
+        File dir = Files.createTempDirectory("pixscape").toFile();
+        File file = new File(dir, "dtm.raw");
+        MappedRaster.write(file, data.getDtm(), DataBuffer.TYPE_FLOAT);
+        assertTrue(MappedRaster.isUpToDate(file, null, 37, 37, DataBuffer.TYPE_FLOAT));
+        assertFalse(MappedRaster.isUpToDate(file, null, 37, 36, DataBuffer.TYPE_FLOAT));
+        File landFile = new File(dir, "land.raw");
+        MappedRaster.write(landFile, data.getLand(), DataBuffer.TYPE_BYTE);
+        
+        for(int chunkBits : new int[] {5, 8, MappedRaster.CHUNK_BITS}) {
+            MappedRaster dtm = MappedRaster.map(file, 37, 37, DataBuffer.TYPE_FLOAT, chunkBits);
+            MappedRaster land = MappedRaster.map(landFile, 37, 37, DataBuffer.TYPE_BYTE, chunkBits);
+            for(int y = 0; y < 37; y++) {
+                for(int x = 0; x < 37; x++) {
+                    assertEquals(data.getDtmRaster().getSampleFloat(x, y, 0), dtm.getFloat(x + y*37L), 0);
+                    assertEquals(data.getLandRaster().getSample(x, y, 0), land.getByte(x + y*37L));
+                }
+            }
+            Rectangle r = new Rectangle(3, 5, 30, 20);
+            Raster dtmWin = dtm.getRaster(r);
+            Raster landWin = land.getRaster(r);
+            assertEquals(r, dtmWin.getBounds());
+            for(int y = r.y; y < r.y+r.height; y++) {
+                for(int x = r.x; x < r.x+r.width; x++) {
+                    assertEquals(data.getDtmRaster().getSampleFloat(x, y, 0), dtmWin.getSampleFloat(x, y, 0), 0);
+                    assertEquals(data.getLandRaster().getSample(x, y, 0), landWin.getSample(x, y, 0));
+                }
+            }
+        }
+        
+        try {
+            MappedRaster.map(file, 40, 40, DataBuffer.TYPE_FLOAT);
+            fail("The file size does not correspond");
+        } catch(IOException ex) {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class PointGridIndexTest {
+
+    /**
+     * Test of query method, of class PointGridIndex.
+     * The result is the same as a linear search, for rectangles inside, across and outside the points extent.
+     */
+    @Test
+    public void testQuery() {
+        final Random rnd = new Random(1);
+        final int n = 2000;
+        final int[] x = new int[n];
+        final int[] y = new int[n];
+        for(int i = 0; i < n; i++) {
+            x[i] = -50 + rnd.nextInt(1000);
+            y[i] = 20 + rnd.nextInt(400);
+        }
+        for(int cellSize : new int[] {1, 7, 32, 5000}) {
+            PointGridIndex index = new PointGridIndex(x, y, cellSize);
+            assertTrue(index.getCellSize() >= cellSize);
+            for(int k = 0; k < 200; k++) {
+                final int xmin = -200 + rnd.nextInt(1400);
+                final int ymin = -100 + rnd.nextInt(700);
+                final int xmax = xmin + rnd.nextInt(300);
+                final int ymax = ymin + rnd.nextInt(300);
+                assertArrayEquals(search(x, y, xmin, ymin, xmax, ymax), index.query(xmin, ymin, xmax, ymax));
+            }
+            assertEquals(n, index.query(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE).length);
+            assertEquals(0, index.query(2000, 0, 3000, 1000).length);
+            assertEquals(0, index.query(-500, 0, -100, 1000).length);
+        }
+    }
+
+    /**
+     * Test of query method, of class PointGridIndex, with no point and with points at the same place.
+     */
+    @Test
+    public void testQueryDegenerate() {
+        PointGridIndex index = new PointGridIndex(new int[0], new int[0], 10);
+        assertEquals(0, index.query(-10, -10, 10, 10).length);
+
+        index = new PointGridIndex(new int[] {5, 5, 5}, new int[] {3, 3, 3}, 10);
+        assertArrayEquals(new int[] {0, 1, 2}, index.query(5, 3, 5, 3));
+        assertEquals(0, index.query(6, 3, 10, 3).length);
+    }
+
+    private static int[] search(int[] x, int[] y, int xmin, int ymin, int xmax, int ymax) {
+        List<Integer> list = new ArrayList<>();
+        for(int i = 0; i < x.length; i++) {
+            if(x[i] >= xmin && x[i] <= xmax && y[i] >= ymin && y[i] <= ymax) {
+                list.add(i);
+            }
+        }
+        int[] result = new int[list.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+}
@@ -18,15 +18,27 @@
 
 package org.thema.pixscape;
 
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.TreeSet;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.junit.Rule;
 import org.junit.rules.ExpectedException;
 import org.thema.pixscape.metric.AreaMetric;
 import org.thema.pixscape.metric.Metric;
+import org.thema.pixscape.view.ComputeViewJava;
 
 /**
  *
@@ -78,4 +90,54 @@ public class ProjectTest {
         
     }
     
+    /**
+     * Test of save and load of a project with quantized elevations.
+     * The loaded project must be quantized and give the same elevations and viewsheds.
+     * Adding multiscale data to a quantized project is rejected.
+     */
+    @Test
+    public void testQuantizedSaveLoad() throws IOException {
+        WritableRaster dtm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 30, 20, 1), null);
+        WritableRaster dsm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 30, 20, 1), null);
+        for(int y = 0; y < 20; y++) {
+            for(int x = 0; x < 30; x++) {
+                dtm.setSample(x, y, 0, 100 + x*0.37 + y*0.11);
+                dsm.setSample(x, y, 0, (x*7 + y*3) % 11 == 0 ? 12.3 : 0);
+            }
+        }
+        dtm.setSample(4, 4, 0, Float.NaN);
+        Envelope2D env = new Envelope2D(null, 0, 0, 30, 20);
+        File dir = Files.createTempDirectory("pixscape").toFile();
+        Project project = new Project("quant", dir, new GridCoverageFactory().create("", dtm, env), 1, 0.05);
+        project.setDSM(new GridCoverageFactory().create("", dsm, env));
+        ScaleData data = project.getDefaultScaleData();
+        assertTrue(data.isQuantized());
+
+        Project loaded = Project.load(project.getProjectFile());
+        ScaleData loadedData = loaded.getDefaultScaleData();
+        assertTrue(loadedData.isQuantized());
+        assertTrue(loadedData.getDtmRaster().getSampleModel() instanceof QuantizedSampleModel);
+        assertTrue(loadedData.getDsmRaster().getSampleModel() instanceof QuantizedSampleModel);
+        for(int y = 0; y < 20; y++) {
+            for(int x = 0; x < 30; x++) {
+                assertEquals(data.getDtmRaster().getSampleFloat(x, y, 0), loadedData.getDtmRaster().getSampleFloat(x, y, 0), 0);
+                assertEquals(data.getDsmRaster().getSampleFloat(x, y, 0), loadedData.getDsmRaster().getSampleFloat(x, y, 0), 0);
+                assertEquals(dtm.getSampleFloat(x, y, 0), loadedData.getDtmRaster().getSampleFloat(x, y, 0), 0.05);
+            }
+        }
+        assertTrue(Float.isNaN(loadedData.getDtmRaster().getSampleFloat(4, 4, 0)));
+        Raster view = new ComputeViewJava(data, 0.1, false, 0).calcViewShed(new DirectPosition2D(10.5, 10.5), 1.8, -1, false, new Bounds()).getView();
+        Raster loadedView = new ComputeViewJava(loadedData, 0.1, false, 0).calcViewShed(new DirectPosition2D(10.5, 10.5), 1.8, -1, false, new Bounds()).getView();
+        for(int y = 0; y < 20; y++) {
+            for(int x = 0; x < 30; x++) {
+                assertEquals(view.getSample(x, y, 0), loadedView.getSample(x, y, 0));
+            }
+        }
+
+        GridCoverage2D coarseDtm = new GridCoverageFactory().create("", 
+                Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 10, 10, 1), null), new Envelope2D(null, 0, -10, 30, 30));
+        thrown.expect(IllegalArgumentException.class);
+        loaded.addScaleData(new ScaleData(coarseDtm, null, null, 1));
+    }
+
 }
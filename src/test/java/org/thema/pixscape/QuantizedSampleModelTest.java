@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class QuantizedSampleModelTest {
+
+    /**
+     * Test of encode and decode methods, of class QuantizedSampleModel.
+     */
+    @Test
+    public void testEncode() {
+        QuantizedSampleModel sm = QuantizedSampleModel.create(10, 10, 120.5, 770, 0.01f);
+        assertEquals(QuantizedSampleModel.NODATA+1, sm.encode(120.5));
+        assertEquals(120.5, sm.decode(sm.encode(120.5)), 0.001);
+        assertEquals(770, sm.decode(sm.encode(770)), 0.005);
+        assertEquals(456.789, sm.decode(sm.encode(456.789)), 0.005);
+        assertEquals(QuantizedSampleModel.NODATA, sm.encode(Double.NaN));
+        assertTrue(Float.isNaN(sm.decode(QuantizedSampleModel.NODATA)));
+        try {
+            sm.encode(1000);
+            fail();
+        } catch(IllegalArgumentException ex) {
+            // out of range
+        }
+        try {
+            QuantizedSampleModel.create(10, 10, 0, 1000, 0.01f);
+            fail();
+        } catch(IllegalArgumentException ex) {
+            // range too large for the precision
+        }
+    }
+
+    /**
+     * Test of the samples of a quantized raster and of wrap method, of class QuantizedSampleModel.
+     */
+    @Test
+    public void testRaster() {
+        QuantizedSampleModel sm = QuantizedSampleModel.create(20, 10, -50, 150, 0.1f);
+        WritableRaster r = Raster.createWritableRaster(sm, null);
+        for(int y = 0; y < 10; y++) {
+            for(int x = 0; x < 20; x++) {
+                r.setSample(x, y, 0, x == y ? Double.NaN : x*y - 50.04);
+            }
+        }
+        for(int y = 0; y < 10; y++) {
+            for(int x = 0; x < 20; x++) {
+                if(x == y) {
+                    assertTrue(Double.isNaN(r.getSampleDouble(x, y, 0)));
+                } else {
+                    assertEquals(x*y - 50.04, r.getSampleDouble(x, y, 0), 0.05);
+                    assertEquals(r.getSampleDouble(x, y, 0), r.getSampleFloat(x, y, 0), 0);
+                }
+            }
+        }
+        float[] row = r.getSamples(0, 3, 20, 1, 0, (float[])null);
+        assertEquals(r.getSampleFloat(7, 3, 0), row[7], 0);
+
+        // the copies keep the quantization
+        Raster copy = r.createCompatibleWritableRaster();
+        assertEquals(sm, copy.getSampleModel());
+
+        // raw raster sharing the same data
+        WritableRaster raw = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_SHORT, 20, 10, 1), r.getDataBuffer(), null);
+        Raster wrap = QuantizedSampleModel.wrap(raw, sm.getScale(), sm.getBase());
+        assertTrue(wrap.getDataBuffer() == raw.getDataBuffer());
+        assertEquals(r.getSampleDouble(5, 8, 0), wrap.getSampleDouble(5, 8, 0), 0);
+        assertEquals(raw.getSample(5, 8, 0), wrap.getSample(5, 8, 0));
+    }
+
+}
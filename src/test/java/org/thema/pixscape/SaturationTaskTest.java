@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.thema.common.RasterImage;
+import org.thema.common.swing.TaskMonitor;
+import org.thema.data.IOFeature;
+import org.thema.data.feature.DefaultFeature;
+import org.thema.data.feature.Feature;
+import org.thema.parallel.ExecutorService;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class SaturationTaskTest {
+
+    private static Project project;
+    private static List<DefaultFeature> objects;
+
+    /**
+     * Creates a flat project of 40x40 with 2 groups of 2 objects (buildings of 10 m) around the centre
+     * and a group with one object far from the centre.
+     */
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        WritableRaster dtm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 40, 40, 1), null);
+        WritableRaster dsm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 40, 40, 1), null);
+        GridCoverage2D dtmCov = new GridCoverageFactory().create("", dtm, new Envelope2D(null, 0, 0, 40, 40));
+        objects = new ArrayList<>();
+        addObject(dsm, 1, 25.5, 20.5, "A");
+        addObject(dsm, 2, 20.5, 25.5, "A");
+        addObject(dsm, 3, 15.5, 20.5, "B");
+        addObject(dsm, 4, 20.5, 15.5, "B");
+        addObject(dsm, 5, 38.5, 38.5, "C");
+        project = new Project("SaturationTaskTest", Files.createTempDirectory("pixscape").toFile(),
+                new ScaleData(dtmCov, null, new RasterImage(dsm), 1));
+    }
+
+    private static void addObject(WritableRaster dsm, int id, double x, double y, String group) {
+        dsm.setSample((int)x, 39 - (int)y, 0, 10);
+        objects.add(new DefaultFeature(id, new GeometryFactory().createPoint(new Coordinate(x, y)),
+                Arrays.asList("group"), Arrays.asList(group)));
+    }
+
+    /**
+     * Test of calc method, of class Saturation.
+     */
+    @Test
+    public void testCalc() {
+        Saturation saturation = new Saturation(project);
+        saturation.calc(new Coordinate(20.5, 20.5), 10, objects, "group");
+
+        assertEquals(4, saturation.getObjectSeen().size());
+        for(DefaultFeature obj : saturation.getObjectSeen()) {
+            assertEquals("group", obj.getAttributeNames().get(0));
+            assertEquals("zh", obj.getAttributeNames().get(1));
+            assertTrue(((Number)obj.getAttribute("zh")).doubleValue() > 0);
+            assertFalse(obj.getId().equals(5));
+        }
+        // no sector for the group C without object within the distance
+        Map<Object, DefaultFeature> sectors = new HashMap<>();
+        for(DefaultFeature sector : saturation.getSectors()) {
+            sectors.put(sector.getId(), sector);
+        }
+        assertEquals(2, sectors.size());
+        assertEquals(2, sectors.get("A").getAttribute("nbobj"));
+        assertEquals(90, ((Number)sectors.get("A").getAttribute("amplitude")).doubleValue(), 1e-6);
+        assertEquals(2, sectors.get("B").getAttribute("nbobj"));
+        assertEquals(90, ((Number)sectors.get("B").getAttribute("amplitude")).doubleValue(), 1e-6);
+        assertEquals(90, ((Number)saturation.getFreeSector().getAttribute("amplitude")).doubleValue(), 1e-6);
+    }
+
+    /**
+     * Test of execute and saveResult methods, of class SaturationTask.
+     */
+    @Test
+    public void testSaveResult() throws IOException {
+        File dir = Files.createTempDirectory("saturation").toFile();
+        File originFile = new File(dir, "origins.gpkg");
+        File objectFile = new File(dir, "objects.gpkg");
+        IOFeature.saveFeatures(Arrays.asList(
+                new DefaultFeature("o1", new GeometryFactory().createPoint(new Coordinate(20.5, 20.5)),
+                        Collections.<String>emptyList(), Collections.emptyList()),
+                new DefaultFeature("o2", new GeometryFactory().createPoint(new Coordinate(5.5, 35.5)),
+                        Collections.<String>emptyList(), Collections.emptyList())), originFile);
+        IOFeature.saveFeatures(objects, objectFile);
+
+        SaturationTask task = new SaturationTask(originFile, "id", objectFile, "group", 10, project, new TaskMonitor.EmptyMonitor());
+        ExecutorService.execute(task);
+        File resFile = new File(dir, "saturation.gpkg");
+        task.saveResult(resFile);
+
+        List<? extends Feature> sectors = IOFeature.loadFeatures(resFile);
+        // o1 : free + A + B, o2 : free circle only
+        assertEquals(4, sectors.size());
+        for(Feature sector : sectors) {
+            assertTrue(sector.getAttributeNames().containsAll(SaturationTask.ATTRS));
+        }
+        assertEquals("o1", sectors.get(0).getAttribute("origin"));
+        assertEquals("free", sectors.get(0).getAttribute("type"));
+        assertEquals(4, ((Number)sectors.get(0).getAttribute("nbobj")).intValue());
+        assertEquals("group", sectors.get(1).getAttribute("type"));
+        assertEquals("group", sectors.get(2).getAttribute("type"));
+        assertEquals("o2", sectors.get(3).getAttribute("origin"));
+        assertEquals("free", sectors.get(3).getAttribute("type"));
+        assertEquals(0, ((Number)sectors.get(3).getAttribute("nbobj")).intValue());
+        assertEquals(360, ((Number)sectors.get(3).getAttribute("amplitude")).doubleValue(), 1e-6);
+    }
+}
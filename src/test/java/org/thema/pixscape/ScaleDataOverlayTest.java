@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.TreeSet;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.junit.Test;
+import org.thema.common.RasterImage;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class ScaleDataOverlayTest {
+
+    /**
+     * Test of set, createScaleData and reset methods, of class ScaleDataOverlay.
+     * The modifications are visible in the scenario data only and are removed by reset.
+     */
+    @Test
+    public void testScenario() {
+        ScaleData base = TestTools.createFlatDataWithLand(20, 4);
+        assertTrue(ScaleDataOverlay.isSupported(base));
+        ScaleDataOverlay overlay = new ScaleDataOverlay(base);
+        overlay.set(3, 4, 7, 12.5);
+        overlay.set(10, 11, 8, 3);
+        TreeSet<Integer> codes = new TreeSet<>(base.getCodes());
+        codes.add(7);
+        codes.add(8);
+        ScaleData data = overlay.createScaleData(codes);
+        assertEquals(7, data.getLandRaster().getSample(3, 4, 0));
+        assertEquals(12.5, data.getDsmRaster().getSampleDouble(3, 4, 0), 0);
+        assertEquals(8, data.getLand().getData().getSample(10, 11, 0));
+        assertEquals(3, data.getDsm().getData().getSampleDouble(10, 11, 0), 0);
+        assertEquals(12.5, data.getMaxZ(), 0);
+        assertEquals(codes, data.getCodes());
+        assertTrue(data.getDtmRaster() == base.getDtmRaster());
+        // the base is not modified
+        assertEquals(4*4/20, base.getLandRaster().getSample(3, 4, 0));
+        assertEquals(0, base.getDsmRaster().getSampleDouble(3, 4, 0), 0);
+
+        overlay.reset();
+        cmpRaster(base.getLandRaster(), data.getLandRaster());
+        cmpRaster(base.getDsmRaster(), data.getDsmRaster());
+        overlay.set(0, 0, 2, 1);
+        data = overlay.createScaleData(base.getCodes());
+        assertEquals(2, data.getLandRaster().getSample(0, 0, 0));
+        assertEquals(4*4/20, data.getLandRaster().getSample(3, 4, 0));
+        assertEquals(1, data.getMaxZ(), 0);
+    }
+
+    /**
+     * Test of createScaleData method, of class ScaleDataOverlay, with the pyramid.
+     * It is updated with the modified pixels only and must be the same as the one created from the rasters.
+     */
+    @Test
+    public void testPyramid() {
+        ScaleData base = TestTools.createFlatDataWithLand(100, 4);
+        ScaleDataOverlay overlay = new ScaleDataOverlay(base);
+        overlay.set(40, 50, 1, 30);
+        overlay.set(41, 50, 1, 35);
+        overlay.set(99, 0, 1, 20);
+        ScaleData data = overlay.createScaleData(base.getCodes());
+        cmpPyramid(new MaxZPyramid(data.getDtmRaster(), data.getDsmRaster()), data.getMaxZPyramid());
+        assertEquals(35, data.getMaxZPyramid().getMax(data.getMaxZPyramid().getNbLevel()-1, 0, 0), 1e-4);
+
+        overlay.reset();
+        overlay.set(70, 80, 1, 10);
+        data = overlay.createScaleData(base.getCodes());
+        cmpPyramid(new MaxZPyramid(data.getDtmRaster(), data.getDsmRaster()), data.getMaxZPyramid());
+        assertEquals(10, data.getMaxZPyramid().getMax(data.getMaxZPyramid().getNbLevel()-1, 0, 0), 1e-4);
+        assertEquals(0, data.getMaxZPyramid().getMax(0, 40, 50), 1e-4);
+        // the base is not modified
+        cmpPyramid(new MaxZPyramid(base.getDtmRaster(), base.getDsmRaster()), base.getMaxZPyramid());
+        assertEquals(0, base.getDsmRaster().getSampleFloat(70, 80, 0), 0);
+    }
+
+    /**
+     * Test of set method, of class ScaleDataOverlay, with quantized elevations.
+     * A height outside the quantization range is rejected without modifying the pixel.
+     */
+    @Test
+    public void testQuantized() {
+        WritableRaster dtm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 10, 10, 1), null);
+        WritableRaster dsm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 10, 10, 1), null);
+        WritableRaster land = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_BYTE, 10, 10, 1), null);
+        dsm.setSample(9, 9, 0, 50);
+        GridCoverage2D dtmCov = new GridCoverageFactory().create("", dtm, new Envelope2D(null, 0, 0, 10, 10));
+        ScaleData base = new ScaleData(dtmCov, new RasterImage(land), new RasterImage(dsm), 1, 0.1);
+        ScaleDataOverlay overlay = new ScaleDataOverlay(base);
+        overlay.set(2, 2, 1, 20);
+        try {
+            overlay.set(3, 3, 1, 1e6);
+            fail();
+        } catch(IllegalArgumentException ex) {
+            // outside of the range
+        }
+        ScaleData data = overlay.createScaleData(base.getCodes());
+        assertTrue(data.isQuantized());
+        assertEquals(20, data.getDsmRaster().getSampleDouble(2, 2, 0), 0.05);
+        assertEquals(0, data.getDsmRaster().getSampleDouble(3, 3, 0), 0.05);
+        assertEquals(0, data.getLandRaster().getSample(3, 3, 0));
+        overlay.reset();
+        cmpRaster(base.getDsmRaster(), data.getDsmRaster());
+    }
+
+    private static void cmpPyramid(MaxZPyramid p1, MaxZPyramid p2) {
+        assertEquals(p1.getNbLevel(), p2.getNbLevel());
+        for(int l = 0; l < p1.getNbLevel(); l++) {
+            final int size = 1 << p1.getBlockBits(l);
+            for(int y = 0; y < 100; y += size) {
+                for(int x = 0; x < 100; x += size) {
+                    assertEquals(p1.getMax(l, x, y), p2.getMax(l, x, y), 0);
+                }
+            }
+        }
+    }
+
+    private static void cmpRaster(Raster r1, Raster r2) {
+        assertEquals(r1.getWidth(), r2.getWidth());
+        assertEquals(r1.getHeight(), r2.getHeight());
+        for(int y = 0; y < r1.getHeight(); y++) {
+            for(int x = 0; x < r1.getWidth(); x++) {
+                assertEquals(r1.getSampleDouble(x, y, 0), r2.getSampleDouble(x, y, 0), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape;
+
+import java.awt.Point;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class TiledTiffWriterTest {
+
+    /**
+     * Test of write method, of class TiledTiffWriter.
+     * The blocks are written in random order, the block not written is no data.
+     */
+    @Test
+    public void testWrite() throws IOException {
+        final int w = 600, h = 300;
+        File file = File.createTempFile("tiled", ".tif");
+        file.deleteOnExit();
+        List<Raster> blocks = createBlocks(w, h, 64, DataBuffer.TYPE_FLOAT);
+        // the last block is missing
+        blocks.remove(blocks.size()-1);
+        Collections.shuffle(blocks, new Random(1));
+        try (TiledTiffWriter writer = new TiledTiffWriter(file, w, h, DataBuffer.TYPE_FLOAT, false)) {
+            for(Raster r : blocks) {
+                writer.write(r);
+            }
+        }
+        Raster r = read(file, 0);
+        assertEquals(w, r.getWidth());
+        assertEquals(h, r.getHeight());
+        for(int y = 0; y < h; y++) {
+            for(int x = 0; x < w; x++) {
+                if(x >= 576 && y >= 256) {
+                    assertTrue(Float.isNaN(r.getSampleFloat(x, y, 0)));
+                } else {
+                    assertEquals(getValue(x, y), r.getSampleFloat(x, y, 0), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of the tiles not complete, of class TiledTiffWriter, with blocks written in random order.
+     * When the blocks are aligned on the TIFF tiles, each tile is written at once.
+     * Otherwise, the number of tiles in memory is bounded, the others are read back from the temporary file.
+     */
+    @Test
+    public void testPartialTiles() throws IOException {
+        final int w = 600, h = 300;
+        File file = File.createTempFile("tiled", ".tif");
+        file.deleteOnExit();
+        List<Raster> blocks = createBlocks(w, h, 64, DataBuffer.TYPE_FLOAT);
+        Collections.shuffle(blocks, new Random(1));
+        TiledTiffWriter writer = new TiledTiffWriter(file, w, h, DataBuffer.TYPE_FLOAT, false, 64);
+        for(Raster r : blocks) {
+            writer.write(r);
+        }
+        writer.close();
+        assertEquals(1, writer.getPeakLoadedTiles());
+        checkValues(read(file, 0));
+
+        blocks = createBlocks(w, h, 40, DataBuffer.TYPE_FLOAT);
+        Collections.shuffle(blocks, new Random(1));
+        writer = new TiledTiffWriter(file, w, h, DataBuffer.TYPE_FLOAT, false, 64);
+        writer.setMaxLoadedTiles(3);
+        for(Raster r : blocks) {
+            writer.write(r);
+        }
+        writer.close();
+        assertEquals(3, writer.getPeakLoadedTiles());
+        assertFalse(new File(file.getPath() + ".part").exists());
+        checkValues(read(file, 0));
+    }
+
+    /**
+     * Test of the overviews, of class TiledTiffWriter.
+     * Each overview pixel is the mean of the 2x2 pixels of the previous level.
+     */
+    @Test
+    public void testOverviews() throws IOException {
+        final int w = 700, h = 300;
+        File file = File.createTempFile("tiled", ".tif");
+        file.deleteOnExit();
+        try (TiledTiffWriter writer = new TiledTiffWriter(file, w, h, DataBuffer.TYPE_INT, true)) {
+            for(Raster r : createBlocks(w, h, 100, DataBuffer.TYPE_INT)) {
+                writer.write(r);
+            }
+        }
+        assertEquals(3, getNbImages(file));
+        Raster r0 = read(file, 0);
+        for(int y = 0; y < h; y++) {
+            for(int x = 0; x < w; x++) {
+                assertEquals((int)getValue(x, y), r0.getSample(x, y, 0));
+            }
+        }
+        Raster r1 = read(file, 1);
+        assertEquals(350, r1.getWidth());
+        assertEquals(150, r1.getHeight());
+        for(int y = 0; y < 150; y++) {
+            for(int x = 0; x < 350; x++) {
+                double sum = r0.getSample(2*x, 2*y, 0) + r0.getSample(2*x+1, 2*y, 0) + r0.getSample(2*x, 2*y+1, 0) + r0.getSample(2*x+1, 2*y+1, 0);
+                assertEquals(Math.round(sum/4), r1.getSample(x, y, 0));
+            }
+        }
+        Raster r2 = read(file, 2);
+        assertEquals(175, r2.getWidth());
+        assertEquals(75, r2.getHeight());
+    }
+
+    private static void checkValues(Raster r) {
+        for(int y = 0; y < r.getHeight(); y++) {
+            for(int x = 0; x < r.getWidth(); x++) {
+                assertEquals(getValue(x, y), r.getSampleFloat(x, y, 0), 0);
+            }
+        }
+    }
+
+    private static float getValue(int x, int y) {
+        return (float) (x*0.5 + y*1000);
+    }
+
+    private static List<Raster> createBlocks(int w, int h, int size, int dataType) {
+        List<Raster> blocks = new ArrayList<>();
+        for(int y = 0; y < h; y += size) {
+            for(int x = 0; x < w; x += size) {
+                WritableRaster r = Raster.createWritableRaster(new BandedSampleModel(dataType,
+                        Math.min(size, w-x), Math.min(size, h-y), 1), new Point(x, y));
+                for(int j = y; j < y+r.getHeight(); j++) {
+                    for(int i = x; i < x+r.getWidth(); i++) {
+                        r.setSample(i, j, 0, getValue(i, j));
+                    }
+                }
+                blocks.add(r);
+            }
+        }
+        return blocks;
+    }
+
+    private static int getNbImages(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = getReader(in);
+            return reader.getNumImages(true);
+        }
+    }
+
+    private static Raster read(File file, int image) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = getReader(in);
+            return reader.read(image).getRaster();
+        }
+    }
+
+    private static ImageReader getReader(ImageInputStream in) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        assertTrue(readers.hasNext());
+        ImageReader reader = readers.next();
+        reader.setInput(in);
+        return reader;
+    }
+}
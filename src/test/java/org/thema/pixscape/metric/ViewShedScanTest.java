@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.geotools.geometry.DirectPosition2D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.TestTools;
+import org.thema.pixscape.view.ComputeViewJava;
+import org.thema.pixscape.view.ViewShedResult;
+import org.thema.pixscape.view.WindowViewShedResult;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class ViewShedScanTest {
+
+    private static ComputeViewJava compute;
+
+    @BeforeClass
+    public static void setUpClass() {
+        compute = new ComputeViewJava(TestTools.createRandomData(40), 0.1, false, 0);
+    }
+
+    /**
+     * Test of calcMetrics method, of class ViewShedScan.
+     * The results with one scan must be the same as the results of each metric.
+     */
+    @Test
+    public void testCalcMetrics() {
+        List<ViewShedMetric> metrics = createMetrics();
+        for(Bounds bounds : Arrays.asList(new Bounds(), new Bounds(0, 12, 0, 360, -90, 90), new Bounds(2, 15, 45, 90, -90, 90))) {
+            for(DirectPosition2D p : Arrays.asList(new DirectPosition2D(20.5, 20.5), new DirectPosition2D(2.5, 5.5), new DirectPosition2D(35.5, 38.5))) {
+                for(boolean inverse : new boolean[] {false, true}) {
+                    ViewShedResult view = compute.calcViewShed(p, 1, 0, inverse, bounds);
+                    assertEquals(Double.isInfinite(bounds.getDmax()), !(view instanceof WindowViewShedResult));
+                    List<Double[]> results = ViewShedScan.calcMetrics(view, metrics);
+                    for(int i = 0; i < metrics.size(); i++) {
+                        Double[] expected = metrics.get(i).calcMetric(view);
+                        Double[] result = results.get(i);
+                        assertEquals(metrics.get(i).toString(), expected.length, result.length);
+                        for(int j = 0; j < expected.length; j++) {
+                            if(expected[j].isNaN()) {
+                                assertTrue(metrics.get(i).toString(), result[j].isNaN());
+                            } else {
+                                assertEquals(metrics.get(i).toString(), expected[j], result[j], Math.abs(expected[j])*1e-12);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of begin, add and end methods, of class ViewShedScan.
+     * The metrics streamed by the ray kernels of {@link ComputeViewJava#aggrViewShed } must be the same as 
+     * the metrics calculated on the viewshed, in pooled mode or not. With the perimeter, the view is scanned.
+     */
+    @Test
+    public void testStream() {
+        List<ViewShedMetric> all = createMetrics();
+        List<ViewShedMetric> streamed = new ArrayList<>(all.subList(0, 6));
+        ComputeViewJava seqCompute = new ComputeViewJava(TestTools.createRandomData(40), 0.1, false, 0);
+        seqCompute.setParallel(false);
+        for(List<ViewShedMetric> metrics : Arrays.asList(streamed, all)) {
+            for(boolean pooled : new boolean[] {false, true}) {
+                seqCompute.setPooled(pooled);
+                for(Bounds bounds : Arrays.asList(new Bounds(), new Bounds(0, 12, 0, 360, -90, 90), new Bounds(2, 15, 45, 90, -90, 90))) {
+                    for(DirectPosition2D p : Arrays.asList(new DirectPosition2D(20.5, 20.5), new DirectPosition2D(2.5, 5.5))) {
+                        for(boolean inverse : new boolean[] {false, true}) {
+                            List<Double[]> expected = ViewShedScan.calcMetrics(seqCompute.calcViewShed(p, 1, 0, inverse, bounds), metrics);
+                            List<Double[]> results = seqCompute.aggrViewShed(p, 1, 0, inverse, bounds, metrics);
+                            for(int i = 0; i < metrics.size(); i++) {
+                                assertArrayEquals(metrics.get(i).toString(), expected.get(i), results.get(i));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        ViewShedResult view = seqCompute.calcViewShed(new DirectPosition2D(20.5, 20.5), 1, 0, false, new Bounds());
+        assertTrue(ViewShedScan.prepare(view, streamed).isStreamable());
+        assertFalse(ViewShedScan.prepare(view, all).isStreamable());
+    }
+
+    /**
+     * Test of getArea method, of class ViewShedScan.
+     */
+    @Test
+    public void testGetArea() {
+        ViewShedResult view = compute.calcViewShed(new DirectPosition2D(20.5, 20.5), 1, 0, false, new Bounds());
+        ViewShedScan scan = new ViewShedScan(view);
+        scan.addDistances(new TreeSet<>(Arrays.asList(0.0, 5.0, 10.0)));
+        scan.requireLand();
+        scan.scan();
+        assertEquals(view.getArea(), scan.getArea(0, Double.POSITIVE_INFINITY), 0);
+        assertEquals(view.getArea(5, 10), scan.getArea(5, 10), 0);
+        assertEquals(view.getArea(0, 10), scan.getArea(0, 10), 0);
+        assertArrayEquals(view.getAreaLand(5, Double.POSITIVE_INFINITY), scan.getAreaLand(5, Double.POSITIVE_INFINITY), 1e-9);
+        try {
+            scan.getArea(0, 7);
+            fail("7 is not a ring boundary");
+        } catch(IllegalArgumentException ex) {
+        }
+        try {
+            scan.getPerimeter();
+            fail("Perimeter has not been requested");
+        } catch(IllegalStateException ex) {
+        }
+    }
+
+    private static List<ViewShedMetric> createMetrics() {
+        List<ViewShedMetric> metrics = new ArrayList<>();
+        metrics.add(new AreaMetric());
+        AreaMetric area = new AreaMetric();
+        area.addCode(1);
+        area.addCode(3);
+        area.setDistances(new TreeSet<>(Arrays.asList(0.0, 5.0, 10.0, Double.POSITIVE_INFINITY)));
+        metrics.add(area);
+        area = new AreaMetric();
+        area.setDistances(new TreeSet<>(Arrays.asList(3.0, 7.0, 20.0)));
+        metrics.add(area);
+        ShannonMetric shannon = new ShannonMetric();
+        shannon.setDistances(new TreeSet<>(Arrays.asList(0.0, 7.0, Double.POSITIVE_INFINITY)));
+        metrics.add(shannon);
+        shannon = new ShannonMetric();
+        TestTools.setMetricCodes(shannon, 6, 3);
+        metrics.add(shannon);
+        metrics.add(new DistMetric());
+        metrics.add(new PerimeterMetric());
+        metrics.add(new CompactMetric());
+        metrics.add(new EdgeDensityMetric());
+        EdgeDensityMetric ed = new EdgeDensityMetric();
+        ed.addCode(2);
+        metrics.add(ed);
+        metrics.add(new CONTAGMetric());
+        CONTAGMetric contag = new CONTAGMetric();
+        TestTools.setMetricCodes(contag, 6, 3);
+        metrics.add(contag);
+        metrics.add(new AggregationMetric());
+        metrics.add(new PatchDensityMetric());
+        return metrics;
+    }
+}
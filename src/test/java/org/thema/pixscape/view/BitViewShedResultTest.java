@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.List;
+import org.geotools.geometry.DirectPosition2D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.TestTools;
+import org.thema.pixscape.metric.AreaMetric;
+import org.thema.pixscape.metric.PerimeterMetric;
+import org.thema.pixscape.metric.ShannonMetric;
+import org.thema.pixscape.metric.ViewShedMetric;
+import org.thema.pixscape.metric.ViewShedScan;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class BitViewShedResultTest {
+    
+    private static ComputeViewJava compute;
+    
+    @BeforeClass
+    public static void setUpClass() {
+        // odd width to test the padding of the rows
+        compute = new ComputeViewJava(TestTools.createRandomData(37), 0.1, false, 0);
+    }
+
+    /**
+     * Test of pack method, of class BitViewShedResult.
+     * The packed viewshed must give the same results as the byte viewshed.
+     */
+    @Test
+    public void testPack() {
+        for(DirectPosition2D p : Arrays.asList(new DirectPosition2D(20.5, 20.5), new DirectPosition2D(2.5, 5.5))) {
+            for(boolean inverse : new boolean[] {false, true}) {
+                ViewShedResult view = compute.calcViewShed(p, 1, 0, inverse, new Bounds());
+                ViewShedResult bitView = BitViewShedResult.pack(view);
+                assertTrue(bitView instanceof BitViewShedResult);
+                assertEquals(view.getCoord(), bitView.getCoord());
+                Raster r1 = view.getView(), r2 = bitView.getView();
+                for(int y = 0; y < r1.getHeight(); y++) {
+                    for(int x = 0; x < r1.getWidth(); x++) {
+                        assertEquals(r1.getSample(x, y, 0), r2.getSample(x, y, 0));
+                        assertEquals(view.getLand(x, y), bitView.getLand(x, y));
+                    }
+                }
+                assertEquals(view.getArea(), bitView.getArea(), 0);
+                assertEquals(view.getArea(3, 12), bitView.getArea(3, 12), 0);
+                assertEquals(view.getArea(0, 10), bitView.getArea(0, 10), 0);
+                assertArrayEquals(view.getAreaLand(), bitView.getAreaLand(), 0);
+                assertArrayEquals(view.getAreaLand(5, Double.POSITIVE_INFINITY), bitView.getAreaLand(5, Double.POSITIVE_INFINITY), 0);
+                assertArrayEquals(view.getAreaLand(2, 9), bitView.getAreaLand(2, 9), 0);
+                assertEquals(view.getPerimeter(), bitView.getPerimeter(), 0);
+                
+                List<ViewShedMetric> metrics = Arrays.asList(new AreaMetric(), new ShannonMetric(), new PerimeterMetric());
+                List<Double[]> expected = ViewShedScan.calcMetrics(view, metrics);
+                List<Double[]> results = ViewShedScan.calcMetrics(bitView, metrics);
+                for(int i = 0; i < metrics.size(); i++) {
+                    assertArrayEquals(expected.get(i), results.get(i));
+                }
+            }
+        }
+        
+        ViewShedResult window = compute.calcViewShed(new DirectPosition2D(20.5, 20.5), 1, 0, false, new Bounds(0, 10, 0, 360, -90, 90));
+        assertTrue(window == BitViewShedResult.pack(window));
+    }
+
+    /**
+     * Test of calcBitViewShed method, of class ComputeViewJava.
+     * In pooled mode, the result must not share the buffer of the pool.
+     */
+    @Test
+    public void testCalcBitViewShed() {
+        ComputeViewJava pooledCompute = new ComputeViewJava(compute.getData(), 0.1, false, 0);
+        pooledCompute.setPooled(true);
+        for(Bounds bounds : Arrays.asList(new Bounds(), new Bounds(0, 10, 0, 360, -90, 90))) {
+            DirectPosition2D p = new DirectPosition2D(20.5, 20.5);
+            ViewShedResult view = compute.calcViewShed(p, 1, 0, false, bounds);
+            ViewShedResult bitView = pooledCompute.calcBitViewShed(p, 1, 0, false, bounds);
+            assertEquals(view.getClass() == WindowViewShedResult.class, bitView instanceof WindowViewShedResult);
+            assertEquals(bounds.isUnbounded(), bitView instanceof BitViewShedResult);
+            // another viewshed in the pooled buffer
+            pooledCompute.calcBitViewShed(new DirectPosition2D(2.5, 5.5), 1, 0, true, bounds);
+            assertEquals(view.getArea(), bitView.getArea(), 0);
+            assertArrayEquals(view.getAreaLand(), bitView.getAreaLand(), 0);
+            assertEquals(view.getPerimeter(), bitView.getPerimeter(), 0);
+            
+            assertEquals(bounds.isUnbounded(), compute.calcBitViewShed(p, 1, 0, false, bounds) instanceof BitViewShedResult);
+        }
+    }
+    
+}
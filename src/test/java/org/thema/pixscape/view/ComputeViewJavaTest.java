@@ -16,14 +16,29 @@
  */
 package org.thema.pixscape.view;
 
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import org.thema.common.RasterImage;
 import org.thema.pixscape.Bounds;
+import org.thema.pixscape.QuantizedSampleModel;
+import org.thema.pixscape.ScaleData;
 import org.thema.pixscape.TestTools;
+import org.thema.pixscape.metric.AreaMetric;
+import org.thema.pixscape.metric.PerimeterMetric;
+import org.thema.pixscape.metric.ViewShedMetric;
 
 /**
  *
@@ -94,6 +109,258 @@ public class ComputeViewJavaTest {
         checkRayInv(result, 0, 1);
     }
  
+    @Test
+    public void testParallelViewShed() {
+        ComputeViewJava seq = new ComputeViewJava(TestTools.createRandomData(50), 0.1, false, 0);
+        ComputeViewJava par = new ComputeViewJava(seq.getData(), 0.1, false, 0);
+        par.setParallel(true);
+        DirectPosition2D p = new DirectPosition2D(20.5, 30.5);
+        for(Bounds b : new Bounds[] {new Bounds(), new Bounds(2, 15, 45, 200, -10, 20)}) {
+            for(boolean inverse : new boolean[] {false, true}) {
+                Raster r1 = seq.calcViewShed(p, 2, -1, inverse, b).getView();
+                Raster r2 = par.calcViewShed(p, 2, -1, inverse, b).getView();
+                for(int y = 0; y < r1.getHeight(); y++) {
+                    for(int x = 0; x < r1.getWidth(); x++) {
+                        assertEquals("Parallel viewshed error at "+x+"-"+y, r1.getSample(x, y, 0), r2.getSample(x, y, 0));
+                    }
+                }
+            }
+        }
+        
+        ComputeViewJava parFlat = new ComputeViewJava(compute.getData(), 0.1, false, 0);
+        parFlat.setParallel(true);
+        p = new DirectPosition2D(14.5, 9.5);
+        checkRay(parFlat, parFlat.calcViewShedDeg(p, 2, -1, false, new Bounds(), false), 2, -1);
+        checkRay(parFlat, parFlat.calcViewShedDeg(p, 2, 1, false, new Bounds(), false), 2, 1);
+        checkRayInv(parFlat.calcViewShedDeg(p, 2, -1, true, new Bounds(), false), 2, -1);
+        checkRayInv(parFlat.calcViewShedDeg(p, 0, 1, true, new Bounds(), false), 0, 1);
+    }
+    
+    @Test
+    public void testParallelViewTan() {
+        ComputeViewJava compute = new ComputeViewJava(TestTools.createRandomData(50), 0.5, false, 0);
+        DirectPosition2D p = new DirectPosition2D(20.5, 30.5);
+        for(Bounds b : new Bounds[] {new Bounds(), new Bounds(2, 15, 45, 200, -10, 20)}) {
+            Raster r1 = compute.calcViewTan(p, 2, b, false).getView();
+            Raster r2 = compute.calcViewTan(p, 2, b, true).getView();
+            assertEquals(r1.getWidth(), r2.getWidth());
+            for(int y = 0; y < r1.getHeight(); y++) {
+                for(int x = 0; x < r1.getWidth(); x++) {
+                    assertEquals("Parallel tangential view error at "+x+"-"+y, r1.getSample(x, y, 0), r2.getSample(x, y, 0));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testPooledAggrViewShed() {
+        ComputeViewJava seq = new ComputeViewJava(TestTools.createRandomData(50), 0.1, false, 0);
+        ComputeViewJava pooled = new ComputeViewJava(seq.getData(), 0.1, false, 0);
+        pooled.setPooled(true);
+        List<ViewShedMetric> metrics = Arrays.asList((ViewShedMetric)new AreaMetric(), new PerimeterMetric());
+        int nb = 0;
+        // large viewshed after small ones and inversely to check the clearing of the buffer
+        for(Bounds b : new Bounds[] {new Bounds(0, 5, 0, 360, -90, 90), new Bounds(), new Bounds(2, 15, 45, 200, -10, 20), new Bounds(0, 5, 0, 360, -90, 90)}) {
+            for(DirectPosition2D p : new DirectPosition2D[] {new DirectPosition2D(20.5, 30.5), new DirectPosition2D(2.5, 47.5)}) {
+                for(boolean inverse : new boolean[] {false, true}) {
+                    List<Double[]> expected = seq.aggrViewShed(p, 2, -1, inverse, b, metrics);
+                    List<Double[]> result = pooled.aggrViewShed(p, 2, -1, inverse, b, metrics);
+                    for(int i = 0; i < metrics.size(); i++) {
+                        assertArrayEquals(expected.get(i), result.get(i));
+                    }
+                    nb++;
+                }
+            }
+        }
+        assertEquals(1, pooled.getBufferPool().getNbBuffer());
+        assertEquals(1, pooled.getBufferPool().getNbMiss());
+        assertEquals(nb-1, pooled.getBufferPool().getNbHit());
+        assertNull(seq.getBufferPool());
+    }
+    
+    /**
+     * Test of the buffer pool with bounded viewsheds, of class ComputeViewJava.
+     * The pooled buffer has the size of the largest window, not the size of the data, and is released with the pool.
+     */
+    @Test
+    public void testPooledWindow() {
+        ComputeViewJava seq = new ComputeViewJava(TestTools.createRandomData(50), 0.1, false, 0);
+        ComputeViewJava pooled = new ComputeViewJava(seq.getData(), 0.1, false, 0);
+        pooled.setPooled(true);
+        List<ViewShedMetric> metrics = Arrays.asList((ViewShedMetric)new AreaMetric(), new PerimeterMetric());
+        for(Bounds b : new Bounds[] {new Bounds(0, 5, 0, 360, -90, 90), new Bounds(0, 10, 0, 360, -90, 90), new Bounds(0, 3, 0, 360, -90, 90)}) {
+            for(DirectPosition2D p : new DirectPosition2D[] {new DirectPosition2D(20.5, 30.5), new DirectPosition2D(2.5, 47.5)}) {
+                List<Double[]> expected = seq.aggrViewShed(p, 2, -1, false, b, metrics);
+                List<Double[]> result = pooled.aggrViewShed(p, 2, -1, false, b, metrics);
+                for(int i = 0; i < metrics.size(); i++) {
+                    assertArrayEquals(expected.get(i), result.get(i));
+                }
+            }
+        }
+        ViewBufferPool pool = pooled.getBufferPool();
+        assertEquals(1, pool.getNbBuffer());
+        // the window of dmax=10 and its margin, instead of 50x50
+        assertTrue(pool.getMemorySize() <= 25*25);
+        pooled.setPooled(false);
+        assertEquals(0, pool.getMemorySize());
+        assertNull(pooled.getBufferPool());
+    }
+    
+    @Test
+    public void testWindowViewShed() {
+        ComputeViewJava random = new ComputeViewJava(TestTools.createRandomData(50), 0.1, false, 0);
+        ComputeViewJava pooled = new ComputeViewJava(random.getData(), 0.1, false, 0);
+        pooled.setPooled(true);
+        List<ViewShedMetric> metrics = Arrays.asList((ViewShedMetric)new AreaMetric(), new AreaMetric(2), new PerimeterMetric());
+        for(DirectPosition2D p : new DirectPosition2D[] {new DirectPosition2D(20.5, 30.5), new DirectPosition2D(2.5, 47.5)}) {
+            for(boolean inverse : new boolean[] {false, true}) {
+                ViewShedResult result = random.calcViewShed(p, 2, -1, inverse, new Bounds(0, 12, 0, 360, -90, 90));
+                assertTrue(result instanceof WindowViewShedResult);
+                // same results than the full size view
+                SimpleViewShedResult full = new SimpleViewShedResult(result.getCoord(), result.getView(), random);
+                assertEquals(full.getArea(), result.getArea(), 0);
+                assertEquals(full.getArea(2, 8), result.getArea(2, 8), 0);
+                assertArrayEquals(full.getAreaLand(), result.getAreaLand(), 0);
+                assertArrayEquals(full.getAreaLand(0, 5), result.getAreaLand(0, 5), 0);
+                assertEquals(full.getPerimeter(), result.getPerimeter(), 0);
+                for(int y = 0; y < 50; y++) {
+                    for(int x = 0; x < 50; x++) {
+                        assertEquals(full.getLand(x, y), result.getLand(x, y));
+                        assertEquals(full.getLanduseView().getSample(x, y, 0), result.getLanduseView().getSample(x, y, 0));
+                    }
+                }
+                // nothing visible outside the window
+                Rectangle r = ((WindowViewShedResult)result).getWindowRect();
+                for(int y = 0; y < 50; y++) {
+                    for(int x = 0; x < 50; x++) {
+                        if(!r.contains(x, y)) {
+                            assertEquals(0, result.getView().getSample(x, y, 0));
+                        }
+                    }
+                }
+                // the pooled viewshed is computed in a full size buffer
+                List<Double[]> values = pooled.aggrViewShed(p, 2, -1, inverse, new Bounds(0, 12, 0, 360, -90, 90), metrics);
+                for(int i = 0; i < metrics.size(); i++) {
+                    assertArrayEquals(metrics.get(i).calcMetric(result), values.get(i));
+                }
+            }
+        }
+        
+        // on flat data, the window does not change the viewshed
+        DirectPosition2D p = new DirectPosition2D(14.5, 9.5);
+        ViewShedResult result = compute.calcViewShed(p, 2, -1, false, new Bounds(0, 6, 0, 360, -90, 90));
+        assertTrue(result instanceof WindowViewShedResult);
+        ViewShedResult unbounded = compute.calcViewShed(p, 2, -1, false, new Bounds());
+        assertEquals(unbounded.getArea(0, 6), result.getArea(), 0);
+    }
+    
+    /**
+     * The block skipping must give exactly the same viewsheds and tangential views
+     */
+    @Test
+    public void testBlockSkip() {
+        for(boolean dsm : new boolean[] {false, true}) {
+            ScaleData data = createTerrainData(100, dsm);
+            for(boolean earthCurv : new boolean[] {false, true}) {
+                ComputeViewJava ref = new ComputeViewJava(data, 0.5, earthCurv, 0.13);
+                ref.setBlockSkip(false);
+                ComputeViewJava skip = new ComputeViewJava(data, 0.5, earthCurv, 0.13);
+                assertTrue(skip.isBlockSkip());
+                for(DirectPosition2D p : Arrays.asList(new DirectPosition2D(50.5, 50.5), new DirectPosition2D(10.5, 85.5), new DirectPosition2D(70.5, 30.5))) {
+                    for(Bounds b : new Bounds[] {new Bounds(), new Bounds(2, 60, 45, 200, -10, 20), new Bounds(0, Double.POSITIVE_INFINITY, 0, 360, 5, 90)}) {
+                        for(double destZ : new double[] {-1, 0, 1.5}) {
+                            for(boolean inverse : new boolean[] {false, true}) {
+                                assertRasterEquals(ref.calcViewShed(p, 2, destZ, inverse, b).getView(), 
+                                        skip.calcViewShed(p, 2, destZ, inverse, b).getView());
+                            }
+                        }
+                        assertRasterEquals(ref.calcViewTan(p, 2, b).getView(), skip.calcViewTan(p, 2, b).getView());
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * The views of quantized elevations must be the same than the views of the decoded float elevations
+     */
+    @Test
+    public void testQuantized() {
+        ScaleData data = createTerrainData(100, true);
+        ScaleData quant = createTerrainData(100, true, 0.01);
+        assertTrue(quant.isQuantized());
+        assertTrue(quant.getDtmRaster().getSampleModel() instanceof QuantizedSampleModel);
+        for(int y = 0; y < 100; y++) {
+            for(int x = 0; x < 100; x++) {
+                assertEquals(data.getDtmRaster().getSampleDouble(x, y, 0), quant.getDtmRaster().getSampleDouble(x, y, 0), 0.0051);
+                assertEquals(data.getZ(x, y), quant.getZ(x, y), 0.011);
+            }
+        }
+        assertTrue(Double.isNaN(quant.getZ(65, 70)));
+        
+        // float data containing exactly the decoded elevations
+        WritableRaster dtm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 100, 100, 1), null);
+        WritableRaster dsm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, 100, 100, 1), null);
+        dtm.setSamples(0, 0, 100, 100, 0, quant.getDtmRaster().getSamples(0, 0, 100, 100, 0, (float[])null));
+        dsm.setSamples(0, 0, 100, 100, 0, quant.getDsmRaster().getSamples(0, 0, 100, 100, 0, (float[])null));
+        ScaleData decoded = new ScaleData(new GridCoverageFactory().create("", dtm, new Envelope2D(null, 0, 0, 100, 100)), 
+                null, new RasterImage(dsm), 1);
+        
+        for(boolean earthCurv : new boolean[] {false, true}) {
+            ComputeViewJava ref = new ComputeViewJava(decoded, 0.5, earthCurv, 0.13);
+            ComputeViewJava comp = new ComputeViewJava(quant, 0.5, earthCurv, 0.13);
+            for(DirectPosition2D p : Arrays.asList(new DirectPosition2D(50.5, 50.5), new DirectPosition2D(10.5, 85.5))) {
+                for(Bounds b : new Bounds[] {new Bounds(), new Bounds(2, 60, 45, 200, -10, 20)}) {
+                    for(double destZ : new double[] {-1, 0, 1.5}) {
+                        for(boolean inverse : new boolean[] {false, true}) {
+                            assertRasterEquals(ref.calcViewShed(p, 2, destZ, inverse, b).getView(), 
+                                    comp.calcViewShed(p, 2, destZ, inverse, b).getView());
+                        }
+                    }
+                    assertRasterEquals(ref.calcViewTan(p, 2, b).getView(), comp.calcViewTan(p, 2, b).getView());
+                }
+                assertRasterEquals(ref.calcViewShedDeg(p, 2, -1, false, new Bounds(), false).getView(), 
+                        comp.calcViewShedDeg(p, 2, -1, false, new Bounds(), false).getView());
+            }
+        }
+    }
+    
+    private static void assertRasterEquals(Raster r1, Raster r2) {
+        for(int y = 0; y < r1.getHeight(); y++) {
+            for(int x = 0; x < r1.getWidth(); x++) {
+                assertEquals("Difference at "+x+"-"+y, r1.getSample(x, y, 0), r2.getSample(x, y, 0));
+            }
+        }
+    }
+    
+    /**
+     * Creates hills with a DSM and a line without data
+     */
+    private static ScaleData createTerrainData(int size, boolean dsm) {
+        return createTerrainData(size, dsm, 0);
+    }
+    
+    /**
+     * Creates hills with a DSM and a line without data, with quantized elevations if zPrec &gt; 0
+     */
+    private static ScaleData createTerrainData(int size, boolean dsm, double zPrec) {
+        WritableRaster dtm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1), null);
+        WritableRaster dsmR = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1), null);
+        Random rnd = new Random(1);
+        double f = 2*Math.PI / size;
+        for(int y = 0; y < size; y++) {
+            for(int x = 0; x < size; x++) {
+                dtm.setSample(x, y, 0, 20*Math.sin(3*f*x)*Math.cos(2*f*y) + 8*Math.sin(11*f*(x+y)) + rnd.nextFloat()*0.5);
+                dsmR.setSample(x, y, 0, rnd.nextFloat() < 0.1 ? 10*rnd.nextFloat() : 0);
+            }
+        }
+        for(int x = 60; x < 80; x++) {
+            dtm.setSample(x, 70, 0, Float.NaN);
+        }
+        return new ScaleData(new GridCoverageFactory().create("", dtm, new Envelope2D(null, 0, 0, size, size)), 
+                null, dsm ? new RasterImage(dsmR) : null, 1, zPrec);
+    }
+    
     private void checkRay(ComputeViewJava compute, ViewShedResult result, double zEye, double zDest) {
         GridCoordinates2D c = result.getCoord();
         Raster r = result.getView();
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.ScaleData;
+import org.thema.pixscape.TestTools;
+
+/**
+ * Compares the results on mapped data with the results of {@link ComputeViewJava}.
+ * 
+ * @author Gilles Vuidel
+ */
+public class ComputeViewMappedJavaTest {
+    
+    private static ComputeViewJava compute;
+    private static ComputeViewMappedJava mapped;
+    
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        ScaleData data = TestTools.createRandomData(40);
+        data.map(Files.createTempDirectory("pixscape").toFile());
+        compute = new ComputeViewJava(data, 0.1, false, 0);
+        mapped = new ComputeViewMappedJava(data, 0.1, false, 0);
+    }
+
+    /**
+     * Test of calcViewShed method, of class ComputeViewMappedJava.
+     */
+    @Test
+    public void testCalcViewShed() {
+        for(boolean parallel : new boolean[] {false, true}) {
+            mapped.setParallel(parallel);
+            for(Bounds bounds : Arrays.asList(new Bounds(), new Bounds(0, 12, 0, 360, -90, 90), new Bounds(2, 15, 45, 90, -10, 30))) {
+                for(DirectPosition2D p : Arrays.asList(new DirectPosition2D(20.5, 20.5), new DirectPosition2D(2.5, 5.5), new DirectPosition2D(35.5, 38.5))) {
+                    for(boolean inverse : new boolean[] {false, true}) {
+                        ViewShedResult expected = compute.calcViewShed(p, 1.8, -1, inverse, bounds);
+                        ViewShedResult result = mapped.calcViewShed(p, 1.8, -1, inverse, bounds);
+                        assertTrue(result instanceof WindowViewShedResult);
+                        assertRasterEquals(expected.getView(), result.getView());
+                        assertEquals(expected.getArea(), result.getArea(), 0);
+                        assertArrayEquals(expected.getAreaLand(), result.getAreaLand(), 0);
+                    }
+                }
+            }
+        }
+        mapped.setParallel(false);
+    }
+
+    /**
+     * Test of calcRay method, of class ComputeViewMappedJava.
+     */
+    @Test
+    public void testCalcRay() {
+        GridCoordinates2D c0 = new GridCoordinates2D(20, 20);
+        for(Bounds bounds : Arrays.asList(new Bounds(), new Bounds(0, 12, 0, 360, -90, 90))) {
+            for(int y = 0; y < 40; y += 3) {
+                for(int x = 0; x < 40; x += 3) {
+                    GridCoordinates2D c1 = new GridCoordinates2D(x, y);
+                    for(boolean area : new boolean[] {false, true}) {
+                        assertEquals(compute.calcRay(c0, 1.8, c1, -1, bounds, area), mapped.calcRay(c0, 1.8, c1, -1, bounds, area), 0);
+                        assertEquals(compute.calcRay(c1, 1.8, c0, 2, bounds, area), mapped.calcRay(c1, 1.8, c0, 2, bounds, area), 0);
+                    }
+                }
+            }
+        }
+    }
+    
+    private static void assertRasterEquals(Raster expected, Raster result) {
+        assertEquals(expected.getWidth(), result.getWidth());
+        assertEquals(expected.getHeight(), result.getHeight());
+        for(int y = 0; y < expected.getHeight(); y++) {
+            for(int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getSample(x, y, 0), result.getSample(x, y, 0));
+            }
+        }
+    }
+}
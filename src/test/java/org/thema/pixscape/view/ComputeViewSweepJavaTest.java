@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.common.RasterImage;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.ScaleData;
+import org.thema.pixscape.TestTools;
+
+/**
+ * Validates the radial sweep viewshed against the ray casting viewshed and the line of sight.
+ * 
+ * @author Gilles Vuidel
+ */
+public class ComputeViewSweepJavaTest {
+    
+    private static ScaleData flatData, dsmData, randomData, terrainData;
+    
+    @BeforeClass
+    public static void setUpClass() {
+        flatData = TestTools.createFlatData(50, 40);
+        dsmData = TestTools.createFlatDataWithDsm(50, 40, 2);
+        randomData = TestTools.createRandomData(80);
+        terrainData = createTerrainData(120);
+    }
+
+    /**
+     * On flat data, the sweep must give exactly the same result than ray casting
+     */
+    @Test
+    public void testCalcViewShedFlat() {
+        DirectPosition2D p = new DirectPosition2D(20.5, 15.5);
+        for(Bounds bounds : new Bounds[] {new Bounds(), new Bounds(3, 15, 0, 360, -90, 90)}) {
+            ViewShedResult ray = new ComputeViewJava(flatData, 0.1, false, 0).calcViewShed(p, 1.8, -1, false, bounds);
+            ViewShedResult sweep = new ComputeViewSweepJava(flatData, 0.1, false, 0).calcViewShed(p, 1.8, -1, false, bounds);
+            assertEquals(0, countDiff(ray.getView(), sweep.getView()));
+            assertEquals(ray.getArea(), sweep.getArea(), 0);
+        }
+        // the orientation limits are tested on the cell centre, ray casting may differ on the wedge edges
+        Bounds bounds = new Bounds(3, 15, 30, 120, -90, 90);
+        ViewShedResult ray = new ComputeViewJava(flatData, 0.1, false, 0).calcViewShed(p, 1.8, -1, false, bounds);
+        ViewShedResult sweep = new ComputeViewSweepJava(flatData, 0.1, false, 0).calcViewShed(p, 1.8, -1, false, bounds);
+        assertTrue(getAgreement(ray.getView(), sweep.getView()) > 0.98);
+        // DSM of 2m with eye at 1m
+        ray = new ComputeViewJava(dsmData, 0.1, false, 0).calcViewShed(p, 1, -1, false, new Bounds());
+        sweep = new ComputeViewSweepJava(dsmData, 0.1, false, 0).calcViewShed(p, 1, -1, false, new Bounds());
+        assertEquals(0, countDiff(ray.getView(), sweep.getView()));
+    }
+
+    /**
+     * With a single obstacle, the sweep and ray casting differ only on the edge of the shadow of the obstacle :
+     * a ray and the line of sight to the cell center do not cross the same cells.
+     * Elsewhere, the results must be identical.
+     */
+    @Test
+    public void testCalcViewShedObstacle() {
+        DirectPosition2D p = new DirectPosition2D(20.5, 29.5);
+        for(int [] obst : new int[][] {{30, 20, 0}, {30, 20, 1}, {25, 35, 0}, {10, 10, 2}, {33, 22, 0}}) {
+            for(boolean dsm : new boolean[] {false, true}) {
+                ScaleData data = createObstacleData(50, obst[0], obst[1], obst[2], dsm);
+                Raster ray = new ComputeViewJava(data, 0.1, false, 0).calcViewShed(p, 1.8, -1, false, new Bounds()).getView();
+                Raster sweep = new ComputeViewSweepJava(data, 0.1, false, 0).calcViewShed(p, 1.8, -1, false, new Bounds()).getView();
+                int nDiff = countDiff(ray, sweep);
+                assertTrue(nDiff <= 0.01 * 50*50);
+                assertEquals(nDiff, countEdgeDiff(ray, sweep));
+                // the shadow of the obstacle is larger than its edge
+                assertTrue(50*50 - countVisible(ray) > 2*nDiff);
+            }
+        }
+    }
+
+    /**
+     * On a synthetic terrain, the sweep is compared cell by cell to ray casting {@link ComputeViewJava#calcViewShed }.
+     * Less than 1% of the cells of the grid may differ and at least 90% of the differing cells 
+     * must be on the edge of the ray casting viewshed.
+     */
+    @Test
+    public void testCalcViewShedTerrainCells() {
+        ComputeViewJava rayView = new ComputeViewJava(terrainData, 0.1, false, 0);
+        ComputeViewSweepJava sweepView = new ComputeViewSweepJava(terrainData, 0.1, false, 0);
+        int size = terrainData.getDtmRaster().getWidth();
+        for(DirectPosition2D p : new DirectPosition2D[] {new DirectPosition2D(60.5, 60.5), new DirectPosition2D(5.5, 110.5), new DirectPosition2D(0.5, 0.5)}) {
+            for(Bounds bounds : new Bounds[] {new Bounds(), new Bounds(0, 40, 0, 360, -90, 90), new Bounds(5, 60, 200, 90, -20, 30)}) {
+                Raster ray = rayView.calcViewShed(p, 3, -1, false, bounds).getView();
+                Raster sweep = sweepView.calcViewShed(p, 3, -1, false, bounds).getView();
+                int nDiff = countDiff(ray, sweep);
+                assertTrue("Too many different cells " + nDiff, nDiff < 0.01 * size*size);
+                assertTrue("Different cells outside the edge", countEdgeDiff(ray, sweep) >= 0.9 * nDiff);
+            }
+        }
+    }
+
+    /**
+     * The result must not depend on the number of cells of the slices of octant.
+     */
+    @Test
+    public void testSlices() {
+        ComputeViewSweepJava sweepView = new ComputeViewSweepJava(terrainData, 0.1, false, 0);
+        ComputeViewSweepJava sliceView = new ComputeViewSweepJava(terrainData, 0.1, false, 0);
+        sliceView.setSliceCells(5);
+        for(DirectPosition2D p : new DirectPosition2D[] {new DirectPosition2D(60.5, 60.5), new DirectPosition2D(0.5, 0.5)}) {
+            for(Bounds bounds : new Bounds[] {new Bounds(), new Bounds(5, 60, 200, 90, -20, 30)}) {
+                assertEquals(0, countDiff(sweepView.calcViewShed(p, 3, -1, false, bounds).getView(), 
+                        sliceView.calcViewShed(p, 3, -1, false, bounds).getView()));
+            }
+        }
+    }
+    
+    /**
+     * On a synthetic terrain, the sweep must be close to the point to point line of sight 
+     * computed by {@link ComputeViewJava#calcRay }.
+     * The parallel sweep must give exactly the same result than the sequential one.
+     */
+    @Test
+    public void testCalcViewShedTerrain() {
+        ComputeViewJava rayView = new ComputeViewJava(terrainData, 0.1, false, 0);
+        ComputeViewSweepJava sweepView = new ComputeViewSweepJava(terrainData, 0.1, false, 0);
+        ComputeViewSweepJava sweepParView = new ComputeViewSweepJava(terrainData, 0.1, false, 0);
+        sweepParView.setParallel(true);
+        int size = terrainData.getDtmRaster().getWidth();
+        int union = 0, inter = 0;
+        for(DirectPosition2D p : new DirectPosition2D[] {new DirectPosition2D(60.5, 60.5), new DirectPosition2D(5.5, 110.5), new DirectPosition2D(0.5, 0.5)}) {
+            GridCoordinates2D c0 = terrainData.getWorld2Grid(p);
+            for(Bounds bounds : new Bounds[] {new Bounds(), new Bounds(0, 40, 0, 360, -90, 90), new Bounds(5, 60, 200, 90, -20, 30)}) {
+                Raster sweep = sweepView.calcViewShed(p, 3, -1, false, bounds).getView();
+                Raster sweepPar = sweepParView.calcViewShed(p, 3, -1, false, bounds).getView();
+                assertEquals(1.0, getAgreement(sweep, sweepPar), 0);
+                for(int y = 0; y < size; y++) {
+                    for(int x = 0; x < size; x++) {
+                        boolean los = rayView.calcRay(c0, 3, new GridCoordinates2D(x, y), -1, bounds, false) > 0;
+                        boolean vis = sweep.getSample(x, y, 0) == 1;
+                        if(los || vis) {
+                            union++;
+                        }
+                        if(los && vis) {
+                            inter++;
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue("Sweep and line of sight differ too much " + inter / (double)union, inter / (double)union > 0.9);
+    }
+    
+    @Test
+    public void testDelegation() {
+        DirectPosition2D p = new DirectPosition2D(40.5, 40.5);
+        Raster ray = new ComputeViewJava(randomData, 0.1, false, 0).calcViewShed(p, 3, -1, true, new Bounds()).getView();
+        Raster sweep = new ComputeViewSweepJava(randomData, 0.1, false, 0).calcViewShed(p, 3, -1, true, new Bounds()).getView();
+        assertEquals(1.0, getAgreement(ray, sweep), 0);
+    }
+    
+    /**
+     * @return the number of visible pixels
+     */
+    private static int countVisible(Raster r) {
+        int nb = 0;
+        for(int y = 0; y < r.getHeight(); y++) {
+            for(int x = 0; x < r.getWidth(); x++) {
+                nb += r.getSample(x, y, 0);
+            }
+        }
+        return nb;
+    }
+
+    /**
+     * @return the number of pixels having a different value in r1 and r2
+     */
+    private static int countDiff(Raster r1, Raster r2) {
+        int nb = 0;
+        for(int y = 0; y < r1.getHeight(); y++) {
+            for(int x = 0; x < r1.getWidth(); x++) {
+                if(r1.getSample(x, y, 0) != r2.getSample(x, y, 0)) {
+                    nb++;
+                }
+            }
+        }
+        return nb;
+    }
+
+    /**
+     * @return the number of pixels having a different value in r1 and r2 and having visible and hidden pixels of r1 in their 3x3 neighbourhood
+     */
+    private static int countEdgeDiff(Raster r1, Raster r2) {
+        int nb = 0;
+        for(int y = 0; y < r1.getHeight(); y++) {
+            for(int x = 0; x < r1.getWidth(); x++) {
+                if(r1.getSample(x, y, 0) == r2.getSample(x, y, 0)) {
+                    continue;
+                }
+                boolean visible = false, hidden = false;
+                for(int yy = Math.max(0, y-1); yy <= Math.min(r1.getHeight()-1, y+1); yy++) {
+                    for(int xx = Math.max(0, x-1); xx <= Math.min(r1.getWidth()-1, x+1); xx++) {
+                        if(r1.getSample(xx, yy, 0) == 1) {
+                            visible = true;
+                        } else {
+                            hidden = true;
+                        }
+                    }
+                }
+                if(visible && hidden) {
+                    nb++;
+                }
+            }
+        }
+        return nb;
+    }
+
+    /**
+     * @return the ratio of the visible pixels in r1 or r2 which are visible in both
+     */
+    private static double getAgreement(Raster r1, Raster r2) {
+        int union = 0, inter = 0;
+        for(int y = 0; y < r1.getHeight(); y++) {
+            for(int x = 0; x < r1.getWidth(); x++) {
+                final int v1 = r1.getSample(x, y, 0);
+                final int v2 = r2.getSample(x, y, 0);
+                if(v1 == 1 || v2 == 1) {
+                    union++;
+                }
+                if(v1 == 1 && v2 == 1) {
+                    inter++;
+                }
+            }
+        }
+        return union == 0 ? 1 : inter / (double)union;
+    }
+    
+    /**
+     * Creates flat data with a square obstacle of 10m in the DTM or in the DSM
+     */
+    private static ScaleData createObstacleData(int size, int x0, int y0, int radius, boolean dsm) {
+        WritableRaster dtm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1), null);
+        WritableRaster mne = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1), null);
+        for(int y = y0-radius; y <= y0+radius; y++) {
+            for(int x = x0-radius; x <= x0+radius; x++) {
+                (dsm ? mne : dtm).setSample(x, y, 0, 10);
+            }
+        }
+        return new ScaleData(new GridCoverageFactory().create("", dtm, new Envelope2D(null, 0, 0, size, size)), null, new RasterImage(mne), 1);
+    }
+
+    /**
+     * Creates a smooth synthetic terrain with a small noise
+     */
+    private static ScaleData createTerrainData(int size) {
+        WritableRaster dtm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1), null);
+        Random rnd = new Random(1);
+        double f = 2*Math.PI / size;
+        for(int y = 0; y < size; y++) {
+            for(int x = 0; x < size; x++) {
+                dtm.setSample(x, y, 0, 20*Math.sin(3*f*x)*Math.cos(2*f*y) + 8*Math.sin(11*f*(x+y)) + rnd.nextFloat()*0.5);
+            }
+        }
+        return new ScaleData(new GridCoverageFactory().create("", dtm, new Envelope2D(null, 0, 0, size, size)), null, null, 1);
+    }
+}
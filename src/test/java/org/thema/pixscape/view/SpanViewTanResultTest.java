@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.image.Raster;
+import java.util.Arrays;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.TestTools;
+import org.thema.pixscape.metric.DepthLineMetric;
+import org.thema.pixscape.metric.ShanDistMetric;
+import org.thema.pixscape.metric.SkyLineMetric;
+import org.thema.pixscape.metric.ViewTanMetric;
+
+/**
+ *
+ * @author Gilles Vuidel
+ */
+public class SpanViewTanResultTest {
+    
+    private static ComputeViewJava compute;
+    
+    @BeforeClass
+    public static void setUpClass() {
+        compute = new ComputeViewJava(TestTools.createRandomData(30), 1, false, 0);
+    }
+
+    /**
+     * Test of addRun method, of class SpanViewTanResult.
+     * A pixel already covered by a run is never changed.
+     */
+    @Test
+    public void testAddRun() {
+        SpanViewTanResult result = new SpanViewTanResult(new GridCoordinates2D(0, 0), 1, 20, compute);
+        int[] dense = new int[20];
+        Arrays.fill(dense, -1);
+        int[][] runs = {{10, 15, 1}, {8, 11, 2}, {2, 5, 3}, {4, 9, 4}, {14, 18, 5}, {0, 25, 6}, {-3, 1, 7}};
+        for(int[] run : runs) {
+            result.addRun(0, run[0], run[1], run[2]);
+            for(int y = Math.max(0, run[0]); y < Math.min(20, run[1]); y++) {
+                if(dense[y] == -1) {
+                    dense[y] = run[2];
+                }
+            }
+            for(int y = 0; y < 20; y++) {
+                assertEquals(dense[y], result.getIndex(0, y));
+            }
+        }
+        assertEquals(0, result.getFirstSeen(0));
+    }
+
+    /**
+     * The results calculated from the runs must be the same as the results of the full view.
+     */
+    @Test
+    public void testRuns() {
+        for(Bounds bounds : Arrays.asList(new Bounds(), new Bounds(0, 10, 0, 360, -90, 90), new Bounds(2, 20, 30, 200, -10, 45))) {
+            for(DirectPosition2D p : Arrays.asList(new DirectPosition2D(15.5, 15.5), new DirectPosition2D(2.5, 27.5))) {
+                SpanViewTanResult result = (SpanViewTanResult) compute.calcViewTan(p, 2, bounds);
+                SimpleViewTanResult full = new SimpleViewTanResult(result.getCoord(), result.getView(), compute);
+                assertEquals(full.getThetaWidth(), result.getThetaWidth());
+                assertEquals(full.getThetaHeight(), result.getThetaHeight());
+                for(int x = 0; x < full.getThetaWidth(); x++) {
+                    assertEquals(full.getFirstSeen(x), result.getFirstSeen(x));
+                    assertEquals(full.getMaxDistance(x), result.getMaxDistance(x), 0);
+                    for(int y = 0; y < full.getThetaHeight(); y++) {
+                        assertEquals(full.getDistance(x, y), result.getDistance(x, y), 0);
+                        assertEquals(full.getElevation(x, y), result.getElevation(x, y), 0);
+                        assertEquals(full.getLand(x, y), result.getLand(x, y));
+                    }
+                }
+                assertEquals(full.getArea(), result.getArea(), 1e-9);
+                assertEquals(full.getArea(3, 8), result.getArea(3, 8), 1e-9);
+                assertArrayEquals(full.getAreaLand(), result.getAreaLand(), 1e-9);
+                assertArrayEquals(full.getAreaLand(0, 5), result.getAreaLand(0, 5), 1e-9);
+                Raster land1 = full.getLanduseView(), land2 = result.getLanduseView();
+                for(int y = 0; y < land1.getHeight(); y++) {
+                    for(int x = 0; x < land1.getWidth(); x++) {
+                        assertEquals(land1.getSample(x, y, 0), land2.getSample(x, y, 0));
+                    }
+                }
+                for(ViewTanMetric metric : Arrays.asList(new SkyLineMetric(), new DepthLineMetric(), new ShanDistMetric())) {
+                    assertArrayEquals(metric.calcMetric(full), metric.calcMetric(result));
+                }
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Laboratoire ThéMA - UMR 6049 - CNRS / Université de Franche-Comté
+ * http://thema.univ-fcomte.fr
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thema.pixscape.view;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.thema.pixscape.Bounds;
+import org.thema.pixscape.ScaleData;
+import org.thema.pixscape.TestTools;
+
+/**
+ * Validates the total viewshed against the viewsheds calculated cell by cell.
+ *
+ * @author Gilles Vuidel
+ */
+public class TotalViewShedTest {
+
+    private static final int SIZE = 60;
+
+    private static ComputeViewJava flatCompute, terrainCompute;
+
+    @BeforeClass
+    public static void setUpClass() {
+        flatCompute = new ComputeViewJava(TestTools.createFlatData(SIZE, SIZE), 0.1, false, 0);
+        terrainCompute = new ComputeViewJava(createTerrainData(SIZE), 0.1, false, 0);
+    }
+
+    /**
+     * On flat data, all the cells are seen
+     */
+    @Test
+    public void testFlat() {
+        Raster total = flatCompute.calcTotalViewShed(1.8, -1, false, new Bounds(), TotalViewShed.DEFAULT_NB_SECTOR);
+        for(int y = 0; y < SIZE; y += 7) {
+            for(int x = 0; x < SIZE; x += 7) {
+                assertEquals(SIZE*SIZE, total.getSampleDouble(x, y, 0), SIZE*SIZE*0.02);
+            }
+        }
+
+        Bounds bounds = new Bounds(0, 15, 0, 360, -90, 90);
+        total = flatCompute.calcTotalViewShed(1.8, -1, false, bounds, TotalViewShed.DEFAULT_NB_SECTOR);
+        double area = flatCompute.calcViewShed(getWorld(30, 30), 1.8, -1, false, bounds).getArea();
+        assertEquals(area, total.getSampleDouble(30, 30, 0), area*0.02);
+
+        bounds = new Bounds(0, 15, 45, 90, -90, 90);
+        total = flatCompute.calcTotalViewShed(1.8, -1, false, bounds, TotalViewShed.DEFAULT_NB_SECTOR);
+        // ray casting includes the pixels crossed by the rays on the wedge edges
+        area = Math.PI*15*15 / 4;
+        assertEquals(area, total.getSampleDouble(30, 30, 0), area*0.03);
+    }
+
+    /**
+     * On a terrain, the total viewshed must be close to the number of cells seen with the line of sight
+     * to the cell centre, calculated cell by cell with {@link ComputeViewJava#calcRay }
+     */
+    @Test
+    public void testTerrain() {
+        for(boolean inverse : new boolean[] {false, true}) {
+            for(Bounds bounds : new Bounds[] {new Bounds(), new Bounds(0, 20, 0, 360, -90, 90)}) {
+                Raster total = terrainCompute.calcTotalViewShed(1.8, -1, inverse, bounds, TotalViewShed.DEFAULT_NB_SECTOR);
+                double sumDiff = 0, sum = 0, bias = 0;
+                for(int y = 1; y < SIZE; y += 6) {
+                    for(int x = 2; x < SIZE; x += 6) {
+                        double nb = countLineOfSight(terrainCompute, new GridCoordinates2D(x, y), inverse, bounds);
+                        sumDiff += Math.abs(nb - total.getSampleDouble(x, y, 0));
+                        bias += total.getSampleDouble(x, y, 0) - nb;
+                        sum += nb;
+                    }
+                }
+                assertTrue("Relative error " + sumDiff/sum, sumDiff / sum < 0.15);
+                assertEquals("Relative bias", 0, bias / sum, 0.05);
+            }
+        }
+    }
+
+    private static int countLineOfSight(ComputeViewJava compute, GridCoordinates2D c, boolean inverse, Bounds bounds) {
+        int nb = 0;
+        for(int y = 0; y < SIZE; y++) {
+            for(int x = 0; x < SIZE; x++) {
+                GridCoordinates2D c1 = new GridCoordinates2D(x, y);
+                double v = inverse ? compute.calcRay(c1, 1.8, c, -1, bounds, false) : compute.calcRay(c, 1.8, c1, -1, bounds, false);
+                if(v > 0) {
+                    nb++;
+                }
+            }
+        }
+        return nb;
+    }
+
+    /**
+     * The cells without data are NaN and stop the lines of sight
+     */
+    @Test
+    public void testNoData() {
+        ScaleData data = TestTools.createFlatData(SIZE, SIZE);
+        WritableRaster dtm = (WritableRaster) data.getDtmRaster();
+        for(int y = 0; y < SIZE; y++) {
+            dtm.setSample(SIZE/2, y, 0, Float.NaN);
+        }
+        Raster total = new ComputeViewJava(data, 0.1, false, 0).calcTotalViewShed(1.8, -1, false, new Bounds(), 36);
+        assertTrue(Double.isNaN(total.getSampleDouble(SIZE/2, 10, 0)));
+        assertEquals(SIZE*SIZE/2, total.getSampleDouble(10, 10, 0), SIZE*SIZE*0.05);
+    }
+
+    @Test
+    public void testOddSector() {
+        try {
+            new TotalViewShed(flatCompute, 35);
+            fail("The number of sectors must be even");
+        } catch(IllegalArgumentException ex) {
+        }
+    }
+
+    private static DirectPosition2D getWorld(int x, int y) {
+        return new DirectPosition2D(x+0.5, SIZE-y-0.5);
+    }
+
+    private static ScaleData createTerrainData(int size) {
+        WritableRaster dtm = Raster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1), null);
+        Random rnd = new Random(1);
+        double f = 2*Math.PI / size;
+        for(int y = 0; y < size; y++) {
+            for(int x = 0; x < size; x++) {
+                dtm.setSample(x, y, 0, 20*Math.sin(3*f*x)*Math.cos(2*f*y) + 8*Math.sin(11*f*(x+y)) + rnd.nextFloat()*0.5);
+            }
+        }
+        return new ScaleData(new GridCoverageFactory().create("", dtm, new Envelope2D(null, 0, 0, size, size)), null, null, 1);
+    }
+}